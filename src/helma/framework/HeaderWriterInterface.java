@@ -0,0 +1,34 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework;
+
+import java.io.IOException;
+
+/**
+ * Writes the status, headers and cookies of a response to the client. This is
+ * provided by the servlet client so that streaming responses can commit their
+ * headers before the response body has been rendered completely.
+ */
+public interface HeaderWriterInterface {
+    /**
+     * Write the status, headers and cookies of the given response to the client.
+     * The response body is written by the caller.
+     * @param res the response
+     * @throws IOException if the headers can't be written
+     */
+    void writeHeaders(ResponseTrans res) throws IOException;
+}
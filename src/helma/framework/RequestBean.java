@@ -198,6 +198,27 @@ public class RequestBean implements Serializable {
         return this.req.getUri();
     }
 
+    /**
+     * @return true if this request was suspended and has been resumed
+     */
+    public boolean isResumed() {
+        return this.req.isResumed();
+    }
+
+    /**
+     * @return true if this request was suspended and has timed out
+     */
+    public boolean isExpired() {
+        return this.req.isExpired();
+    }
+
+    /**
+     * @return the value passed to res.resume() by the request that resumed this request
+     */
+    public Object getResumeValue() {
+        return this.req.getResumeValue();
+    }
+
     /**
      * @return the username if using HTTP basic authentication
      */
@@ -21,6 +21,7 @@
 
 package helma.framework;
 
+import helma.framework.core.ResponseCompressor;
 import helma.util.SystemMap;
 import helma.util.StringUtils;
 
@@ -93,6 +94,14 @@ public class RequestTrans implements Serializable {
     private String httpUsername;
     private String httpPassword;
 
+    // set if this is a previously suspended request being run again
+    private transient boolean resumed = false;
+    private transient boolean expired = false;
+    private transient Object resumeValue = null;
+
+    // writes the response headers for streaming responses, null for internal requests
+    private transient HeaderWriterInterface headerWriter = null;
+
     static private final Pattern paramPattern = Pattern.compile("\\[(.+?)\\]"); //$NON-NLS-1$
 
     /**
@@ -495,6 +504,55 @@ public class RequestTrans implements Serializable {
         this.actionHandler = handler;
     }
 
+    /**
+     * Mark this request as a previously suspended request being run again.
+     * @param resumed true if the request was resumed, false if it expired
+     * @param value the value passed on by the resuming request, if any
+     */
+    public void setResumed(boolean resumed, Object value) {
+        this.resumed = resumed;
+        this.expired = !resumed;
+        this.resumeValue = value;
+    }
+
+    /**
+     * @return true if this request was suspended and has been resumed
+     */
+    public boolean isResumed() {
+        return this.resumed;
+    }
+
+    /**
+     * @return true if this request was suspended and has timed out
+     */
+    public boolean isExpired() {
+        return this.expired;
+    }
+
+    /**
+     * @return the value passed on by the request that resumed this request
+     */
+    public Object getResumeValue() {
+        return this.resumeValue;
+    }
+
+    /**
+     * Set the header writer used to commit the response headers if the
+     * response is streamed to the client.
+     * @param writer the header writer
+     */
+    public void setHeaderWriter(HeaderWriterInterface writer) {
+        this.headerWriter = writer;
+    }
+
+    /**
+     * @return the header writer for streaming responses, or null if the
+     * response can't be streamed
+     */
+    public HeaderWriterInterface getHeaderWriter() {
+        return this.headerWriter;
+    }
+
     /**
      * Get the time the request was created.
      */
@@ -526,12 +584,14 @@ public class RequestTrans implements Serializable {
      * @param etagHeader ...
      */
     public void setETags(String etagHeader) {
+        // compressed variants of a response carry the encoding in their ETag,
+        // but are compared with the ETag of the uncompressed response
         if (etagHeader.indexOf(",") > -1) { //$NON-NLS-1$
             StringTokenizer st = new StringTokenizer(etagHeader, ", \r\n"); //$NON-NLS-1$
             while (st.hasMoreTokens())
-                this.etags.add(st.nextToken());
+                this.etags.add(ResponseCompressor.stripETag(st.nextToken()));
         } else {
-            this.etags.add(etagHeader);
+            this.etags.add(ResponseCompressor.stripETag(etagHeader));
         }
     }
 
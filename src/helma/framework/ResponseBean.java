@@ -16,6 +16,7 @@
 
 package helma.framework;
 
+import helma.objectmodel.NodeInterface;
 import helma.objectmodel.db.Transactor;
 import helma.scripting.ScriptingException;
 
@@ -112,6 +113,55 @@ public class ResponseBean implements Serializable {
         this.res.redirect(null);
     }
 
+    /**
+     * Suspend the current request until it is resumed by res.resume() with the
+     * same key. The request evaluator is released while the request waits, and
+     * the request is run again once it is resumed. Use req.resumed to find out
+     * whether the current request is being resumed.
+     *
+     * @param key the key to wait on. If this is a persistent object, the request
+     * is also resumed when a transaction modifying the object commits.
+     * @throws RedirectException to immediately terminate the request
+     */
+    public void suspend(Object key) throws RedirectException {
+        this.res.suspend(key, 0);
+    }
+
+    /**
+     * Suspend the current request until it is resumed by res.resume() with the
+     * same key, or the timeout expires. Use req.resumed and req.expired to find
+     * out why the request is being run again.
+     *
+     * @param key the key to wait on
+     * @param timeout the time in milliseconds to wait
+     * @throws RedirectException to immediately terminate the request
+     */
+    public void suspend(Object key, long timeout) throws RedirectException {
+        this.res.suspend(key, timeout);
+    }
+
+    /**
+     * Resume all requests suspended on the given key.
+     *
+     * @param key the key the requests are waiting on
+     * @return the number of requests resumed
+     */
+    public int resume(Object key) {
+        return this.res.resume(key, null);
+    }
+
+    /**
+     * Resume all requests suspended on the given key, passing them a value
+     * that is available as req.resumeValue.
+     *
+     * @param key the key the requests are waiting on
+     * @param value the value passed on to the resumed requests
+     * @return the number of requests resumed
+     */
+    public int resume(Object key, Object value) {
+        return this.res.resume(key, value);
+    }
+
     /**
      * Reset the response object, clearing all content previously written to it
      */
@@ -234,6 +284,18 @@ public class ResponseBean implements Serializable {
         this.res.writeBinary(bytes);
     }
 
+    /**
+     * Use the value of a binary or text property of a node as response body.
+     * Large objects that haven't been fetched from the database are streamed
+     * to the client without being loaded into memory.
+     *
+     * @param node the node
+     * @param propName the property name
+     */
+    public void writeBinary(NodeInterface node, String propName) {
+        this.res.writeBinary(node, propName);
+    }
+
     /**
      * add an HTML formatted debug message to the end of the page.
      *
@@ -550,6 +612,66 @@ public class ResponseBean implements Serializable {
         this.res.digestDependencies();
     }
 
+    /**
+     * Store this response in the application's response cache. Subsequent anonymous
+     * GET requests for the same path and parameters are served from the cache
+     * without running the request until the response expires.
+     *
+     * @param seconds the time in seconds to keep the response in the cache
+     */
+    public void cacheFor(int seconds) {
+        this.res.setPageCacheTime(seconds * 1000L);
+    }
+
+    /**
+     * Make a request parameter part of the response cache key. If this is never
+     * called, all request parameters are part of the key.
+     *
+     * @param name the parameter name
+     */
+    public void cacheParam(String name) {
+        this.res.addCacheParameter(name);
+    }
+
+    /**
+     * Declare that this response varies on the given request header, making the
+     * header part of the response cache key and adding it to the Vary header.
+     *
+     * @param header the request header name
+     */
+    public void vary(String header) {
+        this.res.addVaryHeader(header);
+    }
+
+    /**
+     * Remove this response from the response cache as soon as any object
+     * of the given prototype is modified.
+     *
+     * @param prototype the prototype name
+     */
+    public void cacheDependsOn(String prototype) {
+        this.res.addCacheDependency(prototype);
+    }
+
+    /**
+     * Stream this response to the client in chunks while it is rendered instead
+     * of sending it after the request has finished. Headers and cookies must be
+     * set before the first chunk is sent, and no ETag is generated for streamed
+     * responses. Output is only flushed between macros, not while a macro is rendered.
+     *
+     * @return true if the response will be streamed
+     */
+    public boolean stream() {
+        return this.res.stream();
+    }
+
+    /**
+     * Send the output buffered so far to the client if this is a streaming response.
+     */
+    public void flush() {
+        this.res.flush();
+    }
+
     /**
      * Push a string buffer on the response object. All further
      * writes will be redirected to this buffer.
@@ -22,6 +22,12 @@ package helma.framework;
 
 import helma.framework.core.Skin;
 import helma.framework.core.Application;
+import helma.framework.core.ContinuationManager;
+import helma.objectmodel.NodeInterface;
+import helma.objectmodel.PropertyInterface;
+import helma.objectmodel.db.DbMapping;
+import helma.objectmodel.db.LazyLob;
+import helma.objectmodel.db.Property;
 import helma.util.*;
 import helma.scripting.ScriptingException;
 
@@ -42,6 +48,9 @@ public final class ResponseTrans extends Writer implements Serializable {
     static final long serialVersionUID = -8627370766119740844L;
     static final int INITIAL_BUFFER_SIZE = 2048;
 
+    // the number of buffered characters after which a streaming response is flushed
+    static final int STREAM_CHUNK_SIZE = 8192;
+
     static final String newLine = System.getProperty("line.separator"); //$NON-NLS-1$
 
     //  MIME content type of the response.
@@ -62,6 +71,9 @@ public final class ResponseTrans extends Writer implements Serializable {
     // the actual response
     private byte[] response = null;
 
+    // large object streamed from the database as response body
+    private transient LazyLob lob = null;
+
     // contains the redirect URL
     private String redir = null;
 
@@ -125,6 +137,39 @@ public final class ResponseTrans extends Writer implements Serializable {
     // the application
     Application app;
 
+    // the key a suspended request waits on, or null if the request isn't suspended
+    private transient Object suspendKey = null;
+
+    // the time in milliseconds a suspended request waits before it expires
+    private transient long suspendTimeout = 0;
+
+    // the place of the suspended request among the requests waiting on suspendKey
+    private transient ContinuationManager.Reservation suspension = null;
+
+    // the time in milliseconds to keep this response in the shared response cache
+    private transient long pageCacheTime = 0;
+
+    // the request parameters that are part of the response cache key, null for all
+    private transient ArrayList cacheParameters = null;
+
+    // the request headers this response varies on
+    private transient ArrayList varyHeaders = null;
+
+    // the DbMappings whose data the cached response depends on
+    private transient ArrayList cacheDependencies = null;
+
+    // whether the response body is streamed to the client
+    private transient boolean streaming = false;
+
+    // the writer for a streaming response, set once the headers have been committed
+    private transient Writer streamWriter = null;
+
+    // number of macros currently rendering, the buffer can't be flushed while this is > 0
+    private transient int streamHolds = 0;
+
+    // set if writing a streaming response failed, e.g. because the client went away
+    private transient boolean streamFailed = false;
+
 
     /**
      * Creates a new ResponseTrans object.
@@ -195,6 +240,7 @@ public final class ResponseTrans extends Writer implements Serializable {
 
         this.buffers = null;
         this.response = null;
+        this.lob = null;
         this.cacheable = true;
         this.redir = this.forward = this.message = null;
         this.error = null;
@@ -212,6 +258,21 @@ public final class ResponseTrans extends Writer implements Serializable {
         if (this.digest != null) {
             this.digest.reset();
         }
+
+        this.pageCacheTime = 0;
+        this.cacheParameters = null;
+        this.varyHeaders = null;
+        this.cacheDependencies = null;
+
+        cancelSuspension();
+        this.suspendTimeout = 0;
+
+        // output already streamed can't be taken back, but the response
+        // isn't streamed any further
+        this.streaming = false;
+        this.streamWriter = null;
+        this.streamHolds = 0;
+        this.streamFailed = false;
     }
 
     /**
@@ -226,9 +287,9 @@ public final class ResponseTrans extends Writer implements Serializable {
             this.buffers = new Stack();
         }
 
-        if (this.buffer != null) {
-            this.buffers.push(this.buffer);
-        }
+        // push the current buffer even if it is null, so we can tell
+        // whether we're writing to the main response buffer
+        this.buffers.push(this.buffer);
 
         if (buf != null) {
             this.buffer = buf;
@@ -287,6 +348,7 @@ public final class ResponseTrans extends Writer implements Serializable {
                 this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
             this.buffer.append(str);
+            checkStream();
         }
     }
 
@@ -313,6 +375,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             this.buffer = new StringBuffer(Math.max(length + 100, INITIAL_BUFFER_SIZE));
         }
         this.buffer.append(chars, offset, length);
+        checkStream();
     }
 
     /**
@@ -336,6 +399,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append((char) c);
+        checkStream();
     }
 
     /**
@@ -362,6 +426,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -373,6 +438,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -406,6 +472,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeAll(str, this.buffer);
+            checkStream();
         }
     }
 
@@ -421,6 +488,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encode(str, this.buffer);
+            checkStream();
         }
     }
 
@@ -437,6 +505,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeXml(str, this.buffer);
+            checkStream();
         }
     }
 
@@ -452,6 +521,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeAll(str, this.buffer, false);
+            checkStream();
         }
     }
 
@@ -478,6 +548,81 @@ public final class ResponseTrans extends Writer implements Serializable {
         return this.redir;
     }
 
+    /**
+     * Suspend the current request until it is resumed by a call to
+     * {@link #resume(Object, Object)} with the same key, or until the timeout
+     * expires. The current transaction is committed and the request evaluator
+     * is released while the request is suspended. Once resumed or expired, the
+     * request is run again with a fresh evaluator and transaction.
+     *
+     * @param key the key to wait on. If this is a persistent object, the request
+     * is also resumed when a transaction modifying the object commits.
+     * @param timeout the time in milliseconds to wait, or 0 to wait indefinitely
+     * @throws RedirectException to immediately terminate the request
+     */
+    public void suspend(Object key, long timeout) throws RedirectException {
+        if (key == null) {
+            throw new IllegalArgumentException(Messages.getString("ResponseTrans.10")); //$NON-NLS-1$
+        }
+        cancelSuspension();
+        this.suspendKey = key;
+        this.suspendTimeout = Math.max(0, timeout);
+        // reserve our place right away, so a resume happening before the
+        // container gets to suspend the request isn't lost
+        this.suspension = this.app.getContinuationManager().reserve(key);
+        throw new RedirectException(null);
+    }
+
+    /**
+     * Drop the reservation of a suspended request, if any.
+     */
+    private void cancelSuspension() {
+        if (this.suspension != null) {
+            this.app.getContinuationManager().cancel(this.suspension);
+            this.suspension = null;
+        }
+        this.suspendKey = null;
+    }
+
+    /**
+     * Resume all requests suspended on the given key.
+     *
+     * @param key the key the requests are waiting on
+     * @param value a value passed on to the resumed requests, may be null
+     * @return the number of requests resumed
+     */
+    public int resume(Object key, Object value) {
+        return this.app.getContinuationManager().resume(key, value);
+    }
+
+    /**
+     * @return true if the request has been suspended
+     */
+    public boolean isSuspended() {
+        return this.suspendKey != null;
+    }
+
+    /**
+     * @return the key the suspended request waits on
+     */
+    public Object getSuspendKey() {
+        return this.suspendKey;
+    }
+
+    /**
+     * @return the time in milliseconds the suspended request waits before it expires
+     */
+    public long getSuspendTimeout() {
+        return this.suspendTimeout;
+    }
+
+    /**
+     * @return the reservation of the suspended request with the continuation manager
+     */
+    public ContinuationManager.Reservation getSuspension() {
+        return this.suspension;
+    }
+
     /**
      *
      *
@@ -508,6 +653,40 @@ public final class ResponseTrans extends Writer implements Serializable {
      */
     public void writeBinary(byte[] bytes) {
         this.response = bytes;
+        this.lob = null;
+    }
+
+    /**
+     *  Set the value of a binary or text property of a node as response body.
+     *  If the property is a large object that hasn't been fetched from the
+     *  database yet, it is streamed to the client without being loaded into memory.
+     * @param node the node
+     * @param propName the property name
+     */
+    public void writeBinary(NodeInterface node, String propName) {
+        PropertyInterface prop = node == null ? null : node.get(propName);
+        LazyLob lob = prop instanceof Property ? ((Property) prop).getLob() : null;
+        if (lob != null) {
+            this.response = null;
+            this.lob = lob;
+            return;
+        }
+        Object value = prop == null ? null : prop.getValue();
+        if (value instanceof byte[]) {
+            writeBinary((byte[]) value);
+        } else if (value != null) {
+            write(value.toString());
+        }
+    }
+
+    /**
+     * Get the large object to stream as response body, if one was set
+     * via writeBinary().
+     *
+     * @return the large object, or null
+     */
+    public LazyLob getLob() {
+        return this.lob;
     }
 
     /**
@@ -638,9 +817,125 @@ public final class ResponseTrans extends Writer implements Serializable {
         writeBinary(xresproc.encodeException(x, this.charset));
     }
 
+    /**
+     * Stream the response body to the client instead of sending it in one piece
+     * after the request has finished. The response headers are committed the first
+     * time the response is flushed, either explicitly or because enough output
+     * has been buffered. Headers and cookies set after that are ignored, and no
+     * ETag is generated for the response. Streaming is only available for
+     * requests received via HTTP.
+     *
+     * @return true if the response will be streamed
+     */
+    public synchronized boolean stream() {
+        if (getServletResponse() != null && this.reqtrans.getHeaderWriter() != null) {
+            this.streaming = true;
+        }
+        return this.streaming;
+    }
+
+    /**
+     * @return true if the response body is streamed to the client
+     */
+    public boolean isStreaming() {
+        return this.streaming;
+    }
+
+    /**
+     * Keep a streaming response from flushing the response buffer. This is
+     * called while a macro is rendered, as the macro may look at or rewrite
+     * its output in the buffer. Calls must be balanced by releaseStream().
+     */
+    public synchronized void holdStream() {
+        this.streamHolds += 1;
+    }
+
+    /**
+     * Allow a streaming response to flush the response buffer again.
+     */
+    public synchronized void releaseStream() {
+        this.streamHolds -= 1;
+    }
+
+    /**
+     * Send the buffered output of a streaming response to the client. This does
+     * nothing if the response isn't streaming or the main response buffer can't
+     * be flushed right now, e.g. because a skin is rendered as string.
+     */
     @Override
-    public void flush() {
-        // does nothing!
+    public synchronized void flush() {
+        if (canStream()) {
+            flushStream();
+        }
+    }
+
+    /**
+     * Flush a streaming response if enough output has been buffered.
+     */
+    private void checkStream() {
+        if (this.streaming &&
+                this.buffer.length() >= STREAM_CHUNK_SIZE &&
+                canStream()) {
+            flushStream();
+        }
+    }
+
+    /**
+     * Check if this is a streaming response and we're writing to the main
+     * response buffer outside of any macro.
+     */
+    private boolean canStream() {
+        return this.streaming &&
+               this.streamHolds == 0 &&
+               !this.notModified &&
+               this.redir == null &&
+               this.forward == null &&
+               (this.buffers == null || this.buffers.empty());
+    }
+
+    /**
+     * Write the response buffer to the client, committing the headers first
+     * if this is the first time the response is flushed.
+     */
+    private void flushStream() {
+        if (this.streamFailed) {
+            // the client is gone, discard the output
+            if (this.buffer != null) {
+                this.buffer.setLength(0);
+            }
+            return;
+        }
+
+        try {
+            if (this.streamWriter == null) {
+                if (this.charset == null) {
+                    this.charset = this.app.getCharset();
+                }
+                if (this.charset == null) {
+                    this.charset = "UTF-8"; //$NON-NLS-1$
+                }
+                this.reqtrans.getHeaderWriter().writeHeaders(this);
+                OutputStream out = getServletResponse().getOutputStream();
+                try {
+                    this.streamWriter = new OutputStreamWriter(out, this.charset);
+                } catch (UnsupportedEncodingException uee) {
+                    this.app.logError(Messages.getString("ResponseTrans.12") + this.charset); //$NON-NLS-1$
+                    this.streamWriter = new OutputStreamWriter(out);
+                }
+            }
+
+            if (this.buffer != null && this.buffer.length() > 0) {
+                this.streamWriter.write(this.buffer.toString());
+                this.buffer.setLength(0);
+            }
+            this.streamWriter.flush();
+        } catch (IOException iox) {
+            this.app.logEvent(Messages.getString("ResponseTrans.13") + iox); //$NON-NLS-1$
+            this.streamFailed = true;
+            if (this.buffer != null) {
+                this.buffer.setLength(0);
+            }
+        }
     }
 
     /**
@@ -659,10 +954,26 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @throws UnsupportedEncodingException if the charset is not a valid encoding name
      */
     public synchronized void close(String defaultCharset) throws UnsupportedEncodingException {
+        // if this is a streaming response that has been flushed before,
+        // send the rest of the buffer including debug output
+        if (this.streamWriter != null) {
+            if (this.debugBuffer != null &&
+                    this.contentType != null &&
+                    this.contentType.startsWith("text/html")) { //$NON-NLS-1$
+                this.debugBuffer.append("</div>"); //$NON-NLS-1$
+                getBuffer().append(this.debugBuffer);
+                this.debugBuffer = null;
+            }
+            // we don't care about string buffers or macros left over by an error
+            this.buffers = null;
+            this.streamHolds = 0;
+            flushStream();
+        }
+
         // if the response was already written and committed by the application
-        // there's no point in closing the response buffer
+        // or is streamed from the database there's no point in closing the response buffer
         HttpServletResponse res = this.reqtrans.getServletResponse();
-        if (res != null && res.isCommitted()) {
+        if ((res != null && res.isCommitted()) || this.lob != null) {
             // response was committed using HttpServletResponse directly. We need
             // set response to null and notify waiters in order to let attached
             // requests know they can't reuse this response.
@@ -891,6 +1202,107 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
     }
 
+    /**
+     * Store this response in the application's shared response cache, so
+     * subsequent anonymous requests for the same path are served without
+     * running the request.
+     *
+     * @param millis the time in milliseconds to keep the response in the cache
+     */
+    public void setPageCacheTime(long millis) {
+        this.pageCacheTime = millis;
+    }
+
+    /**
+     * Get the time in milliseconds to keep this response in the shared response cache.
+     *
+     * @return the cache time, or 0 if the response shouldn't be cached
+     */
+    public long getPageCacheTime() {
+        return this.pageCacheTime;
+    }
+
+    /**
+     * Add a request parameter to the response cache key. If no parameters are
+     * added, all request parameters are part of the key.
+     *
+     * @param name the parameter name
+     */
+    public void addCacheParameter(String name) {
+        if (this.cacheParameters == null) {
+            this.cacheParameters = new ArrayList();
+        }
+        this.cacheParameters.add(name);
+    }
+
+    /**
+     * Get the request parameters that are part of the response cache key.
+     *
+     * @return the parameter names, or null if all parameters are part of the key
+     */
+    public String[] getCacheParameters() {
+        if (this.cacheParameters == null) {
+            return null;
+        }
+        return (String[]) this.cacheParameters.toArray(new String[this.cacheParameters.size()]);
+    }
+
+    /**
+     * Declare that this response varies on the given request header. The header
+     * is part of the response cache key and is added to the Vary response header.
+     *
+     * @param name the request header name
+     */
+    public void addVaryHeader(String name) {
+        if (this.varyHeaders == null) {
+            this.varyHeaders = new ArrayList();
+        }
+        this.varyHeaders.add(name);
+        addHeader("Vary", name); //$NON-NLS-1$
+    }
+
+    /**
+     * Get the request headers this response varies on.
+     *
+     * @return the header names
+     */
+    public String[] getVaryHeaders() {
+        if (this.varyHeaders == null) {
+            return new String[0];
+        }
+        return (String[]) this.varyHeaders.toArray(new String[this.varyHeaders.size()]);
+    }
+
+    /**
+     * Declare that this response depends on the objects of the given prototype.
+     * The response is removed from the response cache when any object of the
+     * prototype is modified.
+     *
+     * @param prototype the prototype name
+     */
+    public void addCacheDependency(String prototype) {
+        DbMapping dbmap = this.app.getDbMapping(prototype);
+        if (dbmap == null) {
+            throw new IllegalArgumentException(Messages.getString("ResponseTrans.11") + prototype); //$NON-NLS-1$
+        }
+        if (this.cacheDependencies == null) {
+            this.cacheDependencies = new ArrayList();
+        }
+        this.cacheDependencies.add(dbmap);
+    }
+
+    /**
+     * Get the DbMappings whose data this response depends on.
+     *
+     * @return the DbMappings
+     */
+    public DbMapping[] getCacheDependencies() {
+        if (this.cacheDependencies == null) {
+            return new DbMapping[0];
+        }
+        return (DbMapping[]) this.cacheDependencies.toArray(new DbMapping[this.cacheDependencies.size()]);
+    }
+
     /**
      * Digest all dependencies to a checksum to see if the response has changed.
      */
@@ -0,0 +1,37 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework;
+
+
+/**
+ * This is thrown when a request can't be served because no request
+ * evaluator became available in time, or because the queue of requests
+ * waiting for an evaluator is full. Servlet clients translate it into a
+ * 503 Service Unavailable response.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = -2360128893512386451L;
+
+    /**
+     * Creates a new ServiceUnavailableException object.
+     *
+     * @param msg the reason why the request was rejected
+     */
+    public ServiceUnavailableException(String msg) {
+        super(msg);
+    }
+}
@@ -82,6 +82,24 @@ public final class Application implements Runnable {
     // The session manager
     SessionManager sessionMgr;
 
+    // keeps track of suspended requests
+    ContinuationManager continuations;
+
+    // shared cache for complete responses
+    ResponseCache responseCache;
+
+    // shared cache for rendered macro output
+    FragmentCache fragmentCache;
+
+    // shared cache for parsed skins
+    SkinCache skinCache;
+
+    // gzip/deflate compression of responses
+    ResponseCompressor compressor;
+
+    // coalesces identical concurrent anonymous requests, null if disabled
+    SingleFlight singleFlight;
+
      /**
      *  The type manager checks if anything in the application's prototype definitions
      * has been updated prior to each evaluation.
@@ -94,10 +112,9 @@ public final class Application implements Runnable {
     protected SkinManager skinmgr;
 
     /**
-     * Collections for evaluator thread pooling
+     * The pool of request evaluators
      */
-    protected Stack freeThreads;
-    protected Vector allThreads;
+    protected EvaluatorPool evaluators;
     boolean running = false;
     boolean debug;
     long starttime;
@@ -112,9 +129,38 @@ public final class Application implements Runnable {
     long requestTimeout = 60000;
     ThreadGroup threadgroup;
 
+    // whether requests are run directly on the calling thread instead of
+    // being handed over to the request evaluator's own thread
+    boolean directExecution = false;
+
+    // whether each request is run on a virtual thread of its own
+    boolean virtualExecution = false;
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), if available
+    private static Method ofVirtual;
+    private static Method unstarted;
+
+    static {
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual"); //$NON-NLS-1$
+            unstarted = Class.forName("java.lang.Thread$Builder") //$NON-NLS-1$
+                    .getMethod("unstarted", new Class[] {Runnable.class}); //$NON-NLS-1$
+        } catch (Exception notAvailable) {
+            // running on a JVM without virtual threads
+            ofVirtual = null;
+            unstarted = null;
+        }
+    }
+
+    // timer used to abort requests running directly on the calling thread
+    Timer watchdog;
+
     // threadlocal variable for the current RequestEvaluator
     ThreadLocal currentEvaluator = new ThreadLocal();
 
+    // set on threads created by createRequestThread()
+    ThreadLocal requestThread = new ThreadLocal();
+
     // Map of requesttrans -> active requestevaluators
     Hashtable activeRequests;
 
@@ -394,9 +440,25 @@ public final class Application implements Runnable {
                 }
             }
 
-            // create and init evaluator/thread lists
-            Application.this.freeThreads = new Stack();
-            Application.this.allThreads = new Vector();
+            // create and init evaluator pool
+            Application.this.evaluators = new EvaluatorPool(Application.this);
+            Application.this.evaluators.updateProperties(Application.this.props);
+
+            // create the shared response cache
+            Application.this.responseCache = new ResponseCache(Application.this);
+            Application.this.responseCache.updateProperties(Application.this.props);
+
+            // create the shared macro output cache
+            Application.this.fragmentCache = new FragmentCache(Application.this);
+            Application.this.fragmentCache.updateProperties(Application.this.props);
+
+            // create the shared parsed skin cache
+            Application.this.skinCache = new SkinCache(Application.this);
+            Application.this.skinCache.updateProperties(Application.this.props);
+
+            // create the response compressor
+            Application.this.compressor = new ResponseCompressor(Application.this);
+            Application.this.compressor.updateProperties(Application.this.props);
 
             Application.this.activeRequests = new Hashtable();
             Application.this.activeCronJobs = new Hashtable();
@@ -438,6 +500,9 @@ public final class Application implements Runnable {
             // create the app cache node exposed as app.data
             Application.this.cachenode = new TransientNode("app"); //$NON-NLS-1$
 
+            // create the registry for suspended requests
+            Application.this.continuations = new ContinuationManager(Application.this);
+
             // create and init session manager
             String sessionMgrImpl = Application.this.props.getProperty("sessionManagerImpl", //$NON-NLS-1$
                                                       "helma.framework.core.SessionManager"); //$NON-NLS-1$
@@ -469,15 +534,7 @@ public final class Application implements Runnable {
                 logEvent(Messages.getString("Application.8")+minThreads+Messages.getString("Application.9") + Application.this.name); //$NON-NLS-1$ //$NON-NLS-2$
             }
 
-            for (int i = 0; i < minThreads; i++) {
-                RequestEvaluator ev = new RequestEvaluator(Application.this);
-
-                if (i == 0) {
-                    ev.initScriptingEngine();
-                }
-                Application.this.freeThreads.push(ev);
-                Application.this.allThreads.addElement(ev);
-            }
+            Application.this.evaluators.preallocate(minThreads);
         }
     }
 
@@ -488,6 +545,8 @@ public final class Application implements Runnable {
     public synchronized void start() {
         this.starttime = System.currentTimeMillis();
 
+        this.watchdog = new Timer(this.name + "-watchdog", true); //$NON-NLS-1$
+
         // as first thing, invoke global onStart() function
         RequestEvaluator eval = null;
         try {
@@ -527,18 +586,19 @@ public final class Application implements Runnable {
 
         this.worker = null;
 
-        // stop evaluators
-        if (this.allThreads != null) {
-            for (Enumeration e = this.allThreads.elements(); e.hasMoreElements();) {
-                RequestEvaluator ev = (RequestEvaluator) e.nextElement();
-                ev.stopTransactor();
-                ev.shutdown();
-            }
+        if (this.watchdog != null) {
+            this.watchdog.cancel();
         }
 
-        // remove evaluators
-        this.allThreads.removeAllElements();
-        this.freeThreads.clear();
+        // resume suspended requests so no client is left waiting
+        if (this.continuations != null) {
+            this.continuations.shutdown();
+        }
+
+        // stop and remove evaluators, waking up any requests waiting for one
+        if (this.evaluators != null) {
+            this.evaluators.shutdown();
+        }
 
         // shut down node manager and embedded db
         try {
@@ -547,6 +607,11 @@ public final class Application implements Runnable {
             System.err.println(Messages.getString("Application.12") + dbx); //$NON-NLS-1$
         }
 
+        // close the connection pools of the relational db sources
+        for (Iterator it = this.dbSources.values().iterator(); it.hasNext(); ) {
+            ((DbSource) it.next()).shutdown();
+        }
+
         // tell the extensions that we're stopped.
         if (Server.getServer() != null) {
             Vector extensions = Server.getServer().getExtensions();
@@ -575,6 +640,15 @@ public final class Application implements Runnable {
         return this.running;
     }
 
+    /**
+     * Returns true if each request is run on a virtual thread of its own
+     *
+     * @return true if the app uses the virtual execution mode
+     */
+    public boolean isVirtualExecution() {
+        return this.virtualExecution;
+    }
+
     /**
      * Get the application directory.
      *
@@ -595,59 +669,31 @@ public final class Application implements Runnable {
     }
 
     /**
-     * Returns a free evaluator to handle a request.
+     * Returns a free evaluator to handle a request, waiting for the
+     * configured requestQueueTimeout if none is available.
      */
     public RequestEvaluator getEvaluator() {
         if (!this.running) {
             throw new ApplicationStoppedException();
         }
 
-        // first try
-        try {
-            return (RequestEvaluator) this.freeThreads.pop();
-        } catch (EmptyStackException nothreads) {
-            int maxThreads = 50;
-
-            String maxThreadsProp = this.props.getProperty("maxThreads"); //$NON-NLS-1$
-            if (maxThreadsProp != null) {
-                try {
-                    maxThreads = Integer.parseInt(maxThreadsProp);
-                } catch (Exception ignore) {
-                    logEvent(Messages.getString("Application.13") + maxThreadsProp); //$NON-NLS-1$
-                }
-            }
-
-            synchronized (this) {
-                // allocate a new evaluator
-                if (this.allThreads.size() < maxThreads) {
-                    logEvent(Messages.getString("Application.14") + (this.allThreads.size() + 1) + //$NON-NLS-1$
-                             Messages.getString("Application.15") + this.name); //$NON-NLS-1$
-
-                    RequestEvaluator ev = new RequestEvaluator(this);
-
-                    this.allThreads.addElement(ev);
-
-                    return (ev);
-                }
-            }
-        }
-
-        // we can't create a new evaluator, so we wait if one becomes available.
-        // give it 3 more tries, waiting 3 seconds each time.
-        for (int i = 0; i < 4; i++) {
-            try {
-                Thread.sleep(3000);
+        return this.evaluators.acquire();
+    }
 
-                return (RequestEvaluator) this.freeThreads.pop();
-            } catch (EmptyStackException nothreads) {
-                // do nothing
-            } catch (InterruptedException inter) {
-                throw new RuntimeException(Messages.getString("Application.16")); //$NON-NLS-1$
-            }
+    /**
+     * Returns a free evaluator to handle a request, waiting at most the
+     * given time if none is available.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 to fail
+     *        immediately or a negative value to wait indefinitely
+     * @throws ServiceUnavailableException if no evaluator became available
+     */
+    public RequestEvaluator getEvaluator(long timeout) {
+        if (!this.running) {
+            throw new ApplicationStoppedException();
         }
 
-        // no luck, give up.
-        throw new RuntimeException(Messages.getString("Application.17")); //$NON-NLS-1$
+        return this.evaluators.acquire(timeout);
     }
 
     /**
@@ -655,8 +701,7 @@ public final class Application implements Runnable {
      */
     public void releaseEvaluator(RequestEvaluator ev) {
         if (ev != null) {
-            ev.recycle();
-            this.freeThreads.push(ev);
+            this.evaluators.release(ev);
         }
     }
 
@@ -669,34 +714,7 @@ public final class Application implements Runnable {
             return false;
         }
 
-        int current = this.allThreads.size();
-
-        synchronized (this.allThreads) {
-            if (n > current) {
-                int toBeCreated = n - current;
-
-                for (int i = 0; i < toBeCreated; i++) {
-                    RequestEvaluator ev = new RequestEvaluator(this);
-
-                    this.freeThreads.push(ev);
-                    this.allThreads.addElement(ev);
-                }
-            } else if (n < current) {
-                int toBeDestroyed = current - n;
-
-                for (int i = 0; i < toBeDestroyed; i++) {
-                    try {
-                        RequestEvaluator re = (RequestEvaluator) this.freeThreads.pop();
-                        this.allThreads.removeElement(re);
-                        re.stopTransactor();
-                    } catch (EmptyStackException empty) {
-                        return false;
-                    }
-                }
-            }
-        }
-
-        return true;
+        return this.evaluators.resize(n);
     }
 
     /**
@@ -722,6 +740,21 @@ public final class Application implements Runnable {
         // are we responsible for releasing the evaluator and closing the result?
         boolean primaryRequest = false;
 
+        // if an identical anonymous request is already being executed for another
+        // session, wait for it and share its response instead of running our own
+        SingleFlight flights = this.singleFlight;
+        SingleFlight.Flight flight = null;
+        if (flights != null && flights.isEligible(req, session)) {
+            flight = flights.join(req);
+            if (!flight.isLeader()) {
+                res = flights.await(flight, req, this.requestTimeout);
+                if (res != null) {
+                    return res;
+                }
+                flight = null;
+            }
+        }
+
         try {
             // first look if a request with same user/path/data is already being executed.
             // if so, attach the request to its output instead of starting a new evaluation
@@ -755,6 +788,9 @@ public final class Application implements Runnable {
         } catch (ApplicationStoppedException stopped) {
             // let the servlet know that this application has gone to heaven
             throw stopped;
+        } catch (ServiceUnavailableException unavailable) {
+            // let the servlet know that we're too busy to serve the request
+            throw unavailable;
         } catch (Exception x) {
             this.errorCount += 1;
             res = new ResponseTrans(this, req);
@@ -766,11 +802,18 @@ public final class Application implements Runnable {
 
                 // response needs to be closed/encoded before sending it back
                 try {
-                    res.close(this.charset);
+                    if (res != null) {
+                        res.close(this.charset);
+                    }
                 } catch (UnsupportedEncodingException uee) {
                     logError(Messages.getString("Application.18"), uee); //$NON-NLS-1$
                 }
             }
+
+            // hand the response to identical requests waiting for us
+            if (flight != null) {
+                flights.complete(flight, primaryRequest ? res : null);
+            }
         }
 
         return res;
@@ -833,6 +876,79 @@ public final class Application implements Runnable {
         return this.nmgr.countCacheEntries();
     }
 
+    /**
+     * Returns the estimated memory used by the NodeManager's cache per prototype,
+     * or null if the cache doesn't track memory usage
+     */
+    public Map getCacheMemoryUsage() {
+        return this.nmgr.getCacheMemoryUsage();
+    }
+
+    /**
+     * Returns the NodeManager's cache statistics for each prototype
+     */
+    public Map getCacheStatistics() {
+        return this.nmgr.getCacheStatistics();
+    }
+
+    /**
+     * Resets the NodeManager's cache statistics
+     */
+    public void resetCacheStatistics() {
+        this.nmgr.resetCacheStatistics();
+    }
+
+    /**
+     * Returns the statistics of the NodeManager's second level cache,
+     * or null if the second level cache isn't enabled
+     */
+    public Map getL2CacheStatistics() {
+        return this.nmgr.getL2CacheStatistics();
+    }
+
+    /**
+     * Returns the prepared statement cache statistics of each db source
+     * that has been used by this application
+     */
+    public Map getStatementCacheStatistics() {
+        HashMap stats = new HashMap();
+        for (Iterator it = this.dbSources.values().iterator(); it.hasNext(); ) {
+            DbSource dbs = (DbSource) it.next();
+            stats.put(dbs.getName(), dbs.getStatementCacheStatistics());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the connection pool statistics of each db source
+     * that has been used by this application
+     */
+    public Map getConnectionPoolStatistics() {
+        HashMap stats = new HashMap();
+        for (Iterator it = this.dbSources.values().iterator(); it.hasNext(); ) {
+            DbSource dbs = (DbSource) it.next();
+            stats.put(dbs.getName(), dbs.getConnectionPoolStatistics());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the number of loads of lazy column groups for each type
+     * mapping that has lazy columns which have been loaded
+     */
+    public Map getLazyLoadStatistics() {
+        HashMap stats = new HashMap();
+        for (Iterator it = getPrototypes().iterator(); it.hasNext(); ) {
+            Prototype proto = (Prototype) it.next();
+            DbMapping dbmap = proto.getDbMapping();
+            Map loads = dbmap == null ? null : dbmap.getLazyLoadStatistics();
+            if (loads != null && !loads.isEmpty()) {
+                stats.put(proto.getName(), loads);
+            }
+        }
+        return stats;
+    }
+
     /**
      *  Set the application's root element to an arbitrary object. After this is called
      *  with a non-null object, the helma node manager will be bypassed. This function
@@ -955,6 +1071,46 @@ public final class Application implements Runnable {
         return this.sessionMgr;
     }
 
+    /**
+     * Return the application's registry of suspended requests
+     * @return the ContinuationManager instance used by this app
+     */
+    public ContinuationManager getContinuationManager() {
+        return this.continuations;
+    }
+
+    /**
+     * Return the application's shared response cache
+     * @return the ResponseCache instance used by this app
+     */
+    public ResponseCache getResponseCache() {
+        return this.responseCache;
+    }
+
+    /**
+     * Return the application's shared macro output cache
+     * @return the FragmentCache instance used by this app
+     */
+    public FragmentCache getFragmentCache() {
+        return this.fragmentCache;
+    }
+
+    /**
+     * Return the application's shared parsed skin cache
+     * @return the SkinCache instance used by this app
+     */
+    public SkinCache getSkinCache() {
+        return this.skinCache;
+    }
+
+    /**
+     * Return the application's response compressor
+     * @return the ResponseCompressor instance used by this app
+     */
+    public ResponseCompressor getResponseCompressor() {
+        return this.compressor;
+    }
+
     /**
      *  Return a transient node that is shared by all evaluators of this application ("app node")
      */
@@ -1348,6 +1504,13 @@ public final class Application implements Runnable {
         return this.debug;
     }
 
+    /**
+     * Check whether the calling thread was created by createRequestThread().
+     */
+    boolean isRequestThread() {
+        return this.requestThread.get() != null;
+    }
+
     /**
      * Get the current RequestEvaluator, or null if the calling thread
      * is not evaluating a request.
@@ -1388,6 +1551,39 @@ public final class Application implements Runnable {
         return null;
     }
 
+    /**
+     * Create a new, unstarted thread for running a request. This is a virtual
+     * thread if the JVM supports them, or a platform thread in the application's
+     * thread group otherwise. Requests invoked on the new thread run directly
+     * on it rather than being handed over to yet another thread.
+     *
+     * @param task the request to run
+     * @param name the thread name
+     * @return the new thread
+     */
+    public Thread createRequestThread(final Runnable task, String name) {
+        Runnable runnable = new Runnable() {
+            public void run() {
+                Application.this.requestThread.set(Boolean.TRUE);
+                task.run();
+            }
+        };
+        Thread thread = null;
+        if (ofVirtual != null) {
+            try {
+                thread = (Thread) unstarted.invoke(ofVirtual.invoke(null), new Object[] {runnable});
+                thread.setName(name);
+            } catch (Exception x) {
+                logError(Messages.getString("Application.50"), x); //$NON-NLS-1$
+            }
+        }
+        if (thread == null) {
+            thread = new Thread(this.threadgroup, runnable, name);
+        }
+        thread.setContextClassLoader(getClassLoader());
+        return thread;
+    }
+
     /**
      *  Return the application's classloader
      */
@@ -1910,6 +2106,16 @@ public final class Application implements Runnable {
                 this.requestTimeout = 60000L;
             }
 
+            // execution mode: "thread" hands requests over to the evaluator's own
+            // thread, "direct" runs them on the calling thread and "virtual" runs
+            // each request on a new virtual thread
+            String executionMode = this.props.getProperty("executionMode", "thread"); //$NON-NLS-1$ //$NON-NLS-2$
+            this.directExecution = "direct".equalsIgnoreCase(executionMode); //$NON-NLS-1$
+            this.virtualExecution = "virtual".equalsIgnoreCase(executionMode); //$NON-NLS-1$
+            if (this.virtualExecution && ofVirtual == null) {
+                logEvent(Messages.getString("Application.49")); //$NON-NLS-1$
+            }
+
             // set base URI
             String base = this.props.getProperty("baseuri"); //$NON-NLS-1$
 
@@ -1945,6 +2151,40 @@ public final class Application implements Runnable {
                 this.nmgr.updateProperties(this.props);
             }
 
+            // if evaluator pool exists, update it
+            if (this.evaluators != null) {
+                this.evaluators.updateProperties(this.props);
+            }
+
+            // if response cache exists, update it
+            if (this.responseCache != null) {
+                this.responseCache.updateProperties(this.props);
+            }
+
+            // if fragment cache exists, update it
+            if (this.fragmentCache != null) {
+                this.fragmentCache.updateProperties(this.props);
+            }
+
+            // if skin cache exists, update it
+            if (this.skinCache != null) {
+                this.skinCache.updateProperties(this.props);
+            }
+
+            // if response compressor exists, update it
+            if (this.compressor != null) {
+                this.compressor.updateProperties(this.props);
+            }
+
+            // enable or disable coalescing of identical anonymous requests
+            if ("true".equalsIgnoreCase(this.props.getProperty("singleFlight"))) { //$NON-NLS-1$ //$NON-NLS-2$
+                if (this.singleFlight == null) {
+                    this.singleFlight = new SingleFlight();
+                }
+            } else {
+                this.singleFlight = null;
+            }
+
             // update extensions
             if (Server.getServer() != null) {
                 Vector extensions = Server.getServer().getExtensions();
@@ -2057,21 +2297,51 @@ public final class Application implements Runnable {
      *
      */
     public int countEvaluators() {
-        return this.allThreads.size();
+        return this.evaluators.countEvaluators();
     }
 
     /**
      *
      */
     public int countFreeEvaluators() {
-        return this.freeThreads.size();
+        return this.evaluators.countFreeEvaluators();
     }
 
     /**
      *
      */
     public int countActiveEvaluators() {
-        return this.allThreads.size() - this.freeThreads.size();
+        return this.evaluators.countActiveEvaluators();
+    }
+
+    /**
+     * Return the number of requests currently waiting for a free evaluator
+     */
+    public int countQueuedRequests() {
+        return this.evaluators.countQueuedRequests();
+    }
+
+    /**
+     * Return the number of requests that shared the response of an identical
+     * concurrent request from another session
+     */
+    public long countCoalescedRequests() {
+        SingleFlight flights = this.singleFlight;
+        return flights == null ? 0 : flights.countCoalescedRequests();
+    }
+
+    /**
+     * Return the number of requests currently suspended
+     */
+    public int countSuspendedRequests() {
+        return this.continuations.countSuspendedRequests();
+    }
+
+    /**
+     * Return a snapshot of the evaluator pool's statistics
+     */
+    public Map getEvaluatorStatistics() {
+        return this.evaluators.getStatistics();
     }
 
     /**
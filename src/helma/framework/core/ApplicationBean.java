@@ -394,6 +394,76 @@ public class ApplicationBean implements Serializable {
         return this.app.getCacheUsage();
     }
 
+    /**
+     * Returns the estimated memory used by cached objects of each prototype, if
+     * the app uses the memory-weighted node cache. Each prototype maps to a map
+     * holding the number of cache entries as count and their size as bytes.
+     * @return a map of prototype names to memory usage maps, or null
+     */
+    public Map getCacheMemoryUsage() {
+        Map usage = this.app.getCacheMemoryUsage();
+        return usage == null ? null : new WrappedMap(usage, true);
+    }
+
+    /**
+     * Returns node cache statistics for each prototype. Each prototype maps to a
+     * map holding the number of hits, nullHits, misses and loads, the hitRatio, the
+     * loadTime and averageLoadTime in milliseconds, and the number of registrations
+     * and evictions. The statistics are also available as JMX MBeans.
+     * @return a map of prototype names to statistics maps
+     */
+    public Map getNodeCacheStats() {
+        return new WrappedMap(this.app.getCacheStatistics(), true);
+    }
+
+    /**
+     * Resets the node cache statistics.
+     */
+    public void resetNodeCacheStats() {
+        this.app.resetCacheStatistics();
+    }
+
+    /**
+     * Returns statistics of the off-heap second level node cache enabled with
+     * the l2cache app property.
+     * @return a map containing the cache statistics, or null
+     */
+    public Map getL2CacheStats() {
+        Map stats = this.app.getL2CacheStatistics();
+        return stats == null ? null : new WrappedMap(stats, true);
+    }
+
+    /**
+     * Returns prepared statement cache statistics for each db source used by
+     * the app. Each db source name maps to a map holding the number of hits and
+     * misses, the hitRatio, and the cache size set with the statementCacheSize
+     * property in db.properties.
+     * @return a map of db source names to statistics maps
+     */
+    public Map getStatementCacheStats() {
+        return new WrappedMap(this.app.getStatementCacheStatistics(), true);
+    }
+
+    /**
+     * Returns connection pool statistics for each db source used by the app.
+     * Each db source name maps to a map holding the number of active and idle
+     * connections, the minSize and maxSize of the pool, and the number of borrows,
+     * waits, timeouts, created and destroyed connections and reported leaks.
+     * @return a map of db source names to statistics maps
+     */
+    public Map getConnectionPoolStats() {
+        return new WrappedMap(this.app.getConnectionPoolStatistics(), true);
+    }
+
+    /**
+     * Returns how often lazy column groups have been loaded for each prototype.
+     * Each prototype name maps to a map of lazy group names to load counts.
+     * @return a map of prototype names to lazy group load counts
+     */
+    public Map getLazyLoadStats() {
+        return new WrappedMap(this.app.getLazyLoadStatistics(), true);
+    }
+
     /**
      * Returns the app's data node used to share data between the app's evaluators
      *
@@ -547,6 +617,93 @@ public class ApplicationBean implements Serializable {
         return this.app.countEvaluators();
     }
 
+    /**
+     * Get the number of requests currently waiting for a free request evaluator
+     * @return the current length of the request queue
+     */
+    public int getQueuedRequests() {
+        return this.app.countQueuedRequests();
+    }
+
+    /**
+     * Get the number of requests that shared the response of an identical
+     * concurrent request instead of running themselves
+     * @return the number of coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return this.app.countCoalescedRequests();
+    }
+
+    /**
+     * Get the number of requests currently suspended via res.suspend()
+     * @return the number of suspended requests
+     */
+    public int getSuspendedRequests() {
+        return this.app.countSuspendedRequests();
+    }
+
+    /**
+     * Get statistics about the request evaluator pool. The returned map
+     * contains the current and peak queue size, the number of acquired, queued,
+     * rejected and timed out requests as well as the total, maximum and
+     * average time in milliseconds requests spent waiting for an evaluator.
+     * @return a map containing the evaluator pool statistics
+     */
+    public Map getEvaluatorStats() {
+        return new WrappedMap(this.app.getEvaluatorStatistics(), true);
+    }
+
+    /**
+     * Get a read-only snapshot of the response cache statistics. The map contains
+     * the current and maximum number of cached responses and the number of cache
+     * hits, misses and stored responses.
+     * @return a map containing the response cache statistics
+     */
+    public Map getResponseCacheStats() {
+        return new WrappedMap(this.app.getResponseCache().getStatistics(), true);
+    }
+
+    /**
+     * Remove all responses from the response cache.
+     */
+    public void clearResponseCache() {
+        this.app.getResponseCache().clear();
+    }
+
+    /**
+     * Get a read-only snapshot of the macro fragment cache statistics. The map
+     * contains the current and maximum number of cached fragments and the number
+     * of cache hits, misses and stored fragments.
+     * @return a map containing the fragment cache statistics
+     */
+    public Map getFragmentCacheStats() {
+        return new WrappedMap(this.app.getFragmentCache().getStatistics(), true);
+    }
+
+    /**
+     * Remove all fragments from the macro fragment cache.
+     */
+    public void clearFragmentCache() {
+        this.app.getFragmentCache().clear();
+    }
+
+    /**
+     * Get a read-only snapshot of the parsed skin cache statistics. The map
+     * contains the number of cached skins and skinpath misses, the maximum cache
+     * size and the number of cache hits, misses and skinpath miss hits.
+     * @return a map containing the skin cache statistics
+     */
+    public Map getSkinCacheStats() {
+        return new WrappedMap(this.app.getSkinCache().getStatistics(), true);
+    }
+
+    /**
+     * Remove all skins and skinpath misses from the parsed skin cache.
+     */
+    public void clearSkinCache() {
+        this.app.getSkinCache().clear();
+    }
+
     /**
      * Set the maximal thread number for this application
      * @param n the maximal number of threads/request evaluators
@@ -0,0 +1,298 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.objectmodel.db.Node;
+import helma.objectmodel.db.NodeChangeListenerInterface;
+
+import java.util.*;
+
+import org.mortbay.util.ajax.Continuation;
+
+/**
+ * Keeps track of suspended requests and the keys they are waiting on. A request
+ * suspended via res.suspend() doesn't hold on to a request evaluator while it
+ * waits. It is resumed when res.resume() is called with the same key, or, if the
+ * key is a persistent object, when a transaction modifying that object commits.
+ *
+ * <p>A request reserves its place as soon as it calls res.suspend(), before its
+ * transaction is committed, so it isn't missed by a resume happening before
+ * the container gets to suspend it. The reservation is then replaced with the
+ * request's continuation, unless the request has been resumed in the meantime.</p>
+ */
+public class ContinuationManager implements NodeChangeListenerInterface {
+
+    Application app;
+
+    // map of keys to lists of continuations waiting on them
+    private final HashMap waiting = new HashMap();
+
+    // whether we're registered as node change listener
+    private boolean listening = false;
+
+    /**
+     * Create a new continuation manager for the given application.
+     *
+     * @param app the application
+     */
+    public ContinuationManager(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Reserve a place for a request about to be suspended on the given key. Until
+     * {@link Reservation#release()} is called, changes committed by the calling
+     * thread don't resume the request, so it isn't resumed by its own transaction.
+     *
+     * @param key the key to wait on, either an arbitrary object or a node
+     * @return the reservation
+     */
+    public Reservation reserve(Object key) {
+        Object k = getKey(key);
+        Reservation reservation = new Reservation(k);
+
+        synchronized (this) {
+            List list = (List) this.waiting.get(k);
+            if (list == null) {
+                list = new ArrayList();
+                this.waiting.put(k, list);
+            }
+            list.add(reservation);
+
+            if (k != key && !this.listening) {
+                // waiting on a node, so we need to be told about node changes
+                this.listening = true;
+                this.app.nmgr.addNodeChangeListener(this);
+            }
+        }
+
+        return reservation;
+    }
+
+    /**
+     * Replace a reservation with the continuation of the suspended request. The
+     * caller must hold the continuation's lock until it has suspended the
+     * continuation, as resuming a continuation that isn't suspended yet has no
+     * effect with some connectors.
+     *
+     * @param reservation the reservation made when the request was suspended
+     * @param continuation the continuation of the suspended request
+     * @return false if the request has already been resumed, in which case
+     * the continuation is not registered
+     */
+    public synchronized boolean register(Reservation reservation, Continuation continuation) {
+        List list = (List) this.waiting.get(reservation.key);
+        int index = list == null ? -1 : list.indexOf(reservation);
+        if (index < 0) {
+            return false;
+        }
+        list.set(index, continuation);
+        return true;
+    }
+
+    /**
+     * Drop a reservation, e.g. because the transaction of the request failed.
+     *
+     * @param reservation the reservation
+     */
+    public synchronized void cancel(Reservation reservation) {
+        List list = (List) this.waiting.get(reservation.key);
+        if (list != null) {
+            list.remove(reservation);
+            if (list.isEmpty()) {
+                this.waiting.remove(reservation.key);
+            }
+        }
+    }
+
+    /**
+     * Remove a continuation that is no longer waiting, e.g. because it expired.
+     *
+     * @param key the key the continuation was registered with
+     * @param continuation the continuation
+     */
+    public synchronized void unregister(Object key, Continuation continuation) {
+        Object k = getKey(key);
+        List list = (List) this.waiting.get(k);
+        if (list != null) {
+            list.remove(continuation);
+            if (list.isEmpty()) {
+                this.waiting.remove(k);
+            }
+        }
+    }
+
+    /**
+     * Resume all requests waiting on the given key.
+     *
+     * @param key the key
+     * @param value a value passed on to the resumed requests, may be null
+     * @return the number of requests resumed
+     */
+    public int resume(Object key, Object value) {
+        return resume(key, value, null);
+    }
+
+    /**
+     * Resume all requests waiting on the given key, except for reservations
+     * held by the given thread.
+     */
+    private int resume(Object key, Object value, Thread committer) {
+        Object k = getKey(key);
+        List list;
+        synchronized (this) {
+            list = (List) this.waiting.remove(k);
+            if (list == null) {
+                return 0;
+            }
+
+            if (committer != null) {
+                List kept = new ArrayList();
+                for (Iterator it = list.iterator(); it.hasNext(); ) {
+                    Object item = it.next();
+                    if (item instanceof Reservation &&
+                            ((Reservation) item).owner == committer) {
+                        kept.add(item);
+                        it.remove();
+                    }
+                }
+                if (!kept.isEmpty()) {
+                    this.waiting.put(k, kept);
+                }
+            }
+
+            // reservations removed from the map are resumed, so a
+            // subsequent register() call will refuse them
+            for (int i = 0; i < list.size(); i++) {
+                Object item = list.get(i);
+                if (item instanceof Reservation) {
+                    ((Reservation) item).value = value;
+                }
+            }
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            Object item = list.get(i);
+            if (item instanceof Continuation) {
+                Continuation continuation = (Continuation) item;
+                synchronized (continuation) {
+                    continuation.setObject(value);
+                    continuation.resume();
+                }
+            }
+        }
+
+        return list.size();
+    }
+
+    /**
+     * Return the number of requests currently suspended.
+     *
+     * @return the number of suspended requests
+     */
+    public synchronized int countSuspendedRequests() {
+        int count = 0;
+        for (Iterator it = this.waiting.values().iterator(); it.hasNext(); ) {
+            count += ((List) it.next()).size();
+        }
+        return count;
+    }
+
+    /**
+     * Resume all suspended requests. This is called when the application
+     * is stopped so that no client is left waiting.
+     */
+    public void shutdown() {
+        Object[] keys;
+        synchronized (this) {
+            keys = this.waiting.keySet().toArray();
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            resume(keys[i], null);
+        }
+
+        if (this.listening) {
+            this.app.nmgr.removeNodeChangeListener(this);
+            this.listening = false;
+        }
+    }
+
+    /**
+     * Resume requests waiting on nodes changed by a committed transaction.
+     */
+    public void nodesChanged(List inserted, List updated, List deleted, List parents) {
+        resumeNodes(updated);
+        resumeNodes(deleted);
+        resumeNodes(parents);
+    }
+
+    private void resumeNodes(List nodes) {
+        if (nodes == null) {
+            return;
+        }
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Object node = nodes.get(i);
+            if (node instanceof Node) {
+                resume(node, null, Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * The place of a request in the list of requests waiting on a key between
+     * the request calling res.suspend() and the container suspending it.
+     */
+    public static final class Reservation {
+        final Object key;
+        volatile Thread owner;
+        volatile Object value;
+
+        Reservation(Object key) {
+            this.key = key;
+            this.owner = Thread.currentThread();
+        }
+
+        /**
+         * Let changes committed by the thread that made the reservation resume
+         * the request. This is called once the request's own transaction is over.
+         */
+        public void release() {
+            this.owner = null;
+        }
+
+        /**
+         * @return the value passed on by the resume call, if the request
+         * has been resumed before its continuation was registered
+         */
+        public Object getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * Nodes are registered by their primary key, so requests are resumed
+     * regardless of which node instance is changed.
+     */
+    private Object getKey(Object key) {
+        if (key instanceof Node) {
+            return ((Node) key).getKey();
+        }
+        return key;
+    }
+}
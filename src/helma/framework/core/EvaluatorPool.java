@@ -0,0 +1,433 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.ApplicationStoppedException;
+import helma.framework.ServiceUnavailableException;
+import helma.util.ResourceProperties;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pool of request evaluators of an application. Idle evaluators are
+ * handed out in FIFO order. If all evaluators are busy and the maxThreads
+ * limit has been reached, callers are put into a bounded wait queue and
+ * served strictly in arrival order: a released evaluator is handed over
+ * directly to the longest waiting caller, which is woken up immediately.
+ *
+ * The pool is configured through the following app properties:
+ * <ul>
+ * <li>maxThreads - the maximum number of evaluators, defaults to 50</li>
+ * <li>requestQueueSize - the maximum number of callers waiting for an
+ *     evaluator. Additional callers are rejected right away. Defaults to
+ *     -1, meaning the queue is unbounded.</li>
+ * <li>requestQueueTimeout - the default time in milliseconds a caller
+ *     waits for an evaluator before giving up, defaults to 12000</li>
+ * </ul>
+ */
+public final class EvaluatorPool {
+
+    // the application we're serving
+    private final Application app;
+
+    // lock guarding all of the pool's state
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // idle evaluators
+    private final LinkedList free = new LinkedList();
+
+    // all evaluators owned by this pool
+    private final Vector all = new Vector();
+
+    // callers waiting for an evaluator, in order of arrival
+    private final LinkedList waiters = new LinkedList();
+
+    // the maximum number of evaluators
+    private volatile int maxEvaluators = 50;
+
+    // the maximum number of waiting callers, or -1 for no limit
+    private volatile int maxQueueSize = -1;
+
+    // the default time to wait for an evaluator in milliseconds
+    private volatile long queueTimeout = 12000L;
+
+    // set when the pool is shut down
+    private boolean closed = false;
+
+    // statistics
+    private long acquireCount = 0;
+    private long queuedCount = 0;
+    private long rejectedCount = 0;
+    private long timeoutCount = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+    private int peakQueueSize = 0;
+
+    /**
+     * Create a new evaluator pool for the given application.
+     *
+     * @param app the application
+     */
+    public EvaluatorPool(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Update the pool's settings from the application's properties.
+     *
+     * @param props the app properties
+     */
+    public void updateProperties(ResourceProperties props) {
+        String prop = props.getProperty("maxThreads"); //$NON-NLS-1$
+        int max = 50;
+        if (prop != null) {
+            try {
+                max = Integer.parseInt(prop);
+            } catch (NumberFormatException nfe) {
+                this.app.logEvent(Messages.getString("EvaluatorPool.0") + prop); //$NON-NLS-1$
+            }
+        }
+        this.maxEvaluators = max;
+
+        prop = props.getProperty("requestQueueSize"); //$NON-NLS-1$
+        int queueSize = -1;
+        if (prop != null) {
+            try {
+                queueSize = Integer.parseInt(prop);
+            } catch (NumberFormatException nfe) {
+                this.app.logEvent(Messages.getString("EvaluatorPool.1") + prop); //$NON-NLS-1$
+            }
+        }
+        this.maxQueueSize = queueSize;
+
+        prop = props.getProperty("requestQueueTimeout"); //$NON-NLS-1$
+        long timeout = 12000L;
+        if (prop != null) {
+            try {
+                timeout = Long.parseLong(prop);
+            } catch (NumberFormatException nfe) {
+                this.app.logEvent(Messages.getString("EvaluatorPool.2") + prop); //$NON-NLS-1$
+            }
+        }
+        this.queueTimeout = timeout;
+    }
+
+    /**
+     * Preallocate a number of evaluators.
+     *
+     * @param count the number of evaluators to create
+     */
+    public void preallocate(int count) {
+        this.lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                RequestEvaluator ev = new RequestEvaluator(this.app);
+
+                if (i == 0) {
+                    ev.initScriptingEngine();
+                }
+                this.free.addLast(ev);
+                this.all.addElement(ev);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get an evaluator, waiting for the default queue timeout if none is
+     * available.
+     *
+     * @return a request evaluator
+     * @throws ServiceUnavailableException if no evaluator became available
+     */
+    public RequestEvaluator acquire() {
+        return acquire(this.queueTimeout);
+    }
+
+    /**
+     * Get an evaluator, waiting at most the given time if none is available.
+     *
+     * @param timeout the maximum time to wait in milliseconds. 0 means
+     *        the call fails immediately if no evaluator is available, a
+     *        negative value means wait indefinitely.
+     * @return a request evaluator
+     * @throws ServiceUnavailableException if no evaluator became available
+     *         or the wait queue is full
+     * @throws ApplicationStoppedException if the application has been stopped
+     */
+    public RequestEvaluator acquire(long timeout) {
+        Waiter waiter;
+
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                throw new ApplicationStoppedException();
+            }
+
+            this.acquireCount += 1;
+
+            // never overtake callers which are already waiting
+            if (this.waiters.isEmpty()) {
+                if (!this.free.isEmpty()) {
+                    return (RequestEvaluator) this.free.removeFirst();
+                }
+
+                if (this.all.size() < this.maxEvaluators) {
+                    this.app.logEvent(Messages.getString("EvaluatorPool.3") + (this.all.size() + 1) + //$NON-NLS-1$
+                            Messages.getString("EvaluatorPool.4") + this.app.getName()); //$NON-NLS-1$
+
+                    RequestEvaluator ev = new RequestEvaluator(this.app);
+                    this.all.addElement(ev);
+                    return ev;
+                }
+            }
+
+            if (timeout == 0 ||
+                    (this.maxQueueSize > -1 && this.waiters.size() >= this.maxQueueSize)) {
+                this.rejectedCount += 1;
+                throw new ServiceUnavailableException(Messages.getString("EvaluatorPool.5")); //$NON-NLS-1$
+            }
+
+            waiter = new Waiter(this.lock.newCondition());
+            this.waiters.addLast(waiter);
+            this.queuedCount += 1;
+            this.peakQueueSize = Math.max(this.peakQueueSize, this.waiters.size());
+
+            long start = System.currentTimeMillis();
+            try {
+                long remaining = timeout;
+                while (waiter.evaluator == null && !this.closed) {
+                    if (timeout < 0) {
+                        waiter.condition.await();
+                    } else if (remaining > 0) {
+                        remaining = TimeUnit.NANOSECONDS.toMillis(
+                                waiter.condition.awaitNanos(TimeUnit.MILLISECONDS.toNanos(remaining)));
+                    } else {
+                        break;
+                    }
+                }
+            } catch (InterruptedException ix) {
+                this.waiters.remove(waiter);
+                if (waiter.evaluator != null) {
+                    release(waiter.evaluator);
+                }
+                throw new RuntimeException(Messages.getString("EvaluatorPool.6")); //$NON-NLS-1$
+            } finally {
+                long waited = System.currentTimeMillis() - start;
+                this.totalWaitTime += waited;
+                this.maxWaitTime = Math.max(this.maxWaitTime, waited);
+            }
+
+            if (waiter.evaluator != null) {
+                return waiter.evaluator;
+            }
+
+            this.waiters.remove(waiter);
+            if (this.closed) {
+                throw new ApplicationStoppedException();
+            }
+            this.timeoutCount += 1;
+            throw new ServiceUnavailableException(Messages.getString("EvaluatorPool.7")); //$NON-NLS-1$
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Return an evaluator to the pool. If a caller is waiting for an
+     * evaluator it is handed over directly.
+     *
+     * @param ev the evaluator
+     */
+    public void release(RequestEvaluator ev) {
+        if (ev == null) {
+            return;
+        }
+
+        ev.recycle();
+
+        this.lock.lock();
+        try {
+            if (!this.all.contains(ev)) {
+                // evaluator has been removed from the pool in the meantime
+                return;
+            }
+            if (!this.waiters.isEmpty()) {
+                Waiter waiter = (Waiter) this.waiters.removeFirst();
+                waiter.evaluator = ev;
+                waiter.condition.signal();
+            } else {
+                this.free.addLast(ev);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set the number of evaluators by creating new ones or discarding idle ones.
+     *
+     * @param n the new number of evaluators
+     * @return false if not enough idle evaluators could be discarded
+     */
+    public boolean resize(int n) {
+        this.lock.lock();
+        try {
+            int current = this.all.size();
+
+            if (n > current) {
+                for (int i = current; i < n; i++) {
+                    release(addEvaluator());
+                }
+            } else if (n < current) {
+                for (int i = n; i < current; i++) {
+                    if (this.free.isEmpty()) {
+                        return false;
+                    }
+                    RequestEvaluator ev = (RequestEvaluator) this.free.removeFirst();
+                    this.all.removeElement(ev);
+                    ev.stopTransactor();
+                }
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private RequestEvaluator addEvaluator() {
+        RequestEvaluator ev = new RequestEvaluator(this.app);
+        this.all.addElement(ev);
+        return ev;
+    }
+
+    /**
+     * Shut down all evaluators and wake up any waiting callers.
+     */
+    public void shutdown() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+
+            for (Enumeration e = this.all.elements(); e.hasMoreElements();) {
+                RequestEvaluator ev = (RequestEvaluator) e.nextElement();
+                ev.stopTransactor();
+                ev.shutdown();
+            }
+
+            for (Iterator i = this.waiters.iterator(); i.hasNext();) {
+                ((Waiter) i.next()).condition.signal();
+            }
+
+            this.waiters.clear();
+            this.all.removeAllElements();
+            this.free.clear();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total number of evaluators
+     */
+    public int countEvaluators() {
+        return this.all.size();
+    }
+
+    /**
+     * @return the number of idle evaluators
+     */
+    public int countFreeEvaluators() {
+        this.lock.lock();
+        try {
+            return this.free.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of evaluators currently in use
+     */
+    public int countActiveEvaluators() {
+        this.lock.lock();
+        try {
+            return this.all.size() - this.free.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of callers currently waiting for an evaluator
+     */
+    public int countQueuedRequests() {
+        this.lock.lock();
+        try {
+            return this.waiters.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of the pool's statistics.
+     *
+     * @return a map containing the pool's counters
+     */
+    public Map getStatistics() {
+        HashMap stats = new HashMap();
+
+        this.lock.lock();
+        try {
+            stats.put("evaluators", new Integer(this.all.size())); //$NON-NLS-1$
+            stats.put("freeEvaluators", new Integer(this.free.size())); //$NON-NLS-1$
+            stats.put("maxEvaluators", new Integer(this.maxEvaluators)); //$NON-NLS-1$
+            stats.put("queueSize", new Integer(this.waiters.size())); //$NON-NLS-1$
+            stats.put("maxQueueSize", new Integer(this.maxQueueSize)); //$NON-NLS-1$
+            stats.put("peakQueueSize", new Integer(this.peakQueueSize)); //$NON-NLS-1$
+            stats.put("acquired", new Long(this.acquireCount)); //$NON-NLS-1$
+            stats.put("queued", new Long(this.queuedCount)); //$NON-NLS-1$
+            stats.put("rejected", new Long(this.rejectedCount)); //$NON-NLS-1$
+            stats.put("timedOut", new Long(this.timeoutCount)); //$NON-NLS-1$
+            stats.put("totalWaitTime", new Long(this.totalWaitTime)); //$NON-NLS-1$
+            stats.put("maxWaitTime", new Long(this.maxWaitTime)); //$NON-NLS-1$
+            stats.put("averageWaitTime", new Long(this.queuedCount == 0 ? //$NON-NLS-1$
+                    0 : this.totalWaitTime / this.queuedCount));
+        } finally {
+            this.lock.unlock();
+        }
+
+        return stats;
+    }
+
+    /**
+     * A caller waiting for an evaluator to be handed over.
+     */
+    static class Waiter {
+        final Condition condition;
+        RequestEvaluator evaluator;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
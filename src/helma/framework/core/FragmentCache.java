@@ -0,0 +1,204 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.objectmodel.NodeInterface;
+import helma.objectmodel.db.DbMapping;
+import helma.util.ResourceProperties;
+
+import java.util.*;
+
+/**
+ * An application wide, bounded cache for rendered macro output. Macros opt in
+ * with the cache parameter, e.g. <code>&lt;% this.navigation cache="60" %&gt;</code>.
+ * Only macros whose handler is a persistent object are cached, keyed by the
+ * object's database key. Cached fragments are invalidated when they expire, when the macro's handler
+ * object is modified, when objects of a prototype listed in the macro's dependsOn
+ * parameter are modified, or when the application's code or configuration changes.
+ */
+public class FragmentCache {
+
+    Application app;
+
+    // maximum number of cached fragments
+    private int maxSize = 1000;
+
+    // LRU map of cache keys to cached fragments
+    private final LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+
+    // statistics
+    private long hits, misses, stores;
+
+    /**
+     * Create a fragment cache for the given application.
+     *
+     * @param app the application
+     */
+    public FragmentCache(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Update the cache settings from the application properties.
+     *
+     * @param props the application properties
+     */
+    public synchronized void updateProperties(ResourceProperties props) {
+        String size = props.getProperty("fragmentCacheSize"); //$NON-NLS-1$
+        try {
+            this.maxSize = size == null ? 1000 : Integer.parseInt(size.trim());
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("FragmentCache.0") + size); //$NON-NLS-1$
+            this.maxSize = 1000;
+        }
+        trim();
+    }
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return this.maxSize > 0;
+    }
+
+    /**
+     * Look up a cached fragment.
+     *
+     * @param key the fragment key
+     * @param handler the macro handler object, or null
+     * @return the cached fragment text, or null
+     */
+    public String get(String key, Object handler) {
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry) this.entries.get(key);
+            if (entry == null) {
+                this.misses += 1;
+                return null;
+            }
+        }
+
+        if (!entry.isValid(handler, this.app.getChecksum())) {
+            synchronized (this) {
+                if (this.entries.get(key) == entry) {
+                    this.entries.remove(key);
+                }
+                this.misses += 1;
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            this.hits += 1;
+        }
+        return entry.text;
+    }
+
+    /**
+     * Store a rendered fragment.
+     *
+     * @param key the fragment key
+     * @param text the rendered text
+     * @param handler the macro handler object, or null
+     * @param millis the time in milliseconds to keep the fragment
+     * @param dependencies the DbMappings the fragment depends on
+     */
+    public void put(String key, String text, Object handler, long millis, DbMapping[] dependencies) {
+        Entry entry = new Entry(text, handler, millis, this.app.getChecksum(), dependencies);
+        synchronized (this) {
+            this.entries.put(key, entry);
+            this.stores += 1;
+            trim();
+        }
+    }
+
+    /**
+     * Remove all cached fragments.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map containing the cache statistics
+     */
+    public synchronized Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("size", new Integer(this.entries.size())); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.maxSize)); //$NON-NLS-1$
+        stats.put("hits", new Long(this.hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(this.misses)); //$NON-NLS-1$
+        stats.put("stores", new Long(this.stores)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its maximum size.
+     */
+    private void trim() {
+        Iterator it = this.entries.values().iterator();
+        while (this.entries.size() > Math.max(this.maxSize, 0) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * A cached fragment.
+     */
+    static class Entry {
+        final String text;
+        final long expires;
+        final long checksum;
+        final long handlerModified;
+        final DbMapping[] dependencies;
+        final long[] dataChanges;
+
+        Entry(String text, Object handler, long millis, long checksum, DbMapping[] dependencies) {
+            this.text = text;
+            this.expires = System.currentTimeMillis() + millis;
+            this.checksum = checksum;
+            this.handlerModified = lastModified(handler);
+            this.dependencies = dependencies;
+            this.dataChanges = new long[dependencies.length];
+            for (int i = 0; i < dependencies.length; i++) {
+                this.dataChanges[i] = dependencies[i].getLastDataChange();
+            }
+        }
+
+        boolean isValid(Object handler, long currentChecksum) {
+            if (System.currentTimeMillis() > this.expires ||
+                    currentChecksum != this.checksum ||
+                    lastModified(handler) != this.handlerModified) {
+                return false;
+            }
+            for (int i = 0; i < this.dependencies.length; i++) {
+                if (this.dependencies[i].getLastDataChange() != this.dataChanges[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static long lastModified(Object handler) {
+            return handler instanceof NodeInterface ?
+                    ((NodeInterface) handler).lastModified() : 0;
+        }
+    }
+}
@@ -333,7 +333,7 @@ public final class Prototype {
             throws IOException {
         ResourceInterface res = this.skinMap.getResource(skinname);
         while (res != null) {
-            Skin skin = Skin.getSkin(res, this.app);
+            Skin skin = this.app.getSkinCache().getSkin(res);
             if (subskin == null && skin.hasMainskin()) {
                 return skin;
             } else if (subskin != null && skin.hasSubskin(subskin)) {
@@ -531,7 +531,7 @@ public final class Prototype {
             ResourceInterface res = (ResourceInterface) get(key);
 
             if (res != null) {
-                return Skin.getSkin(res, Prototype.this.app);
+                return Prototype.this.app.getSkinCache().getSkin(res);
             }
             return null;
         }
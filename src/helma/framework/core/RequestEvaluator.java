@@ -26,6 +26,7 @@ import helma.objectmodel.db.*;
 import helma.scripting.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.xmlrpc.XmlRpcRequestProcessor;
 import org.apache.xmlrpc.XmlRpcServerRequest;
@@ -62,6 +63,14 @@ public final class RequestEvaluator implements Runnable {
 
     private volatile Transactor transactor;
 
+    // the transactor used when running requests directly on the calling
+    // thread. It is bound to the calling thread for the duration of each request.
+    private Transactor ownTransactor;
+
+    // guards commits and aborts against the transactor being stopped. This is not
+    // the evaluator's monitor so virtual threads aren't pinned during database I/O.
+    private final ReentrantLock commitLock = new ReentrantLock();
+
     // the type of request to be serviced,
     // used to coordinate worker and waiter threads
     private volatile int reqtype;
@@ -139,7 +148,8 @@ public final class RequestEvaluator implements Runnable {
     }
 
     /**
-     *
+     * The transactor thread's main loop, servicing requests until the
+     * thread is released or another thread takes over.
      */
     public void run() {
         // first, set a local variable to the current transactor thread so we know
@@ -152,502 +162,517 @@ public final class RequestEvaluator implements Runnable {
             // while this thread is serving requests
             while (localThread == this.thread) {
 
-                // object reference to ressolve request path
-                Object currentElement;
-
-                // Get req and res into local variables to avoid memory caching problems
-                // in unsynchronized method.
-                RequestTrans req = getRequest();
-                ResponseTrans res = getResponse();
-
-                // request path object
-                RequestPath requestPath = new RequestPath(this.app);
-
-                String txname = req.getMethod() + ":" + req.getPath(); //$NON-NLS-1$
-                Log eventLog = this.app.getEventLog();
-                if (eventLog.isDebugEnabled()) {
-                    eventLog.debug(txname + Messages.getString("RequestEvaluator.5")); //$NON-NLS-1$
-                }
-
-                int tries = 0;
-                boolean done = false;
-                Throwable error = null;
-                String functionName = this.function instanceof String ?
-                        (String) this.function : null;
-
-                while (!done && localThread == this.thread) {
-                    // catch errors in path resolution and script execution
-                    try {
+                serviceRequest(localThread);
 
-                        // initialize scripting engine
-                        initScriptingEngine();
-                        this.app.setCurrentRequestEvaluator(this);
-                        // update scripting prototypes
-                        this.scriptingEngine.enterContext();
-
-
-                        // avoid going into transaction if called function doesn't exist.
-                        // this only works for the (common) case that method is a plain
-                        // method name, not an obj.method path
-                        if (this.reqtype == INTERNAL) {
-                            // if object is an instance of NodeHandle, get the node object itself.
-                            if (this.thisObject instanceof NodeHandle) {
-                                this.thisObject = ((NodeHandle) this.thisObject).getNode(this.app.nmgr.safe);
-                                // If no valid node object return immediately
-                                if (this.thisObject == null) {
-                                    done = true;
-                                    this.reqtype = NONE;
-                                    break;
-                                }
-                            }
-                            // If function doesn't exist, return immediately
-                            if (functionName != null && !this.scriptingEngine.hasFunction(this.thisObject, functionName, true)) {
-                                this.app.logEvent(missingFunctionMessage(this.thisObject, functionName));
-                                done = true;
-                                this.reqtype = NONE;
-                                break;
-                            }
-                        } else if (this.function != null && functionName == null) {
-                            // only internal requests may pass a function instead of a function name
-                            throw new IllegalStateException(Messages.getString("RequestEvaluator.6")); //$NON-NLS-1$
-                        }
+                notifyAndWait();
 
-                        // Update transaction name in case we're processing an error
-                        if (error != null) {
-                            txname = "error:" + txname; //$NON-NLS-1$
-                        }
+            }
+        } finally {
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) tx.closeConnections();
+        }
+    }
 
-                        // begin transaction
-                        this.transactor = Transactor.getInstance(this.app.nmgr);
-                        this.transactor.begin(txname);
+    /**
+     * Service the current request on the calling thread. This returns early
+     * if the request has been aborted, i.e. as soon as the calling thread
+     * is no longer the thread associated with this evaluator.
+     *
+     * @param localThread the calling thread
+     */
+    private void serviceRequest(Thread localThread) {
+        // object reference to ressolve request path
+        Object currentElement;
+
+        // Get req and res into local variables to avoid memory caching problems
+        // in unsynchronized method.
+        RequestTrans req = getRequest();
+        ResponseTrans res = getResponse();
+
+        // request path object
+        RequestPath requestPath = new RequestPath(this.app);
+
+        String txname = req.getMethod() + ":" + req.getPath(); //$NON-NLS-1$
+        Log eventLog = this.app.getEventLog();
+        if (eventLog.isDebugEnabled()) {
+            eventLog.debug(txname + Messages.getString("RequestEvaluator.5")); //$NON-NLS-1$
+        }
 
-                        Object root = this.app.getDataRoot(this.scriptingEngine);
-                        initGlobals(root, requestPath);
+        int tries = 0;
+        boolean done = false;
+        Throwable error = null;
+        String functionName = this.function instanceof String ?
+                (String) this.function : null;
 
-                        String action = null;
+        while (!done && localThread == this.thread) {
+            // catch errors in path resolution and script execution
+            try {
 
-                        if (error != null) {
-                            res.setError(error);
+                // initialize scripting engine
+                initScriptingEngine();
+                this.app.setCurrentRequestEvaluator(this);
+                // update scripting prototypes
+                this.scriptingEngine.enterContext();
+
+
+                // avoid going into transaction if called function doesn't exist.
+                // this only works for the (common) case that method is a plain
+                // method name, not an obj.method path
+                if (this.reqtype == INTERNAL) {
+                    // if object is an instance of NodeHandle, get the node object itself.
+                    if (this.thisObject instanceof NodeHandle) {
+                        this.thisObject = ((NodeHandle) this.thisObject).getNode(this.app.nmgr.safe);
+                        // If no valid node object return immediately
+                        if (this.thisObject == null) {
+                            done = true;
+                            this.reqtype = NONE;
+                            break;
                         }
+                    }
+                    // If function doesn't exist, return immediately
+                    if (functionName != null && !this.scriptingEngine.hasFunction(this.thisObject, functionName, true)) {
+                        this.app.logEvent(missingFunctionMessage(this.thisObject, functionName));
+                        done = true;
+                        this.reqtype = NONE;
+                        break;
+                    }
+                } else if (this.function != null && functionName == null) {
+                    // only internal requests may pass a function instead of a function name
+                    throw new IllegalStateException(Messages.getString("RequestEvaluator.6")); //$NON-NLS-1$
+                }
 
-                        switch (this.reqtype) {
-                            case HTTP:
-
-                                // bring over the message from a redirect
-                                this.session.recoverResponseMessages(res);
-
-                                // catch redirect in path resolution or script execution
-                                try {
-                                    // catch object not found in path resolution
-                                    try {
-                                        if (error != null) {
-                                            // there was an error in the previous loop, call error handler
-                                            currentElement = root;
-                                            res.setStatus(500);
+                // Update transaction name in case we're processing an error
+                if (error != null) {
+                    txname = "error:" + txname; //$NON-NLS-1$
+                }
 
-                                            // do not reset the requestPath so error handler can use the original one
-                                            // get error handler action
-                                            String errorAction = this.app.props.getProperty("error", //$NON-NLS-1$
-                                                    "error"); //$NON-NLS-1$
+                // begin transaction
+                this.transactor = Transactor.getInstance(this.app.nmgr);
+                this.transactor.begin(txname);
 
-                                            action = getAction(currentElement, errorAction, req);
+                Object root = this.app.getDataRoot(this.scriptingEngine);
+                initGlobals(root, requestPath);
 
-                                            if (action == null) {
-                                                throw new RuntimeException(error);
-                                            }
-                                        } else if ((req.getPath() == null) ||
-                                                "".equals(req.getPath().trim())) { //$NON-NLS-1$
-                                            currentElement = root;
-                                            requestPath.add(null, currentElement);
+                String action = null;
 
-                                            action = getAction(currentElement, null, req);
+                if (error != null) {
+                    res.setError(error);
+                }
 
-                                            if (action == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.7")); //$NON-NLS-1$
-                                            }
-                                        } else {
-                                            // march down request path...
-                                            StringTokenizer st = new StringTokenizer(req.getPath(),
-                                                    "/"); //$NON-NLS-1$
-                                            int ntokens = st.countTokens();
-
-                                            // limit path to < 50 tokens
-                                            if (ntokens > 50) {
-                                                throw new RuntimeException(Messages.getString("RequestEvaluator.8")); //$NON-NLS-1$
-                                            }
+                switch (this.reqtype) {
+                    case HTTP:
 
-                                            String[] pathItems = new String[ntokens];
+                        // bring over the message from a redirect
+                        this.session.recoverResponseMessages(res);
 
-                                            for (int i = 0; i < ntokens; i++)
-                                                pathItems[i] = st.nextToken();
+                        // catch redirect in path resolution or script execution
+                        try {
+                            // catch object not found in path resolution
+                            try {
+                                if (error != null) {
+                                    // there was an error in the previous loop, call error handler
+                                    currentElement = root;
+                                    res.setStatus(500);
 
-                                            currentElement = root;
-                                            requestPath.add(null, currentElement);
+                                    // do not reset the requestPath so error handler can use the original one
+                                    // get error handler action
+                                    String errorAction = this.app.props.getProperty("error", //$NON-NLS-1$
+                                            "error"); //$NON-NLS-1$
 
-                                            for (int i = 0; i < ntokens; i++) {
-                                                if (currentElement == null) {
-                                                    throw new NotFoundException(Messages.getString("RequestEvaluator.9")); //$NON-NLS-1$
-                                                }
+                                    action = getAction(currentElement, errorAction, req);
 
-                                                if (pathItems[i].length() == 0) {
-                                                    continue;
-                                                }
+                                    if (action == null) {
+                                        throw new RuntimeException(error);
+                                    }
+                                } else if ((req.getPath() == null) ||
+                                        "".equals(req.getPath().trim())) { //$NON-NLS-1$
+                                    currentElement = root;
+                                    requestPath.add(null, currentElement);
 
-                                                // if we're at the last element of the path,
-                                                // try to interpret it as action name.
-                                                if (i == (ntokens - 1) && !req.getPath().endsWith("/")) { //$NON-NLS-1$
-                                                    action = getAction(currentElement, pathItems[i], req);
-                                                }
+                                    action = getAction(currentElement, null, req);
 
-                                                if (action == null) {
-                                                    currentElement = getChildElement(currentElement,
-                                                            pathItems[i]);
+                                    if (action == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.7")); //$NON-NLS-1$
+                                    }
+                                } else {
+                                    // march down request path...
+                                    StringTokenizer st = new StringTokenizer(req.getPath(),
+                                            "/"); //$NON-NLS-1$
+                                    int ntokens = st.countTokens();
+
+                                    // limit path to < 50 tokens
+                                    if (ntokens > 50) {
+                                        throw new RuntimeException(Messages.getString("RequestEvaluator.8")); //$NON-NLS-1$
+                                    }
 
-                                                    // add object to request path if suitable
-                                                    if (currentElement != null) {
-                                                        // add to requestPath array
-                                                        requestPath.add(pathItems[i], currentElement);
-                                                    }
-                                                }
-                                            }
+                                    String[] pathItems = new String[ntokens];
 
-                                            if (currentElement == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.10")); //$NON-NLS-1$
-                                            }
+                                    for (int i = 0; i < ntokens; i++)
+                                        pathItems[i] = st.nextToken();
 
-                                            if (action == null) {
-                                                action = getAction(currentElement, null, req);
-                                            }
+                                    currentElement = root;
+                                    requestPath.add(null, currentElement);
 
-                                            if (action == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.11")); //$NON-NLS-1$
-                                            }
+                                    for (int i = 0; i < ntokens; i++) {
+                                        if (currentElement == null) {
+                                            throw new NotFoundException(Messages.getString("RequestEvaluator.9")); //$NON-NLS-1$
                                         }
-                                    } catch (NotFoundException notfound) {
-                                        if (error != null) {
 
-                                            // we already have an error and the error template wasn't found,
-                                            // display it instead of notfound message
-                                            throw new RuntimeException();
+                                        if (pathItems[i].length() == 0) {
+                                            continue;
                                         }
 
-                                        // The path could not be resolved. Check if there is a "not found" action
-                                        // specified in the property file.
-                                        res.setStatus(404);
-
-                                        String notFoundAction = this.app.props.getProperty("notfound", //$NON-NLS-1$
-                                                "notfound"); //$NON-NLS-1$
-
-                                        currentElement = root;
-                                        action = getAction(currentElement, notFoundAction, req);
-
-                                        if (action == null) {
-                                            throw new NotFoundException(notfound.getMessage());
+                                        // if we're at the last element of the path,
+                                        // try to interpret it as action name.
+                                        if (i == (ntokens - 1) && !req.getPath().endsWith("/")) { //$NON-NLS-1$
+                                            action = getAction(currentElement, pathItems[i], req);
                                         }
-                                    }
-
-                                    // register path objects with their prototype names in
-                                    // res.handlers
-                                    Map macroHandlers = res.getMacroHandlers();
-                                    int l = requestPath.size();
-                                    Prototype[] protos = new Prototype[l];
-
-                                    for (int i = 0; i < l; i++) {
 
-                                        Object obj = requestPath.get(i);
-
-                                        protos[i] = this.app.getPrototype(obj);
+                                        if (action == null) {
+                                            currentElement = getChildElement(currentElement,
+                                                    pathItems[i]);
 
-                                        // immediately register objects with their direct prototype name
-                                        if (protos[i] != null) {
-                                            macroHandlers.put(protos[i].getName(), obj);
-                                            macroHandlers.put(protos[i].getLowerCaseName(), obj);
+                                            // add object to request path if suitable
+                                            if (currentElement != null) {
+                                                // add to requestPath array
+                                                requestPath.add(pathItems[i], currentElement);
+                                            }
                                         }
                                     }
 
-                                    // in a second pass, we register path objects with their indirect
-                                    // (i.e. parent prototype) names, starting at the end and only
-                                    // if the name isn't occupied yet.
-                                    for (int i = l - 1; i >= 0; i--) {
-                                        if (protos[i] != null) {
-                                            protos[i].registerParents(macroHandlers, requestPath.get(i));
-                                        }
+                                    if (currentElement == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.10")); //$NON-NLS-1$
                                     }
 
-                                    /////////////////////////////////////////////////////////////////////////////
-                                    // end of path resolution section
-                                    /////////////////////////////////////////////////////////////////////////////
-                                    // beginning of execution section
-
-                                    // set the req.action property, cutting off the _action suffix
-                                    req.setAction(action);
-
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-
-                                    // try calling onRequest() function on object before
-                                    // calling the actual action
-                                    this.scriptingEngine.invoke(currentElement,
-                                            "onRequest", //$NON-NLS-1$
-                                            EMPTY_ARGS,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            false);
-
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-
-                                    Object actionProcessor = req.getActionHandler() != null ?
-                                        req.getActionHandler() : action;
-
-                                    // do the actual action invocation
-                                    if (req.isXmlRpc()) {
-                                        XmlRpcRequestProcessor xreqproc = new XmlRpcRequestProcessor();
-                                        XmlRpcServerRequest xreq = xreqproc.decodeRequest(req.getServletRequest()
-                                                .getInputStream());
-                                        Vector args = xreq.getParameters();
-                                        args.add(0, xreq.getMethodName());
-                                        this.result = this.scriptingEngine.invoke(currentElement,
-                                                actionProcessor,
-                                                args.toArray(),
-                                                ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
-                                                false);
-                                        res.writeXmlRpcResponse(this.result);
-                                        this.app.xmlrpcCount += 1;
-                                    } else {
-                                        this.scriptingEngine.invoke(currentElement,
-                                                actionProcessor,
-                                                EMPTY_ARGS,
-                                                ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                                false);
+                                    if (action == null) {
+                                        action = getAction(currentElement, null, req);
                                     }
 
-                                    // try calling onResponse() function on object before
-                                    // calling the actual action
-                                    this.scriptingEngine.invoke(currentElement,
-                                            "onResponse", //$NON-NLS-1$
-                                            EMPTY_ARGS,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            false);
-
-                                } catch (RedirectException redirect) {
-                                    // if there is a message set, save it on the user object for the next request
-                                    if (res.getRedirect() != null)
-                                        this.session.storeResponseMessages(res);
+                                    if (action == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.11")); //$NON-NLS-1$
+                                    }
                                 }
+                            } catch (NotFoundException notfound) {
+                                if (error != null) {
 
-                                // check if request is still valid, or if the requesting thread has stopped waiting already
-                                if (localThread != this.thread) {
-                                    return;
+                                    // we already have an error and the error template wasn't found,
+                                    // display it instead of notfound message
+                                    throw new RuntimeException();
                                 }
-                                commitTransaction();
-                                done = true;
 
-                                break;
+                                // The path could not be resolved. Check if there is a "not found" action
+                                // specified in the property file.
+                                res.setStatus(404);
 
-                            case XMLRPC:
-                            case EXTERNAL:
+                                String notFoundAction = this.app.props.getProperty("notfound", //$NON-NLS-1$
+                                        "notfound"); //$NON-NLS-1$
 
-                                try {
-                                    currentElement = root;
+                                currentElement = root;
+                                action = getAction(currentElement, notFoundAction, req);
 
-                                    if (functionName.indexOf('.') > -1) {
-                                        StringTokenizer st = new StringTokenizer(functionName, "."); //$NON-NLS-1$
-                                        int cnt = st.countTokens();
+                                if (action == null) {
+                                    throw new NotFoundException(notfound.getMessage());
+                                }
+                            }
 
-                                        for (int i = 1; i < cnt; i++) {
-                                            String next = st.nextToken();
-                                            currentElement = getChildElement(currentElement, next);
-                                        }
+                            // register path objects with their prototype names in
+                            // res.handlers
+                            Map macroHandlers = res.getMacroHandlers();
+                            int l = requestPath.size();
+                            Prototype[] protos = new Prototype[l];
 
-                                        if (currentElement == null) {
-                                            throw new NotFoundException(Messages.getString("RequestEvaluator.12") + //$NON-NLS-1$
-                                                    this.function + Messages.getString("RequestEvaluator.13")); //$NON-NLS-1$
-                                        }
+                            for (int i = 0; i < l; i++) {
 
-                                        functionName = st.nextToken();
-                                    }
+                                Object obj = requestPath.get(i);
 
-                                    if (this.reqtype == XMLRPC) {
-                                        // check XML-RPC access permissions
-                                        String proto = this.app.getPrototypeName(currentElement);
-                                        this.app.checkXmlRpcAccess(proto, functionName);
-                                    }
+                                protos[i] = this.app.getPrototype(obj);
 
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-                                    if (!this.scriptingEngine.hasFunction(currentElement, functionName, false)) {
-                                        throw new NotFoundException(missingFunctionMessage(currentElement, functionName));
-                                    }
-                                    this.result = this.scriptingEngine.invoke(currentElement,
-                                            functionName, this.args,
-                                            ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
-                                            false);
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    commitTransaction();
-                                } catch (Exception x) {
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    abortTransaction();
-                                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
-
-                                    // If the transactor thread has been killed by the invoker thread we don't have to
-                                    // bother for the error message, just quit.
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
+                                // immediately register objects with their direct prototype name
+                                if (protos[i] != null) {
+                                    macroHandlers.put(protos[i].getName(), obj);
+                                    macroHandlers.put(protos[i].getLowerCaseName(), obj);
+                                }
+                            }
 
-                                    this.exception = x;
+                            // in a second pass, we register path objects with their indirect
+                            // (i.e. parent prototype) names, starting at the end and only
+                            // if the name isn't occupied yet.
+                            for (int i = l - 1; i >= 0; i--) {
+                                if (protos[i] != null) {
+                                    protos[i].registerParents(macroHandlers, requestPath.get(i));
                                 }
+                            }
 
-                                done = true;
-                                break;
+                            /////////////////////////////////////////////////////////////////////////////
+                            // end of path resolution section
+                            /////////////////////////////////////////////////////////////////////////////
+                            // beginning of execution section
 
-                            case INTERNAL:
+                            // set the req.action property, cutting off the _action suffix
+                            req.setAction(action);
 
-                                try {
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
-                                    this.result = this.scriptingEngine.invoke(this.thisObject,
-                                            this.function,
-                                            this.args,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            true);
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    commitTransaction();
-                                } catch (Exception x) {
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    abortTransaction();
-                                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
+                            // try calling onRequest() function on object before
+                            // calling the actual action
+                            this.scriptingEngine.invoke(currentElement,
+                                    "onRequest", //$NON-NLS-1$
+                                    EMPTY_ARGS,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    false);
 
-                                    // If the transactor thread has been killed by the invoker thread we don't have to
-                                    // bother for the error message, just quit.
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
-                                    this.exception = x;
-                                }
+                            Object actionProcessor = req.getActionHandler() != null ?
+                                req.getActionHandler() : action;
 
-                                done = true;
-                                break;
+                            // do the actual action invocation
+                            if (req.isXmlRpc()) {
+                                XmlRpcRequestProcessor xreqproc = new XmlRpcRequestProcessor();
+                                XmlRpcServerRequest xreq = xreqproc.decodeRequest(req.getServletRequest()
+                                        .getInputStream());
+                                Vector args = xreq.getParameters();
+                                args.add(0, xreq.getMethodName());
+                                this.result = this.scriptingEngine.invoke(currentElement,
+                                        actionProcessor,
+                                        args.toArray(),
+                                        ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
+                                        false);
+                                res.writeXmlRpcResponse(this.result);
+                                this.app.xmlrpcCount += 1;
+                            } else {
+                                this.scriptingEngine.invoke(currentElement,
+                                        actionProcessor,
+                                        EMPTY_ARGS,
+                                        ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                        false);
+                            }
+
+                            // try calling onResponse() function on object before
+                            // calling the actual action
+                            this.scriptingEngine.invoke(currentElement,
+                                    "onResponse", //$NON-NLS-1$
+                                    EMPTY_ARGS,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    false);
+
+                        } catch (RedirectException redirect) {
+                            // if there is a message set, save it on the user object for the next request
+                            if (res.getRedirect() != null)
+                                this.session.storeResponseMessages(res);
+                        }
 
-                        } // switch (reqtype)
-                    } catch (AbortException x) {
-                        // res.abort() just aborts the transaction and
-                        // leaves the response untouched
                         // check if request is still valid, or if the requesting thread has stopped waiting already
                         if (localThread != this.thread) {
                             return;
                         }
-                        abortTransaction();
+                        commitTransaction();
+                        if (res.getSuspension() != null) {
+                            // from now on changes committed by this thread resume the request
+                            res.getSuspension().release();
+                        }
                         done = true;
-                    } catch (ConcurrencyException x) {
-                        res.reset();
 
-                        if (++tries < 8) {
-                            // try again after waiting some period
+                        break;
+
+                    case XMLRPC:
+                    case EXTERNAL:
+
+                        try {
+                            currentElement = root;
+
+                            if (functionName.indexOf('.') > -1) {
+                                StringTokenizer st = new StringTokenizer(functionName, "."); //$NON-NLS-1$
+                                int cnt = st.countTokens();
+
+                                for (int i = 1; i < cnt; i++) {
+                                    String next = st.nextToken();
+                                    currentElement = getChildElement(currentElement, next);
+                                }
+
+                                if (currentElement == null) {
+                                    throw new NotFoundException(Messages.getString("RequestEvaluator.12") + //$NON-NLS-1$
+                                            this.function + Messages.getString("RequestEvaluator.13")); //$NON-NLS-1$
+                                }
+
+                                functionName = st.nextToken();
+                            }
+
+                            if (this.reqtype == XMLRPC) {
+                                // check XML-RPC access permissions
+                                String proto = this.app.getPrototypeName(currentElement);
+                                this.app.checkXmlRpcAccess(proto, functionName);
+                            }
+
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
+                            if (!this.scriptingEngine.hasFunction(currentElement, functionName, false)) {
+                                throw new NotFoundException(missingFunctionMessage(currentElement, functionName));
+                            }
+                            this.result = this.scriptingEngine.invoke(currentElement,
+                                    functionName, this.args,
+                                    ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
+                                    false);
                             // check if request is still valid, or if the requesting thread has stopped waiting already
                             if (localThread != this.thread) {
                                 return;
                             }
-                            abortTransaction();
-
-                            try {
-                                // wait a bit longer with each try
-                                int base = 800 * tries;
-                                Thread.sleep((long) (base + (Math.random() * base * 2)));
-                            } catch (InterruptedException interrupt) {
-                                // we got interrrupted, create minimal error message 
-                                res.reportError(interrupt);
-                                done = true;
-                                // and release resources and thread
-                                this.thread = null;
-                                this.transactor = null;
-                            }
-                        } else {
+                            commitTransaction();
+                        } catch (Exception x) {
                             // check if request is still valid, or if the requesting thread has stopped waiting already
                             if (localThread != this.thread) {
                                 return;
                             }
                             abortTransaction();
+                            this.app.logError(txname + " " + error, x); //$NON-NLS-1$
 
-                            // error in error action. use traditional minimal error message
-                            res.reportError(Messages.getString("RequestEvaluator.14")); //$NON-NLS-1$
-                            done = true;
-                        }
-                    } catch (Throwable x) {
-                        // check if request is still valid, or if the requesting thread has stopped waiting already
-                        if (localThread != this.thread) {
-                            return;
-                        }
-                        abortTransaction();
+                            // If the transactor thread has been killed by the invoker thread we don't have to
+                            // bother for the error message, just quit.
+                            if (localThread != this.thread) {
+                                return;
+                            }
 
-                        // If the transactor thread has been killed by the invoker thread we don't have to
-                        // bother for the error message, just quit.
-                        if (localThread != this.thread) {
-                            return;
+                            this.exception = x;
                         }
 
-                        res.reset();
+                        done = true;
+                        break;
 
-                        // check if we tried to process the error already,
-                        // or if this is an XML-RPC request
-                        if (error == null) {
-                            if (!(x instanceof NotFoundException)) {
-                                this.app.errorCount += 1;
-                            }
+                    case INTERNAL:
 
-                            // set done to false so that the error will be processed
-                            done = false;
-                            error = x;
+                        try {
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
+                            this.result = this.scriptingEngine.invoke(this.thisObject,
+                                    this.function,
+                                    this.args,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    true);
+                            // check if request is still valid, or if the requesting thread has stopped waiting already
+                            if (localThread != this.thread) {
+                                return;
+                            }
+                            commitTransaction();
+                        } catch (Exception x) {
+                            // check if request is still valid, or if the requesting thread has stopped waiting already
+                            if (localThread != this.thread) {
+                                return;
+                            }
+                            abortTransaction();
                             this.app.logError(txname + " " + error, x); //$NON-NLS-1$
 
-                            if (req.isXmlRpc()) {
-                                // if it's an XML-RPC exception immediately generate error response
-                                if (!(x instanceof Exception)) {
-                                    // we need an exception to pass to XML-RPC responder
-                                    x = new Exception(x.toString(), x);
-                                }
-                                res.writeXmlRpcError((Exception) x);
-                                done = true;
-                            }
-                        } else {
-                            // error in error action. use traditional minimal error message
-                            res.reportError(error);
-                            done = true;
-                        }
-                    } finally {
-                        this.app.setCurrentRequestEvaluator(null);
-                        // exit execution context
-                        if (this.scriptingEngine != null) {
-                            try {
-                                this.scriptingEngine.exitContext();
-                            } catch (Throwable t) {
-                                // broken rhino, just get out of here
+                            // If the transactor thread has been killed by the invoker thread we don't have to
+                            // bother for the error message, just quit.
+                            if (localThread != this.thread) {
+                                return;
                             }
+
+                            this.exception = x;
                         }
+
+                        done = true;
+                        break;
+
+                } // switch (reqtype)
+            } catch (AbortException x) {
+                // res.abort() just aborts the transaction and
+                // leaves the response untouched
+                // check if request is still valid, or if the requesting thread has stopped waiting already
+                if (localThread != this.thread) {
+                    return;
+                }
+                abortTransaction();
+                done = true;
+            } catch (ConcurrencyException x) {
+                res.reset();
+
+                if (++tries < 8) {
+                    // try again after waiting some period
+                    // check if request is still valid, or if the requesting thread has stopped waiting already
+                    if (localThread != this.thread) {
+                        return;
+                    }
+                    abortTransaction();
+
+                    try {
+                        // wait a bit longer with each try
+                        int base = 800 * tries;
+                        Thread.sleep((long) (base + (Math.random() * base * 2)));
+                    } catch (InterruptedException interrupt) {
+                        // we got interrrupted, create minimal error message 
+                        res.reportError(interrupt);
+                        done = true;
+                        // and release resources and thread
+                        this.thread = null;
+                        this.transactor = null;
+                    }
+                } else {
+                    // check if request is still valid, or if the requesting thread has stopped waiting already
+                    if (localThread != this.thread) {
+                        return;
                     }
+                    abortTransaction();
+
+                    // error in error action. use traditional minimal error message
+                    res.reportError(Messages.getString("RequestEvaluator.14")); //$NON-NLS-1$
+                    done = true;
+                }
+            } catch (Throwable x) {
+                // check if request is still valid, or if the requesting thread has stopped waiting already
+                if (localThread != this.thread) {
+                    return;
                 }
+                abortTransaction();
 
-                notifyAndWait();
+                // If the transactor thread has been killed by the invoker thread we don't have to
+                // bother for the error message, just quit.
+                if (localThread != this.thread) {
+                    return;
+                }
+
+                res.reset();
+
+                // check if we tried to process the error already,
+                // or if this is an XML-RPC request
+                if (error == null) {
+                    if (!(x instanceof NotFoundException)) {
+                        this.app.errorCount += 1;
+                    }
+
+                    // set done to false so that the error will be processed
+                    done = false;
+                    error = x;
+
+                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
 
+                    if (req.isXmlRpc()) {
+                        // if it's an XML-RPC exception immediately generate error response
+                        if (!(x instanceof Exception)) {
+                            // we need an exception to pass to XML-RPC responder
+                            x = new Exception(x.toString(), x);
+                        }
+                        res.writeXmlRpcError((Exception) x);
+                        done = true;
+                    }
+                } else {
+                    // error in error action. use traditional minimal error message
+                    res.reportError(error);
+                    done = true;
+                }
+            } finally {
+                this.app.setCurrentRequestEvaluator(null);
+                // exit execution context
+                if (this.scriptingEngine != null) {
+                    try {
+                        this.scriptingEngine.exitContext();
+                    } catch (Throwable t) {
+                        // broken rhino, just get out of here
+                    }
+                }
             }
-        } finally {
-            Transactor tx = Transactor.getInstance();
-            if (tx != null) tx.closeConnections();
         }
     }
 
@@ -655,24 +680,34 @@ public final class RequestEvaluator implements Runnable {
      * Called by the transactor thread when it has successfully fulfilled a request.
      * @throws Exception transaction couldn't be committed
      */
-    synchronized void commitTransaction() throws Exception {
+    void commitTransaction() throws Exception {
         Thread localThread = Thread.currentThread();
 
-        if (localThread == this.thread) {
-            Transactor tx = Transactor.getInstance();
-            if (tx != null)
-                tx.commit();
-        } else {
-            throw new TimeoutException();
+        this.commitLock.lock();
+        try {
+            if (localThread == this.thread) {
+                Transactor tx = Transactor.getInstance();
+                if (tx != null)
+                    tx.commit();
+            } else {
+                throw new TimeoutException();
+            }
+        } finally {
+            this.commitLock.unlock();
         }
     }
 
     /**
      * Called by the transactor thread when the request didn't terminate successfully.
      */
-    synchronized void abortTransaction() {
-        Transactor tx = Transactor.getInstance();
-        if (tx != null) tx.abort();
+    void abortTransaction() {
+        this.commitLock.lock();
+        try {
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) tx.abort();
+        } finally {
+            this.commitLock.unlock();
+        }
     }
 
     /**
@@ -734,6 +769,258 @@ public final class RequestEvaluator implements Runnable {
         }
     }
 
+    /**
+     * Run the current request and wait for it to finish or time out. Depending on
+     * the application's execution mode the request is either handed over to the
+     * transactor thread, run directly on the calling thread, or run on a new
+     * virtual thread.
+     *
+     * @param timeout the time in milliseconds to wait for the request to finish,
+     * or -1 to wait indefinitely
+     * @return true if the request was aborted because it timed out
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    private boolean dispatch(long timeout) throws InterruptedException {
+        if (isDirectExecution()) {
+            return runDirect(timeout);
+        }
+
+        if (this.app.virtualExecution) {
+            return runVirtual(timeout);
+        }
+
+        synchronized (this) {
+            startTransactor();
+
+            // the transactor thread may pick up the request before we get to
+            // wait for it, so wait for the request to be done rather than
+            // for a single notification
+            long deadline = System.currentTimeMillis() + timeout;
+            while (this.reqtype != NONE && this.thread != null) {
+                if (timeout < 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+            }
+
+            return this.reqtype != NONE && stopTransactor();
+        }
+    }
+
+    /**
+     * Check whether the current request is to be run directly on the calling thread.
+     * This is only done if direct execution is enabled for the application or the
+     * calling thread is a request thread of its own, and the calling thread isn't
+     * already servicing a request, which is the case for nested invocations from scripts.
+     */
+    private boolean isDirectExecution() {
+        return (this.app.directExecution || this.app.isRequestThread()) &&
+               this.app.getCurrentRequestEvaluator() == null &&
+               Transactor.getInstance() == null;
+    }
+
+    /**
+     * Run the current request on the calling thread. This evaluator's transactor is
+     * bound to the thread for the duration of the request, and a watchdog aborts the
+     * request if it doesn't terminate within the given timeout. The evaluator's lock
+     * is only held while handing over state, so callers like stopTransactor() and
+     * attachHttpRequest() aren't blocked by the running request.
+     *
+     * @param timeout the request timeout in milliseconds, or -1 for no timeout
+     * @return true if the request was aborted because it timed out
+     */
+    private boolean runDirect(long timeout) {
+        Thread localThread = Thread.currentThread();
+        ClassLoader loader = localThread.getContextClassLoader();
+        Transactor tx;
+
+        synchronized (this) {
+            if (!this.app.isRunning()) {
+                throw new ApplicationStoppedException();
+            }
+
+            if (this.ownTransactor == null || this.ownTransactor.isKilled()) {
+                this.ownTransactor = Transactor.createInstance(this.app.nmgr);
+            }
+
+            // take over from any transactor thread still waiting for requests
+            tx = this.ownTransactor;
+            this.thread = localThread;
+        }
+
+        tx.bind();
+        localThread.setContextClassLoader(this.app.getClassLoader());
+
+        Watchdog watchdog = null;
+        if (timeout > -1) {
+            watchdog = new Watchdog(localThread);
+            this.app.watchdog.schedule(watchdog, timeout);
+        }
+
+        boolean aborted;
+        try {
+            serviceRequest(localThread);
+        } finally {
+            if (watchdog != null) {
+                watchdog.finish();
+            }
+
+            aborted = this.thread != localThread;
+            if (aborted && tx.isActive()) {
+                // the request was abandoned halfway through, roll back
+                tx.abort();
+            }
+
+            tx.unbind();
+            localThread.setContextClassLoader(loader);
+
+            synchronized (this) {
+                if (this.thread == localThread) {
+                    this.thread = null;
+                }
+                this.reqtype = NONE;
+                notifyAll();
+            }
+
+            // clear interrupted flag the watchdog may have set
+            Thread.interrupted();
+        }
+
+        return aborted;
+    }
+
+    /**
+     * Run the current request on a new virtual thread and wait for it to finish.
+     * The thread only lives for the duration of the request, so this evaluator's
+     * scripting engine and transactor are not tied to any thread identity. The
+     * transactor is bound to the virtual thread while the request runs.
+     *
+     * @param timeout the request timeout in milliseconds, or -1 for no timeout
+     * @return true if the request was aborted because it timed out
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    private boolean runVirtual(long timeout) throws InterruptedException {
+        final Transactor tx;
+        Thread virtual;
+
+        synchronized (this) {
+            if (!this.app.isRunning()) {
+                throw new ApplicationStoppedException();
+            }
+
+            if (this.ownTransactor == null || this.ownTransactor.isKilled()) {
+                this.ownTransactor = Transactor.createInstance(this.app.nmgr);
+            }
+
+            tx = this.ownTransactor;
+            virtual = this.app.createRequestThread(new Runnable() {
+                public void run() {
+                    runBound(tx);
+                }
+            }, this.app.getName() + "-" + (++this.threadId)); //$NON-NLS-1$
+            this.thread = virtual;
+        }
+
+        virtual.start();
+
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (this.thread == virtual && this.reqtype != NONE) {
+                if (timeout < 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+            }
+
+            if (this.thread != virtual || this.reqtype == NONE) {
+                return false;
+            }
+
+            // the aborted request still holds on to the transactor, so make
+            // sure it can't commit and start with a fresh one next time.
+            tx.kill();
+            this.ownTransactor = null;
+        }
+
+        abortDirect(virtual);
+        this.reqtype = NONE;
+        return true;
+    }
+
+    /**
+     * Service the current request with the given transactor bound to the calling
+     * thread. This is the body of the virtual threads started by
+     * {@link #runVirtual(long)}.
+     *
+     * @param tx the transactor to bind to the calling thread
+     */
+    void runBound(Transactor tx) {
+        Thread localThread = Thread.currentThread();
+        tx.bind();
+
+        boolean aborted;
+        try {
+            serviceRequest(localThread);
+        } finally {
+            synchronized (this) {
+                aborted = this.thread != localThread;
+                if (!aborted) {
+                    this.thread = null;
+                    this.reqtype = NONE;
+                    notifyAll();
+                }
+            }
+
+            if (aborted) {
+                // the request was abandoned halfway through, roll back
+                if (tx.isActive()) {
+                    tx.abort();
+                }
+                tx.closeConnections();
+            }
+
+            tx.unbind();
+        }
+    }
+
+    /**
+     * Abort a request running directly on the given thread. The evaluator's lock
+     * is only held to release the thread, not while waiting for the scripting
+     * engine to stop.
+     *
+     * @param localThread the thread running the request
+     */
+    void abortDirect(Thread localThread) {
+        ScriptingEngineInterface engine;
+        synchronized (this) {
+            if (this.thread != localThread) {
+                return;
+            }
+            this.thread = null;
+            engine = this.scriptingEngine;
+        }
+
+        this.app.logEvent(Messages.getString("RequestEvaluator.15") + this.ownTransactor); //$NON-NLS-1$
+
+        // let the scripting engine know that the current request is being aborted.
+        // This also interrupts the thread running the request.
+        if (engine != null) {
+            engine.abort();
+        } else {
+            localThread.interrupt();
+        }
+    }
+
     /**
      * Stop this request evaluator's current thread. This is called by the
      * waiting thread when it times out and stops waiting, or from an outside
@@ -743,6 +1030,29 @@ public final class RequestEvaluator implements Runnable {
         Transactor t = this.transactor;
         this.thread = null;
         this.transactor = null;
+        boolean stopped = false;
+        // wait for a commit in progress to complete. The committing thread
+        // doesn't need the evaluator's lock, so this can't deadlock.
+        this.commitLock.lock();
+        try {
+            stopped = killTransactor(t);
+        } finally {
+            this.commitLock.unlock();
+        }
+
+        // close connections held by the transactor used for direct execution
+        if (this.ownTransactor != null && !this.ownTransactor.isActive()) {
+            this.ownTransactor.closeConnections();
+        }
+
+        notifyAll();
+        return stopped;
+    }
+
+    /**
+     * Kill the given transactor if it is active.
+     */
+    private boolean killTransactor(Transactor t) {
         boolean stopped = false;
         if (t != null && t.isActive()) {
             // let the scripting engine know that the
@@ -760,7 +1070,6 @@ public final class RequestEvaluator implements Runnable {
             t.closeConnections();
             stopped = true;
         }
-        notifyAll();
         return stopped;
     }
 
@@ -773,16 +1082,13 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized ResponseTrans invokeHttp(RequestTrans req, Session session)
+    public ResponseTrans invokeHttp(RequestTrans req, Session session)
                                       throws Exception {
         initObjects(req, session);
 
         this.app.activeRequests.put(req, this);
 
-        startTransactor();
-        wait(this.app.requestTimeout);
-
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (dispatch(this.app.requestTimeout)) {
             this.res.reset();
             this.res.reportError(Messages.getString("RequestEvaluator.16")); //$NON-NLS-1$
         }
@@ -826,16 +1132,13 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeXmlRpc(String functionName, Object[] args)
+    public Object invokeXmlRpc(String functionName, Object[] args)
                                      throws Exception {
         initObjects(functionName, XMLRPC, RequestTrans.XMLRPC);
         this.function = functionName;
         this.args = args;
 
-        startTransactor();
-        wait(this.app.requestTimeout);
-
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (dispatch(this.app.requestTimeout)) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.17")); //$NON-NLS-1$
         }
 
@@ -860,16 +1163,13 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeExternal(String functionName, Object[] args)
+    public Object invokeExternal(String functionName, Object[] args)
                                      throws Exception {
         initObjects(functionName, EXTERNAL, RequestTrans.EXTERNAL);
         this.function = functionName;
         this.args = args;
 
-        startTransactor();
-        wait();
-
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (dispatch(-1)) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.18")); //$NON-NLS-1$
         }
 
@@ -908,7 +1208,7 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeInternal(Object object, Object function,
+    public Object invokeInternal(Object object, Object function,
                                               Object[] args)
                                        throws Exception {
         // give internal call more time (15 minutes) to complete
@@ -927,7 +1227,7 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeInternal(Object object, Object function,
+    public Object invokeInternal(Object object, Object function,
                                               Object[] args, long timeout)
                                        throws Exception {
         initObjects(function, INTERNAL, RequestTrans.INTERNAL);
@@ -935,13 +1235,7 @@ public final class RequestEvaluator implements Runnable {
         this.function = function;
         this.args = args;
 
-        startTransactor();
-        if (timeout < 0)
-            wait();
-        else
-            wait(timeout);
-
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (dispatch(timeout < 0 ? -1 : timeout)) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.19")); //$NON-NLS-1$
         }
 
@@ -1111,7 +1405,7 @@ public final class RequestEvaluator implements Runnable {
      *
      * @return the request object
      */
-    public synchronized RequestTrans getRequest() {
+    public RequestTrans getRequest() {
         return this.req;
     }
 
@@ -1120,7 +1414,7 @@ public final class RequestEvaluator implements Runnable {
      *
      * @return the response object
      */
-    public synchronized ResponseTrans getResponse() {
+    public ResponseTrans getResponse() {
         return this.res;
     }
 
@@ -1129,7 +1423,7 @@ public final class RequestEvaluator implements Runnable {
      *
      * @return the current transactor thread
      */
-    public synchronized Thread getThread() {
+    public Thread getThread() {
         return this.thread;
     }
 
@@ -1138,7 +1432,7 @@ public final class RequestEvaluator implements Runnable {
      *
      * @return the session for the current request
      */
-    public synchronized Session getSession() {
+    public Session getSession() {
         return this.session;
     }
 
@@ -1147,4 +1441,58 @@ public final class RequestEvaluator implements Runnable {
             return Messages.getString("RequestEvaluator.20") + funcName + Messages.getString("RequestEvaluator.21"); //$NON-NLS-1$ //$NON-NLS-2$
         return Messages.getString("RequestEvaluator.22") + funcName + Messages.getString("RequestEvaluator.23") + obj; //$NON-NLS-1$ //$NON-NLS-2$
     }
+
+    /**
+     * Timer task that aborts a request running directly on the calling
+     * thread once the request timeout has passed. Stopping the scripting
+     * engine may block for a while, so the abort runs on a thread of its
+     * own rather than on the application's shared timer thread.
+     */
+    class Watchdog extends TimerTask {
+        final Thread thread;
+        private Thread aborter;
+
+        Watchdog(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public void run() {
+            Runnable abort = new Runnable() {
+                public void run() {
+                    try {
+                        abortDirect(Watchdog.this.thread);
+                    } catch (Throwable t) {
+                        RequestEvaluator.this.app.logError(Messages.getString("RequestEvaluator.24"), t); //$NON-NLS-1$
+                    }
+                }
+            };
+
+            synchronized (this) {
+                this.aborter = new Thread(RequestEvaluator.this.app.threadgroup, abort,
+                        this.thread.getName() + "-abort"); //$NON-NLS-1$
+                this.aborter.setDaemon(true);
+                this.aborter.start();
+            }
+        }
+
+        /**
+         * Cancel the watchdog and wait for an abort already under way to complete,
+         * so it can't interrupt the request thread once it has moved on.
+         */
+        void finish() {
+            cancel();
+            Thread aborter;
+            synchronized (this) {
+                aborter = this.aborter;
+            }
+            while (aborter != null && aborter.isAlive()) {
+                try {
+                    aborter.join();
+                } catch (InterruptedException ignore) {
+                    // interrupted by the abort itself, keep waiting
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,396 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.RequestTrans;
+import helma.framework.ResponseTrans;
+import helma.objectmodel.db.DbMapping;
+import helma.util.ResourceProperties;
+
+import java.util.*;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * An application wide cache for complete responses to anonymous GET requests.
+ * Actions opt in by calling res.cacheFor(). Responses are cached by request path
+ * and the request parameters and headers the response declares to depend on.
+ * Cached responses are served by the servlet without entering the application,
+ * until they expire, the application's code or configuration changes, or objects
+ * of a prototype the response depends on are modified.
+ */
+public class ResponseCache {
+
+    Application app;
+
+    // maximum number of cached responses
+    private int maxSize = 1000;
+
+    // map of request paths to the parameters and headers that are part of the cache key
+    private final HashMap variants = new HashMap();
+
+    // LRU map of cache keys to cached responses
+    private final LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+
+    // statistics
+    private long hits, misses, stores;
+
+    /**
+     * Create a response cache for the given application.
+     *
+     * @param app the application
+     */
+    public ResponseCache(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Update the cache settings from the application properties.
+     *
+     * @param props the application properties
+     */
+    public synchronized void updateProperties(ResourceProperties props) {
+        String size = props.getProperty("responseCacheSize"); //$NON-NLS-1$
+        try {
+            this.maxSize = size == null ? 1000 : Integer.parseInt(size.trim());
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("ResponseCache.0") + size); //$NON-NLS-1$
+            this.maxSize = 1000;
+        }
+        trim();
+    }
+
+    /**
+     * Look up a cached response for the given request.
+     *
+     * @param request the servlet request
+     * @param path the request path
+     * @return the cached response, or null
+     */
+    public Entry get(HttpServletRequest request, String path) {
+        if (this.maxSize <= 0 || !isCacheableRequest(request)) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            Variant variant = (Variant) this.variants.get(getPathKey(request, path));
+            if (variant == null) {
+                this.misses += 1;
+                return null;
+            }
+            String key = variant.getKey(request, path);
+            entry = (Entry) this.entries.get(key);
+            if (entry == null) {
+                this.misses += 1;
+                return null;
+            }
+        }
+
+        if (!entry.isValid(this.app.getChecksum())) {
+            synchronized (this) {
+                this.entries.remove(entry.key);
+                this.misses += 1;
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            this.hits += 1;
+        }
+        return entry;
+    }
+
+    /**
+     * Store a response in the cache if the response opted in and is eligible
+     * for caching.
+     *
+     * @param request the servlet request
+     * @param reqtrans the request
+     * @param res the closed response
+     */
+    public void put(HttpServletRequest request, RequestTrans reqtrans, ResponseTrans res) {
+        if (this.maxSize <= 0 ||
+                res.getPageCacheTime() <= 0 ||
+                !isCacheableRequest(request) ||
+                res.getStatus() != 200 ||
+                res.getRedirect() != null ||
+                res.getForward() != null ||
+                res.getNotModified() ||
+                res.countCookies() > 0 ||
+                res.getContent() == null ||
+                !isAnonymous(reqtrans.getSession())) {
+            return;
+        }
+
+        String path = reqtrans.getPath();
+        Variant variant = new Variant(res.getCacheParameters(), res.getVaryHeaders());
+        String key = variant.getKey(request, path);
+        Entry entry = new Entry(key, res, this.app.getChecksum());
+
+        synchronized (this) {
+            this.variants.put(getPathKey(request, path), variant);
+            this.entries.put(key, entry);
+            this.stores += 1;
+            trim();
+        }
+    }
+
+    /**
+     * Remove all cached responses.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.variants.clear();
+    }
+
+    /**
+     * Return the number of cached responses
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map containing the cache statistics
+     */
+    public synchronized Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("size", new Integer(this.entries.size())); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.maxSize)); //$NON-NLS-1$
+        stats.put("hits", new Long(this.hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(this.misses)); //$NON-NLS-1$
+        stats.put("stores", new Long(this.stores)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its maximum size.
+     */
+    private void trim() {
+        Iterator it = this.entries.values().iterator();
+        while (this.entries.size() > Math.max(this.maxSize, 0) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Get the key of the variant table for a request path. The host is part of
+     * the key since apps may serve different sites depending on the host.
+     */
+    static String getPathKey(HttpServletRequest request, String path) {
+        return request.getHeader("Host") + ' ' + path; //$NON-NLS-1$
+    }
+
+    /**
+     * Only GET and HEAD requests are served from and stored in the cache.
+     */
+    private boolean isCacheableRequest(HttpServletRequest request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Check if the session for a session id is anonymous, i.e. doesn't exist yet
+     * or has no logged in user.
+     *
+     * @param sessionId the session id
+     * @return true if the session is anonymous
+     */
+    boolean isAnonymous(String sessionId) {
+        Session session = this.app.getSessionManager().getSession(sessionId);
+        return session == null || !session.isLoggedIn();
+    }
+
+    /**
+     * Check if the request is anonymous judging by the given session cookie.
+     *
+     * @param request the servlet request
+     * @param sessionCookieName the name of the session cookie
+     * @return true if the request is anonymous
+     */
+    public boolean isAnonymous(HttpServletRequest request, String sessionCookieName) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (int i = 0; i < cookies.length; i++) {
+                if (sessionCookieName.equals(cookies[i].getName())) {
+                    return isAnonymous(cookies[i].getValue());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The request parameters and headers that are part of the cache key
+     * for the responses of a request path.
+     */
+    static class Variant {
+        // parameter names, or null to use all parameters
+        final String[] params;
+        final String[] headers;
+
+        Variant(String[] params, String[] headers) {
+            this.params = params;
+            this.headers = headers;
+        }
+
+        String getKey(HttpServletRequest request, String path) {
+            StringBuffer key = new StringBuffer(getPathKey(request, path));
+            key.append('?');
+
+            String[] names = this.params;
+            if (names == null) {
+                names = (String[]) request.getParameterMap().keySet().toArray(new String[0]);
+                Arrays.sort(names);
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                String[] values = request.getParameterValues(names[i]);
+                if (values != null) {
+                    for (int j = 0; j < values.length; j++) {
+                        key.append(names[i]).append('=').append(values[j]).append('&');
+                    }
+                }
+            }
+
+            for (int i = 0; i < this.headers.length; i++) {
+                key.append('\n').append(request.getHeader(this.headers[i]));
+            }
+
+            return key.toString();
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+        final String key;
+        final byte[] content;
+        final String contentType;
+        final String etag;
+        final long lastModified;
+        final boolean cacheable;
+        final String[] varyHeaders;
+        final long expires;
+        final long checksum;
+        final DbMapping[] dependencies;
+        final long[] dataChanges;
+
+        // compressed variants of the content, created on demand
+        private byte[] gzipContent, deflateContent;
+
+        Entry(String key, ResponseTrans res, long checksum) {
+            this.key = key;
+            this.content = res.getContent();
+            this.contentType = res.getContentType();
+            this.etag = res.getETag();
+            this.lastModified = res.getLastModified();
+            this.cacheable = res.isCacheable();
+            this.varyHeaders = res.getVaryHeaders();
+            this.expires = System.currentTimeMillis() + res.getPageCacheTime();
+            this.checksum = checksum;
+            this.dependencies = res.getCacheDependencies();
+            this.dataChanges = new long[this.dependencies.length];
+            for (int i = 0; i < this.dependencies.length; i++) {
+                this.dataChanges[i] = this.dependencies[i].getLastDataChange();
+            }
+        }
+
+        boolean isValid(long currentChecksum) {
+            if (System.currentTimeMillis() > this.expires || currentChecksum != this.checksum) {
+                return false;
+            }
+            for (int i = 0; i < this.dependencies.length; i++) {
+                if (this.dependencies[i].getLastDataChange() != this.dataChanges[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the response body
+         */
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        /**
+         * Get the response body in the given content encoding. The compressed
+         * body is created once and kept with the cached response.
+         *
+         * @param encoding the content encoding, or null for the plain body
+         * @param compressor the compressor to use
+         * @return the response body in the given encoding
+         */
+        public synchronized byte[] getContent(String encoding, ResponseCompressor compressor) {
+            if (ResponseCompressor.GZIP.equals(encoding)) {
+                if (this.gzipContent == null) {
+                    this.gzipContent = compressor.compress(this.content, encoding);
+                }
+                return this.gzipContent;
+            } else if (ResponseCompressor.DEFLATE.equals(encoding)) {
+                if (this.deflateContent == null) {
+                    this.deflateContent = compressor.compress(this.content, encoding);
+                }
+                return this.deflateContent;
+            }
+            return this.content;
+        }
+
+        /**
+         * @return the response content type including the charset
+         */
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * @return the ETag header value, or null
+         */
+        public String getETag() {
+            return this.etag;
+        }
+
+        /**
+         * @return the Last-Modified time in milliseconds, or -1
+         */
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * @return true if the response may be cached by the client
+         */
+        public boolean isCacheable() {
+            return this.cacheable;
+        }
+
+        /**
+         * @return the names of the request headers the response varies on
+         */
+        public String[] getVaryHeaders() {
+            return this.varyHeaders;
+        }
+    }
+}
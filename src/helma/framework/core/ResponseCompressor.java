@@ -0,0 +1,401 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.util.ResourceProperties;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Negotiates and applies gzip or deflate content encoding for HTTP responses.
+ * Compression is enabled with the compression app property and applies to
+ * responses whose content type is listed in compressionTypes and whose body is
+ * at least compressionMinSize bytes long. Each thread reuses its own Deflater,
+ * and compressed static files are kept in a small cache so they are compressed
+ * only once.
+ */
+public class ResponseCompressor {
+
+    public static final String GZIP = "gzip"; //$NON-NLS-1$
+    public static final String DEFLATE = "deflate"; //$NON-NLS-1$
+
+    static final String DEFAULT_TYPES = "text/html,text/plain,text/css,text/xml," + //$NON-NLS-1$
+            "text/javascript,application/javascript,application/x-javascript," + //$NON-NLS-1$
+            "application/json,application/xml,application/xhtml+xml,image/svg+xml"; //$NON-NLS-1$
+
+    // gzip member header: magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+    static final byte[] GZIP_HEADER = new byte[] {
+            (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    // files larger than this are not compressed
+    static final long MAX_FILE_SIZE = 1024 * 1024;
+
+    Application app;
+
+    private volatile boolean enabled = false;
+    private volatile int minSize = 1024;
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private volatile Set types = new HashSet();
+
+    // maximum number of compressed static files to keep
+    private int maxFiles = 100;
+
+    // LRU map of file path and encoding to compressed files
+    private final LinkedHashMap files = new LinkedHashMap(16, 0.75f, true);
+
+    // per thread deflaters, the first one for gzip, the second one for deflate
+    private final ThreadLocal deflaters = new ThreadLocal();
+
+    /**
+     * Create a response compressor for the given application.
+     *
+     * @param app the application
+     */
+    public ResponseCompressor(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Update the compression settings from the application properties.
+     *
+     * @param props the application properties
+     */
+    public synchronized void updateProperties(ResourceProperties props) {
+        this.enabled = "true".equalsIgnoreCase(props.getProperty("compression")); //$NON-NLS-1$ //$NON-NLS-2$
+        this.minSize = getInt(props, "compressionMinSize", 1024); //$NON-NLS-1$
+        this.maxFiles = getInt(props, "compressionCacheSize", 100); //$NON-NLS-1$
+        // per thread deflaters are replaced on their next use if the level changes
+        this.level = getInt(props, "compressionLevel", Deflater.DEFAULT_COMPRESSION); //$NON-NLS-1$
+
+        HashSet newTypes = new HashSet();
+        StringTokenizer st = new StringTokenizer(
+                props.getProperty("compressionTypes", DEFAULT_TYPES), ", "); //$NON-NLS-1$ //$NON-NLS-2$
+        while (st.hasMoreTokens()) {
+            newTypes.add(st.nextToken().toLowerCase());
+        }
+        this.types = newTypes;
+
+        trim();
+    }
+
+    /**
+     * Check if responses with the given content type are eligible for compression.
+     * Such responses vary on the Accept-Encoding request header.
+     *
+     * @param contentType the response content type, possibly including a charset
+     * @return true if the content type should be compressed
+     */
+    public boolean isCompressible(String contentType) {
+        if (!this.enabled || contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon > -1) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        return this.types.contains(contentType.trim().toLowerCase());
+    }
+
+    /**
+     * Choose the content encoding for a response.
+     *
+     * @param request the servlet request
+     * @param contentType the response content type
+     * @param length the length of the uncompressed response body
+     * @return GZIP, DEFLATE, or null if the response shouldn't be compressed
+     */
+    public String getEncoding(HttpServletRequest request, String contentType, long length) {
+        if (length < this.minSize || !isCompressible(contentType)) {
+            return null;
+        }
+        return negotiate(request.getHeader("Accept-Encoding")); //$NON-NLS-1$
+    }
+
+    /**
+     * Choose the content encoding for a static file. Files too large to be
+     * compressed are sent uncompressed.
+     *
+     * @param request the servlet request
+     * @param contentType the file's content type
+     * @param file the file
+     * @return GZIP, DEFLATE, or null if the file shouldn't be compressed
+     */
+    public String getFileEncoding(HttpServletRequest request, String contentType, File file) {
+        long length = file.length();
+        if (length > MAX_FILE_SIZE) {
+            return null;
+        }
+        return getEncoding(request, contentType, length);
+    }
+
+    /**
+     * Get the ETag of a compressed variant of a response. The encoding is added
+     * as suffix to the opaque tag, so the compressed and identity variants of a
+     * response never share an ETag.
+     *
+     * @param etag the ETag of the uncompressed response
+     * @param encoding the content encoding, or null
+     * @return the ETag of the variant
+     */
+    public static String getETag(String etag, String encoding) {
+        if (etag == null || encoding == null) {
+            return etag;
+        }
+        if (etag.length() > 1 && etag.endsWith("\"")) { //$NON-NLS-1$
+            return etag.substring(0, etag.length() - 1) + '-' + encoding + '"';
+        }
+        return etag + '-' + encoding;
+    }
+
+    /**
+     * Get the ETag of the uncompressed response from the ETag of any of its variants.
+     *
+     * @param etag the ETag sent by the client
+     * @return the ETag without encoding suffix
+     */
+    public static String stripETag(String etag) {
+        String[] encodings = new String[] {GZIP, DEFLATE};
+        for (int i = 0; i < encodings.length; i++) {
+            String suffix = '-' + encodings[i];
+            if (etag.endsWith(suffix + '"')) {
+                return etag.substring(0, etag.length() - suffix.length() - 1) + '"';
+            } else if (etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length());
+            }
+        }
+        return etag;
+    }
+
+    /**
+     * Pick gzip or deflate from an Accept-Encoding header, preferring gzip.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        boolean gzip = false, deflate = false;
+        StringTokenizer st = new StringTokenizer(acceptEncoding, ","); //$NON-NLS-1$
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim().toLowerCase();
+            String coding = token;
+            int semicolon = token.indexOf(';');
+            if (semicolon > -1) {
+                coding = token.substring(0, semicolon).trim();
+                if (isZeroQuality(token.substring(semicolon + 1))) {
+                    continue;
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) { //$NON-NLS-1$
+                gzip = true;
+            } else if (DEFLATE.equals(coding)) {
+                deflate = true;
+            }
+        }
+
+        return gzip ? GZIP : (deflate ? DEFLATE : null);
+    }
+
+    private static boolean isZeroQuality(String params) {
+        int q = params.indexOf("q="); //$NON-NLS-1$
+        if (q == -1) {
+            return false;
+        }
+        try {
+            return Float.parseFloat(params.substring(q + 2).trim()) <= 0f;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Compress a response body.
+     *
+     * @param data the uncompressed data
+     * @param encoding GZIP or DEFLATE
+     * @return the compressed data
+     */
+    public byte[] compress(byte[] data, String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        Deflater deflater = getDeflater(gzip);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+
+        try {
+            if (gzip) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                writeInt(out, (int) crc.getValue());
+                writeInt(out, data.length);
+            }
+        } finally {
+            deflater.reset();
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the compressed content of a static file, compressing it only if it
+     * isn't cached or has been modified since it was compressed.
+     *
+     * @param file the file
+     * @param encoding GZIP or DEFLATE
+     * @return the compressed file content, or null if the file is too large
+     * @throws IOException if the file can't be read
+     */
+    public byte[] getCompressedFile(File file, String encoding) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (length > MAX_FILE_SIZE) {
+            return null;
+        }
+
+        String key = file.getPath() + '\n' + encoding;
+        synchronized (this) {
+            CompressedFile cached = (CompressedFile) this.files.get(key);
+            if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+                return cached.content;
+            }
+        }
+
+        byte[] data = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) {
+                    return null;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        byte[] content = compress(data, encoding);
+        synchronized (this) {
+            if (this.maxFiles > 0) {
+                this.files.put(key, new CompressedFile(content, lastModified, length));
+                trim();
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Remove all compressed files from the cache.
+     */
+    public synchronized void clear() {
+        this.files.clear();
+    }
+
+    private Deflater getDeflater(boolean gzip) {
+        LeveledDeflater[] pair = (LeveledDeflater[]) this.deflaters.get();
+        if (pair == null) {
+            pair = new LeveledDeflater[2];
+            this.deflaters.set(pair);
+        }
+        int i = gzip ? 0 : 1;
+        int currentLevel = this.level;
+        if (pair[i] == null || pair[i].level != currentLevel) {
+            if (pair[i] != null) {
+                pair[i].end();
+            }
+            // gzip wraps raw deflate data, deflate uses the zlib format
+            pair[i] = new LeveledDeflater(currentLevel, gzip);
+        }
+        return pair[i];
+    }
+
+    private static void writeInt(OutputStream out, int value) {
+        try {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        } catch (IOException iox) {
+            // can't happen with a ByteArrayOutputStream
+        }
+    }
+
+    private int getInt(ResourceProperties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("ResponseCompressor.0") + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
+            return defaultValue;
+        }
+    }
+
+    private void trim() {
+        Iterator it = this.files.values().iterator();
+        while (this.files.size() > Math.max(this.maxFiles, 0) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * A Deflater that remembers its compression level.
+     */
+    static class LeveledDeflater extends Deflater {
+        final int level;
+
+        LeveledDeflater(int level, boolean nowrap) {
+            super(level, nowrap);
+            this.level = level;
+        }
+    }
+
+    /**
+     * A compressed static file.
+     */
+    static class CompressedFile {
+        final byte[] content;
+        final long lastModified;
+        final long length;
+
+        CompressedFile(byte[] content, long lastModified, long length) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
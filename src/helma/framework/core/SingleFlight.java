@@ -0,0 +1,219 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.RequestTrans;
+import helma.framework.ResponseTrans;
+
+import java.util.*;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Coalesces identical concurrent anonymous GET requests across sessions. The first
+ * request for a given URL is run as usual, while identical requests arriving in the
+ * meantime wait for it to finish and share its response instead of running
+ * themselves. The response is only shared if it opted into the shared response
+ * cache via res.cacheFor() and is cacheable, and only with requests that agree on
+ * the request headers the response varies on. This is enabled with the singleFlight
+ * app property.
+ */
+public class SingleFlight {
+
+    // map of request keys to flights currently in progress
+    private final HashMap flights = new HashMap();
+
+    // number of requests that shared another request's response
+    private long coalesced = 0;
+
+    /**
+     * Check if a request may be coalesced with identical requests from other
+     * sessions. This is only the case for anonymous GET requests.
+     *
+     * @param req the request
+     * @param session the request's session
+     * @return true if the request may be coalesced
+     */
+    public boolean isEligible(RequestTrans req, Session session) {
+        return req.isGet() &&
+               req.getServletRequest() != null &&
+               !req.isResumed() &&
+               !req.isExpired() &&
+               !session.isLoggedIn();
+    }
+
+    /**
+     * Join the flight for the given request, starting a new one if no identical
+     * request is in progress. The caller must complete the flight if it is
+     * the flight's leader.
+     *
+     * @param req the request
+     * @return the flight
+     */
+    public Flight join(RequestTrans req) {
+        String key = getKey(req);
+        synchronized (this.flights) {
+            Flight flight = (Flight) this.flights.get(key);
+            if (flight == null) {
+                flight = new Flight(key, req, Thread.currentThread());
+                this.flights.put(key, flight);
+            }
+            return flight;
+        }
+    }
+
+    /**
+     * Complete a flight, handing its response to all requests waiting for it.
+     *
+     * @param flight the flight
+     * @param res the closed response, or null if the request failed to produce one
+     */
+    public void complete(Flight flight, ResponseTrans res) {
+        synchronized (this.flights) {
+            this.flights.remove(flight.key);
+        }
+        flight.complete(res);
+    }
+
+    /**
+     * Wait for the leader of a flight to complete and return its response, if
+     * it can be shared with the given request.
+     *
+     * @param flight the flight
+     * @param req the waiting request
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the shared response, or null if the request must be run by the caller
+     */
+    public ResponseTrans await(Flight flight, RequestTrans req, long timeout) {
+        ResponseTrans res = flight.await(timeout);
+
+        // we can only share a complete response that opted into caching
+        // and doesn't set any cookies
+        if (res == null || res.getContent() == null || res.countCookies() > 0 ||
+                res.getPageCacheTime() <= 0 || !res.isCacheable()) {
+            return null;
+        }
+
+        // the response must not vary on request headers we don't agree on
+        if (!flight.varyKey.equals(getVaryKey(req, res))) {
+            return null;
+        }
+
+        synchronized (this.flights) {
+            this.coalesced += 1;
+        }
+        return res;
+    }
+
+    /**
+     * Return the number of requests that shared another request's response.
+     *
+     * @return the number of coalesced requests
+     */
+    public long countCoalescedRequests() {
+        synchronized (this.flights) {
+            return this.coalesced;
+        }
+    }
+
+    /**
+     * Requests are considered identical if they have the same host, path, query
+     * string and preferred languages, and the same conditional get data, so clients
+     * never get a not-modified response they didn't ask for.
+     */
+    private String getKey(RequestTrans req) {
+        HttpServletRequest request = req.getServletRequest();
+        StringBuffer key = new StringBuffer();
+        key.append(req.get("http_host")).append(' ').append(req.getPath()); //$NON-NLS-1$
+        key.append('?').append(request.getQueryString());
+        key.append('\n').append(request.getHeader("Accept-Language")); //$NON-NLS-1$
+        key.append('\n').append(req.getIfModifiedSince());
+
+        Object[] etags = req.getETags().toArray();
+        Arrays.sort(etags);
+        for (int i = 0; i < etags.length; i++) {
+            key.append('\n').append(etags[i]);
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Get the values of the request headers a response varies on.
+     */
+    static String getVaryKey(RequestTrans req, ResponseTrans res) {
+        String[] headers = res.getVaryHeaders();
+        StringBuffer key = new StringBuffer();
+        for (int i = 0; i < headers.length; i++) {
+            key.append(headers[i]).append(':').append(req.getHeader(headers[i])).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * A request in progress and the identical requests waiting for its response.
+     */
+    public static class Flight {
+        final String key;
+        final Thread leader;
+        private RequestTrans req;
+        private ResponseTrans res;
+        private String varyKey;
+        private boolean done = false;
+
+        Flight(String key, RequestTrans req, Thread leader) {
+            this.key = key;
+            this.req = req;
+            this.leader = leader;
+        }
+
+        /**
+         * @return true if the calling thread is running the request for this flight
+         */
+        public boolean isLeader() {
+            return this.leader == Thread.currentThread();
+        }
+
+        synchronized void complete(ResponseTrans response) {
+            // look at the leader's headers now, its servlet request
+            // may be recycled once the leader is done
+            if (response != null) {
+                this.varyKey = getVaryKey(this.req, response);
+            }
+            this.req = null;
+            this.res = response;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized ResponseTrans await(long timeout) {
+            long until = System.currentTimeMillis() + timeout;
+            try {
+                while (!this.done) {
+                    long wait = until - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return null;
+                    }
+                    wait(wait);
+                }
+            } catch (InterruptedException ix) {
+                return null;
+            }
+            return this.res;
+        }
+    }
+}
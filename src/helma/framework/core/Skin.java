@@ -19,6 +19,10 @@ package helma.framework.core;
 import helma.framework.*;
 import helma.framework.repository.ResourceInterface;
 import helma.objectmodel.ConcurrencyException;
+import helma.objectmodel.NodeInterface;
+import helma.objectmodel.db.DbKey;
+import helma.objectmodel.db.DbMapping;
+import helma.objectmodel.db.Node;
 import helma.util.*;
 import helma.scripting.ScriptingEngineInterface;
 
@@ -328,6 +332,8 @@ public final class Skin {
 
     /**
      *  Adds a macro to the list of allowed macros. The macro is in handler.name notation.
+     *  Skins loaded from files are shared through the application's skin cache, so this
+     *  should only be called on skins created from a string.
      */
     public void allowMacro(String macroname) {
         if (this.sandbox == null) {
@@ -366,6 +372,10 @@ public final class Skin {
         // subskin macros delimits the beginning of a new subskin
         boolean isSubskinMacro = false;
 
+        // fragment cache settings defined via cache="seconds" and dependsOn="Proto, ..."
+        long cacheTime = 0;
+        String[] cacheDependencies = null;
+
         /**
          * Create and parse a new macro.
          * @param start the start of the macro within the skin source
@@ -643,6 +653,14 @@ public final class Skin {
                 this.standardParams.defaultValue = value;
             } else if ("failmode".equals(name)) { //$NON-NLS-1$
                 this.standardParams.setFailMode(value);
+            } else if ("cache".equals(name) && value instanceof String) { //$NON-NLS-1$
+                try {
+                    this.cacheTime = Long.parseLong(((String) value).trim()) * 1000L;
+                } catch (NumberFormatException nfe) {
+                    Skin.this.app.logEvent(Messages.getString("Skin.13") + value); //$NON-NLS-1$
+                }
+            } else if ("dependsOn".equals(name) && value instanceof String) { //$NON-NLS-1$
+                this.cacheDependencies = StringUtils.split((String) value, ", "); //$NON-NLS-1$
             }
 
             // Add parameter to parameter map
@@ -764,6 +782,121 @@ public final class Skin {
          */
         void render(RenderContext cx)
                 throws RedirectException {
+            // a streaming response must not flush the buffer while
+            // we may still look at the macro's output in it
+            ResponseTrans res = cx.reval.getResponse();
+            boolean cached = this.cacheTime > 0 && Skin.this.app.fragmentCache.isEnabled();
+            boolean hold = cached || res.isStreaming();
+            if (hold) {
+                res.holdStream();
+            }
+            try {
+                if (cached) {
+                    renderCached(cx);
+                } else {
+                    renderMacro(cx);
+                }
+            } finally {
+                if (hold) {
+                    res.releaseStream();
+                }
+            }
+        }
+
+        /**
+         * Render the macro using the application's fragment cache, writing the
+         * cached output if available and storing the rendered output otherwise.
+         */
+        private void renderCached(RenderContext cx)
+                throws RedirectException {
+            Object handler = null;
+            String key = null;
+            try {
+                if (this.handlerType != HANDLER_GLOBAL) {
+                    handler = cx.resolveHandler(this.path[0], this.handlerType);
+                    handler = resolvePath(handler, cx.reval);
+                }
+                key = getCacheKey(handler);
+            } catch (Exception x) {
+                // can't cache, let renderMacro() deal with the problem
+            }
+
+            if (key == null) {
+                renderMacro(cx);
+                return;
+            }
+
+            FragmentCache cache = Skin.this.app.fragmentCache;
+            StringBuffer buffer = cx.reval.getResponse().getBuffer();
+            String text = cache.get(key, handler);
+
+            if (text != null) {
+                buffer.append(text);
+                return;
+            }
+
+            int bufLength = buffer.length();
+            if (renderMacro(cx)) {
+                cache.put(key, buffer.substring(bufLength), handler,
+                        this.cacheTime, getCacheDependencies());
+            }
+        }
+
+        /**
+         * Get the fragment cache key for this macro, consisting of the handler
+         * object's database key and the macro source including its parameters.
+         * Only macros of persistent objects are cached, as other handlers can't be
+         * told apart across requests and sessions.
+         *
+         * @return the cache key, or null if the macro output can't be cached
+         */
+        private String getCacheKey(Object handler) {
+            if (this.hasNestedMacros) {
+                // parameters are computed at render time
+                return null;
+            } else if (this.handlerType != HANDLER_THIS && this.handlerType != HANDLER_OTHER) {
+                // global and request specific handlers
+                return null;
+            } else if (!(handler instanceof Node)) {
+                return null;
+            }
+
+            Node node = (Node) handler;
+            int state = node.getState();
+            if (state == NodeInterface.TRANSIENT || state == NodeInterface.NEW ||
+                    !(node.getKey() instanceof DbKey)) {
+                return null;
+            }
+
+            return new StringBuffer(node.getKey().toString()).append('\n')
+                    .append(Skin.this.source, this.start, this.end - this.start)
+                    .toString();
+        }
+
+        /**
+         * Get the DbMappings of the prototypes listed in the dependsOn parameter.
+         */
+        private DbMapping[] getCacheDependencies() {
+            if (this.cacheDependencies == null) {
+                return new DbMapping[0];
+            }
+            ArrayList list = new ArrayList();
+            for (int i = 0; i < this.cacheDependencies.length; i++) {
+                DbMapping dbmap = Skin.this.app.getDbMapping(this.cacheDependencies[i]);
+                if (dbmap != null) {
+                    list.add(dbmap);
+                }
+            }
+            return (DbMapping[]) list.toArray(new DbMapping[list.size()]);
+        }
+
+        /**
+         * Render the macro, writing its output to the response buffer.
+         *
+         * @return true if the macro was rendered without errors
+         */
+        private boolean renderMacro(RenderContext cx)
+                throws RedirectException {
             StringBuffer buffer = cx.reval.getResponse().getBuffer();
             // remember length of response buffer before calling macro
             int bufLength = buffer.length();
@@ -811,6 +944,7 @@ public final class Skin {
                 String msg = mx.getMessage();
                 cx.reval.getResponse().write(" [" + msg + "] "); //$NON-NLS-1$ //$NON-NLS-2$
                 Skin.this.app.logError(msg);
+                return false;
             } catch (Exception x) {
                 String msg = x.getMessage();
                 if ((msg == null) || (msg.length() < 10)) {
@@ -820,7 +954,9 @@ public final class Skin {
                         .append(": ").append(msg).toString(); //$NON-NLS-1$
                 cx.reval.getResponse().write(" [" + msg + "] ");  //$NON-NLS-1$//$NON-NLS-2$
                 Skin.this.app.logError(msg, x);
+                return false;
             }
+            return true;
         }
 
         private Object filter(Object returnValue, RenderContext cx)
@@ -0,0 +1,215 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.repository.FileResource;
+import helma.framework.repository.ResourceInterface;
+import helma.util.ResourceProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An application wide, bounded cache for parsed skins. Skins are cached by resource
+ * name and reparsed when the resource's modification time or the skin charset
+ * changes. Skin files that are looked up in the skinpath but don't exist are
+ * remembered for a second, so skinpath misses don't hit the file system on every
+ * lookup. Parsed skins are not modified while rendering and are shared by all
+ * request evaluators.
+ */
+public class SkinCache {
+
+    Application app;
+
+    // maximum number of cached skins and skinpath misses
+    private int maxSize = 1000;
+
+    // LRU map of resource names to cached skins
+    private final LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+
+    // LRU map of file paths to the time they were found missing
+    private final LinkedHashMap missing = new LinkedHashMap(64, 0.75f, true);
+
+    // the time in milliseconds after which a skinpath miss is checked again
+    private static final long MISSING_TIMEOUT = 1000L;
+
+    // statistics
+    private long hits, misses, missingHits;
+
+    /**
+     * Create a skin cache for the given application.
+     *
+     * @param app the application
+     */
+    public SkinCache(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Update the cache settings from the application properties.
+     *
+     * @param props the application properties
+     */
+    public synchronized void updateProperties(ResourceProperties props) {
+        String size = props.getProperty("skinCacheSize"); //$NON-NLS-1$
+        try {
+            this.maxSize = size == null ? 1000 : Integer.parseInt(size.trim());
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("SkinCache.0") + size); //$NON-NLS-1$
+            this.maxSize = 1000;
+        }
+        trim();
+    }
+
+    /**
+     * Get the parsed skin for a skin resource, parsing it if it isn't cached
+     * or has been modified since it was cached.
+     *
+     * @param res the skin resource
+     * @return the parsed skin
+     * @throws IOException if the resource can't be read
+     */
+    public Skin getSkin(ResourceInterface res) throws IOException {
+        return getSkin(res, res.lastModified());
+    }
+
+    /**
+     * Get the parsed skin for a skin file in the skinpath.
+     *
+     * @param file the skin file
+     * @return the parsed skin, or null if the file doesn't exist or isn't readable
+     * @throws IOException if the file can't be read
+     */
+    public Skin getSkin(File file) throws IOException {
+        String path = file.getPath();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Long checked = (Long) this.missing.get(path);
+            if (checked != null) {
+                if (now - checked.longValue() < MISSING_TIMEOUT) {
+                    this.missingHits += 1;
+                    return null;
+                }
+                this.missing.remove(path);
+            }
+        }
+
+        // lastModified() returns 0 for files that don't exist
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || !file.canRead()) {
+            synchronized (this) {
+                if (this.maxSize > 0) {
+                    this.missing.put(path, new Long(now));
+                    trim();
+                }
+            }
+            return null;
+        }
+
+        return getSkin(new FileResource(file), lastModified);
+    }
+
+    private Skin getSkin(ResourceInterface res, long lastModified) throws IOException {
+        String key = res.getName();
+        String charset = this.app.getProperty("skinCharset"); //$NON-NLS-1$
+
+        synchronized (this) {
+            Entry entry = (Entry) this.entries.get(key);
+            if (entry != null && entry.isValid(lastModified, charset)) {
+                this.hits += 1;
+                return entry.skin;
+            }
+            this.misses += 1;
+        }
+
+        // parse outside the lock. Concurrent misses for the same skin
+        // may parse it twice, which is harmless.
+        Skin skin = Skin.getSkin(res, this.app);
+
+        synchronized (this) {
+            if (this.maxSize > 0) {
+                this.entries.put(key, new Entry(skin, lastModified, charset));
+                trim();
+            }
+        }
+        return skin;
+    }
+
+    /**
+     * Remove all cached skins and skinpath misses.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.missing.clear();
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map containing the cache statistics
+     */
+    public synchronized Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("size", new Integer(this.entries.size())); //$NON-NLS-1$
+        stats.put("missingSize", new Integer(this.missing.size())); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.maxSize)); //$NON-NLS-1$
+        stats.put("hits", new Long(this.hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(this.misses)); //$NON-NLS-1$
+        stats.put("missingHits", new Long(this.missingHits)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its maximum size.
+     */
+    private void trim() {
+        int max = Math.max(this.maxSize, 0);
+        Iterator it = this.entries.values().iterator();
+        while (this.entries.size() > max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        it = this.missing.values().iterator();
+        while (this.missing.size() > max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * A cached skin.
+     */
+    static class Entry {
+        final Skin skin;
+        final long lastModified;
+        final String charset;
+
+        Entry(Skin skin, long lastModified, String charset) {
+            this.skin = skin;
+            this.lastModified = lastModified;
+            this.charset = charset;
+        }
+
+        boolean isValid(long modified, String currentCharset) {
+            return modified == this.lastModified &&
+                   (currentCharset == null ?
+                           this.charset == null : currentCharset.equals(this.charset));
+        }
+    }
+}
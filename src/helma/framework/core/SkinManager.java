@@ -17,7 +17,6 @@
 package helma.framework.core;
 
 import helma.objectmodel.NodeInterface;
-import helma.framework.repository.FileResource;
 
 import java.io.*;
 
@@ -129,11 +128,8 @@ public final class SkinManager implements FilenameFilter {
 
             // TODO: check for lower case prototype name for backwards compat
 
-            File f = new File(b.toString());
-
-            if (f.exists() && f.canRead()) {
-                return Skin.getSkin(new FileResource(f), this.app);
-            }
+            // the skin cache remembers skins as well as missing skin files
+            return this.app.getSkinCache().getSkin(new File(b.toString()));
         }
 
         // Inheritance is taken care of in the above getSkin method.
@@ -0,0 +1,35 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel;
+
+/**
+ * Interface for listeners that are notified when an object cache drops an
+ * entry to make room for other entries.
+ */
+public interface CacheEvictionListenerInterface {
+
+    /**
+     * Called when an entry is evicted from the cache. This may be called while
+     * the cache holds a lock, so implementations must be quick and must not
+     * access the cache.
+     *
+     * @param key the key of the evicted entry
+     * @param value the value of the evicted entry
+     */
+    public void entryEvicted(Object key, Object value);
+
+}
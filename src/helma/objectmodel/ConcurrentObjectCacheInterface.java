@@ -0,0 +1,46 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel;
+
+/**
+ * Interface for object caches that can be used without external synchronization.
+ * Besides being thread safe for single operations, implementations provide atomic
+ * conditional updates, so the node manager doesn't need to lock the whole cache
+ * to register nodes.
+ */
+public interface ConcurrentObjectCacheInterface extends ObjectCacheInterface {
+
+    /**
+     * Associate the key with the value unless the key is already mapped.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the value currently mapped to the key, or null if the value was stored
+     */
+    Object putIfAbsent(Object key, Object value);
+
+    /**
+     * Replace the value mapped to the key, but only if it currently is the
+     * given old value. Values are compared by identity.
+     *
+     * @param key the key
+     * @param oldValue the value expected to be mapped to the key
+     * @param newValue the new value
+     * @return true if the value was replaced
+     */
+    boolean replace(Object key, Object oldValue, Object newValue);
+}
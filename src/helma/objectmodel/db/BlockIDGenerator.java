@@ -0,0 +1,297 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.objectmodel.dom.XmlDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ID generator that reserves blocks of IDs and hands them out from memory
+ * without locking. It is enabled with the app property
+ * <code>idGeneratorImpl = helma.objectmodel.db.BlockIDGenerator</code>.
+ *
+ * <p>Blocks are reserved per table in a small ID table with the columns
+ * <code>name</code> (varchar) and <code>next_id</code> (bigint), which must
+ * exist in each relational data source. Its name is set with the
+ * <code>idTable</code> app property and defaults to <code>helma_ids</code>.
+ * The table is updated with a compare-and-set statement on a connection of
+ * its own, so several Helma instances can share a database as long as all
+ * of them use this generator.</p>
+ *
+ * <p>Mappings using a database sequence reserve a block per sequence value if
+ * the <code>idSequenceIncrement</code> app property is set, which must match the
+ * sequence's INCREMENT BY value. Otherwise they get one sequence value per ID.
+ * IDs for the embedded database are reserved in blocks from its ID generator.
+ * The block size is set with the <code>idBlockSize</code> app property.</p>
+ */
+public class BlockIDGenerator implements IDGeneratorInterface {
+
+    // number of attempts to reserve a block in the id table
+    private static final int MAX_ATTEMPTS = 10;
+
+    private Application app;
+    private NodeManager nmgr;
+    private int blockSize;
+    private int sequenceIncrement;
+    private String idTable;
+
+    // reserved id ranges by table
+    private final ConcurrentHashMap ranges = new ConcurrentHashMap();
+
+    // connections used to update the id table, by db source
+    private final Map connections = new HashMap();
+
+    /**
+     * Init the ID generator for the given application.
+     *
+     * @param app the application
+     */
+    public void init(Application app) {
+        this.app = app;
+        this.nmgr = app.getNodeManager();
+        this.blockSize = getIntProperty("idBlockSize", 100); //$NON-NLS-1$
+        this.sequenceIncrement = getIntProperty("idSequenceIncrement", 0); //$NON-NLS-1$
+        this.idTable = app.getProperty("idTable", "helma_ids"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Shut down the ID generator, closing the connections used to
+     * reserve blocks. The unused IDs of the current blocks are lost.
+     */
+    public synchronized void shutdown() {
+        for (Iterator it = this.connections.values().iterator(); it.hasNext(); ) {
+            try {
+                ((Connection) it.next()).close();
+            } catch (SQLException ignore) {
+                // nothing to do
+            }
+        }
+        this.connections.clear();
+        this.ranges.clear();
+    }
+
+    /**
+     * Generate a new ID for a specific type.
+     *
+     * @param dbmap the type's db mapping
+     * @return the new ID
+     */
+    public String generateID(DbMapping dbmap) throws Exception {
+        boolean relational = dbmap != null && dbmap.isRelational() &&
+                !"[hop]".equalsIgnoreCase(dbmap.getIDgen()); //$NON-NLS-1$
+        if (relational && usesSequence(dbmap) && this.sequenceIncrement <= 1) {
+            return this.nmgr.doGenerateID(dbmap);
+        }
+
+        String key = relational ?
+                dbmap.getDbSourceName() + "." + dbmap.getTableName().toUpperCase() : ""; //$NON-NLS-1$ //$NON-NLS-2$
+
+        while (true) {
+            IDRange range = (IDRange) this.ranges.get(key);
+            if (range != null) {
+                long id = range.next();
+                if (id >= 0) {
+                    return Long.toString(id);
+                }
+            }
+            synchronized (this) {
+                // another thread may have reserved a new block in the meantime
+                if (this.ranges.get(key) == range) {
+                    this.ranges.put(key, relational ? reserve(dbmap) : reserveEmbedded());
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a relational mapping uses a database sequence.
+     */
+    private boolean usesSequence(DbMapping dbmap) {
+        String idMethod = dbmap.getIDgen();
+        return idMethod != null && !"[max]".equalsIgnoreCase(idMethod) && !dbmap.isMySQL(); //$NON-NLS-1$
+    }
+
+    /**
+     * Reserve a block of IDs for the embedded database.
+     */
+    private IDRange reserveEmbedded() throws Exception {
+        if (this.nmgr.db instanceof XmlDatabase) {
+            long first = ((XmlDatabase) this.nmgr.db).nextIDBlock(this.blockSize);
+            return new IDRange(first, first + this.blockSize);
+        }
+        long id = Long.parseLong(this.nmgr.generateEmbeddedID());
+        return new IDRange(id, id + 1);
+    }
+
+    /**
+     * Reserve a block of IDs for a relational table, either from the table's
+     * sequence or from the ID table.
+     */
+    private IDRange reserve(DbMapping dbmap) throws Exception {
+        if (usesSequence(dbmap)) {
+            long first = Long.parseLong(this.nmgr.generateSequenceID(dbmap));
+            return new IDRange(first, first + this.sequenceIncrement);
+        }
+
+        DbSource src = dbmap.getDbSource();
+        String name = dbmap.getTableName().toUpperCase();
+        Connection con = getConnection(src);
+        try {
+            for (int i = 0; i < MAX_ATTEMPTS; i++) {
+                Long next = selectNextID(con, name);
+                if (next == null) {
+                    long first = selectMaxID(con, dbmap) + 1;
+                    if (insertNextID(con, name, first + this.blockSize)) {
+                        return new IDRange(first, first + this.blockSize);
+                    }
+                } else {
+                    long first = next.longValue();
+                    if (updateNextID(con, name, first, first + this.blockSize)) {
+                        return new IDRange(first, first + this.blockSize);
+                    }
+                }
+                // another instance reserved a block concurrently, try again
+            }
+        } catch (SQLException x) {
+            // the connection may be broken, create a new one next time
+            closeConnection(src);
+            throw x;
+        }
+        throw new SQLException(Messages.getString("BlockIDGenerator.0") + name); //$NON-NLS-1$
+    }
+
+    private Long selectNextID(Connection con, String name) throws SQLException {
+        PreparedStatement stmt = con.prepareStatement("SELECT next_id FROM " + //$NON-NLS-1$
+                this.idTable + " WHERE name = ?"); //$NON-NLS-1$
+        try {
+            stmt.setString(1, name);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? new Long(rs.getLong(1)) : null;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private long selectMaxID(Connection con, DbMapping dbmap) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT MAX(" + dbmap.getIDField() + //$NON-NLS-1$
+                    ") FROM " + dbmap.getTableName()); //$NON-NLS-1$
+            return rs.next() ? Math.max(0L, rs.getLong(1)) : 0L;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private boolean insertNextID(Connection con, String name, long next) {
+        try {
+            PreparedStatement stmt = con.prepareStatement("INSERT INTO " + //$NON-NLS-1$
+                    this.idTable + " (name, next_id) VALUES (?, ?)"); //$NON-NLS-1$
+            try {
+                stmt.setString(1, name);
+                stmt.setLong(2, next);
+                return stmt.executeUpdate() == 1;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException x) {
+            // most likely a duplicate key inserted by another instance
+            return false;
+        }
+    }
+
+    private boolean updateNextID(Connection con, String name, long expected, long next)
+            throws SQLException {
+        PreparedStatement stmt = con.prepareStatement("UPDATE " + this.idTable + //$NON-NLS-1$
+                " SET next_id = ? WHERE name = ? AND next_id = ?"); //$NON-NLS-1$
+        try {
+            stmt.setLong(1, next);
+            stmt.setString(2, name);
+            stmt.setLong(3, expected);
+            return stmt.executeUpdate() == 1;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Get the connection used to update the ID table of a db source. It is
+     * independent of transactions so reserved blocks survive rollbacks.
+     */
+    private Connection getConnection(DbSource src) throws Exception {
+        Connection con = (Connection) this.connections.get(src);
+        if (con == null || con.isClosed()) {
+            con = src.createConnection();
+            con.setAutoCommit(true);
+            this.connections.put(src, con);
+        }
+        return con;
+    }
+
+    private void closeConnection(DbSource src) {
+        Connection con = (Connection) this.connections.remove(src);
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException ignore) {
+                // nothing to do
+            }
+        }
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = this.app.getProperty(name);
+        try {
+            return value == null ? defaultValue : Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("BlockIDGenerator.1") + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A range of reserved IDs handed out without locking.
+     */
+    static final class IDRange {
+        private final AtomicLong next;
+        private final long end;
+
+        IDRange(long first, long end) {
+            this.next = new AtomicLong(first);
+            this.end = end;
+        }
+
+        /**
+         * Get the next ID of the range, or -1 if the range is exhausted.
+         */
+        long next() {
+            long id = this.next.getAndIncrement();
+            return id < this.end ? id : -1;
+        }
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.util.InetAddressFilter;
+
+import java.io.*;
+import java.net.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps the caches of several instances of an application consistent when they
+ * share a relational database. Committed changes are collected from node change
+ * events and broadcast to the other instances in batches, which evict modified and
+ * deleted nodes from their node cache, mark changed child collections and bump the
+ * data change counters of the affected DbMappings.
+ *
+ * Changes are sent by UDP multicast if the clusterMulticast app property is set to
+ * a group address and port, e.g. 239.255.42.99:4446. Otherwise they are sent over
+ * TCP to the instances listed in clusterPeers (host:port, separated by commas),
+ * while clusterPort sets the TCP port this instance listens on. Incoming TCP
+ * connections are only accepted from the addresses listed in clusterAllow, which
+ * defaults to the addresses of the peers. Changes are collected for
+ * clusterBatchDelay milliseconds (default 50) before they are sent. The settings
+ * are read when the application is started.
+ *
+ * Without further settings any host that can send to the multicast group or is
+ * allowed by clusterAllow is trusted to evict nodes from the caches, so the cluster
+ * traffic should be confined to a private network. If clusterSecret is set, each
+ * message is signed with an HMAC-SHA256 of the shared secret and messages without
+ * a valid signature are dropped. All instances must use the same secret.
+ */
+public class ClusterInvalidator implements NodeChangeListenerInterface {
+
+    static final int MAGIC = 0x484c4349;
+    static final int VERSION = 1;
+
+    // entry types
+    static final byte EVICT = 1;
+    static final byte SUBNODES = 2;
+    static final byte DATA = 3;
+
+    // key types
+    static final byte NO_KEY = 0;
+    static final byte DB_KEY = 1;
+    static final byte SYNTHETIC_KEY = 2;
+
+    // maximum size of a message, larger batches are split into several messages
+    static final int MAX_MESSAGE_SIZE = 8192;
+
+    // timeout for connecting to TCP peers in milliseconds
+    static final int CONNECT_TIMEOUT = 2000;
+
+    static final String MAC_ALGORITHM = "HmacSHA256"; //$NON-NLS-1$
+    static final int MAC_LENGTH = 32;
+
+    NodeManager nmgr;
+
+    // random id to recognize our own multicast messages
+    private final long senderId = new Random().nextLong() | 1L;
+    private final String appName;
+    private long batchDelay = 50;
+
+    // key for signing messages, or null if messages aren't signed
+    private SecretKeySpec secret;
+
+    // changes waiting to be sent
+    private LinkedHashSet evicted = new LinkedHashSet();
+    private LinkedHashSet parents = new LinkedHashSet();
+    private LinkedHashSet mappings = new LinkedHashSet();
+
+    private volatile boolean running = true;
+    private Thread sender;
+
+    // UDP multicast transport
+    private MulticastSocket multicastSocket;
+    private InetAddress group;
+    private int groupPort;
+
+    // TCP transport
+    private ServerSocket serverSocket;
+    private Peer[] peers = new Peer[0];
+    private InetAddressFilter allow;
+    private final List connections = Collections.synchronizedList(new ArrayList());
+
+    /**
+     * Create the cluster invalidator and start its threads.
+     *
+     * @param nmgr the node manager
+     * @param props the application properties
+     * @throws IOException if a socket can't be opened
+     */
+    public ClusterInvalidator(NodeManager nmgr, Properties props) throws IOException {
+        this.nmgr = nmgr;
+        this.appName = nmgr.app.getName();
+
+        String delay = props.getProperty("clusterBatchDelay"); //$NON-NLS-1$
+        if (delay != null) {
+            try {
+                this.batchDelay = Long.parseLong(delay.trim());
+            } catch (NumberFormatException nfe) {
+                nmgr.app.logError(Messages.getString("ClusterInvalidator.0") + delay); //$NON-NLS-1$
+            }
+        }
+
+        String secret = props.getProperty("clusterSecret"); //$NON-NLS-1$
+        if (secret != null && secret.length() > 0) {
+            this.secret = new SecretKeySpec(secret.getBytes("UTF-8"), MAC_ALGORITHM); //$NON-NLS-1$
+        }
+
+        String multicast = props.getProperty("clusterMulticast"); //$NON-NLS-1$
+        if (multicast != null) {
+            InetSocketAddress address = parseAddress(multicast);
+            this.group = address.getAddress();
+            this.groupPort = address.getPort();
+            this.multicastSocket = new MulticastSocket(this.groupPort);
+            this.multicastSocket.setTimeToLive(1);
+            this.multicastSocket.joinGroup(this.group);
+            startThread(new Runnable() {
+                public void run() {
+                    receiveMulticast();
+                }
+            }, "multicast"); //$NON-NLS-1$
+        } else {
+            initTcp(props);
+        }
+
+        this.sender = startThread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        }, "sender"); //$NON-NLS-1$
+
+        nmgr.app.logEvent(Messages.getString("ClusterInvalidator.1") + //$NON-NLS-1$
+                (multicast != null ? multicast : props.getProperty("clusterPeers"))); //$NON-NLS-1$
+    }
+
+    private void initTcp(Properties props) throws IOException {
+        ArrayList list = new ArrayList();
+        this.allow = new InetAddressFilter();
+        StringTokenizer st = new StringTokenizer(props.getProperty("clusterPeers", ""), ", "); //$NON-NLS-1$ //$NON-NLS-2$
+        while (st.hasMoreTokens()) {
+            InetSocketAddress address = parseAddress(st.nextToken());
+            list.add(new Peer(address));
+            if (address.getAddress() != null) {
+                this.allow.addAddress(address.getAddress().getHostAddress());
+            }
+        }
+        this.peers = (Peer[]) list.toArray(new Peer[list.size()]);
+
+        String allowed = props.getProperty("clusterAllow"); //$NON-NLS-1$
+        if (allowed != null) {
+            this.allow = new InetAddressFilter();
+            st = new StringTokenizer(allowed, ", "); //$NON-NLS-1$
+            while (st.hasMoreTokens()) {
+                this.allow.addAddress(st.nextToken());
+            }
+        }
+
+        String port = props.getProperty("clusterPort"); //$NON-NLS-1$
+        if (port != null) {
+            this.serverSocket = new ServerSocket(Integer.parseInt(port.trim()));
+            startThread(new Runnable() {
+                public void run() {
+                    acceptConnections();
+                }
+            }, "acceptor"); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Collect the changes of a committed transaction to be sent to the other instances.
+     */
+    public void nodesChanged(List inserted, List updated, List deleted, List parentNodes) {
+        ArrayList keys = new ArrayList();
+        ArrayList parentKeys = new ArrayList();
+        HashSet types = new HashSet();
+        addNodes(inserted, null, types);
+        addNodes(updated, keys, types);
+        addNodes(deleted, keys, types);
+        for (int i = 0; i < parentNodes.size(); i++) {
+            KeyInterface key = ((Node) parentNodes.get(i)).getKey();
+            if (isSupported(key)) {
+                parentKeys.add(key);
+            }
+        }
+        invalidate(keys, parentKeys, types);
+    }
+
+    private void addNodes(List nodes, List keys, Set types) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = (Node) nodes.get(i);
+            KeyInterface key = node.getKey();
+            if (keys != null && isSupported(key)) {
+                keys.add(key);
+            }
+            DbMapping dbmap = node.getDbMapping();
+            if (dbmap != null) {
+                types.add(dbmap.getTypeName());
+            }
+        }
+    }
+
+    /**
+     * Queue changes to be sent to the other instances.
+     *
+     * @param keys the keys of the nodes to evict
+     * @param parentKeys the keys of the nodes whose subnodes changed
+     * @param types the names of the DbMappings whose data changed
+     */
+    synchronized void invalidate(Collection keys, Collection parentKeys, Collection types) {
+        this.evicted.addAll(keys);
+        this.parents.addAll(parentKeys);
+        this.mappings.addAll(types);
+        notifyAll();
+    }
+
+    /**
+     * Stop sending and receiving changes. Pending changes are sent before the
+     * sockets are closed.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            this.running = false;
+            notifyAll();
+        }
+        if (this.sender != null) {
+            try {
+                this.sender.join(this.batchDelay + CONNECT_TIMEOUT);
+            } catch (InterruptedException ir) {
+                // ignore
+            }
+        }
+        if (this.multicastSocket != null) {
+            this.multicastSocket.close();
+        }
+        if (this.serverSocket != null) {
+            close(this.serverSocket);
+        }
+        synchronized (this.connections) {
+            for (int i = 0; i < this.connections.size(); i++) {
+                close((Socket) this.connections.get(i));
+            }
+        }
+        for (int i = 0; i < this.peers.length; i++) {
+            this.peers[i].disconnect();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // sending
+
+    void sendLoop() {
+        while (true) {
+            LinkedHashSet keys, parentKeys, types;
+            synchronized (this) {
+                while (this.running && isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ir) {
+                        return;
+                    }
+                }
+            }
+
+            // wait a little to collect more changes
+            if (this.running && this.batchDelay > 0) {
+                try {
+                    Thread.sleep(this.batchDelay);
+                } catch (InterruptedException ir) {
+                    // send what we have
+                }
+            }
+
+            synchronized (this) {
+                if (isEmpty()) {
+                    return;
+                }
+                keys = this.evicted;
+                parentKeys = this.parents;
+                types = this.mappings;
+                this.evicted = new LinkedHashSet();
+                this.parents = new LinkedHashSet();
+                this.mappings = new LinkedHashSet();
+            }
+
+            try {
+                List messages = encode(keys, parentKeys, types);
+                for (int i = 0; i < messages.size(); i++) {
+                    send((byte[]) messages.get(i));
+                }
+            } catch (IOException iox) {
+                this.nmgr.app.logError(Messages.getString("ClusterInvalidator.2"), iox); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        return this.evicted.isEmpty() && this.parents.isEmpty() && this.mappings.isEmpty();
+    }
+
+    private void send(byte[] message) {
+        if (this.multicastSocket != null) {
+            try {
+                this.multicastSocket.send(new DatagramPacket(message, message.length,
+                        this.group, this.groupPort));
+            } catch (IOException iox) {
+                this.nmgr.app.logError(Messages.getString("ClusterInvalidator.2"), iox); //$NON-NLS-1$
+            }
+            return;
+        }
+        for (int i = 0; i < this.peers.length; i++) {
+            this.peers[i].send(message);
+        }
+    }
+
+    /**
+     * Encode a batch of changes into one or more messages.
+     */
+    List encode(Collection keys, Collection parentKeys, Collection types) throws IOException {
+        ArrayList messages = new ArrayList();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int count = 0;
+
+        // evictions first, so data change counters are bumped after stale nodes are gone
+        Iterator[] its = new Iterator[] {
+                keys.iterator(), parentKeys.iterator(), types.iterator()
+        };
+        byte[] entryTypes = new byte[] {EVICT, SUBNODES, DATA};
+
+        for (int i = 0; i < its.length; i++) {
+            while (its[i].hasNext()) {
+                Object item = its[i].next();
+                out.writeByte(entryTypes[i]);
+                if (entryTypes[i] == DATA) {
+                    out.writeUTF((String) item);
+                } else {
+                    writeKey(out, (KeyInterface) item);
+                }
+                count += 1;
+                if (entries.size() > MAX_MESSAGE_SIZE - 256) {
+                    messages.add(createMessage(entries, count));
+                    entries.reset();
+                    count = 0;
+                }
+            }
+        }
+        if (count > 0) {
+            messages.add(createMessage(entries, count));
+        }
+        return messages;
+    }
+
+    private byte[] createMessage(ByteArrayOutputStream entries, int count) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(entries.size() + 64);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(this.senderId);
+        out.writeUTF(this.appName);
+        out.writeInt(count);
+        entries.writeTo(out);
+        if (this.secret != null) {
+            out.write(sign(bout.toByteArray(), 0, bout.size()));
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Compute the signature of a message.
+     */
+    private byte[] sign(byte[] data, int offset, int length) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(this.secret);
+            mac.update(data, offset, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException gsx) {
+            throw new IOException(gsx.toString());
+        }
+    }
+
+    private static boolean isSupported(KeyInterface key) {
+        if (key instanceof SyntheticKey) {
+            return isSupported(key.getParentKey());
+        }
+        return key instanceof DbKey;
+    }
+
+    private static void writeKey(DataOutputStream out, KeyInterface key) throws IOException {
+        if (key instanceof DbKey) {
+            out.writeByte(DB_KEY);
+            String storage = key.getStorageName();
+            out.writeBoolean(storage != null);
+            if (storage != null) {
+                out.writeUTF(storage);
+            }
+            out.writeUTF(key.getID());
+        } else if (key instanceof SyntheticKey) {
+            out.writeByte(SYNTHETIC_KEY);
+            writeKey(out, key.getParentKey());
+            out.writeUTF(key.getID());
+        } else {
+            out.writeByte(NO_KEY);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // receiving
+
+    void receiveMulticast() {
+        byte[] buffer = new byte[65536];
+        while (this.running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                this.multicastSocket.receive(packet);
+                apply(packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (IOException iox) {
+                if (this.running) {
+                    this.nmgr.app.logError(Messages.getString("ClusterInvalidator.3"), iox); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+
+    void acceptConnections() {
+        while (this.running) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                if (!this.allow.matches(socket.getInetAddress())) {
+                    this.nmgr.app.logEvent(Messages.getString("ClusterInvalidator.4") + //$NON-NLS-1$
+                            socket.getInetAddress());
+                    close(socket);
+                    continue;
+                }
+                this.connections.add(socket);
+                startThread(new Runnable() {
+                    public void run() {
+                        receiveTcp(socket);
+                    }
+                }, "receiver"); //$NON-NLS-1$
+            } catch (IOException iox) {
+                if (this.running) {
+                    this.nmgr.app.logError(Messages.getString("ClusterInvalidator.3"), iox); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+
+    void receiveTcp(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            while (this.running) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE_SIZE * 2) {
+                    throw new IOException(Messages.getString("ClusterInvalidator.5") + length); //$NON-NLS-1$
+                }
+                byte[] message = new byte[length];
+                in.readFully(message);
+                apply(message, 0, length);
+            }
+        } catch (EOFException eof) {
+            // peer closed the connection
+        } catch (IOException iox) {
+            if (this.running) {
+                this.nmgr.app.logError(Messages.getString("ClusterInvalidator.3"), iox); //$NON-NLS-1$
+            }
+        } finally {
+            this.connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    /**
+     * Check the signature of a message received from another instance and
+     * apply its changes. Messages without a valid signature are dropped.
+     */
+    void apply(byte[] data, int offset, int length) throws IOException {
+        if (this.secret != null) {
+            length -= MAC_LENGTH;
+            if (length < 0) {
+                return;
+            }
+            byte[] signature = new byte[MAC_LENGTH];
+            System.arraycopy(data, offset + length, signature, 0, MAC_LENGTH);
+            if (!MessageDigest.isEqual(signature, sign(data, offset, length))) {
+                this.nmgr.app.logEvent(Messages.getString("ClusterInvalidator.8")); //$NON-NLS-1$
+                return;
+            }
+        }
+        apply(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+    }
+
+    /**
+     * Apply the changes contained in a message received from another instance.
+     */
+    void apply(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return;
+        }
+        // ignore our own multicast messages and messages for other applications
+        if (in.readLong() == this.senderId || !this.appName.equals(in.readUTF())) {
+            return;
+        }
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            if (type == DATA) {
+                DbMapping dbmap = getDbMapping(in.readUTF());
+                if (dbmap != null) {
+                    dbmap.setLastDataChange();
+                }
+                continue;
+            }
+
+            KeyInterface key = readKey(in);
+            if (key == null) {
+                continue;
+            }
+            if (type == EVICT) {
+                evict(key);
+            } else if (type == SUBNODES) {
+                markSubnodesChanged(key);
+            }
+        }
+    }
+
+    /**
+     * Evict a node changed by another instance from the node cache.
+     */
+    void evict(KeyInterface key) {
+        this.nmgr.evictNodeByKey(key);
+    }
+
+    /**
+     * Mark the subnodes of a cached node as changed by another instance.
+     */
+    void markSubnodesChanged(KeyInterface key) {
+        Node node = this.nmgr.getCachedNode(key);
+        if (node != null) {
+            node.markSubnodesChanged();
+        }
+    }
+
+    /**
+     * Get the DbMapping for a type name received from another instance.
+     */
+    DbMapping getDbMapping(String typeName) {
+        return this.nmgr.getDbMapping(typeName);
+    }
+
+    private KeyInterface readKey(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == DB_KEY) {
+            String storage = in.readBoolean() ? in.readUTF() : null;
+            String id = in.readUTF();
+            DbMapping dbmap = null;
+            if (storage != null) {
+                dbmap = getDbMapping(storage);
+                if (dbmap == null) {
+                    return null;
+                }
+            }
+            return new DbKey(dbmap, id);
+        } else if (type == SYNTHETIC_KEY) {
+            KeyInterface parentKey = readKey(in);
+            String name = in.readUTF();
+            return parentKey == null ? null : new SyntheticKey(parentKey, name);
+        }
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // utilities
+
+    private Thread startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, "cluster-" + name + "-" + this.appName); //$NON-NLS-1$ //$NON-NLS-2$
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    static InetSocketAddress parseAddress(String address) throws IOException {
+        String str = address.trim();
+        int colon = str.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IOException(Messages.getString("ClusterInvalidator.6") + address); //$NON-NLS-1$
+        }
+        try {
+            return new InetSocketAddress(str.substring(0, colon),
+                    Integer.parseInt(str.substring(colon + 1)));
+        } catch (NumberFormatException nfe) {
+            throw new IOException(Messages.getString("ClusterInvalidator.6") + address); //$NON-NLS-1$
+        }
+    }
+
+    static void close(Object socket) {
+        try {
+            if (socket instanceof Socket) {
+                ((Socket) socket).close();
+            } else if (socket instanceof ServerSocket) {
+                ((ServerSocket) socket).close();
+            }
+        } catch (IOException ignore) {
+            // ignore
+        }
+    }
+
+    /**
+     * A TCP connection to another instance, which is opened on demand and
+     * reopened after it failed.
+     */
+    class Peer {
+        final InetSocketAddress address;
+        Socket socket;
+        DataOutputStream out;
+        boolean failed = false;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void send(byte[] message) {
+            try {
+                if (this.socket == null) {
+                    this.socket = new Socket();
+                    this.socket.connect(this.address, CONNECT_TIMEOUT);
+                    this.socket.setTcpNoDelay(true);
+                    this.out = new DataOutputStream(
+                            new BufferedOutputStream(this.socket.getOutputStream()));
+                }
+                this.out.writeInt(message.length);
+                this.out.write(message);
+                this.out.flush();
+                this.failed = false;
+            } catch (IOException iox) {
+                // only log the first failure until the peer is reachable again
+                if (!this.failed) {
+                    ClusterInvalidator.this.nmgr.app.logError(
+                            Messages.getString("ClusterInvalidator.7") + this.address, iox); //$NON-NLS-1$
+                    this.failed = true;
+                }
+                disconnect();
+            }
+        }
+
+        void disconnect() {
+            if (this.socket != null) {
+                close(this.socket);
+                this.socket = null;
+                this.out = null;
+            }
+        }
+    }
+}
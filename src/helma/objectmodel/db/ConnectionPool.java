@@ -0,0 +1,451 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A pool of JDBC connections for one DbSource. Connections are borrowed by
+ * transactors at their first SQL statement and returned at commit or abort.
+ * A background task evicts connections that have been idle for too long,
+ * validates idle connections, keeps the pool filled to its minimum size and
+ * reports connections that have been borrowed for suspiciously long.
+ */
+final class ConnectionPool {
+
+    // interval of the maintenance task in millis
+    static final long MAINTENANCE_INTERVAL = 10000L;
+
+    // timer shared by all pools to run their maintenance tasks
+    private static Timer timer;
+
+    private static final Log log = LogFactory.getLog("helma.db"); //$NON-NLS-1$
+
+    private final DbSource source;
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWait;
+    private final long idleTimeout;
+    private final long validationInterval;
+    private final long leakTimeout;
+
+    // idle connections, most recently used first
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+    // borrowed connections
+    private final IdentityHashMap<Connection, PooledConnection> borrowed =
+            new IdentityHashMap<Connection, PooledConnection>();
+
+    // number of connections being created or validated outside the pool lock
+    private int pending = 0;
+
+    private boolean closed = false;
+    private TimerTask maintenance;
+
+    // statistics counters, guarded by this
+    private long borrows, waits, timeouts, created, destroyed, leaks;
+
+    /**
+     * Create a connection pool.
+     *
+     * @param source the db source to create connections for
+     * @param url the JDBC URL to connect to
+     * @param minSize the number of connections to keep open
+     * @param maxSize the maximum number of open connections
+     * @param maxWait millis to wait for a connection when the pool is exhausted
+     * @param idleTimeout millis after which idle connections are closed, 0 to disable
+     * @param validationInterval millis after which idle connections are validated, 0 to disable
+     * @param leakTimeout millis after which borrowed connections are reported, 0 to disable
+     */
+    ConnectionPool(DbSource source, String url, int minSize, int maxSize, long maxWait,
+                   long idleTimeout, long validationInterval, long leakTimeout) {
+        this.source = source;
+        this.url = url;
+        this.minSize = minSize;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxWait = maxWait;
+        this.idleTimeout = idleTimeout;
+        this.validationInterval = validationInterval;
+        this.leakTimeout = leakTimeout;
+
+        if (minSize > 0 || idleTimeout > 0 || validationInterval > 0 || leakTimeout > 0) {
+            this.maintenance = new TimerTask() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            };
+            getTimer().schedule(this.maintenance, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
+        }
+    }
+
+    /**
+     * Borrow a connection from the pool, waiting up to maxWait millis if all
+     * connections are in use. The connection must be handed back via release().
+     *
+     * @return a connection
+     * @throws SQLException if no connection could be obtained
+     */
+    Connection borrow() throws SQLException {
+        PooledConnection pc = null;
+        boolean validate = false;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            long deadline = now + this.maxWait;
+            boolean waited = false;
+            while (pc == null) {
+                if (this.closed) {
+                    throw new SQLException(Messages.getString("ConnectionPool.0") + //$NON-NLS-1$
+                            this.source.getName());
+                }
+                pc = this.idle.poll();
+                if (pc == null) {
+                    if (size() < this.maxSize) {
+                        // reserve a slot and create the connection outside the lock
+                        this.pending++;
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        this.timeouts++;
+                        throw new SQLException(Messages.getString("ConnectionPool.1") + //$NON-NLS-1$
+                                this.source.getName());
+                    }
+                    if (!waited) {
+                        this.waits++;
+                        waited = true;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ir) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException(Messages.getString("ConnectionPool.2") + //$NON-NLS-1$
+                                this.source.getName());
+                    }
+                }
+            }
+            if (pc != null && this.validationInterval > 0 &&
+                    now - pc.lastValidated > this.validationInterval) {
+                // keep the slot reserved while validating outside the lock
+                validate = true;
+                this.pending++;
+            }
+        }
+
+        if (pc == null) {
+            pc = create();
+        } else if (validate) {
+            boolean valid = validate(pc);
+            synchronized (this) {
+                this.pending--;
+            }
+            if (!valid) {
+                destroy(pc);
+                return borrow();
+            }
+        }
+
+        synchronized (this) {
+            pc.borrowed = System.currentTimeMillis();
+            pc.leakReported = false;
+            if (this.leakTimeout > 0) {
+                pc.borrower = new Throwable(Thread.currentThread().getName());
+            }
+            this.borrowed.put(pc.connection, pc);
+            this.borrows++;
+        }
+        return pc.connection;
+    }
+
+    /**
+     * Hand back a connection obtained from borrow(). Closed connections and
+     * connections returned after the pool has been closed are discarded.
+     *
+     * @param con the connection
+     * @param discard true if the connection must not be reused
+     * @return true if the connection was borrowed from this pool
+     */
+    boolean release(Connection con, boolean discard) {
+        PooledConnection pc;
+        synchronized (this) {
+            pc = this.borrowed.remove(con);
+            if (pc == null) {
+                return false;
+            }
+            pc.borrower = null;
+        }
+
+        boolean usable = !discard;
+        try {
+            usable = usable && !con.isClosed();
+        } catch (SQLException x) {
+            usable = false;
+        }
+
+        synchronized (this) {
+            if (usable && !this.closed) {
+                pc.lastUsed = System.currentTimeMillis();
+                this.idle.addFirst(pc);
+                notify();
+                return true;
+            }
+            // a slot has been freed
+            notify();
+        }
+        destroy(pc);
+        return true;
+    }
+
+    /**
+     * Get the prepared statement cache of a borrowed connection.
+     *
+     * @param con the connection
+     * @return the statement cache, or null if the connection isn't from this
+     *         pool or statement caching is disabled
+     */
+    synchronized StatementCache getStatementCache(Connection con) {
+        PooledConnection pc = this.borrowed.get(con);
+        if (pc == null) {
+            return null;
+        }
+        int cacheSize = this.source.getStatementCacheSize();
+        if (pc.statements == null && cacheSize > 0) {
+            pc.statements = new StatementCache(this.source, con, cacheSize);
+        }
+        return pc.statements;
+    }
+
+    /**
+     * Close all idle connections and stop the maintenance task. Connections
+     * that are still borrowed are closed when they are released.
+     */
+    void close() {
+        List<PooledConnection> list;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.maintenance != null) {
+                this.maintenance.cancel();
+            }
+            list = new ArrayList<PooledConnection>(this.idle);
+            this.idle.clear();
+            notifyAll();
+        }
+        for (PooledConnection pc : list) {
+            destroy(pc);
+        }
+    }
+
+    /**
+     * Get the statistics of this pool.
+     *
+     * @return a map of statistics
+     */
+    synchronized Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("active", new Integer(this.borrowed.size())); //$NON-NLS-1$
+        stats.put("idle", new Integer(this.idle.size())); //$NON-NLS-1$
+        stats.put("minSize", new Integer(this.minSize)); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.maxSize)); //$NON-NLS-1$
+        stats.put("borrows", new Long(this.borrows)); //$NON-NLS-1$
+        stats.put("waits", new Long(this.waits)); //$NON-NLS-1$
+        stats.put("timeouts", new Long(this.timeouts)); //$NON-NLS-1$
+        stats.put("created", new Long(this.created)); //$NON-NLS-1$
+        stats.put("destroyed", new Long(this.destroyed)); //$NON-NLS-1$
+        stats.put("leaks", new Long(this.leaks)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Evict expired idle connections, validate idle connections, report
+     * leaked connections and fill the pool up to its minimum size.
+     */
+    void maintain() {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        List<PooledConnection> check = new ArrayList<PooledConnection>();
+        int missing;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            // walk from the least recently used connection
+            for (Iterator<PooledConnection> it = this.idle.descendingIterator(); it.hasNext(); ) {
+                PooledConnection pc = it.next();
+                if (this.idleTimeout > 0 && now - pc.lastUsed > this.idleTimeout &&
+                        size() > this.minSize) {
+                    it.remove();
+                    expired.add(pc);
+                } else if (this.validationInterval > 0 &&
+                        now - pc.lastValidated > this.validationInterval) {
+                    it.remove();
+                    check.add(pc);
+                    this.pending++;
+                }
+            }
+            if (this.leakTimeout > 0) {
+                for (PooledConnection pc : this.borrowed.values()) {
+                    if (!pc.leakReported && now - pc.borrowed > this.leakTimeout) {
+                        pc.leakReported = true;
+                        this.leaks++;
+                        log.warn(Messages.getString("ConnectionPool.3") + //$NON-NLS-1$
+                                this.source.getName(), pc.borrower);
+                    }
+                }
+            }
+            missing = Math.max(0, this.minSize - size());
+            this.pending += missing;
+        }
+
+        for (PooledConnection pc : expired) {
+            destroy(pc);
+        }
+
+        for (PooledConnection pc : check) {
+            boolean valid = validate(pc);
+            synchronized (this) {
+                this.pending--;
+                if (valid && !this.closed) {
+                    this.idle.addLast(pc);
+                    notify();
+                    continue;
+                }
+                notify();
+            }
+            destroy(pc);
+        }
+
+        for (int i = 0; i < missing; i++) {
+            PooledConnection pc;
+            try {
+                pc = create();
+            } catch (SQLException x) {
+                log.error(Messages.getString("ConnectionPool.4") + this.source.getName(), x); //$NON-NLS-1$
+                synchronized (this) {
+                    this.pending -= missing - i - 1;
+                }
+                break;
+            }
+            synchronized (this) {
+                if (!this.closed) {
+                    pc.lastUsed = System.currentTimeMillis();
+                    this.idle.addLast(pc);
+                    notify();
+                    continue;
+                }
+            }
+            destroy(pc);
+        }
+    }
+
+    /**
+     * Create a new connection for a slot previously reserved by incrementing
+     * the pending counter.
+     */
+    private PooledConnection create() throws SQLException {
+        try {
+            Connection con = this.source.createConnection(this.url);
+            synchronized (this) {
+                this.created++;
+            }
+            return new PooledConnection(con);
+        } catch (ClassNotFoundException x) {
+            throw new SQLException(x.toString());
+        } finally {
+            synchronized (this) {
+                this.pending--;
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Check if a connection is still alive by executing a simple statement.
+     */
+    private boolean validate(PooledConnection pc) {
+        try {
+            Statement stmt = pc.connection.createStatement();
+            stmt.execute(this.source.isOracle() ?
+                    "SELECT 1 FROM DUAL" : "SELECT 1"); //$NON-NLS-1$ //$NON-NLS-2$
+            stmt.close();
+            pc.lastValidated = System.currentTimeMillis();
+            return true;
+        } catch (SQLException sx) {
+            return false;
+        }
+    }
+
+    /**
+     * Close a connection that has been removed from the pool.
+     */
+    private void destroy(PooledConnection pc) {
+        if (pc.statements != null) {
+            pc.statements.close();
+        }
+        try {
+            pc.connection.close();
+        } catch (SQLException ignore) {
+            // nothing to do
+        }
+        synchronized (this) {
+            this.destroyed++;
+        }
+    }
+
+    /**
+     * The number of open connections including those being created or validated.
+     */
+    private int size() {
+        return this.idle.size() + this.borrowed.size() + this.pending;
+    }
+
+    private static synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("helma-connection-pool", true); //$NON-NLS-1$
+        }
+        return timer;
+    }
+
+    /**
+     * A pooled connection together with its bookkeeping data.
+     */
+    static final class PooledConnection {
+        final Connection connection;
+        StatementCache statements;
+        long lastUsed;
+        long lastValidated;
+        long borrowed;
+        Throwable borrower;
+        boolean leakReported;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = this.lastValidated = System.currentTimeMillis();
+        }
+    }
+}
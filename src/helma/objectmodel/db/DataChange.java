@@ -0,0 +1,52 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The handles of the nodes of a DbMapping inserted, modified and deleted by a
+ * transaction. DbMapping keeps the most recent changes so cached subnode lists
+ * can be brought up to date without reloading them from the database. Only
+ * handles are kept so the changes don't keep evicted nodes in memory.
+ */
+final class DataChange {
+
+    // changes with more nodes than this are not recorded
+    static final int MAX_NODES = 500;
+
+    final List inserted = new ArrayList();
+    final List modified = new ArrayList();
+    final List deleted = new ArrayList();
+
+    // the data change number of the DbMapping, set when recorded
+    long serial;
+
+    /**
+     * Get the number of nodes in this change.
+     */
+    int size() {
+        return this.inserted.size() + this.modified.size() + this.deleted.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DataChange[" + this.serial + ": +" + this.inserted.size() + //$NON-NLS-1$ //$NON-NLS-2$
+               ", ~" + this.modified.size() + ", -" + this.deleted.size() + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+}
@@ -30,6 +30,7 @@ public final class DbColumn {
     private final boolean isId;
     private final boolean isPrototype;
     private final boolean isName;
+    private final String lazyGroup;
 
     /**
      * Constructor
@@ -46,6 +47,8 @@ public final class DbColumn {
         this.isId = name.equalsIgnoreCase(dbmap.getIDField());
         this.isPrototype = name.equalsIgnoreCase(dbmap.getPrototypeField());
         this.isName = name.equalsIgnoreCase(dbmap.getNameField());
+        this.lazyGroup = this.isId || this.isPrototype || this.isName || this.relation == null ?
+                         null : this.relation.getLazyGroup();
     }
 
     /**
@@ -90,6 +93,22 @@ public final class DbColumn {
         return this.isName;
     }
 
+    /**
+     * Returns true if this column is not selected with the row but loaded
+     * when the property is accessed.
+     */
+    public boolean isLazy() {
+        return this.lazyGroup != null;
+    }
+
+    /**
+     * Get the group of lazy columns that are loaded together, or null
+     * if this column is selected with the row.
+     */
+    public String getLazyGroup() {
+        return this.lazyGroup;
+    }
+
     /**
      * Returns true if this field is mapped by the prototype's db mapping.
      */
@@ -20,8 +20,11 @@ import helma.framework.core.Application;
 import helma.framework.core.Prototype;
 import helma.util.ResourceProperties;
 
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A DbMapping describes how a certain type of  Nodes is to mapped to a
@@ -72,6 +75,17 @@ public final class DbMapping {
     // list of columns to fetch from db
     private DbColumn[] columns = null;
 
+    // columns selected with the row, without lazily loaded columns
+    private DbColumn[] selectColumns = null;
+
+    // slot indexes of mapped properties by name and property names by slot,
+    // laid out by column order. See createPropertyMap().
+    private HashMap propertySlots = null;
+    private String[] slotNames = null;
+
+    // number of times each lazy column group has been loaded
+    private final ConcurrentHashMap lazyLoads = new ConcurrentHashMap();
+
     // Map of db columns by name
     private HashMap columnMap;
 
@@ -117,6 +131,20 @@ public final class DbMapping {
     // timestamp of last modification of an object of this type
     long lastDataChange = 0;
 
+    // the most recent data changes, used to update cached subnode lists in place
+    private final LinkedList dataChanges = new LinkedList();
+    private static final int MAX_DATA_CHANGES = 100;
+
+    // recent writes replicas may not reflect yet, as pairs of the time until
+    // which this is assumed and the data change number before the write
+    private final LinkedList replicaWrites = new LinkedList();
+    private static final int MAX_REPLICA_WRITES = 32;
+
+    // the maximum number of values in an IN list (Oracle's limit), and the
+    // maximum number of placeholders, which is the largest power of two below it
+    private static final int MAX_IN_VALUES = 1000;
+    private static final int MAX_IN_PARAMETERS = 512;
+
     // Set of mappings that depend on us and should be forwarded last data change events
     HashSet dependentMappings = new HashSet();
 
@@ -299,6 +327,9 @@ public final class DbMapping {
 
         // null the cached columns and select string
         this.columns = null;
+        this.selectColumns = null;
+        this.propertySlots = null;
+        this.slotNames = null;
         this.columnMap.clear();
         this.selectString = this.insertString = this.updateString = null;
 
@@ -490,6 +521,44 @@ public final class DbMapping {
         return this.dbSource.getConnection();
     }
 
+    /**
+     * Get a JDBC connection for read-only queries of this DbMapping. If the
+     * db source has read replicas, this returns a replica connection unless
+     * the current transaction is dirty or the current session has recently
+     * written to the table, in which case reads go to the primary database.
+     */
+    public Connection getReadConnection() throws ClassNotFoundException, SQLException {
+        if (readsFromReplica()) {
+            return getDbSource().getReadConnection();
+        }
+        return getConnection();
+    }
+
+    /**
+     * Get a JDBC connection for loading nodes of this DbMapping. Loaded nodes
+     * are cached without a data change number, so they are only read from a
+     * replica if it can be assumed to reflect all writes to the table.
+     */
+    public Connection getNodeReadConnection() throws ClassNotFoundException, SQLException {
+        if (readsFromReplica() && getReplicaDataChange() == getLastDataChange()) {
+            return getDbSource().getReadConnection();
+        }
+        return getConnection();
+    }
+
+    /**
+     * Check if getReadConnection() returns a replica connection.
+     */
+    private boolean readsFromReplica() {
+        DbSource src = getDbSource();
+        String table = getTableName();
+        if (src == null || table == null || !src.hasReplicas()) {
+            return false;
+        }
+        Transactor tx = Transactor.getInstance();
+        return tx != null && !tx.isDirty() && !src.isPinnedToPrimary(tx.getSessionId(), table);
+    }
+
     /**
      * Get the DbSource object for this DbMapping. The DbSource describes a JDBC
      * data source including URL, JDBC driver, username and password.
@@ -956,6 +1025,9 @@ public final class DbMapping {
             // ok, we have the meta data, now loop through mapping...
             int ncols = meta.getColumnCount();
             ArrayList list = new ArrayList(ncols);
+            ArrayList selectList = new ArrayList(ncols);
+            HashMap slots = new HashMap();
+            ArrayList names = new ArrayList(ncols);
 
             for (int i = 0; i < ncols; i++) {
                 String colName = meta.getColumnName(i + 1);
@@ -963,13 +1035,106 @@ public final class DbMapping {
 
                 DbColumn col = new DbColumn(colName, meta.getColumnType(i + 1), rel, this);
                 list.add(col);
+                if (!col.isLazy()) {
+                    selectList.add(col);
+                }
+                if (rel != null && rel.isPrimitiveOrReference() && !slots.containsKey(rel.propName)) {
+                    slots.put(rel.propName, new Integer(names.size()));
+                    names.add(rel.propName);
+                }
             }
+            this.selectColumns = (DbColumn[]) selectList.toArray(new DbColumn[selectList.size()]);
+            this.slotNames = (String[]) names.toArray(new String[names.size()]);
+            this.propertySlots = slots;
             this.columns = (DbColumn[]) list.toArray(new DbColumn[list.size()]);
         }
 
         return this.columns;
     }
 
+    /**
+     * Return the columns that are selected when objects of this DbMapping are
+     * loaded. These are all columns except those that are loaded lazily.
+     */
+    public synchronized DbColumn[] getSelectColumns()
+                                       throws ClassNotFoundException, SQLException {
+        getColumns();
+        return this.selectColumns;
+    }
+
+    /**
+     * Create a map to hold the properties of a node of this DbMapping. For relational
+     * mappings whose columns are known this is a compact map with a slot for each
+     * mapped property, otherwise a Hashtable.
+     */
+    public synchronized Map createPropertyMap() {
+        if (this.propertySlots == null) {
+            return new Hashtable();
+        }
+        return new PropertyMap(this.propertySlots, this.slotNames);
+    }
+
+    /**
+     * Return the columns of a lazy group that are loaded together.
+     */
+    public DbColumn[] getLazyColumns(String group)
+                                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getColumns();
+        ArrayList list = new ArrayList();
+        for (int i = 0; i < cols.length; i++) {
+            if (group.equals(cols[i].getLazyGroup())) {
+                list.add(cols[i]);
+            }
+        }
+        return (DbColumn[]) list.toArray(new DbColumn[list.size()]);
+    }
+
+    /**
+     * Count a load of a lazy column group.
+     */
+    void countLazyLoad(String group) {
+        AtomicLong count = (AtomicLong) this.lazyLoads.get(group);
+        if (count == null) {
+            this.lazyLoads.putIfAbsent(group, new AtomicLong());
+            count = (AtomicLong) this.lazyLoads.get(group);
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Get the number of times each lazy column group of this DbMapping has
+     * been loaded.
+     *
+     * @return a map of group names to load counts
+     */
+    public Map getLazyLoadStatistics() {
+        HashMap stats = new HashMap();
+        for (Iterator it = this.lazyLoads.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            stats.put(entry.getKey(), new Long(((AtomicLong) entry.getValue()).get()));
+        }
+        return stats;
+    }
+
+    /**
+     * Append the columns selected for objects of this DbMapping to a query,
+     * qualified with the given table name or alias.
+     */
+    private void appendSelectColumns(StringBuffer s, String alias)
+                                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getSelectColumns();
+        if (cols.length == getColumns().length) {
+            s.append(alias).append(".*"); //$NON-NLS-1$
+            return;
+        }
+        for (int i = 0; i < cols.length; i++) {
+            if (i > 0) {
+                s.append(", "); //$NON-NLS-1$
+            }
+            s.append(alias).append('.').append(cols[i].getName());
+        }
+    }
+
     /**
      *  Return the array of relations that are fetched with objects of this type.
      */
@@ -1014,7 +1179,8 @@ public final class DbMapping {
      *            Is null if selecting by primary key.
      * @return the StringBuffer containing the first part of the select query
      */
-    public StringBuffer getSelect(Relation rel) {
+    public StringBuffer getSelect(Relation rel)
+                                       throws ClassNotFoundException, SQLException {
         // assign to local variable first so we are thread safe
         // (selectString may be reset by other threads)
         String sel = this.selectString;
@@ -1032,18 +1198,16 @@ public final class DbMapping {
 
         String table = getTableName();
 
-        // all columns from the main table
-        s.append(table);
-        s.append(".*"); //$NON-NLS-1$
+        // all columns from the main table except lazily loaded large objects
+        appendSelectColumns(s, table);
 
         for (int i = 0; i < this.joins.length; i++) {
             if (!this.joins[i].otherType.isRelational()) {
                 continue;
             }
             s.append(", "); //$NON-NLS-1$
-            s.append(Relation.JOIN_PREFIX);
-            s.append(this.joins[i].propName);
-            s.append(".*"); //$NON-NLS-1$
+            this.joins[i].otherType.appendSelectColumns(s,
+                    Relation.JOIN_PREFIX + this.joins[i].propName);
         }
 
         s.append(" FROM "); //$NON-NLS-1$
@@ -1292,11 +1456,21 @@ public final class DbMapping {
      * to mappings that depend on us through an additionalTables switch.
      */
     public void setLastDataChange() {
+        setLastDataChange(null);
+    }
+
+    /**
+     * Set the last time something changed in the data, recording the nodes that
+     * were inserted, modified and deleted so cached subnode lists can apply them.
+     *
+     * @param change the changed nodes, or null if they are unknown
+     */
+    void setLastDataChange(DataChange change) {
         // forward data change timestamp to storage-compatible parent mapping
         if (inheritsStorage()) {
-            this.parentMapping.setLastDataChange();
+            this.parentMapping.setLastDataChange(change);
         } else {
-            this.lastDataChange += 1;
+            recordDataChange(change);
             // propagate data change timestamp to mappings that depend on us
             if (!this.dependentMappings.isEmpty()) {
                 Iterator it = this.dependentMappings.iterator();
@@ -1318,7 +1492,99 @@ public final class DbMapping {
         if (inheritsStorage()) {
             this.parentMapping.setIndirectDataChange();
         } else {
+            recordDataChange(null);
+        }
+    }
+
+    /**
+     * Get the data change number that the results of a query sent to
+     * getReadConnection() are known to reflect. This is lower than the
+     * current number if they are read from a replica which may not have
+     * caught up with the most recent writes yet.
+     *
+     * @return the data change number
+     */
+    public long getReadDataChange() {
+        return readsFromReplica() ? getReplicaDataChange() : getLastDataChange();
+    }
+
+    /**
+     * Get the data change number before the oldest write replicas may not
+     * reflect yet, or the current number if there is none.
+     */
+    private long getReplicaDataChange() {
+        if (inheritsStorage()) {
+            return this.parentMapping.getReplicaDataChange();
+        }
+        synchronized (this.dataChanges) {
+            long now = System.currentTimeMillis();
+            while (!this.replicaWrites.isEmpty() &&
+                    ((long[]) this.replicaWrites.getFirst())[0] < now) {
+                this.replicaWrites.removeFirst();
+            }
+            return this.replicaWrites.isEmpty() ?
+                    this.lastDataChange : ((long[]) this.replicaWrites.getFirst())[1];
+        }
+    }
+
+    /**
+     * Increase the data change number, keeping the change if it is known.
+     * A change that isn't kept forces subnode lists to be reloaded.
+     */
+    private void recordDataChange(DataChange change) {
+        DbSource src = getDbSource();
+        long pinTime = (src == null || getTableName() == null) ? 0 : src.getReplicaPinTime();
+        synchronized (this.dataChanges) {
+            if (pinTime > 0) {
+                // replicas are assumed to reflect the write after pinTime
+                this.replicaWrites.add(new long[] {
+                        System.currentTimeMillis() + pinTime, this.lastDataChange
+                });
+                if (this.replicaWrites.size() > MAX_REPLICA_WRITES) {
+                    // merge the two oldest writes, keeping the earlier number
+                    long[] oldest = (long[]) this.replicaWrites.removeFirst();
+                    ((long[]) this.replicaWrites.getFirst())[1] = oldest[1];
+                }
+            }
             this.lastDataChange += 1;
+            if (change != null && change.size() <= DataChange.MAX_NODES) {
+                change.serial = this.lastDataChange;
+                this.dataChanges.add(change);
+                if (this.dataChanges.size() > MAX_DATA_CHANGES) {
+                    this.dataChanges.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the data changes after the given data change number up to and including
+     * another one.
+     *
+     * @param since the data change number a subnode list was last updated at
+     * @param until the current data change number
+     * @return the list of changes, or null if some of them weren't recorded
+     */
+    List getDataChanges(long since, long until) {
+        if (inheritsStorage()) {
+            return this.parentMapping.getDataChanges(since, until);
+        }
+        synchronized (this.dataChanges) {
+            ArrayList list = new ArrayList();
+            long expected = since + 1;
+            for (Iterator it = this.dataChanges.iterator(); it.hasNext(); ) {
+                DataChange change = (DataChange) it.next();
+                if (change.serial < expected) {
+                    continue;
+                } else if (change.serial > until) {
+                    break;
+                } else if (change.serial != expected) {
+                    return null;
+                }
+                list.add(change);
+                expected += 1;
+            }
+            return expected > until ? list : null;
         }
     }
 
@@ -1516,29 +1782,72 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String[] values)
             throws SQLException, ClassNotFoundException {
+        appendCondition(q, column, values, null);
+    }
+
+    /**
+     * Append a sql-condition for the given column which must have
+     * one of the values contained inside the given Set to the given
+     * StringBuffer. If a parameter list is passed, the values are added
+     * to it and rendered as ? placeholders. The number of placeholders is
+     * rounded up to the next power of two by repeating the last value, so
+     * lists of similar length share the same statement. Long lists are split
+     * into several IN lists joined by OR to stay within database limits.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param values the list of values
+     * @param params the list to add parameter values to, or null to render literals
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String[] values, List params)
+            throws SQLException, ClassNotFoundException {
         if (values.length == 1) {
-            appendCondition(q, column, values[0]);
+            appendCondition(q, column, values[0], params);
             return;
         }
+        String name = column;
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
-            q.append(getTableName()).append("."); //$NON-NLS-1$
+            name = getTableName() + "." + column; //$NON-NLS-1$
+        }
+        int chunk = (params != null) ? MAX_IN_PARAMETERS : MAX_IN_VALUES;
+        if (values.length > chunk) {
+            q.append("("); //$NON-NLS-1$
+        }
+
+        for (int start = 0; start < values.length; start += chunk) {
+            int end = Math.min(start + chunk, values.length);
+            if (start > 0)
+                q.append(" or "); //$NON-NLS-1$
+            q.append(name).append(" in ("); //$NON-NLS-1$
+
+            if (params != null) {
+                int length = end - start;
+                int count = (length == 1) ? 1 : Integer.highestOneBit(length - 1) << 1;
+                for (int i = 0; i < count; i++) {
+                    if (i > 0)
+                        q.append(", "); //$NON-NLS-1$
+                    q.append('?');
+                    params.add(getParameter(column, values[start + Math.min(i, length - 1)]));
+                }
+            } else if (needsQuotes(column)) {
+                for (int i = start; i < end; i++) {
+                    if (i > start)
+                        q.append(", "); //$NON-NLS-1$
+                    q.append("'").append(escapeString(values[i])).append("'");  //$NON-NLS-1$//$NON-NLS-2$
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    if (i > start)
+                        q.append(", "); //$NON-NLS-1$
+                    q.append(checkNumber(values[i]));
+                }
+            }
+            q.append(")"); //$NON-NLS-1$
         }
-        q.append(column).append(" in ("); //$NON-NLS-1$
 
-        if (needsQuotes(column)) {
-            for (int i = 0; i < values.length; i++) {
-                if (i > 0)
-                    q.append(", "); //$NON-NLS-1$
-                q.append("'").append(escapeString(values[i])).append("'");  //$NON-NLS-1$//$NON-NLS-2$
-            }
-        } else {
-            for (int i = 0; i < values.length; i++) {
-                if (i > 0)
-                    q.append(", "); //$NON-NLS-1$
-                q.append(checkNumber(values[i]));
-            }
+        if (values.length > chunk) {
+            q.append(")"); //$NON-NLS-1$
         }
-        q.append(")"); //$NON-NLS-1$
     }
 
     /**
@@ -1551,18 +1860,99 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String val)
             throws SQLException, ClassNotFoundException {
+        appendCondition(q, column, val, null);
+    }
+
+    /**
+     * Append a sql-condition for the given column which must have
+     * the value given to the given StringBuffer. If a parameter list is
+     * passed and the value is not null, the value is added to it and
+     * rendered as a ? placeholder.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param val the value
+     * @param params the list to add the parameter value to, or null to render a literal
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String val, List params)
+            throws SQLException, ClassNotFoundException {
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
             q.append(getTableName()).append("."); //$NON-NLS-1$
         }
         q.append(column).append(" = "); //$NON-NLS-1$
         
-        if (needsQuotes(column)) {
+        if (params != null && val != null) {
+            q.append('?');
+            params.add(getParameter(column, val));
+        } else if (needsQuotes(column)) {
             q.append("'").append(escapeString(val)).append("'"); //$NON-NLS-1$ //$NON-NLS-2$
         } else {
             q.append(checkNumber(val));
         }
     }
 
+    /**
+     * Convert a value to a statement parameter for the given column. Values for
+     * date and time columns are passed as java.sql date and time objects if they
+     * can be parsed, values for other columns that need quotes as strings, and
+     * all others as numbers.
+     * @param column the column name
+     * @param val the value
+     * @return the parameter value
+     * @throws IllegalArgumentException if the value is not a number for a numeric column
+     */
+    private Object getParameter(String column, String val)
+            throws SQLException, ClassNotFoundException {
+        if (needsQuotes(column)) {
+            return getTemporalParameter(column, val);
+        }
+        String number = checkNumber(val);
+        if (number.indexOf('.') == -1) {
+            try {
+                return Long.valueOf(number.startsWith("+") ? number.substring(1) : number); //$NON-NLS-1$
+            } catch (NumberFormatException nfe) {
+                // too large for a long
+            }
+        }
+        return new BigDecimal(number);
+    }
+
+    /**
+     * Convert a value for a date or time column to the matching java.sql type.
+     * Drivers such as PostgreSQL's refuse to compare these columns with strings.
+     * @param column the column name
+     * @param val the value
+     * @return the converted value, or the value itself if it is not for a date
+     *         or time column or can't be parsed
+     */
+    private Object getTemporalParameter(String column, String val)
+            throws SQLException, ClassNotFoundException {
+        if ((this.tableName == null) && (this.parentMapping != null)) {
+            return this.parentMapping.getTemporalParameter(column, val);
+        }
+        DbColumn col = getColumn(column);
+        if (col == null) {
+            return val;
+        }
+        try {
+            switch (col.getType()) {
+            case Types.DATE:
+                return java.sql.Date.valueOf(val.trim());
+            case Types.TIME:
+                return Time.valueOf(val.trim());
+            case Types.TIMESTAMP:
+                String str = val.trim();
+                // dates are also accepted for timestamp columns
+                return Timestamp.valueOf(str.indexOf(' ') == -1 ? str + " 00:00:00" : str); //$NON-NLS-1$
+            default:
+                return val;
+            }
+        } catch (IllegalArgumentException iax) {
+            // not in JDBC escape format, leave it to the driver
+            return val;
+        }
+    }
+
     /**
      * a utility method to escape single quotes used for inserting
      * string-values into relational databases.
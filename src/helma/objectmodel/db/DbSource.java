@@ -17,14 +17,21 @@
 package helma.objectmodel.db;
 
 import helma.util.ResourceProperties;
+import helma.util.StringUtils;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *  This class describes a releational data source (URL, driver, user and password).
@@ -42,7 +49,28 @@ public class DbSource {
     // compute hashcode statically because it's expensive and we need it often
     private int hashcode;
     // thread local connection holder for non-transactor threads
-    private ThreadLocal connection;
+    private ThreadLocal connection = new ThreadLocal();
+    // pool of connections for transactor threads
+    private volatile ConnectionPool pool;
+    // pools of connections to read replicas, or null
+    private volatile ConnectionPool[] replicaPools;
+    // time until which a replica is considered down, by replica index
+    private volatile long[] replicaDownUntil;
+    // round robin counter for replica selection
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // millis to wait before retrying a replica that failed
+    private long replicaRetryInterval;
+    // millis a session reads a table from the primary after writing to it
+    private long replicaPinTime;
+    // sessions pinned to the primary, keyed by session id and table name
+    private final ConcurrentHashMap pins = new ConcurrentHashMap();
+    // millis after which idle connections are validated
+    private long validationInterval;
+    // maximum number of prepared statements cached per connection
+    private int statementCacheSize = 32;
+    // prepared statement cache counters
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
 
     /**
      * Creates a new DbSource object.
@@ -66,63 +94,241 @@ public class DbSource {
      * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
      * @throws SQLException if the connection couldn't be created
      */
-    public synchronized Connection getConnection()
+    public Connection getConnection()
             throws ClassNotFoundException, SQLException {
-        Connection con;
+        checkProperties();
+
         Transactor tx = Transactor.getInstance();
-        if (tx != null) {
-            con = tx.getConnection(this);
-        } else {
-            con = getThreadLocalConnection();
+        if (tx == null) {
+            return getThreadLocalConnection();
         }
 
-        boolean fileUpdated = this.props.lastModified() > this.lastRead ||
-                (defaultProps != null && defaultProps.lastModified() > this.lastRead);
+        // transactors borrow a connection from the pool at their first
+        // statement and hand it back at commit or abort.
+        Connection con = tx.getConnection(this);
+        if (con == null || con.isClosed()) {
+            con = this.pool.borrow();
+            tx.registerConnection(this, con);
+        }
 
-        if (con == null || con.isClosed() || fileUpdated) {
-            init();
-            con = DriverManager.getConnection(this.url, this.conProps);
+        return con;
+    }
+
+    /**
+     * Get a JDBC connection for read-only queries. If read replicas are
+     * configured, the connection is borrowed from one of the replicas that are
+     * up, chosen round robin. Otherwise or if all replicas are down, this
+     * returns the connection to the primary database.
+     *
+     * @return a JDBC connection
+     *
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     * @throws SQLException if the connection couldn't be created
+     */
+    public Connection getReadConnection()
+            throws ClassNotFoundException, SQLException {
+        checkProperties();
+
+        ConnectionPool[] replicas = this.replicaPools;
+        Transactor tx = Transactor.getInstance();
+        if (replicas == null || tx == null) {
+            return getConnection();
+        }
 
-            if ("false".equalsIgnoreCase(this.subProps.getProperty("autoCommit"))) {  //$NON-NLS-1$//$NON-NLS-2$
-            	con.setAutoCommit(false);
+        Connection con = tx.getReadConnection(this);
+        if (con != null && !con.isClosed()) {
+            return con;
+        }
+
+        long[] downUntil = this.replicaDownUntil;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < replicas.length; i++) {
+            int r = (this.nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+            if (downUntil[r] > now) {
+                continue;
             }
-            
-            // System.err.println ("Created new Connection to "+url);
-            
-            if (tx != null) {
-                tx.registerConnection(this, con);
-            } else {
-                this.connection.set(con);
+            try {
+                con = replicas[r].borrow();
+                tx.registerReadConnection(this, con);
+                return con;
+            } catch (SQLException x) {
+                // health check failed, skip the replica for a while
+                downUntil[r] = now + this.replicaRetryInterval;
             }
         }
 
+        return getConnection();
+    }
+
+    /**
+     * Check if read replicas are configured for this db source.
+     *
+     * @return true if reads can be routed to replicas
+     */
+    public boolean hasReplicas() {
+        return this.replicaPools != null;
+    }
+
+    /**
+     * Get the time replicas are assumed to need to catch up with a write.
+     *
+     * @return the time in milliseconds, or 0 if there are no replicas
+     */
+    public long getReplicaPinTime() {
+        return this.replicaPools == null ? 0 : this.replicaPinTime;
+    }
+
+    /**
+     * Pin a session to the primary database for reads from a table, so it
+     * sees its own writes while the replicas catch up.
+     *
+     * @param sessionId the session id
+     * @param table the table name
+     */
+    public void pinToPrimary(String sessionId, String table) {
+        if (this.replicaPools == null || sessionId == null || this.replicaPinTime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (this.pins.size() > 1000) {
+            // purge expired pins
+            for (Iterator it = this.pins.values().iterator(); it.hasNext(); ) {
+                if (((Long) it.next()).longValue() < now) {
+                    it.remove();
+                }
+            }
+        }
+        this.pins.put(sessionId + '\n' + table.toUpperCase(), new Long(now + this.replicaPinTime));
+    }
+
+    /**
+     * Check if a session is pinned to the primary database for reads from a table.
+     *
+     * @param sessionId the session id
+     * @param table the table name
+     * @return true if reads must go to the primary database
+     */
+    public boolean isPinnedToPrimary(String sessionId, String table) {
+        if (sessionId == null || this.pins.isEmpty()) {
+            return false;
+        }
+        Long until = (Long) this.pins.get(sessionId + '\n' + table.toUpperCase());
+        return until != null && until.longValue() >= System.currentTimeMillis();
+    }
+
+    /**
+     * Hand back a connection registered with a transactor to its pool.
+     * Connections that don't belong to a current pool, e.g. because the
+     * db properties have changed, are closed.
+     *
+     * @param con the connection
+     * @param discard true if the connection must not be reused
+     */
+    public void releaseConnection(Connection con, boolean discard) {
+        if (this.pool.release(con, discard)) {
+            return;
+        }
+        ConnectionPool[] replicas = this.replicaPools;
+        for (int i = 0; replicas != null && i < replicas.length; i++) {
+            if (replicas[i].release(con, discard)) {
+                return;
+            }
+        }
+        try {
+            con.close();
+        } catch (SQLException ignore) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Get the prepared statement cache of a connection borrowed from a pool.
+     *
+     * @param con the connection
+     * @return the statement cache, or null
+     */
+    StatementCache getStatementCache(Connection con) {
+        StatementCache cache = this.pool.getStatementCache(con);
+        ConnectionPool[] replicas = this.replicaPools;
+        for (int i = 0; cache == null && replicas != null && i < replicas.length; i++) {
+            cache = replicas[i].getStatementCache(con);
+        }
+        return cache;
+    }
+
+    /**
+     * Create a new JDBC connection to the db source.
+     *
+     * @return a new connection
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     * @throws SQLException if the connection couldn't be created
+     */
+    Connection createConnection() throws ClassNotFoundException, SQLException {
+        return createConnection(this.url);
+    }
+
+    /**
+     * Create a new JDBC connection to the given URL of the db source,
+     * which is either the primary URL or the URL of a replica.
+     *
+     * @param url the JDBC URL
+     * @return a new connection
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     * @throws SQLException if the connection couldn't be created
+     */
+    Connection createConnection(String url) throws ClassNotFoundException, SQLException {
+        Connection con = DriverManager.getConnection(url, this.conProps);
+
+        if ("false".equalsIgnoreCase(this.subProps.getProperty("autoCommit"))) {  //$NON-NLS-1$//$NON-NLS-2$
+            con.setAutoCommit(false);
+        }
+
         return con;
     }
 
     /**
-     * Used for connections not managed by a Helma transactor
-     * @return a thread local tested connection, or null
+     * Re-initialize the db source if the db properties have been modified.
      */
-    private Connection getThreadLocalConnection() {
-        if (this.connection == null) {
-            this.connection = new ThreadLocal();
-            return null;
+    private synchronized void checkProperties() throws ClassNotFoundException {
+        if (this.props.lastModified() > this.lastRead ||
+                (defaultProps != null && defaultProps.lastModified() > this.lastRead)) {
+            init();
         }
-        Connection con = (Connection) this.connection.get();
-        if (con != null) {
-            // test if connection is still ok
-            try {
-                Statement stmt = con.createStatement();
-                stmt.execute("SELECT 1"); //$NON-NLS-1$
-                stmt.close();
-            } catch (SQLException sx) {
+    }
+
+    /**
+     * Used for connections not managed by a Helma transactor. The connection
+     * is tested if it hasn't been validated within the pool's validation
+     * interval, and replaced if it is broken or the db properties have changed.
+     * @return a thread local tested connection
+     */
+    private Connection getThreadLocalConnection()
+            throws ClassNotFoundException, SQLException {
+        LocalConnection local = (LocalConnection) this.connection.get();
+        long now = System.currentTimeMillis();
+        if (local != null) {
+            boolean valid = local.stamp == this.lastRead && !local.con.isClosed();
+            if (valid && now - local.tested > this.validationInterval) {
+                // test if connection is still ok
                 try {
-                    con.close();
-                } catch (SQLException ignore) {/* nothing to do */}
-                return null;
+                    Statement stmt = local.con.createStatement();
+                    stmt.execute(this.isOracle ? "SELECT 1 FROM DUAL" : "SELECT 1"); //$NON-NLS-1$ //$NON-NLS-2$
+                    stmt.close();
+                    local.tested = now;
+                } catch (SQLException sx) {
+                    valid = false;
+                }
             }
+            if (valid) {
+                return local.con;
+            }
+            try {
+                local.con.close();
+            } catch (SQLException ignore) {/* nothing to do */}
         }
-        return con;
+        local = new LocalConnection(createConnection(), this.lastRead, now);
+        this.connection.set(local);
+        return local.con;
     }
 
     /**
@@ -168,6 +374,8 @@ public class DbSource {
                   this.driver.startsWith("org.gjt.mm.mysql"); //$NON-NLS-1$
         this.isPostgreSQL = this.driver.equals("org.postgresql.Driver"); //$NON-NLS-1$
         this.isH2 = this.driver.equals("org.h2.Driver"); //$NON-NLS-1$
+        // get the number of prepared statements to cache per connection
+        this.statementCacheSize = getIntProperty("statementCacheSize", 32); //$NON-NLS-1$
         // test if driver class is available
         Class.forName(this.driver);
 
@@ -191,11 +399,87 @@ public class DbSource {
                 "driver".equalsIgnoreCase(key) || //$NON-NLS-1$
                 "user".equalsIgnoreCase(key) || //$NON-NLS-1$
                 "password".equalsIgnoreCase(key) || //$NON-NLS-1$
-                "autoCommit".equalsIgnoreCase(key)) { //$NON-NLS-1$
+                "autoCommit".equalsIgnoreCase(key) || //$NON-NLS-1$
+                "statementCacheSize".equalsIgnoreCase(key) || //$NON-NLS-1$
+                key.startsWith("pool") || //$NON-NLS-1$
+                key.startsWith("replica")) { //$NON-NLS-1$
                 continue;
             }
             this.conProps.setProperty(key, this.subProps.getProperty(key));
         }
+
+        // get the connection pool settings, times are given in seconds
+        this.validationInterval = 1000L * getIntProperty("poolValidationInterval", 60); //$NON-NLS-1$
+        ConnectionPool oldPool = this.pool;
+        ConnectionPool[] oldReplicas = this.replicaPools;
+        this.pool = createPool(this.url);
+
+        // set up pools for the read replicas
+        String replicas = this.subProps.getProperty("replicas"); //$NON-NLS-1$
+        String[] urls = replicas == null ? new String[0] : StringUtils.split(replicas, ", "); //$NON-NLS-1$
+        this.replicaRetryInterval = 1000L * getIntProperty("replicaRetryInterval", 30); //$NON-NLS-1$
+        this.replicaPinTime = 1000L * getIntProperty("replicaPinTime", 10); //$NON-NLS-1$
+        if (urls.length > 0) {
+            ConnectionPool[] pools = new ConnectionPool[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                pools[i] = createPool(urls[i]);
+            }
+            this.replicaDownUntil = new long[urls.length];
+            this.replicaPools = pools;
+        } else {
+            this.replicaPools = null;
+        }
+
+        // borrowed connections of old pools are closed when they are released
+        if (oldPool != null) {
+            oldPool.close();
+        }
+        for (int i = 0; oldReplicas != null && i < oldReplicas.length; i++) {
+            oldReplicas[i].close();
+        }
+    }
+
+    /**
+     * Create a connection pool for the given URL using the pool settings.
+     */
+    private ConnectionPool createPool(String url) {
+        return new ConnectionPool(this, url,
+                getIntProperty("poolMinSize", 0), //$NON-NLS-1$
+                getIntProperty("poolMaxSize", 20), //$NON-NLS-1$
+                1000L * getIntProperty("poolMaxWait", 10), //$NON-NLS-1$
+                1000L * getIntProperty("poolIdleTimeout", 600), //$NON-NLS-1$
+                this.validationInterval,
+                1000L * getIntProperty("poolLeakTimeout", 0)); //$NON-NLS-1$
+    }
+
+    /**
+     * Get an integer property of this db source.
+     *
+     * @param key the property name
+     * @param defaultValue the value to use if the property isn't set
+     * @return the property value
+     * @throws IllegalArgumentException if the property isn't a number
+     */
+    private int getIntProperty(String key, int defaultValue) {
+        String value = this.subProps.getProperty(key);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(this.name + "." + key + //$NON-NLS-1$
+                    Messages.getString("DbSource.2") + value); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Close the connection pool of this db source. This is called when the
+     * application is stopped.
+     */
+    public synchronized void shutdown() {
+        this.pool.close();
+        ConnectionPool[] replicas = this.replicaPools;
+        for (int i = 0; replicas != null && i < replicas.length; i++) {
+            replicas[i].close();
+        }
     }
 
     /**
@@ -261,6 +545,70 @@ public class DbSource {
         return this.isH2;
     }
 
+    /**
+     * Get the maximum number of prepared statements to cache per connection,
+     * as set with the statementCacheSize property. 0 disables the cache.
+     *
+     * @return the statement cache size
+     */
+    public int getStatementCacheSize() {
+        return this.statementCacheSize;
+    }
+
+    /**
+     * Count a lookup in a prepared statement cache of this db source.
+     *
+     * @param hit true if a cached statement was found
+     */
+    protected void countStatementLookup(boolean hit) {
+        if (hit) {
+            this.statementHits.incrementAndGet();
+        } else {
+            this.statementMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the prepared statement cache statistics of this db source,
+     * containing the number of hits and misses and the hit ratio.
+     *
+     * @return a map of statistics
+     */
+    public Map getStatementCacheStatistics() {
+        long hits = this.statementHits.get();
+        long misses = this.statementMisses.get();
+        HashMap stats = new HashMap();
+        stats.put("hits", new Long(hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(misses)); //$NON-NLS-1$
+        stats.put("hitRatio", new Double(hits + misses == 0 ? 0d : //$NON-NLS-1$
+                (double) hits / (hits + misses)));
+        stats.put("size", new Integer(this.statementCacheSize)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Get the connection pool statistics of this db source, containing the
+     * number of active and idle connections, the pool limits and the number
+     * of borrows, waits, timeouts, created and destroyed connections and
+     * reported leaks.
+     *
+     * @return a map of statistics
+     */
+    public Map getConnectionPoolStatistics() {
+        Map stats = this.pool.getStatistics();
+        ConnectionPool[] replicas = this.replicaPools;
+        if (replicas != null) {
+            long now = System.currentTimeMillis();
+            Map[] replicaStats = new Map[replicas.length];
+            for (int i = 0; i < replicas.length; i++) {
+                replicaStats[i] = replicas[i].getStatistics();
+                replicaStats[i].put("up", Boolean.valueOf(this.replicaDownUntil[i] <= now)); //$NON-NLS-1$
+            }
+            stats.put("replicas", replicaStats); //$NON-NLS-1$
+        }
+        return stats;
+    }
+
     /**
      * Register a dbmapping by its table name.
      *
@@ -297,4 +645,19 @@ public class DbSource {
     public boolean equals(Object obj) {
         return obj instanceof DbSource && this.subProps.equals(((DbSource) obj).subProps);
     }
+
+    /**
+     * A connection used by a non-transactor thread.
+     */
+    static class LocalConnection {
+        final Connection con;
+        final long stamp;
+        long tested;
+
+        LocalConnection(Connection con, long stamp, long tested) {
+            this.con = con;
+            this.stamp = stamp;
+            this.tested = tested;
+        }
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.PropertyInterface;
+
+import java.io.OutputStream;
+
+/**
+ * A handle to the value of a column that is not selected with its row. These
+ * are BLOB, CLOB, LONGVARBINARY and LONGVARCHAR columns and columns assigned
+ * to a lazy group in type.properties. The value is fetched from the database
+ * together with the other columns of its group when the property is first
+ * accessed. Large objects can also be streamed to an output stream without
+ * being loaded into memory.
+ */
+public final class LazyLob {
+
+    private final WrappedNodeManager nmgr;
+    private final DbMapping dbmap;
+    private final String id;
+    private final String column;
+    private final String group;
+    private final int type;
+
+    /**
+     * Create a handle to a lazily loaded column.
+     *
+     * @param nmgr the node manager used to fetch the value
+     * @param dbmap the db mapping of the table
+     * @param id the primary key of the row
+     * @param column the column name
+     * @param group the lazy group of the column
+     * @param type the property type of the value
+     */
+    LazyLob(WrappedNodeManager nmgr, DbMapping dbmap, String id, String column,
+            String group, int type) {
+        this.nmgr = nmgr;
+        this.dbmap = dbmap;
+        this.id = id;
+        this.column = column;
+        this.group = group;
+        this.type = type;
+    }
+
+    /**
+     * Get the db mapping of the table.
+     */
+    public DbMapping getDbMapping() {
+        return this.dbmap;
+    }
+
+    /**
+     * Get the primary key of the row.
+     */
+    public String getID() {
+        return this.id;
+    }
+
+    /**
+     * Get the column name.
+     */
+    public String getColumn() {
+        return this.column;
+    }
+
+    /**
+     * Get the lazy group of the column.
+     */
+    public String getGroup() {
+        return this.group;
+    }
+
+    /**
+     * Get the property type of the value as defined in PropertyInterface.
+     */
+    public int getType() {
+        return this.type;
+    }
+
+    /**
+     * Returns true if the value is a byte array.
+     */
+    public boolean isBinary() {
+        return this.type == PropertyInterface.JAVAOBJECT;
+    }
+
+    /**
+     * Fetch the value from the database, along with the values of the other
+     * columns in its group which are set on the node.
+     *
+     * @param node the node holding the property
+     * @return the value
+     */
+    public Object load(Node node) {
+        return this.nmgr.loadLob(this, node);
+    }
+
+    /**
+     * Check if a value fetched by load() is small enough to be kept in the
+     * node cache.
+     *
+     * @param value the value
+     * @return true if the value may be kept
+     */
+    public boolean isCacheable(Object value) {
+        return this.nmgr.isLobCacheable(value);
+    }
+
+    /**
+     * Stream the value from the database to an output stream. Character values
+     * are encoded using the given charset.
+     *
+     * @param out the output stream
+     * @param charset the charset, or null for UTF-8
+     */
+    public void writeTo(OutputStream out, String charset) {
+        this.nmgr.streamLob(this, out, charset == null ? "UTF-8" : charset); //$NON-NLS-1$
+    }
+
+    @Override
+    public String toString() {
+        return "LazyLob[" + this.dbmap.getTableName() + "." + this.column + //$NON-NLS-1$ //$NON-NLS-2$
+               "#" + this.id + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
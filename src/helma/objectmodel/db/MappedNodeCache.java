@@ -0,0 +1,655 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.NodeInterface;
+import helma.objectmodel.PropertyInterface;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A second level cache for relational nodes that keeps the state of clean nodes
+ * in a memory mapped file outside of the Java heap. Nodes that drop out of the
+ * node cache can be rehydrated from this cache without going to the database,
+ * and the cache survives application restarts.
+ *
+ * The cache is enabled by setting the l2cache app property to a file name, which
+ * is resolved relative to the application's db directory. The size of the file is
+ * set with l2cacheSize, e.g. 256MB, the default is 64MB.
+ *
+ * Only nodes whose properties are all primitive values or references by primary
+ * key are cached. Committed inserts and updates are written through to the cache,
+ * deletions remove the entry. An entry is only used if the mapping's columns and
+ * data change counter are the same as when it was written. Data change counters
+ * start over when the application is restarted, entries from the previous run are
+ * therefore used until the mapping's data is changed for the first time, and only
+ * if the application was shut down cleanly. The cache must not be used if other
+ * applications write to the same tables.
+ */
+public final class MappedNodeCache {
+
+    static final int MAGIC = 0x484c3243;
+    static final int VERSION = 2;
+    static final int RECORD_MAGIC = 0x4e4f4445;
+
+    // property type of lazy columns that are fetched on first access
+    static final int LAZY_LOB = 0;
+
+    // header: magic, version, open flag, run, slot count, write position
+    static final int HEADER_SIZE = 64;
+    static final int OPEN_OFFSET = 8;
+    static final int RUN_OFFSET = 12;
+    static final int SLOTS_OFFSET = 16;
+    static final int WRITEPOS_OFFSET = 20;
+
+    // index slot: key hash, record offset, record length
+    static final int SLOT_SIZE = 16;
+    static final int MAX_PROBES = 8;
+
+    // record header: magic, payload length, payload checksum
+    static final int RECORD_HEADER_SIZE = 12;
+
+    // expected average record size, used to size the index
+    static final int AVERAGE_RECORD_SIZE = 512;
+
+    static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    NodeManager nmgr;
+    File file;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int slots;
+    private int dataStart;
+    private int run;
+
+    // statistics
+    private long hits, misses, stores, rejects;
+
+    /**
+     * Open or create the second level cache file.
+     *
+     * @param nmgr the node manager
+     * @param file the cache file
+     * @param size the l2cacheSize setting, or null
+     * @throws IOException if the file can't be opened
+     */
+    public MappedNodeCache(NodeManager nmgr, File file, String size) throws IOException {
+        this.nmgr = nmgr;
+        this.file = file;
+
+        long length = DEFAULT_SIZE;
+        if (size != null) {
+            try {
+                length = WeightedNodeCache.parseMemorySize(size);
+            } catch (NumberFormatException nfe) {
+                nmgr.app.logError(Messages.getString("MappedNodeCache.0") + size); //$NON-NLS-1$
+            }
+        }
+        // the index and record offsets are ints
+        length = Math.max(1024L * 1024, Math.min(length, Integer.MAX_VALUE));
+
+        int slotCount = Integer.highestOneBit((int) (length / AVERAGE_RECORD_SIZE));
+
+        this.raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        boolean valid = this.raf.length() == length;
+        this.raf.setLength(length);
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        if (valid && (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION ||
+                this.buffer.getInt(SLOTS_OFFSET) != slotCount)) {
+            valid = false;
+        } else if (valid && this.buffer.getInt(OPEN_OFFSET) != 0) {
+            // entries may be stale if we weren't shut down cleanly
+            nmgr.app.logEvent(Messages.getString("MappedNodeCache.1") + file); //$NON-NLS-1$
+            valid = false;
+        }
+
+        this.slots = slotCount;
+        this.dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+
+        if (valid) {
+            this.run = this.buffer.getInt(RUN_OFFSET) + 1;
+        } else {
+            this.run = 1;
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, VERSION);
+            this.buffer.putInt(SLOTS_OFFSET, slotCount);
+            clearIndex();
+        }
+
+        this.buffer.putInt(RUN_OFFSET, this.run);
+        this.buffer.putInt(OPEN_OFFSET, 1);
+        this.buffer.force();
+    }
+
+    /**
+     * Get a node from the cache.
+     *
+     * @param key the node's key
+     * @return a clean node, or null if the node isn't cached or the entry is stale
+     */
+    public Node get(DbKey key) {
+        String keyString = getKeyString(key);
+        long hash = hash(keyString);
+        byte[] payload;
+
+        synchronized (this) {
+            if (this.buffer == null) {
+                return null;
+            }
+            payload = readRecord(hash);
+            if (payload == null) {
+                this.misses += 1;
+                return null;
+            }
+        }
+
+        Node node = null;
+        try {
+            node = readNode(keyString, key, payload);
+        } catch (Exception x) {
+            this.nmgr.app.logError(Messages.getString("MappedNodeCache.2") + key, x); //$NON-NLS-1$
+        }
+
+        synchronized (this) {
+            if (node == null) {
+                this.rejects += 1;
+                removeSlot(hash);
+            } else {
+                this.hits += 1;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Store a node in the cache. Nodes that aren't clean or have properties that
+     * can't be stored are removed from the cache instead.
+     *
+     * @param key the node's key
+     * @param node the node
+     * @param dataChange the data change counter of the node's storage mapping
+     *                   at the time the node was read or written
+     */
+    public void put(DbKey key, Node node, long dataChange) {
+        String keyString = getKeyString(key);
+        long hash = hash(keyString);
+        byte[] payload = null;
+
+        if (node.getState() == NodeInterface.CLEAN) {
+            try {
+                payload = writeNode(keyString, node, dataChange);
+            } catch (Exception x) {
+                this.nmgr.app.logError(Messages.getString("MappedNodeCache.3") + key, x); //$NON-NLS-1$
+            }
+        }
+
+        synchronized (this) {
+            if (this.buffer == null) {
+                return;
+            }
+            if (payload == null || !writeRecord(hash, payload)) {
+                removeSlot(hash);
+            } else {
+                this.stores += 1;
+            }
+        }
+    }
+
+    /**
+     * Store a node in the cache, using the current data change counter of the
+     * node's storage mapping.
+     *
+     * @param node the node
+     */
+    public void put(Node node) {
+        KeyInterface key = node.getKey();
+        if (key instanceof DbKey) {
+            put((DbKey) key, node, getLastDataChange((DbKey) key));
+        }
+    }
+
+    /**
+     * Remove a node from the cache.
+     *
+     * @param key the node's key
+     */
+    public synchronized void remove(DbKey key) {
+        if (this.buffer != null) {
+            removeSlot(hash(getKeyString(key)));
+        }
+    }
+
+    /**
+     * Get the current data change counter of a key's storage mapping.
+     *
+     * @param key the key
+     * @return the data change counter
+     */
+    public long getLastDataChange(DbKey key) {
+        DbMapping dbmap = this.nmgr.getDbMapping(key.getStorageName());
+        return dbmap == null ? 0 : dbmap.getLastDataChange();
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void clear() {
+        if (this.buffer != null) {
+            clearIndex();
+        }
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     *
+     * @return a map containing the cache statistics
+     */
+    public synchronized Map getStatistics() {
+        int size = 0;
+        if (this.buffer != null) {
+            for (int i = 0; i < this.slots; i++) {
+                if (this.buffer.getLong(HEADER_SIZE + i * SLOT_SIZE) != 0) {
+                    size += 1;
+                }
+            }
+        }
+        HashMap stats = new HashMap();
+        stats.put("file", this.file.getPath()); //$NON-NLS-1$
+        stats.put("size", new Integer(size)); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.slots)); //$NON-NLS-1$
+        stats.put("bytes", new Long(this.buffer == null ? 0 : this.buffer.capacity())); //$NON-NLS-1$
+        stats.put("hits", new Long(this.hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(this.misses)); //$NON-NLS-1$
+        stats.put("stores", new Long(this.stores)); //$NON-NLS-1$
+        stats.put("rejects", new Long(this.rejects)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Flush the cache to disk and mark it as cleanly closed.
+     */
+    public synchronized void shutdown() {
+        if (this.buffer == null) {
+            return;
+        }
+        try {
+            this.buffer.putInt(OPEN_OFFSET, 0);
+            this.buffer.force();
+            this.raf.close();
+        } catch (IOException iox) {
+            this.nmgr.app.logError(Messages.getString("MappedNodeCache.4") + this.file, iox); //$NON-NLS-1$
+        }
+        this.buffer = null;
+        this.raf = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // index and record access, callers must hold the lock
+
+    private void clearIndex() {
+        for (int i = 0; i < this.slots; i++) {
+            this.buffer.putLong(HEADER_SIZE + i * SLOT_SIZE, 0L);
+        }
+        this.buffer.putInt(WRITEPOS_OFFSET, this.dataStart);
+    }
+
+    private int findSlot(long hash) {
+        int home = (int) (hash ^ (hash >>> 32)) & (this.slots - 1);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (home + i) & (this.slots - 1);
+            if (this.buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE) == hash) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void removeSlot(long hash) {
+        int slot = findSlot(hash);
+        if (slot > -1) {
+            this.buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, 0L);
+        }
+    }
+
+    private byte[] readRecord(long hash) {
+        int slot = findSlot(hash);
+        if (slot == -1) {
+            return null;
+        }
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        int offset = this.buffer.getInt(pos + 8);
+        int length = this.buffer.getInt(pos + 12);
+
+        // the record may have been overwritten after the write position wrapped
+        if (offset < this.dataStart || length < RECORD_HEADER_SIZE ||
+                offset + length > this.buffer.capacity() ||
+                this.buffer.getInt(offset) != RECORD_MAGIC ||
+                this.buffer.getInt(offset + 4) != length - RECORD_HEADER_SIZE) {
+            this.buffer.putLong(pos, 0L);
+            return null;
+        }
+
+        byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != this.buffer.getInt(offset + 8)) {
+            this.buffer.putLong(pos, 0L);
+            return null;
+        }
+        return payload;
+    }
+
+    private boolean writeRecord(long hash, byte[] payload) {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        int capacity = this.buffer.capacity();
+        // don't let a single record flush a large part of the cache
+        if (length > (capacity - this.dataStart) / 8) {
+            return false;
+        }
+
+        int offset = this.buffer.getInt(WRITEPOS_OFFSET);
+        if (offset < this.dataStart || offset + length > capacity) {
+            offset = this.dataStart;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        this.buffer.putInt(offset, RECORD_MAGIC);
+        this.buffer.putInt(offset + 4, payload.length);
+        this.buffer.putInt(offset + 8, (int) crc.getValue());
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(payload);
+        this.buffer.putInt(WRITEPOS_OFFSET, offset + length);
+
+        // reuse the key's slot, or take a free one, or replace the home slot
+        int slot = findSlot(hash);
+        if (slot == -1) {
+            int home = (int) (hash ^ (hash >>> 32)) & (this.slots - 1);
+            slot = home;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int s = (home + i) & (this.slots - 1);
+                if (this.buffer.getLong(HEADER_SIZE + s * SLOT_SIZE) == 0) {
+                    slot = s;
+                    break;
+                }
+            }
+        }
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        this.buffer.putLong(pos, hash);
+        this.buffer.putInt(pos + 8, offset);
+        this.buffer.putInt(pos + 12, length);
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // node serialization
+
+    private byte[] writeNode(String keyString, Node node, long dataChange) throws Exception {
+        DbMapping dbmap = node.getDbMapping();
+        if (dbmap == null || !dbmap.isRelational()) {
+            return null;
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(AVERAGE_RECORD_SIZE);
+        DataOutputStream out = new DataOutputStream(bout);
+
+        writeString(out, keyString);
+        out.writeInt(getFingerprint(dbmap));
+        out.writeInt(this.run);
+        out.writeLong(dataChange);
+        writeString(out, node.getPrototype());
+        writeString(out, node.getName());
+
+        NodeHandle parent = node.parentHandle;
+        if (parent != null && parent.getKey() instanceof DbKey) {
+            out.writeBoolean(true);
+            writeKey(out, (DbKey) parent.getKey());
+        } else {
+            out.writeBoolean(false);
+        }
+
+        Map propMap = node.getPropMap();
+        Property[] props = propMap == null ? new Property[0] :
+                (Property[]) propMap.values().toArray(new Property[propMap.size()]);
+        out.writeInt(props.length);
+
+        for (int i = 0; i < props.length; i++) {
+            Property prop = props[i];
+            LazyLob lob = prop.getLob();
+            if (lob != null) {
+                // lazy columns that haven't been fetched are stored as handle
+                writeString(out, prop.getName());
+                out.writeByte(LAZY_LOB);
+                out.writeByte(lob.getType());
+                writeString(out, lob.getColumn());
+                writeString(out, lob.getGroup());
+                continue;
+            }
+            Object value = prop.getValue();
+            int type = prop.getType();
+
+            writeString(out, prop.getName());
+            out.writeByte(type);
+            out.writeBoolean(value != null);
+            if (value == null) {
+                continue;
+            }
+
+            switch (type) {
+                case PropertyInterface.STRING:
+                    writeString(out, (String) value);
+                    break;
+                case PropertyInterface.BOOLEAN:
+                    out.writeBoolean(((Boolean) value).booleanValue());
+                    break;
+                case PropertyInterface.DATE:
+                    out.writeLong(((Date) value).getTime());
+                    break;
+                case PropertyInterface.INTEGER:
+                    out.writeLong(((Long) value).longValue());
+                    break;
+                case PropertyInterface.FLOAT:
+                    out.writeDouble(((Double) value).doubleValue());
+                    break;
+                case PropertyInterface.NODE:
+                    KeyInterface key = ((NodeHandle) value).getKey();
+                    if (!(key instanceof DbKey)) {
+                        return null;
+                    }
+                    writeKey(out, (DbKey) key);
+                    break;
+                default:
+                    // java objects and binary values are not cached
+                    return null;
+            }
+        }
+
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    private Node readNode(String keyString, DbKey key, byte[] payload) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        // guard against hash collisions
+        if (!keyString.equals(readString(in))) {
+            return null;
+        }
+
+        int fingerprint = in.readInt();
+        int entryRun = in.readInt();
+        long dataChange = in.readLong();
+        String prototype = readString(in);
+        String name = readString(in);
+
+        DbMapping dbmap = this.nmgr.getDbMapping(prototype);
+        if (dbmap == null || !dbmap.isRelational() || getFingerprint(dbmap) != fingerprint) {
+            return null;
+        }
+
+        // counters start over on restart, so entries from the previous run are
+        // only used until data of their mapping is changed in this run
+        long currentDataChange = getLastDataChange(key);
+        if (entryRun == this.run ? dataChange != currentDataChange : currentDataChange != 0) {
+            return null;
+        }
+
+        NodeHandle parent = null;
+        if (in.readBoolean()) {
+            DbKey parentKey = readKey(in);
+            if (parentKey != null) {
+                parent = new NodeHandle(parentKey);
+            }
+        }
+
+        Node node = new Node(this.nmgr.safe);
+        Map propMap = dbmap.createPropertyMap();
+        int count = in.readInt();
+
+        for (int i = 0; i < count; i++) {
+            String propName = readString(in);
+            int type = in.readByte();
+            Property prop = new Property(propName, node);
+
+            if (type == LAZY_LOB) {
+                int lobType = in.readByte();
+                String column = readString(in);
+                String group = readString(in);
+                prop.setLobValue(new LazyLob(this.nmgr.safe, dbmap, key.getID(), column, group, lobType));
+            } else if (!in.readBoolean()) {
+                prop.setValue(null, type);
+            } else {
+                switch (type) {
+                    case PropertyInterface.STRING:
+                        prop.setStringValue(readString(in));
+                        break;
+                    case PropertyInterface.BOOLEAN:
+                        prop.setBooleanValue(in.readBoolean());
+                        break;
+                    case PropertyInterface.DATE:
+                        prop.setDateValue(new Date(in.readLong()));
+                        break;
+                    case PropertyInterface.INTEGER:
+                        prop.setIntegerValue(in.readLong());
+                        break;
+                    case PropertyInterface.FLOAT:
+                        prop.setFloatValue(in.readDouble());
+                        break;
+                    case PropertyInterface.NODE:
+                        DbKey refKey = readKey(in);
+                        if (refKey == null) {
+                            return null;
+                        }
+                        prop.setNodeHandle(new NodeHandle(refKey));
+                        break;
+                    default:
+                        return null;
+                }
+            }
+
+            prop.dirty = false;
+            propMap.put(propName, prop);
+        }
+
+        node.init(dbmap, key.getID(), name, prototype, propMap);
+        if (parent != null) {
+            node.setParentHandle(parent);
+        }
+        return node;
+    }
+
+    private void writeKey(DataOutputStream out, DbKey key) throws IOException {
+        writeString(out, key.getStorageName());
+        writeString(out, key.getID());
+    }
+
+    private DbKey readKey(DataInputStream in) throws IOException {
+        String storageName = readString(in);
+        String id = readString(in);
+        DbMapping dbmap = this.nmgr.getDbMapping(storageName);
+        if (dbmap == null || id == null) {
+            return null;
+        }
+        return new DbKey(dbmap, id);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes("UTF-8"); //$NON-NLS-1$
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8"); //$NON-NLS-1$
+    }
+
+    /**
+     * Compute a checksum of a mapping's columns and the properties they are mapped
+     * to, so entries are not used after the mapping or the table has changed.
+     */
+    private static int getFingerprint(DbMapping dbmap) throws Exception {
+        int fingerprint = dbmap.getTableName() == null ? 0 : dbmap.getTableName().hashCode();
+        DbColumn[] columns = dbmap.getColumns();
+        for (int i = 0; i < columns.length; i++) {
+            Relation rel = columns[i].getRelation();
+            fingerprint = 31 * fingerprint + columns[i].getName().hashCode();
+            fingerprint = 31 * fingerprint + columns[i].getType();
+            if (rel != null && rel.isPrimitiveOrReference()) {
+                fingerprint = 31 * fingerprint + rel.propName.hashCode();
+            }
+        }
+        return fingerprint;
+    }
+
+    private static String getKeyString(DbKey key) {
+        return key.getStorageName() + '\n' + key.getID();
+    }
+
+    /**
+     * 64 bit FNV-1a hash, 0 is reserved for empty slots.
+     */
+    private static long hash(String str) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < str.length(); i++) {
+            hash ^= str.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
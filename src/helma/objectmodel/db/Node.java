@@ -43,7 +43,7 @@ public final class Node implements NodeInterface {
     private SubnodeList subnodes;
 
     // Named subnodes (properties) of this node
-    private Hashtable propMap;
+    private Map propMap;
 
     protected long created;
     protected long lastmodified;
@@ -171,7 +171,7 @@ public final class Node implements NodeInterface {
      * Initializer used for nodes being instanced from an embedded or relational database.
      */
     public synchronized void init(DbMapping dbm, String id, String name,
-                                  String prototype, Hashtable propMap) {
+                                  String prototype, Map propMap) {
         this.dbmap = dbm;
         this.prototype = prototype;
         this.id = id;
@@ -194,7 +194,7 @@ public final class Node implements NodeInterface {
     /**
      * used by Xml deserialization
      */
-    public synchronized void setPropMap(Hashtable propMap) {
+    public synchronized void setPropMap(Map propMap) {
         this.propMap = propMap;
     }
 
@@ -1297,8 +1297,8 @@ public final class Node implements NodeInterface {
 
         // tell all nodes that are properties of n that they are no longer used as such
         if (this.propMap != null) {
-            for (Enumeration en = this.propMap.elements(); en.hasMoreElements();) {
-                Property p = (Property) en.nextElement();
+            for (Iterator it = this.propMap.values().iterator(); it.hasNext();) {
+                Property p = (Property) it.next();
 
                 if ((p != null) && (p.getType() == PropertyInterface.NODE)) {
                     Node n = (Node) p.getNodeValue();
@@ -1431,6 +1431,11 @@ public final class Node implements NodeInterface {
                 }
                 this.subnodes.update();
             }
+
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) {
+                tx.visitCollection(this.subnodes);
+            }
         }
     }
 
@@ -1546,7 +1551,7 @@ public final class Node implements NodeInterface {
             return this.nmgr.getPropertyNames(this, prel).elements();
         } else if (this.propMap != null) {
             // return the actually explicitly stored properties
-            return this.propMap.keys();
+            return Collections.enumeration(new ArrayList(this.propMap.keySet()));
         }
 
         // sorry, no properties for this Node
@@ -1558,7 +1563,7 @@ public final class Node implements NodeInterface {
      *
      * @return ...
      */
-    public Hashtable getPropMap() {
+    public Map getPropMap() {
         return this.propMap;
     }
 
@@ -1791,7 +1796,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -1826,7 +1831,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -1937,7 +1942,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -1974,7 +1979,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -2011,7 +2016,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -2048,7 +2053,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -2085,7 +2090,7 @@ public final class Node implements NodeInterface {
         }
 
         if (this.propMap == null) {
-            this.propMap = new Hashtable();
+            this.propMap = createPropMap();
         }
 
         propname = propname.trim();
@@ -2217,7 +2222,7 @@ public final class Node implements NodeInterface {
                 !rel.otherType.isRelational()) {
             // the node must be stored as explicit property
             if (this.propMap == null) {
-                this.propMap = new Hashtable();
+                this.propMap = createPropMap();
             }
 
             this.propMap.put(propname, prop);
@@ -2252,6 +2257,16 @@ public final class Node implements NodeInterface {
         }
     }
 
+    /**
+     * Create the map holding the properties of this node.
+     */
+    private Map createPropMap() {
+        if (this.dbmap != null && this.dbmap.isRelational()) {
+            return this.dbmap.createPropertyMap();
+        }
+        return new Hashtable();
+    }
+
     private boolean isPersistableProperty(String propname) {
         return propname.length() > 0 && propname.charAt(0) != '_';
     }
@@ -0,0 +1,197 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.objectmodel.CacheEvictionListenerInterface;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Collects node cache statistics for each prototype. The statistics of each
+ * prototype are registered with the platform MBean server under the name
+ * helma:type=NodeCache,application=&lt;app&gt;,prototype=&lt;prototype&gt;
+ * when the prototype is first looked up. Statistics created while counting an
+ * eviction are registered later, since evictions are reported while the node
+ * cache is locked and the MBean server must not be called from there.
+ */
+public class NodeCacheStatistics implements CacheEvictionListenerInterface {
+
+    // the name used for objects in the embedded database
+    static final String EMBEDDED = "embedded"; //$NON-NLS-1$
+
+    Application app;
+
+    private final ConcurrentHashMap stats = new ConcurrentHashMap();
+
+    // statistics waiting to be registered with the MBean server
+    private final ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();
+
+    /**
+     * Create the node cache statistics for an application.
+     *
+     * @param app the application
+     */
+    public NodeCacheStatistics(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Get the statistics for a prototype, creating and registering them if necessary.
+     *
+     * @param prototype the prototype or storage type name
+     * @return the statistics for the prototype
+     */
+    public NodeCacheStats getStats(String prototype) {
+        NodeCacheStats stat = lookup(prototype);
+        registerPending();
+        return stat;
+    }
+
+    /**
+     * Get the statistics for a prototype, creating them if necessary. New
+     * statistics are queued for registration but not registered.
+     */
+    private NodeCacheStats lookup(String prototype) {
+        NodeCacheStats stat = (NodeCacheStats) this.stats.get(prototype);
+        if (stat == null) {
+            NodeCacheStats newStat = new NodeCacheStats(prototype);
+            stat = (NodeCacheStats) this.stats.putIfAbsent(prototype, newStat);
+            if (stat == null) {
+                stat = newStat;
+                this.pending.add(stat);
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * Register all statistics that were created but not registered yet.
+     * Must not be called while the node cache is locked.
+     */
+    void registerPending() {
+        NodeCacheStats stat;
+        while ((stat = (NodeCacheStats) this.pending.poll()) != null) {
+            register(stat);
+        }
+    }
+
+    /**
+     * Get the statistics for a cache key.
+     *
+     * @param key the cache key
+     * @param dbmap the mapping of the object to use if the key doesn't
+     *              specify a storage type, or null
+     * @return the statistics for the key's type
+     */
+    public NodeCacheStats getStats(KeyInterface key, DbMapping dbmap) {
+        return getStats(getName(key, dbmap));
+    }
+
+    private String getName(KeyInterface key, DbMapping dbmap) {
+        String name = key.getStorageName();
+        if (name == null) {
+            name = (dbmap == null) ? EMBEDDED : dbmap.getTypeName();
+        }
+        return name;
+    }
+
+    /**
+     * Count a node that was evicted from the node cache. This is called while
+     * the cache is locked, so new statistics are only queued for registration.
+     */
+    public void entryEvicted(Object key, Object value) {
+        if (key instanceof KeyInterface) {
+            DbMapping dbmap = null;
+            if (value instanceof Node && !((Node) value).isNullNode()) {
+                dbmap = ((Node) value).getDbMapping();
+            }
+            lookup(getName((KeyInterface) key, dbmap)).add(NodeCacheStats.EVICTIONS, 1);
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics of all prototypes.
+     *
+     * @return a map of prototype names to statistics maps
+     */
+    public Map getStatistics() {
+        registerPending();
+        HashMap result = new HashMap();
+        for (Iterator it = this.stats.values().iterator(); it.hasNext(); ) {
+            NodeCacheStats stat = (NodeCacheStats) it.next();
+            result.put(stat.getPrototype(), stat.getStatistics());
+        }
+        return result;
+    }
+
+    /**
+     * Reset the statistics of all prototypes.
+     */
+    public void reset() {
+        for (Iterator it = this.stats.values().iterator(); it.hasNext(); ) {
+            ((NodeCacheStats) it.next()).reset();
+        }
+    }
+
+    /**
+     * Unregister all statistics from the MBean server.
+     */
+    public void shutdown() {
+        for (Iterator it = this.stats.values().iterator(); it.hasNext(); ) {
+            NodeCacheStats stat = (NodeCacheStats) it.next();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = getObjectName(stat);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception x) {
+                this.app.logError(Messages.getString("NodeCacheStatistics.0") + stat.getPrototype(), x); //$NON-NLS-1$
+            }
+        }
+        this.stats.clear();
+        this.pending.clear();
+    }
+
+    private void register(NodeCacheStats stat) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName(stat);
+            if (server.isRegistered(name)) {
+                // left over from a previous instance of the application
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(stat, NodeCacheStatsMBean.class), name);
+        } catch (Exception x) {
+            this.app.logError(Messages.getString("NodeCacheStatistics.1") + stat.getPrototype(), x); //$NON-NLS-1$
+        }
+    }
+
+    private ObjectName getObjectName(NodeCacheStats stat) throws Exception {
+        return new ObjectName("helma:type=NodeCache,application=" + //$NON-NLS-1$
+                ObjectName.quote(this.app.getName()) + ",prototype=" + //$NON-NLS-1$
+                ObjectName.quote(stat.getPrototype()));
+    }
+}
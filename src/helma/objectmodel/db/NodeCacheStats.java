@@ -0,0 +1,156 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Node cache counters for one prototype. Counters are striped by thread, so
+ * threads recording lookups at the same time rarely update the same memory
+ * location. Each stripe occupies its own cache line.
+ */
+public class NodeCacheStats implements NodeCacheStatsMBean {
+
+    static final int HITS = 0;
+    static final int NULL_HITS = 1;
+    static final int MISSES = 2;
+    static final int LOADS = 3;
+    static final int LOAD_TIME = 4;
+    static final int REGISTRATIONS = 5;
+    static final int EVICTIONS = 6;
+
+    // number of counters per stripe, padded to 64 bytes
+    static final int STRIPE_SIZE = 8;
+
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int target = Math.min(16, Runtime.getRuntime().availableProcessors());
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final String prototype;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+    /**
+     * Create the statistics for a prototype.
+     *
+     * @param prototype the prototype or storage type name
+     */
+    public NodeCacheStats(String prototype) {
+        this.prototype = prototype;
+    }
+
+    /**
+     * Add to one of the counters.
+     *
+     * @param counter the counter
+     * @param delta the amount to add
+     */
+    void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        this.cells.addAndGet(stripe * STRIPE_SIZE + counter, delta);
+    }
+
+    /**
+     * Get the sum of one of the counters over all stripes.
+     *
+     * @param counter the counter
+     * @return the counter value
+     */
+    long sum(int counter) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += this.cells.get(i * STRIPE_SIZE + counter);
+        }
+        return sum;
+    }
+
+    public String getPrototype() {
+        return this.prototype;
+    }
+
+    public long getHits() {
+        return sum(HITS);
+    }
+
+    public long getNullHits() {
+        return sum(NULL_HITS);
+    }
+
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    public double getHitRatio() {
+        long hits = sum(HITS) + sum(NULL_HITS);
+        long lookups = hits + sum(MISSES);
+        return lookups == 0 ? 0d : (double) hits / lookups;
+    }
+
+    public long getLoads() {
+        return sum(LOADS);
+    }
+
+    public double getLoadTime() {
+        return sum(LOAD_TIME) / 1000000d;
+    }
+
+    public double getAverageLoadTime() {
+        long loads = sum(LOADS);
+        return loads == 0 ? 0d : sum(LOAD_TIME) / 1000000d / loads;
+    }
+
+    public long getRegistrations() {
+        return sum(REGISTRATIONS);
+    }
+
+    public long getEvictions() {
+        return sum(EVICTIONS);
+    }
+
+    public void reset() {
+        for (int i = 0; i < this.cells.length(); i++) {
+            this.cells.set(i, 0L);
+        }
+    }
+
+    /**
+     * Get a snapshot of the counters.
+     *
+     * @return a map containing the counters
+     */
+    public Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("hits", new Long(getHits())); //$NON-NLS-1$
+        stats.put("nullHits", new Long(getNullHits())); //$NON-NLS-1$
+        stats.put("misses", new Long(getMisses())); //$NON-NLS-1$
+        stats.put("hitRatio", new Double(getHitRatio())); //$NON-NLS-1$
+        stats.put("loads", new Long(getLoads())); //$NON-NLS-1$
+        stats.put("loadTime", new Double(getLoadTime())); //$NON-NLS-1$
+        stats.put("averageLoadTime", new Double(getAverageLoadTime())); //$NON-NLS-1$
+        stats.put("registrations", new Long(getRegistrations())); //$NON-NLS-1$
+        stats.put("evictions", new Long(getEvictions())); //$NON-NLS-1$
+        return stats;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+/**
+ * JMX management interface for the node cache statistics of one prototype.
+ */
+public interface NodeCacheStatsMBean {
+
+    /**
+     * @return the name of the prototype or storage type
+     */
+    public String getPrototype();
+
+    /**
+     * @return the number of lookups that found a node in the cache
+     */
+    public long getHits();
+
+    /**
+     * @return the number of lookups that found a cached null reference
+     */
+    public long getNullHits();
+
+    /**
+     * @return the number of lookups that didn't find a usable cache entry
+     */
+    public long getMisses();
+
+    /**
+     * @return the ratio of hits and null hits to all lookups
+     */
+    public double getHitRatio();
+
+    /**
+     * @return the number of nodes that were fetched after a cache miss
+     */
+    public long getLoads();
+
+    /**
+     * @return the total time spent fetching nodes in milliseconds
+     */
+    public double getLoadTime();
+
+    /**
+     * @return the average time spent fetching a node in milliseconds
+     */
+    public double getAverageLoadTime();
+
+    /**
+     * @return the number of fetched nodes that were added to the cache
+     */
+    public long getRegistrations();
+
+    /**
+     * @return the number of entries the cache dropped to make room for others
+     */
+    public long getEvictions();
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset();
+
+}
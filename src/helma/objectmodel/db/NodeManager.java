@@ -24,6 +24,8 @@ import helma.framework.core.Application;
 import helma.framework.core.RequestEvaluator;
 import helma.objectmodel.*;
 import helma.objectmodel.dom.XmlDatabase;
+import helma.util.CacheMap;
+import helma.util.ConcurrentCacheMap;
 
 import java.io.*;
 import java.math.BigDecimal;
@@ -42,9 +44,14 @@ public final class NodeManager {
 
     protected Application app;
     private ObjectCacheInterface cache;
+    private MappedNodeCache l2cache;
+    private NodeCacheStatistics stats;
+    private ClusterInvalidator cluster;
     protected DatabaseInterface db;
     protected IDGeneratorInterface idgen;
     private boolean logSql;
+    private int sqlBatchSize;
+    private int lobCacheSize;
     private Log sqlLog = null;
     private ArrayList listeners = new ArrayList();
 
@@ -72,6 +79,13 @@ public final class NodeManager {
         this.cache = (ObjectCacheInterface) Class.forName(cacheImpl).newInstance();
         this.cache.init(this.app);
 
+        this.stats = new NodeCacheStatistics(this.app);
+        if (this.cache instanceof CacheMap) {
+            ((CacheMap) this.cache).setEvictionListener(this.stats);
+        } else if (this.cache instanceof ConcurrentCacheMap) {
+            ((ConcurrentCacheMap) this.cache).setEvictionListener(this.stats);
+        }
+
         String idgenImpl = props.getProperty("idGeneratorImpl"); //$NON-NLS-1$
 
         if (idgenImpl != null) {
@@ -80,9 +94,35 @@ public final class NodeManager {
         }
 
         this.logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));  //$NON-NLS-1$//$NON-NLS-2$
+        this.sqlBatchSize = getIntProperty(props, "sqlBatchSize", 100); //$NON-NLS-1$
+        this.lobCacheSize = getIntProperty(props, "lobCacheSize", 65536); //$NON-NLS-1$
+
+        String l2file = props.getProperty("l2cache"); //$NON-NLS-1$
+
+        if (l2file != null) {
+            File file = new File(l2file);
+            if (!file.isAbsolute()) {
+                file = new File(dbHome, l2file);
+            }
+            try {
+                this.l2cache = new MappedNodeCache(this, file, props.getProperty("l2cacheSize")); //$NON-NLS-1$
+            } catch (IOException iox) {
+                this.app.logError(Messages.getString("NodeManager.23") + file, iox); //$NON-NLS-1$
+            }
+        }
 
         this.db = new XmlDatabase();
         this.db.init(dbHome, this.app);
+
+        if (props.getProperty("clusterMulticast") != null || //$NON-NLS-1$
+                props.getProperty("clusterPeers") != null) { //$NON-NLS-1$
+            try {
+                this.cluster = new ClusterInvalidator(this, props);
+                addNodeChangeListener(this.cluster);
+            } catch (IOException iox) {
+                this.app.logError(Messages.getString("NodeManager.24"), iox); //$NON-NLS-1$
+            }
+        }
     }
 
     /**
@@ -113,6 +153,31 @@ public final class NodeManager {
         // notify the cache about the properties update
         this.cache.updateProperties(props);
         this.logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));  //$NON-NLS-1$//$NON-NLS-2$
+        this.sqlBatchSize = getIntProperty(props, "sqlBatchSize", 100); //$NON-NLS-1$
+        this.lobCacheSize = getIntProperty(props, "lobCacheSize", 65536); //$NON-NLS-1$
+    }
+
+    /**
+     * Get a numeric app property such as sqlBatchSize, the maximum number of
+     * writes sent to the database in one JDBC batch, or lobCacheSize, the
+     * maximum size of large object values kept in the node cache.
+     */
+    private int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            this.app.logError(Messages.getString("NodeManager.26") + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Create a batch to collect the relational writes of a transaction,
+     * or return null if batching is disabled.
+     */
+    protected StatementBatch createStatementBatch() {
+        return this.sqlBatchSize > 1 ? new StatementBatch(this, this.sqlBatchSize) : null;
     }
 
     /**
@@ -120,6 +185,12 @@ public final class NodeManager {
      *  using this node manager is stopped.
      */
     public void shutdown() throws DatabaseException {
+        if (this.cluster != null) {
+            removeNodeChangeListener(this.cluster);
+            this.cluster.shutdown();
+            this.cluster = null;
+        }
+
         this.db.shutdown();
 
         if (this.cache != null) {
@@ -127,6 +198,15 @@ public final class NodeManager {
             this.cache = null;
         }
 
+        if (this.l2cache != null) {
+            this.l2cache.shutdown();
+            this.l2cache = null;
+        }
+
+        if (this.stats != null) {
+            this.stats.shutdown();
+        }
+
         if (this.idgen != null) {
             this.idgen.shutdown();
         }
@@ -174,12 +254,19 @@ public final class NodeManager {
                 }
                 return null;
             } else if (key instanceof DbKey) {
-                node = getNodeByKey(tx.txn, (DbKey) key);
+                NodeCacheStats stat = this.stats.getStats(key, null);
+                stat.add(NodeCacheStats.MISSES, 1);
+                long start = System.nanoTime();
+                node = getNodeByKey(tx.txn, (DbKey) key, this.l2cache);
+                stat.add(NodeCacheStats.LOADS, 1);
+                stat.add(NodeCacheStats.LOAD_TIME, System.nanoTime() - start);
             }
 
             if (node != null) {
                 node = registerNewNode(node, null);
             }
+        } else if (key instanceof DbKey) {
+            this.stats.getStats(key, null).add(NodeCacheStats.HITS, 1);
         }
 
         if (node != null) {
@@ -260,11 +347,17 @@ public final class NodeManager {
             }
         }
 
+        NodeCacheStats stat = this.stats.getStats(key, otherDbm);
+
         if (node == null || node.getState() == NodeInterface.INVALID) {
             // The requested node isn't in the shared cache.
             // Synchronize with key to make sure only one version is fetched
             // from the database.
+            stat.add(NodeCacheStats.MISSES, 1);
+            long start = System.nanoTime();
             node = getNodeByRelation(tx.txn, home, kstr, rel, otherDbm);
+            stat.add(NodeCacheStats.LOADS, 1);
+            stat.add(NodeCacheStats.LOAD_TIME, System.nanoTime() - start);
 
             if (node != null && node.getState() != NodeInterface.DELETED) {
                 Node newNode = node;
@@ -280,30 +373,25 @@ public final class NodeManager {
                 }
             } else {
                 // node fetched from db is null, cache result using nullNode
-                synchronized (this.cache) {
-                    // do not use child collection timestamp as cache guard for object references
-                    long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
-                    this.cache.put(key, new Node(lastchange));
+                // do not use child collection timestamp as cache guard for object references
+                long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
+                this.cache.put(key, new Node(lastchange));
 
-                    // we ignore the case that onother thread has created the node in the meantime
-                    return null;
-                }
+                // we ignore the case that onother thread has created the node in the meantime
+                return null;
             }
         } else if (node.isNullNode()) {
             // the nullNode caches a null value, i.e. an object that doesn't exist
+            stat.add(NodeCacheStats.NULL_HITS, 1);
             return null;
         } else {
+            stat.add(NodeCacheStats.HITS, 1);
             // update primary key in cache to keep it from being flushed, see above
             if (!rel.usesPrimaryKey() && node.getState() != NodeInterface.TRANSIENT) {
-                synchronized (this.cache) {
-                    Node old = (Node) this.cache.put(node.getKey(), node);
-
-                    if (old != node && old != null && !old.isNullNode() && 
-                            old.getState() != NodeInterface.INVALID) {
-                        this.cache.put(node.getKey(), old);
-                        this.cache.put(key, old);
-                        node = old;
-                    }
+                Node old = putNodeIfAbsent(node.getKey(), node);
+                if (old != node) {
+                    this.cache.put(key, old);
+                    node = old;
                 }
             }
         }
@@ -335,19 +423,14 @@ public final class NodeManager {
             return node;
         }
 
-        synchronized(this.cache) {
-            Node old = (Node) this.cache.put(key, node);
-
-            if (old != null && !old.isNullNode() && old.getState() != NodeInterface.INVALID) {
-                this.cache.put(key, old);
-                if (secondaryKey != null) {
-                    this.cache.put(secondaryKey, old);
-                }
-                return old;
-            } else if (secondaryKey != null) {
-                this.cache.put(secondaryKey, node);
-            }
+        Node old = putNodeIfAbsent(key, node);
+        if (secondaryKey != null) {
+            this.cache.put(secondaryKey, old);
+        }
+        if (old != node) {
+            return old;
         }
+        this.stats.getStats(key, node.getDbMapping()).add(NodeCacheStats.REGISTRATIONS, 1);
         // New node is going ot be used, invoke onInit() on it
         // Invoke onInit() if it is defined by this Node's prototype
         try {
@@ -360,6 +443,44 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Put a node in the node cache unless a valid node is already registered
+     * with the key. If the cache implementation supports atomic conditional
+     * updates this is done without locking the whole cache.
+     * @param key the key
+     * @param node the node to register
+     * @return the node now registered with the key, either the node argument
+     * or the node that was already registered
+     */
+    private Node putNodeIfAbsent(KeyInterface key, Node node) {
+        if (this.cache instanceof ConcurrentObjectCacheInterface) {
+            ConcurrentObjectCacheInterface ccache = (ConcurrentObjectCacheInterface) this.cache;
+            while (true) {
+                Node old = (Node) ccache.putIfAbsent(key, node);
+                if (old == null) {
+                    return node;
+                } else if (old == node || (!old.isNullNode() && old.getState() != NodeInterface.INVALID)) {
+                    return old;
+                } else if (ccache.replace(key, old, node)) {
+                    // replaced null node or invalid node
+                    return node;
+                }
+                // someone else changed the entry in the meantime, try again
+            }
+        }
+
+        synchronized (this.cache) {
+            Node old = (Node) this.cache.put(key, node);
+
+            if (old != null && old != node && !old.isNullNode() &&
+                    old.getState() != NodeInterface.INVALID) {
+                this.cache.put(key, old);
+                return old;
+            }
+            return node;
+        }
+    }
+
     /**
      * Register a node in the node cache.
      */
@@ -383,6 +504,20 @@ public final class NodeManager {
         this.cache.remove(node.getKey());
     }
 
+    /**
+     * Get a node from the node cache without fetching it from the database.
+     *
+     * @param key the node's key
+     * @return the cached node, or null if no valid node is cached with the key
+     */
+    protected Node getCachedNode(KeyInterface key) {
+        Node node = (Node) this.cache.get(key);
+        if (node == null || node.isNullNode() || node.getState() == NodeInterface.INVALID) {
+            return null;
+        }
+        return node;
+    }
+
     /**
      * Remove a node from the node cache. If at a later time it is accessed again,
      * it will be refetched from the database.
@@ -390,6 +525,10 @@ public final class NodeManager {
     public void evictNodeByKey(KeyInterface key) {
         Node n = (Node) this.cache.remove(key);
 
+        if (this.l2cache != null && key instanceof DbKey) {
+            this.l2cache.remove((DbKey) key);
+        }
+
         if (n != null) {
             n.setState(NodeInterface.INVALID);
 
@@ -422,13 +561,24 @@ public final class NodeManager {
      */
     public void insertNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
-        invokeOnPersist(node);
+        insertNode(db, txn, node, null);
+    }
+
+    /**
+     *  Insert a new node in the embedded database or a relational database table,
+     *  depending on its db mapping. If a batch is passed, the relational insert
+     *  is added to it instead of being executed immediately.
+     */
+    protected void insertNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                              StatementBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
+        invokeOnPersist(node, batch);
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.insertNode(txn, node.getID(), node);
         } else {
-            insertRelationalNode(node, dbm, dbm.getConnection());
+            insertRelationalNode(node, dbm, dbm.getConnection(), batch);
         }
     }
 
@@ -475,6 +625,16 @@ public final class NodeManager {
      */
     protected void insertRelationalNode(Node node, DbMapping dbm, Connection con)
                 throws ClassNotFoundException, SQLException {
+        insertRelationalNode(node, dbm, con, null);
+    }
+
+    /**
+     * Insert a node into a relational database, adding the insert to the
+     * batch if one is passed.
+     */
+    protected void insertRelationalNode(Node node, DbMapping dbm, Connection con,
+                                        StatementBatch batch)
+                throws ClassNotFoundException, SQLException {
 
         if (con == null) {
             throw new NullPointerException(Messages.getString("NodeManager.7")); //$NON-NLS-1$
@@ -484,7 +644,8 @@ public final class NodeManager {
         //if (con.isReadOnly()) con.setReadOnly(false);
 
         String insertString = dbm.getInsert();
-        PreparedStatement stmt = con.prepareStatement(insertString);
+        PreparedStatement stmt = (batch == null) ? con.prepareStatement(insertString)
+                : batch.prepare(con, insertString, "SQL INSERT", dbm.getTableName()); //$NON-NLS-1$
 
         // app.logEvent ("inserting relational node: " + node.getID ());
         DbColumn[] columns = dbm.getColumns();
@@ -516,15 +677,20 @@ public final class NodeManager {
                 }
                 columnNumber += 1;
             }
-            stmt.executeUpdate();
+            if (batch != null) {
+                batch.add();
+            } else {
+                stmt.executeUpdate();
+            }
 
         } finally {
-            if (this.logSql) {
-                long logTimeStop = java.lang.System.currentTimeMillis();
-                logSqlStatement("SQL INSERT", dbm.getTableName(), //$NON-NLS-1$
-                                logTimeStart, logTimeStop, insertString);
-            }
-            if (stmt != null) {
+            // batched statements are logged and closed by the batch
+            if (batch == null) {
+                if (this.logSql) {
+                    long logTimeStop = java.lang.System.currentTimeMillis();
+                    logSqlStatement("SQL INSERT", dbm.getTableName(), //$NON-NLS-1$
+                                    logTimeStart, logTimeStop, insertString);
+                }
                 try {
                     stmt.close();
                 } catch (Exception ignore) {}
@@ -535,14 +701,20 @@ public final class NodeManager {
     /**
      *  calls onPersist function for the HopObject
      */
-    private void invokeOnPersist(Node node) {
+    private void invokeOnPersist(Node node, StatementBatch batch) throws SQLException {
+        // We need to reach deap into helma.framework.core to invoke onPersist(),
+        // but the functionality is really worth it.
+        RequestEvaluator reval = this.app.getCurrentRequestEvaluator();
+        if (reval == null) {
+            return;
+        }
+        if (batch != null && reval.getScriptingEngine() != null &&
+                reval.getScriptingEngine().hasFunction(node, "onPersist", false)) { //$NON-NLS-1$
+            // write pending changes so onPersist() sees the same data as before
+            batch.flush();
+        }
         try {
-            // We need to reach deap into helma.framework.core to invoke onPersist(),
-            // but the functionality is really worth it.
-            RequestEvaluator reval = this.app.getCurrentRequestEvaluator();
-            if (reval != null) {
-                reval.invokeDirectFunction(node, "onPersist", RequestEvaluator.EMPTY_ARGS); //$NON-NLS-1$
-            }
+            reval.invokeDirectFunction(node, "onPersist", RequestEvaluator.EMPTY_ARGS); //$NON-NLS-1$
         } catch (Exception x) {
             this.app.logError(Messages.getString("NodeManager.8"), x); //$NON-NLS-1$
         }
@@ -557,15 +729,29 @@ public final class NodeManager {
      */
     public boolean updateNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
+        return updateNode(db, txn, node, null);
+    }
+
+    /**
+     *  Updates a modified node in the embedded db or an external relational database, depending
+     * on its database mapping. If a batch is passed, the relational update is added to it
+     * instead of being executed immediately. Updates of the same columns share the batch.
+     *
+     * @return true if the DbMapping of the updated Node is to be marked as updated via
+     *              DbMapping.setLastDataChange
+     */
+    protected boolean updateNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                                 StatementBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
         
-        invokeOnPersist(node);
+        invokeOnPersist(node, batch);
         DbMapping dbm = node.getDbMapping();
         boolean markMappingAsUpdated = false;
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.updateNode(txn, node.getID(), node);
         } else {
-            Hashtable propMap = node.getPropMap();
+            Map propMap = node.getPropMap();
             Property[] props;
 
             if (propMap == null) {
@@ -617,13 +803,17 @@ public final class NodeManager {
                 return false;
             }
 
+            // render the id as parameter so updates of the same columns share the statement
+            List params = new ArrayList();
             b.append(" WHERE "); //$NON-NLS-1$
-            dbm.appendCondition(b, dbm.getIDField(), node.getID());
+            dbm.appendCondition(b, dbm.getIDField(), node.getID(), params);
+            String query = b.toString();
 
             Connection con = dbm.getConnection();
             // set connection to write mode
             //if (con.isReadOnly()) con.setReadOnly(false);
-            PreparedStatement stmt = con.prepareStatement(b.toString());
+            PreparedStatement stmt = (batch == null) ? con.prepareStatement(query)
+                    : batch.prepare(con, query, "SQL UPDATE", dbm.getTableName()); //$NON-NLS-1$
 
             int stmtNumber = 0;
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
@@ -648,15 +838,24 @@ public final class NodeManager {
                     }
                 }
 
-                stmt.executeUpdate();
+                for (int i = 0; i < params.size(); i++) {
+                    stmt.setObject(++stmtNumber, params.get(i));
+                }
 
-            } finally {
-                if (this.logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL UPDATE", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, b.toString());
+                if (batch != null) {
+                    batch.add();
+                } else {
+                    stmt.executeUpdate();
                 }
-                if (stmt != null) {
+
+            } finally {
+                // batched statements are logged and closed by the batch
+                if (batch == null) {
+                    if (this.logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL UPDATE", dbm.getTableName(), //$NON-NLS-1$
+                                        logTimeStart, logTimeStop, query, params);
+                    }
                     try {
                         stmt.close();
                     } catch (Exception ignore) {
@@ -684,39 +883,60 @@ public final class NodeManager {
      */
     public void deleteNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws Exception {
+        deleteNode(db, txn, node, null);
+    }
+
+    /**
+     *  Performs the actual deletion of a node from either the embedded or an external
+     *  SQL database. If a batch is passed, the relational delete is added to it
+     *  instead of being executed immediately.
+     */
+    protected void deleteNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                              StatementBatch batch)
+                    throws Exception {
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.deleteNode(txn, node.getID());
         } else {
-            Statement st = null;
+            PreparedStatement st = null;
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
-            String str = new StringBuffer("DELETE FROM ").append(dbm.getTableName()) //$NON-NLS-1$
-                                                         .append(" WHERE ") //$NON-NLS-1$
-                                                         .append(dbm.getIDField())
-                                                         .append(" = ") //$NON-NLS-1$
-                                                         .append(node.getID())
-                                                         .toString();
+            List params = new ArrayList();
+            StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName()) //$NON-NLS-1$
+                                                             .append(" WHERE "); //$NON-NLS-1$
+            dbm.appendCondition(b, dbm.getIDField(), node.getID(), params);
+            String str = b.toString();
 
             try {
                 Connection con = dbm.getConnection();
                 // set connection to write mode
                 //if (con.isReadOnly()) con.setReadOnly(false);
 
-                st = con.createStatement();
+                st = (batch == null) ? con.prepareStatement(str)
+                        : batch.prepare(con, str, "SQL DELETE", dbm.getTableName()); //$NON-NLS-1$
+                for (int i = 0; i < params.size(); i++) {
+                    st.setObject(i + 1, params.get(i));
+                }
 
-                st.executeUpdate(str);
+                if (batch != null) {
+                    batch.add();
+                } else {
+                    st.executeUpdate();
+                }
 
             } finally {
-                if (this.logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL DELETE", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, str);
-                }
-                if (st != null) {
-                    try {
-                        st.close();
-                    } catch (Exception ignore) {
+                // batched statements are logged and closed by the batch
+                if (batch == null) {
+                    if (this.logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL DELETE", dbm.getTableName(), //$NON-NLS-1$
+                                        logTimeStart, logTimeStop, str, params);
+                    }
+                    if (st != null) {
+                        try {
+                            st.close();
+                        } catch (Exception ignore) {
+                        }
                     }
                 }
             }
@@ -876,13 +1096,14 @@ public final class NodeManager {
 
         // if we do a groupby query (creating an intermediate layer of groupby nodes),
         // retrieve the value of that field instead of the primary key
-        Connection con = type.getConnection();
+        Connection con = type.getReadConnection();
         // set connection to read-only mode
         //if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        List params = new ArrayList();
 
         try {
             StringBuffer b = rel.getIdSelect();
@@ -892,17 +1113,14 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString(); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
+            stmt = prepareStatement(type, con, query, params);
+            stmt.setMaxRows(Math.max(rel.maxSize, 0));
 
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
-            }
-
-            ResultSet result = stmt.executeQuery(query);
+            ResultSet result = stmt.executeQuery();
 
             // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
             KeyInterface k = (rel.groupby != null) ? home.getKey() : null;
@@ -935,13 +1153,10 @@ public final class NodeManager {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_IDS", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, query, params);
             }
             if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                closeStatement(stmt);
             }
         }
 
@@ -966,14 +1181,15 @@ public final class NodeManager {
         List retval = new ArrayList();
         DbMapping dbm = rel.otherType;
 
-        Connection con = dbm.getConnection();
+        Connection con = dbm.getNodeReadConnection();
         // set connection to read-only mode
         //if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = con.createStatement();
-        DbColumn[] columns = dbm.getColumns();
+        PreparedStatement stmt = null;
+        DbColumn[] columns = dbm.getSelectColumns();
         Relation[] joins = dbm.getJoins();
         String query = null;
+        List params = new ArrayList();
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
         try {
@@ -983,16 +1199,15 @@ public final class NodeManager {
                 b.append(home.getSubnodeRelation());
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
             query = b.toString();
 
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
-            }
+            stmt = prepareStatement(dbm, con, query, params);
+            stmt.setMaxRows(Math.max(rel.maxSize, 0));
 
-            ResultSet rs = stmt.executeQuery(query);
+            ResultSet rs = stmt.executeQuery();
 
             while (rs.next()) {
                 // create new Nodes.
@@ -1013,13 +1228,10 @@ public final class NodeManager {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ALL", dbm.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, query, params);
             }
             if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                closeStatement(stmt);
             }
         }
 
@@ -1053,14 +1265,15 @@ public final class NodeManager {
             List missing = collectMissingKeys(list, start, length);
 
             if (missing != null) {
-                Connection con = dbm.getConnection();
+                Connection con = dbm.getNodeReadConnection();
                 // set connection to read-only mode
                 //if (!con.isReadOnly()) con.setReadOnly(true);
 
-                Statement stmt = con.createStatement();
-                DbColumn[] columns = dbm.getColumns();
+                PreparedStatement stmt = null;
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 String query = null;
+                List params = new ArrayList();
                 long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
                 try {
@@ -1068,11 +1281,11 @@ public final class NodeManager {
                     String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
                     String[] ids = (String[]) missing.toArray(new String[missing.size()]);
 
-                    dbm.appendCondition(b, idfield, ids);
+                    dbm.appendCondition(b, idfield, ids, params);
                     dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
 
                     if (rel.groupby != null) {
-                        rel.renderConstraints(b, home, " AND "); //$NON-NLS-1$
+                        rel.renderConstraints(b, home, " AND ", params); //$NON-NLS-1$
 
                         if (rel.order != null) {
                             b.append(" ORDER BY "); //$NON-NLS-1$
@@ -1082,7 +1295,8 @@ public final class NodeManager {
 
                     query = b.toString();
 
-                    ResultSet rs = stmt.executeQuery(query);
+                    stmt = prepareStatement(dbm, con, query, params);
+                    ResultSet rs = stmt.executeQuery();
 
                     String groupbyProp = null;
                     HashMap groupbySubnodes = null;
@@ -1125,7 +1339,7 @@ public final class NodeManager {
                                 if (subnodes == null) {
                                     subnodes = groupNode.createSubnodeList();
                                     // mark subnodes as up-to-date
-                                    subnodes.lastSubnodeFetch = subnodes.getLastSubnodeChange();
+                                    subnodes.markAsFetched();
                                 }
                                 subnodes.add(new NodeHandle(key));
                             }
@@ -1157,19 +1371,139 @@ public final class NodeManager {
                     if (this.logSql) {
                         long logTimeStop = System.currentTimeMillis();
                         logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(), //$NON-NLS-1$
-                                        logTimeStart, logTimeStop, query);
+                                        logTimeStart, logTimeStop, query, params);
                     }
                     if (stmt != null) {
-                        try {
-                            stmt.close();
-                        } catch (Exception ignore) {
-                        }
+                        closeStatement(stmt);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Load the node referenced by a property of a node together with the nodes
+     * referenced by the same property of its siblings. The siblings are taken
+     * from the child collection containing the node that has been loaded in the
+     * current transaction, starting at the node's position. This is only done
+     * for simple references to relational objects with a batchsize option.
+     *
+     * @param owner the node holding the reference
+     * @param propname the name of the reference property
+     * @param handle the handle to the referenced node
+     */
+    public void prefetchReferences(Node owner, String propname, NodeHandle handle)
+                       throws Exception {
+        KeyInterface key = handle.getKey();
+        DbMapping ownerMapping = owner.getDbMapping();
+        Relation rel = ownerMapping == null ?
+                null : ownerMapping.getExactPropertyRelation(propname);
+        if (rel == null || rel.batchSize < 2 || !rel.isReference() ||
+                !rel.usesPrimaryKey() || !(key instanceof DbKey)) {
+            return;
+        }
+
+        DbMapping dbm = this.app.getDbMapping(key.getStorageName());
+        Transactor tx = Transactor.getInstance();
+        if (dbm == null || !dbm.isRelational() || tx == null ||
+                tx.getCleanNode(key) != null || this.cache.containsKey(key)) {
+            return;
+        }
+
+        Transactor.CollectionIndex index = tx.getVisitedCollection(owner.getKey());
+        if (index == null) {
+            return;
+        }
+
+        // collect the references of the siblings following the node
+        // which are neither in the node cache nor in the second level cache
+        ArrayList missing = new ArrayList();
+        HashSet seen = new HashSet();
+        int start = index.indexOf(owner.getKey());
+        int end = Math.min(start + rel.batchSize, index.list.size());
+        for (int i = start; i < end; i++) {
+            NodeHandle siblingHandle = index.list.get(i);
+            if (siblingHandle == null) {
+                continue;
+            }
+            Node sibling = tx.getCleanNode(siblingHandle.getKey());
+            if (sibling == null) {
+                sibling = getCachedNode(siblingHandle.getKey());
+            }
+            Property prop = sibling == null ? null : sibling.getProperty(propname);
+            NodeHandle ref = prop == null ? null : prop.getNodeHandle();
+            KeyInterface refKey = ref == null ? null : ref.getKey();
+            if (!(refKey instanceof DbKey) || ref.hasNode() || !seen.add(refKey) ||
+                    !key.getStorageName().equals(refKey.getStorageName()) ||
+                    this.cache.containsKey(refKey)) {
+                continue;
+            }
+            if (this.l2cache != null) {
+                Node node = this.l2cache.get((DbKey) refKey);
+                if (node != null) {
+                    registerNewNode(node, null);
+                    continue;
+                }
+            }
+            missing.add(refKey.getID());
+        }
+
+        if (missing.size() < 2) {
+            // not worth a batch, the node is loaded by key
+            return;
+        }
+
+        NodeCacheStats stat = this.stats.getStats(key, dbm);
+        long dataChange = dbm.getLastDataChange();
+        long loadStart = System.nanoTime();
+        Connection con = dbm.getNodeReadConnection();
+        PreparedStatement stmt = null;
+        DbColumn[] columns = dbm.getSelectColumns();
+        Relation[] joins = dbm.getJoins();
+        String query = null;
+        List params = new ArrayList();
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            StringBuffer b = dbm.getSelect(null).append(" WHERE "); //$NON-NLS-1$
+            String[] ids = (String[]) missing.toArray(new String[missing.size()]);
+
+            dbm.appendCondition(b, dbm.getIDField(), ids, params);
+            dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
+
+            query = b.toString();
+
+            stmt = prepareStatement(dbm, con, query, params);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                Node node = createNode(dbm, rs, columns, 0);
+                if (node == null) {
+                    continue;
+                }
+                if (this.l2cache != null) {
+                    this.l2cache.put((DbKey) node.getKey(), node, dataChange);
+                }
+                registerNewNode(node, null);
+                fetchJoinedNodes(rs, joins, columns.length);
+                stat.add(NodeCacheStats.LOADS, 1);
+            }
+            stat.add(NodeCacheStats.LOAD_TIME, System.nanoTime() - loadStart);
+
+        } catch (Exception x) {
+            this.app.logError(Messages.getString("NodeManager.25"), x); //$NON-NLS-1$
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_BATCH", dbm.getTableName(), //$NON-NLS-1$
+                                logTimeStart, logTimeStop, query, params);
+            }
+            if (stmt != null) {
+                closeStatement(stmt);
+            }
+        }
+    }
+
     /**
      * Count the nodes contained in the child collection of the home node
      * which is defined by Relation rel.
@@ -1181,13 +1515,14 @@ public final class NodeManager {
             throw new RuntimeException(Messages.getString("NodeManager.14") + home); //$NON-NLS-1$
         }
         int retval = 0;
-        Connection con = type.getConnection();
+        Connection con = type.getReadConnection();
         // set connection to read-only mode
         //if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        List params = new ArrayList();
 
         try {
             StringBuffer b = rel.getCountSelect();
@@ -1197,12 +1532,12 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString(); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, false, true);
+                rel.buildQuery(b, home, false, true, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = prepareStatement(type, con, query, params);
+            ResultSet rs = stmt.executeQuery();
 
             if (!rs.next()) {
                 retval = 0;
@@ -1213,13 +1548,10 @@ public final class NodeManager {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_COUNT", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, query, params);
             }
             if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                closeStatement(stmt);
             }
         }
 
@@ -1242,9 +1574,10 @@ public final class NodeManager {
         // set connection to read-only mode
         //if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        List params = new ArrayList();
 
         try {
             // NOTE: we explicitly convert tables StringBuffer to a String
@@ -1255,14 +1588,13 @@ public final class NodeManager {
                 b.append(" ").append(home.getSubnodeRelation()); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
-            stmt = con.createStatement();
-
             query = b.toString();
 
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = prepareStatement(type, con, query, params);
+            ResultSet rs = stmt.executeQuery();
 
             while (rs.next()) {
                 String n = rs.getString(1);
@@ -1275,14 +1607,11 @@ public final class NodeManager {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ACCESSNAMES", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, query, params);
             }
 
             if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                closeStatement(stmt);
             }
         }
 
@@ -1292,7 +1621,7 @@ public final class NodeManager {
     ///////////////////////////////////////////////////////////////////////////////////////
     // private getNode methods
     ///////////////////////////////////////////////////////////////////////////////////////
-    private Node getNodeByKey(TransactionInterface txn, DbKey key)
+    private Node getNodeByKey(TransactionInterface txn, DbKey key, MappedNodeCache l2)
                        throws Exception {
         // Note: Key must be a DbKey, otherwise will not work for relational objects
         Node node = null;
@@ -1304,11 +1633,22 @@ public final class NodeManager {
             if ((node != null) && (dbm != null)) {
                 node.setDbMapping(dbm);
             }
+        } else if (l2 != null) {
+            node = l2.get(key);
+            if (node == null) {
+                // remember the data change counter before reading the node
+                long dataChange = dbm.getLastDataChange();
+                node = getNodeByKey(txn, key, null);
+                if (node != null) {
+                    l2.put(key, node, dataChange);
+                }
+            }
         } else {
             String idfield = dbm.getIDField();
 
-            Statement stmt = null;
+            PreparedStatement stmt = null;
             String query = null;
+            List params = new ArrayList();
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
             try {
@@ -1316,17 +1656,16 @@ public final class NodeManager {
                 // set connection to read-only mode
                 //if (!con.isReadOnly()) con.setReadOnly(true);
 
-                stmt = con.createStatement();
-
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 
                 StringBuffer b = dbm.getSelect(null).append("WHERE "); //$NON-NLS-1$
-                dbm.appendCondition(b, idfield, kstr);
+                dbm.appendCondition(b, idfield, kstr, params);
                 dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = prepareStatement(dbm, con, query, params);
+                ResultSet rs = stmt.executeQuery();
 
                 if (!rs.next()) {
                     return null;
@@ -1342,14 +1681,10 @@ public final class NodeManager {
                 if (this.logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYKEY", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, query);
+                                    logTimeStart, logTimeStop, query, params);
                 }
                 if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                    closeStatement(stmt);
                 }
             }
         }
@@ -1383,22 +1718,23 @@ public final class NodeManager {
             node.setDbMapping(dbm);
             return node;
         } else {
-            Statement stmt = null;
+            PreparedStatement stmt = null;
             String query = null;
+            List params = new ArrayList();
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
             try {
                 Connection con = dbm.getConnection();
                 // set connection to read-only mode
                 //if (!con.isReadOnly()) con.setReadOnly(true);
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 StringBuffer b = dbm.getSelect(rel);
 
                 if (home.getSubnodeRelation() != null && !rel.isComplexReference()) {
                     // combine our key with the constraints in the manually set subnode relation
                     b.append(" WHERE "); //$NON-NLS-1$
-                    dbm.appendCondition(b, rel.accessName, kstr);
+                    dbm.appendCondition(b, rel.accessName, kstr, params);
                     // add join contraints in case this is an old oracle style join
                     dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
                     // add potential constraints from manually set subnodeRelation
@@ -1409,14 +1745,13 @@ public final class NodeManager {
                         b.append(")"); //$NON-NLS-1$
                     }
                 } else {
-                    rel.buildQuery(b, home, dbm, kstr, false, false);
+                    rel.buildQuery(b, home, dbm, kstr, false, false, params);
                 }
 
-                stmt = con.createStatement();
-
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = prepareStatement(dbm, con, query, params);
+                ResultSet rs = stmt.executeQuery();
 
                 if (!rs.next()) {
                     return null;
@@ -1434,14 +1769,10 @@ public final class NodeManager {
                 if (this.logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYRELATION", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, query);
+                                    logTimeStart, logTimeStop, query, params);
                 }
                 if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                    closeStatement(stmt);
                 }
             }
         }
@@ -1500,128 +1831,7 @@ public final class NodeManager {
             }
 
             Property newprop = new Property(node);
-
-            switch (columns[i].getType()) {
-                case Types.BIT:
-                case Types.BOOLEAN:
-                    newprop.setBooleanValue(rs.getBoolean(columnNumber));
-
-                    break;
-
-                case Types.TINYINT:
-                case Types.BIGINT:
-                case Types.SMALLINT:
-                case Types.INTEGER:
-                    newprop.setIntegerValue(rs.getLong(columnNumber));
-
-                    break;
-
-                case Types.REAL:
-                case Types.FLOAT:
-                case Types.DOUBLE:
-                    newprop.setFloatValue(rs.getDouble(columnNumber));
-
-                    break;
-
-                case Types.DECIMAL:
-                case Types.NUMERIC:
-
-                    BigDecimal num = rs.getBigDecimal(columnNumber);
-                    if (num == null) {
-                        break;
-                    }
-                    if (num.scale() > 0) {
-                        newprop.setFloatValue(num.doubleValue());
-                    } else {
-                        newprop.setIntegerValue(num.longValue());
-                    }
-
-                    break;
-
-                case Types.VARBINARY:
-                case Types.BINARY:
-                    newprop.setJavaObjectValue(rs.getBytes(columnNumber));
-
-                    break;
-
-                case Types.BLOB:
-                case Types.LONGVARBINARY:
-                    {
-                        InputStream in = rs.getBinaryStream(columnNumber);
-                        if (in == null) {
-                            break;
-                        }
-                        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            bout.write(buffer, 0, read);
-                        }
-                        newprop.setJavaObjectValue(bout.toByteArray());
-                    }
-
-                    break;
-
-                case Types.LONGVARCHAR:
-                    try {
-                        newprop.setStringValue(rs.getString(columnNumber));
-                    } catch (SQLException x) {
-                        Reader in = rs.getCharacterStream(columnNumber);
-                        if (in == null) {
-                            newprop.setStringValue(null);
-                            break;
-                        }
-                        StringBuffer out = new StringBuffer();
-                        char[] buffer = new char[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            out.append(buffer, 0, read);
-                        }
-                        newprop.setStringValue(out.toString());
-                    }
-
-                    break;
-
-                case Types.CHAR:
-                case Types.VARCHAR:
-                case Types.OTHER:
-                    newprop.setStringValue(rs.getString(columnNumber));
-
-                    break;
-
-                case Types.DATE:
-                case Types.TIME:
-                case Types.TIMESTAMP:
-                    newprop.setDateValue(rs.getTimestamp(columnNumber));
-
-                    break;
-
-                case Types.NULL:
-                    newprop.setStringValue(null);
-
-                    break;
-
-                case Types.CLOB:
-                    Clob cl = rs.getClob(columnNumber);
-                    if (cl == null) {
-                        newprop.setStringValue(null);
-                        break;
-                    }
-                    char[] c = new char[(int) cl.length()];
-                    Reader isr = cl.getCharacterStream();
-                    isr.read(c);
-                    newprop.setStringValue(String.copyValueOf(c));
-                    break;
-
-                default:
-                    newprop.setStringValue(rs.getString(columnNumber));
-
-                    break;
-            }
-
-            if (rs.wasNull()) {
-                newprop.setStringValue(null);
-            }
+            readColumnValue(rs, columnNumber, columns[i].getType(), newprop);
 
             propBuffer.put(columns[i].getName(), newprop);
 
@@ -1644,8 +1854,22 @@ public final class NodeManager {
             }
         }
 
-        Hashtable propMap = new Hashtable();
+        // lazy columns aren't selected, they are fetched on first access
+        DbColumn[] allColumns = dbm.getColumns();
+        if (allColumns.length > columns.length) {
+            for (int i = 0; i < allColumns.length; i++) {
+                if (allColumns[i].isLazy()) {
+                    Property lobprop = new Property(node);
+                    lobprop.setLobValue(new LazyLob(this.safe, dbm, id, allColumns[i].getName(),
+                            allColumns[i].getLazyGroup(), getPropertyType(allColumns[i].getType())));
+                    lobprop.dirty = false;
+                    propBuffer.put(allColumns[i].getName(), lobprop);
+                }
+            }
+        }
+
         DbColumn[] columns2 = dbmap.getColumns();
+        Map propMap = dbmap.createPropertyMap();
         for (int i=0; i<columns2.length; i++) {
             Relation rel = columns2[i].getRelation();
             if (rel != null && rel.isPrimitiveOrReference()) {
@@ -1670,6 +1894,331 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Read the value of a column from a result set into a property,
+     * converting it according to the column's SQL type.
+     */
+    private void readColumnValue(ResultSet rs, int columnNumber, int type, Property prop)
+            throws SQLException, IOException {
+        switch (type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                prop.setBooleanValue(rs.getBoolean(columnNumber));
+
+                break;
+
+            case Types.TINYINT:
+            case Types.BIGINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                prop.setIntegerValue(rs.getLong(columnNumber));
+
+                break;
+
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                prop.setFloatValue(rs.getDouble(columnNumber));
+
+                break;
+
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+
+                BigDecimal num = rs.getBigDecimal(columnNumber);
+                if (num == null) {
+                    break;
+                }
+                if (num.scale() > 0) {
+                    prop.setFloatValue(num.doubleValue());
+                } else {
+                    prop.setIntegerValue(num.longValue());
+                }
+
+                break;
+
+            case Types.VARBINARY:
+            case Types.BINARY:
+                prop.setJavaObjectValue(rs.getBytes(columnNumber));
+
+                break;
+
+            case Types.BLOB:
+            case Types.LONGVARBINARY:
+                {
+                    InputStream in = rs.getBinaryStream(columnNumber);
+                    if (in == null) {
+                        break;
+                    }
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        bout.write(buffer, 0, read);
+                    }
+                    prop.setJavaObjectValue(bout.toByteArray());
+                }
+
+                break;
+
+            case Types.LONGVARCHAR:
+                try {
+                    prop.setStringValue(rs.getString(columnNumber));
+                } catch (SQLException x) {
+                    Reader in = rs.getCharacterStream(columnNumber);
+                    if (in == null) {
+                        prop.setStringValue(null);
+                        break;
+                    }
+                    StringBuffer out = new StringBuffer();
+                    char[] buffer = new char[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        out.append(buffer, 0, read);
+                    }
+                    prop.setStringValue(out.toString());
+                }
+
+                break;
+
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.OTHER:
+                prop.setStringValue(rs.getString(columnNumber));
+
+                break;
+
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                prop.setDateValue(rs.getTimestamp(columnNumber));
+
+                break;
+
+            case Types.NULL:
+                prop.setStringValue(null);
+
+                break;
+
+            case Types.CLOB:
+                Clob cl = rs.getClob(columnNumber);
+                if (cl == null) {
+                    prop.setStringValue(null);
+                    break;
+                }
+                char[] c = new char[(int) cl.length()];
+                Reader isr = cl.getCharacterStream();
+                isr.read(c);
+                prop.setStringValue(String.copyValueOf(c));
+                break;
+
+            default:
+                prop.setStringValue(rs.getString(columnNumber));
+
+                break;
+        }
+
+        if (rs.wasNull()) {
+            prop.setStringValue(null);
+        }
+    }
+
+    /**
+     * Get the property type a value of the given SQL type is read as. Decimal
+     * values are read as integers if they don't have a fractional part.
+     */
+    private static int getPropertyType(int sqlType) {
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return PropertyInterface.BOOLEAN;
+            case Types.TINYINT:
+            case Types.BIGINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return PropertyInterface.INTEGER;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return PropertyInterface.FLOAT;
+            case Types.VARBINARY:
+            case Types.BINARY:
+            case Types.BLOB:
+            case Types.LONGVARBINARY:
+                return PropertyInterface.JAVAOBJECT;
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                return PropertyInterface.DATE;
+            default:
+                return PropertyInterface.STRING;
+        }
+    }
+
+    /**
+     * Fetch the value of a lazily loaded column. All columns of its lazy group
+     * are fetched in one query, and the properties of the node that haven't
+     * been loaded yet are set to their values.
+     *
+     * @param lob the lazy column handle
+     * @param node the node holding the property
+     * @return the value of the column
+     */
+    Object loadLob(LazyLob lob, Node node) throws Exception {
+        DbMapping dbm = lob.getDbMapping();
+        DbColumn[] columns = dbm.getLazyColumns(lob.getGroup());
+        PreparedStatement stmt = null;
+        String query = null;
+        List params = new ArrayList();
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+
+        dbm.countLazyLoad(lob.getGroup());
+
+        try {
+            Connection con = dbm.getNodeReadConnection();
+            StringBuffer b = new StringBuffer("SELECT "); //$NON-NLS-1$
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    b.append(", "); //$NON-NLS-1$
+                }
+                b.append(columns[i].getName());
+            }
+            if (columns.length == 0) {
+                b.append(lob.getColumn());
+            }
+            b.append(" FROM ").append(dbm.getTableName()).append(" WHERE "); //$NON-NLS-1$ //$NON-NLS-2$
+            dbm.appendCondition(b, dbm.getIDField(), lob.getID(), params);
+            query = b.toString();
+
+            stmt = prepareStatement(dbm, con, query, params);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+
+            if (columns.length == 0) {
+                // the mapping has changed since the node was loaded
+                Property loaded = new Property(node);
+                readColumnValue(rs, 1, lob.isBinary() ? Types.LONGVARBINARY : Types.OTHER, loaded);
+                return loaded.getValue();
+            }
+
+            Map propMap = node == null ? null : node.getPropMap();
+            Object value = null;
+            for (int i = 0; i < columns.length; i++) {
+                Property loaded = new Property(node);
+                readColumnValue(rs, i + 1, columns[i].getType(), loaded);
+                Object v = loaded.getValue();
+                if (columns[i].getName().equals(lob.getColumn())) {
+                    value = v;
+                }
+
+                // set the values of other lazy properties of the group
+                Relation rel = columns[i].getRelation();
+                Property prop = propMap == null || rel == null ?
+                        null : (Property) propMap.get(rel.propName);
+                LazyLob other = prop == null ? null : prop.getLob();
+                if (other != null && other.getColumn().equals(columns[i].getName()) &&
+                        isLobCacheable(v)) {
+                    prop.setLoadedValue(v, loaded.getType());
+                }
+            }
+            return value;
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_LAZY", dbm.getTableName(), //$NON-NLS-1$
+                                logTimeStart, logTimeStop, query, params);
+            }
+            if (stmt != null) {
+                closeStatement(stmt);
+            }
+        }
+    }
+
+    /**
+     * Check if a large object value is small enough to be kept in the node
+     * cache according to the lobCacheSize app property.
+     *
+     * @param value a byte array or string
+     * @return true if the value may be kept
+     */
+    boolean isLobCacheable(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length <= this.lobCacheSize;
+        } else if (value instanceof String) {
+            return ((String) value).length() <= this.lobCacheSize;
+        }
+        return true;
+    }
+
+    /**
+     * Stream the value of a lazily loaded large object column to an output
+     * stream without loading it into memory.
+     *
+     * @param lob the large object handle
+     * @param out the output stream
+     * @param charset the charset used to encode character values
+     */
+    void streamLob(LazyLob lob, OutputStream out, String charset) throws Exception {
+        DbMapping dbm = lob.getDbMapping();
+        PreparedStatement stmt = null;
+        String query = null;
+        List params = new ArrayList();
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            Connection con = dbm.getReadConnection();
+            StringBuffer b = new StringBuffer("SELECT ").append(lob.getColumn()) //$NON-NLS-1$
+                    .append(" FROM ").append(dbm.getTableName()).append(" WHERE "); //$NON-NLS-1$ //$NON-NLS-2$
+            dbm.appendCondition(b, dbm.getIDField(), lob.getID(), params);
+            query = b.toString();
+
+            stmt = prepareStatement(dbm, con, query, params);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return;
+            }
+
+            if (lob.isBinary()) {
+                InputStream in = rs.getBinaryStream(1);
+                if (in == null) {
+                    return;
+                }
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > -1) {
+                    out.write(buffer, 0, read);
+                }
+                in.close();
+            } else {
+                Reader in = rs.getCharacterStream(1);
+                if (in == null) {
+                    return;
+                }
+                Writer writer = new OutputStreamWriter(out, charset);
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = in.read(buffer)) > -1) {
+                    writer.write(buffer, 0, read);
+                }
+                in.close();
+                writer.flush();
+            }
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_LOB", dbm.getTableName(), //$NON-NLS-1$
+                                logTimeStart, logTimeStop, query, params);
+            }
+            if (stmt != null) {
+                closeStatement(stmt);
+            }
+        }
+    }
+
     /**
      *  Fetch nodes that are fetched additionally to another node via join.
      */
@@ -1679,11 +2228,11 @@ public final class NodeManager {
         // create joined objects
         for (int i = 0; i < joins.length; i++) {
             DbMapping jdbm = joins[i].otherType;
-            Node node = createNode(jdbm, rs, jdbm.getColumns(), resultSetOffset);
+            Node node = createNode(jdbm, rs, jdbm.getSelectColumns(), resultSetOffset);
             if (node != null) {
                 registerNewNode(node, null);
             }
-            resultSetOffset += jdbm.getColumns().length;
+            resultSetOffset += jdbm.getSelectColumns().length;
         }
     }
 
@@ -1703,6 +2252,18 @@ public final class NodeManager {
         return this.cache.getCachedObjects();
     }
 
+    /**
+     * Get the estimated memory used by cached nodes per prototype, if the
+     * node cache is a {@link WeightedNodeCache}.
+     * @return a map of prototype names to memory usage, or null
+     */
+    public Map getCacheMemoryUsage() {
+        if (this.cache instanceof WeightedNodeCache) {
+            return ((WeightedNodeCache) this.cache).getMemoryUsage();
+        }
+        return null;
+    }
+
     /**
      * Get the number of elements in the object cache
      */
@@ -1717,6 +2278,64 @@ public final class NodeManager {
         synchronized (this.cache) {
             this.cache.clear();
         }
+        if (this.l2cache != null) {
+            this.l2cache.clear();
+        }
+    }
+
+    /**
+     * Get the node cache statistics for each prototype.
+     *
+     * @return a map of prototype names to statistics maps
+     */
+    public Map getCacheStatistics() {
+        return this.stats.getStatistics();
+    }
+
+    /**
+     * Reset the node cache statistics.
+     */
+    public void resetCacheStatistics() {
+        this.stats.reset();
+    }
+
+    /**
+     * Get the statistics of the second level node cache.
+     *
+     * @return a map containing the cache statistics, or null if the
+     *         second level cache isn't enabled
+     */
+    public Map getL2CacheStatistics() {
+        return this.l2cache == null ? null : this.l2cache.getStatistics();
+    }
+
+    /**
+     * Write the nodes of a committed transaction through to the second level cache.
+     * Inserted and modified nodes are stored, deleted nodes are removed.
+     */
+    protected void updateL2Cache(Transaction transaction) {
+        if (this.l2cache == null) {
+            return;
+        }
+        storeL2Nodes(transaction.getInsertedNodes());
+        storeL2Nodes(transaction.getModifiedNodes());
+        Iterator<Node> deletedNodes = transaction.getDeletedNodes().iterator();
+        while (deletedNodes.hasNext()) {
+            KeyInterface key = deletedNodes.next().getKey();
+            if (key instanceof DbKey) {
+                this.l2cache.remove((DbKey) key);
+            }
+        }
+    }
+
+    private void storeL2Nodes(List<Node> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            DbMapping dbm = node.getDbMapping();
+            if (dbm != null && dbm.isRelational()) {
+                this.l2cache.put(node);
+            }
+        }
     }
 
     /** 
@@ -1864,6 +2483,61 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Prepare a select statement and set its parameters. Within a transactor
+     * thread the statement is taken from the prepared statement cache of the
+     * connection. It must be handed back via closeStatement().
+     */
+    private PreparedStatement prepareStatement(DbMapping dbm, Connection con,
+                                               String query, List params)
+            throws SQLException {
+        Transactor tx = Transactor.getInstance();
+        PreparedStatement stmt = (tx == null) ? con.prepareStatement(query)
+                : tx.prepareStatement(dbm.getDbSource(), con, query);
+        try {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+        } catch (SQLException x) {
+            closeStatement(stmt);
+            throw x;
+        }
+        return stmt;
+    }
+
+    /**
+     * Hand back a statement obtained from prepareStatement(), closing it
+     * unless it is kept in the prepared statement cache.
+     */
+    private void closeStatement(PreparedStatement stmt) {
+        Transactor tx = Transactor.getInstance();
+        if (tx != null && tx.releaseStatement(stmt)) {
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (Exception ignore) {
+            // ignore
+        }
+    }
+
+    /**
+     * Log the execution of a JDBC batch if SQL logging is enabled.
+     */
+    void logSqlBatch(String type, String table, long logTimeStart,
+                     String statement, int size) {
+        if (this.logSql) {
+            logSqlStatement(type, table, logTimeStart, System.currentTimeMillis(),
+                    statement + " [batch of " + size + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    private void logSqlStatement(String type, String table, long logTimeStart,
+                                 long logTimeStop, String statement, List params) {
+        logSqlStatement(type, table, logTimeStart, logTimeStop,
+                params == null || params.isEmpty() ? statement : statement + " " + params); //$NON-NLS-1$
+    }
+
     private void logSqlStatement(String type, String table,
                                  long logTimeStart, long logTimeStop, String statement) {
         // init sql-log if necessary
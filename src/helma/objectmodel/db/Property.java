@@ -37,6 +37,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
     private Node node;
     private Object value;
     private int type;
+    private transient LazyLob lob;
     transient boolean dirty;
 
     /**
@@ -123,47 +124,48 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
+        Object value = loadValue();
         out.writeUTF(this.propname);
         out.writeObject(this.node);
         out.writeInt(this.type);
 
         switch (this.type) {
             case STRING:
-                out.writeObject(this.value);
+                out.writeObject(value);
 
                 break;
 
             case BOOLEAN:
-                out.writeBoolean(((Boolean) this.value).booleanValue());
+                out.writeBoolean(((Boolean) value).booleanValue());
 
                 break;
 
             case INTEGER:
-                out.writeLong(((Long) this.value).longValue());
+                out.writeLong(((Long) value).longValue());
 
                 break;
 
             case DATE:
-                out.writeLong(((Date) this.value).getTime());
+                out.writeLong(((Date) value).getTime());
 
                 break;
 
             case FLOAT:
-                out.writeDouble(((Double) this.value).doubleValue());
+                out.writeDouble(((Double) value).doubleValue());
 
                 break;
 
             case NODE:
-                out.writeObject(this.value);
+                out.writeObject(value);
 
                 break;
 
             case JAVAOBJECT:
 
-                if ((this.value != null) && !(this.value instanceof Serializable)) {
+                if ((value != null) && !(value instanceof Serializable)) {
                     out.writeObject(null);
                 } else {
-                    out.writeObject(this.value);
+                    out.writeObject(value);
                 }
 
                 break;
@@ -192,7 +194,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return the property's value in its native class
      */
     public Object getValue() {
-        return this.value;
+        return loadValue();
     }
 
     /**
@@ -208,6 +210,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * Directly set the value of this property.
      */
     protected void setValue(Object value, int type) {
+        this.lob = null;
         this.value = value;
         this.type = type;
         this.dirty = true;
@@ -219,6 +222,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param str ...
      */
     public void setStringValue(String str) {
+        this.lob = null;
         this.type = STRING;
         this.value = str;
         this.dirty = true;
@@ -230,6 +234,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param l ...
      */
     public void setIntegerValue(long l) {
+        this.lob = null;
         this.type = INTEGER;
         this.value = new Long(l);
         this.dirty = true;
@@ -241,6 +246,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param d ...
      */
     public void setFloatValue(double d) {
+        this.lob = null;
         this.type = FLOAT;
         this.value = new Double(d);
         this.dirty = true;
@@ -252,6 +258,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param date ...
      */
     public void setDateValue(Date date) {
+        this.lob = null;
         this.type = DATE;
         // normalize from java.sql.* Date subclasses
         if (date != null && date.getClass() != Date.class) {
@@ -268,6 +275,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param bool ...
      */
     public void setBooleanValue(boolean bool) {
+        this.lob = null;
         this.type = BOOLEAN;
         this.value = bool ? Boolean.TRUE : Boolean.FALSE;
         this.dirty = true;
@@ -279,6 +287,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param node ...
      */
     public void setNodeValue(Node node) {
+        this.lob = null;
         this.type = NODE;
         this.value = (node == null) ? null : node.getHandle();
         this.dirty = true;
@@ -290,6 +299,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param handle ...
      */
     public void setNodeHandle(NodeHandle handle) {
+        this.lob = null;
         this.type = NODE;
         this.value = handle;
         this.dirty = true;
@@ -331,19 +341,71 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @param obj ...
      */
     public void setJavaObjectValue(Object obj) {
+        this.lob = null;
         this.type = JAVAOBJECT;
         this.value = obj;
         this.dirty = true;
     }
 
 
+    /**
+     * Set a handle to a large object column whose value is fetched
+     * from the database when it is first accessed.
+     *
+     * @param lob the large object handle
+     */
+    protected void setLobValue(LazyLob lob) {
+        this.type = lob.getType();
+        this.value = null;
+        this.lob = lob;
+        this.dirty = true;
+    }
+
+    /**
+     * Set the value of a lazily loaded column fetched from the database.
+     * This doesn't mark the property as dirty.
+     */
+    void setLoadedValue(Object value, int type) {
+        this.lob = null;
+        this.value = value;
+        this.type = type;
+    }
+
+    /**
+     * Get the handle to the lazily loaded column if the value of this
+     * property hasn't been fetched yet.
+     *
+     * @return the large object handle, or null
+     */
+    public LazyLob getLob() {
+        return this.lob;
+    }
+
+    /**
+     * Fetch the value of a lazily loaded column. The value is kept if
+     * it is small enough to stay in the node cache.
+     */
+    private Object loadValue() {
+        LazyLob lob = this.lob;
+        if (lob == null) {
+            return this.value;
+        }
+        Object content = lob.load(this.node);
+        if (this.lob == lob && lob.isCacheable(content)) {
+            this.value = content;
+            this.lob = null;
+        }
+        return content;
+    }
+
     /**
      *
      *
      * @return ...
      */
     public String getStringValue() {
-        if (this.value == null) {
+        Object value = loadValue();
+        if (value == null) {
             return null;
         }
 
@@ -353,7 +415,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
             case INTEGER:
             case FLOAT:
             case JAVAOBJECT:
-                return this.value.toString();
+                return value.toString();
 
             case DATE:
 
@@ -384,6 +446,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return ...
      */
     public long getIntegerValue() {
+        loadValue();
         if (this.type == INTEGER) {
             return ((Long) this.value).longValue();
         }
@@ -409,6 +472,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return ...
      */
     public double getFloatValue() {
+        loadValue();
         if (this.type == FLOAT) {
             return ((Double) this.value).doubleValue();
         }
@@ -430,6 +494,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return ...
      */
     public Date getDateValue() {
+        loadValue();
         if (this.type == DATE) {
             return (Date) this.value;
         }
@@ -443,6 +508,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return ...
      */
     public Timestamp getTimestampValue() {
+        loadValue();
         if ((this.type == DATE) && (this.value != null)) {
             return new Timestamp(((Date) this.value).getTime());
         }
@@ -456,6 +522,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      * @return ...
      */
     public boolean getBooleanValue() {
+        loadValue();
         if (this.type == BOOLEAN) {
             return ((Boolean) this.value).booleanValue();
         }
@@ -472,6 +539,9 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
         if ((this.type == NODE) && (this.value != null)) {
             NodeHandle nhandle = (NodeHandle) this.value;
 
+            if (!nhandle.hasNode()) {
+                this.node.nmgr.prefetchReferences(this.node, this.propname, nhandle);
+            }
             return nhandle.getNode(this.node.nmgr);
         }
 
@@ -485,7 +555,7 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
      */
     public Object getJavaObjectValue() {
         if (this.type == JAVAOBJECT) {
-            return this.value;
+            return loadValue();
         }
 
         return null;
@@ -502,14 +572,15 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
         Property p = (Property) obj;
         int ptype = p.getType();
         Object pvalue = p.getValue();
+        Object value = loadValue();
 
         if (this.type==NODE || ptype==NODE ||
                 this.type == BOOLEAN || ptype == BOOLEAN) {
             throw new ClassCastException(Messages.getString("Property.0") + this + Messages.getString("Property.1") + this.type + Messages.getString("Property.2") + p + Messages.getString("Property.3") + ptype + Messages.getString("Property.4")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
         }
-        if (this.value==null && pvalue == null) {
+        if (value==null && pvalue == null) {
             return 0;
-        } else if (this.value == null) {
+        } else if (value == null) {
             return 1;
         } if (pvalue == null) {
             return -1;
@@ -517,15 +588,15 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
         if (this.type != ptype) {
             // float/integer sometimes get mixed up in Rhino
             if ((this.type == FLOAT && ptype == INTEGER) || (this.type == INTEGER && ptype == FLOAT))
-                return Double.compare(((Number) this.value).doubleValue(), ((Number) pvalue).doubleValue());
+                return Double.compare(((Number) value).doubleValue(), ((Number) pvalue).doubleValue());
             throw new ClassCastException(Messages.getString("Property.5") + this + Messages.getString("Property.6") + this.type + Messages.getString("Property.7") + p + Messages.getString("Property.8") + ptype + Messages.getString("Property.9")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
 
         }
-        if (!(this.value instanceof Comparable)) {
-            throw new ClassCastException(Messages.getString("Property.10") + this.value + Messages.getString("Property.11") + this.value.getClass() + Messages.getString("Property.12")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        if (!(value instanceof Comparable)) {
+            throw new ClassCastException(Messages.getString("Property.10") + value + Messages.getString("Property.11") + value.getClass() + Messages.getString("Property.12")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
         // System.err.println("COMPARING: " + value.getClass() + " TO " + pvalue.getClass());
-        return ((Comparable) this.value).compareTo(pvalue);
+        return ((Comparable) value).compareTo(pvalue);
     }
 
     /**
@@ -544,6 +615,8 @@ public final class Property implements PropertyInterface, Serializable, Cloneabl
         if (!(obj instanceof Property))
             return false;
         Property p = (Property) obj;
-        return this.value == null ? p.value == null : this.value.equals(p.value);
+        Object value = loadValue();
+        Object pvalue = p.loadValue();
+        return value == null ? pvalue == null : value.equals(pvalue);
     }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A compact map of the properties of a relational node. Properties mapped to
+ * a column of the node's table are kept in an array laid out by the column
+ * order of the DbMapping, so a lookup is a read of the DbMapping's slot index
+ * followed by an array access. Other properties, e.g. ones starting with an
+ * underscore, are kept in a Hashtable which is only created when needed.
+ *
+ * <p>Slots are kept in an AtomicReferenceArray and the Hashtable reference is
+ * volatile, so readers see fully initialized values without locking the map.
+ * Iteration follows the column order.</p>
+ */
+final class PropertyMap extends AbstractMap {
+
+    // slot indexes by property name and property names by slot index,
+    // shared by all nodes of a DbMapping
+    private final Map slots;
+    private final String[] names;
+
+    // values by slot index
+    private final AtomicReferenceArray values;
+
+    // properties without slot
+    private volatile Hashtable extra;
+
+    private Set entrySet;
+
+    /**
+     * Create an empty property map.
+     *
+     * @param slots the slot indexes of the DbMapping by property name
+     * @param names the property names of the DbMapping by slot index
+     */
+    PropertyMap(Map slots, String[] names) {
+        this.slots = slots;
+        this.names = names;
+        this.values = new AtomicReferenceArray(names.length);
+    }
+
+    private int slotOf(Object key) {
+        Integer slot = (Integer) this.slots.get(key);
+        return slot == null ? -1 : slot.intValue();
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = slotOf(key);
+        if (slot > -1) {
+            return this.values.get(slot);
+        }
+        Hashtable extra = this.extra;
+        return extra == null ? null : extra.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int slot = slotOf(key);
+        if (slot > -1) {
+            return this.values.getAndSet(slot, value);
+        }
+        Hashtable extra = this.extra;
+        if (extra == null) {
+            synchronized (this) {
+                extra = this.extra;
+                if (extra == null) {
+                    extra = new Hashtable();
+                    this.extra = extra;
+                }
+            }
+        }
+        return extra.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int slot = slotOf(key);
+        if (slot > -1) {
+            return this.values.getAndSet(slot, null);
+        }
+        Hashtable extra = this.extra;
+        return extra == null ? null : extra.remove(key);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.values.length(); i++) {
+            if (this.values.get(i) != null) {
+                size++;
+            }
+        }
+        Hashtable extra = this.extra;
+        return extra == null ? size : size + extra.size();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < this.values.length(); i++) {
+            this.values.set(i, null);
+        }
+        this.extra = null;
+    }
+
+    @Override
+    public Set entrySet() {
+        if (this.entrySet == null) {
+            this.entrySet = new AbstractSet() {
+                @Override
+                public Iterator iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return PropertyMap.this.size();
+                }
+            };
+        }
+        return this.entrySet;
+    }
+
+    /**
+     * Iterates over the slots in column order, then over a snapshot of the
+     * other properties. Unlike the iterators of java.util collections it
+     * never throws a ConcurrentModificationException.
+     */
+    final class EntryIterator implements Iterator {
+        private final Object[] extraEntries;
+        private int slot = 0;
+        private int extraIndex = 0;
+        private Map.Entry next;
+        private Object lastKey;
+
+        EntryIterator() {
+            Hashtable extra = PropertyMap.this.extra;
+            this.extraEntries = extra == null ?
+                    new Object[0] : extra.entrySet().toArray();
+            advance();
+        }
+
+        private void advance() {
+            this.next = null;
+            AtomicReferenceArray values = PropertyMap.this.values;
+            while (this.slot < values.length()) {
+                int i = this.slot++;
+                Object value = values.get(i);
+                if (value != null) {
+                    this.next = new SimpleImmutableEntry(PropertyMap.this.names[i], value);
+                    return;
+                }
+            }
+            if (this.extraIndex < this.extraEntries.length) {
+                Map.Entry entry = (Map.Entry) this.extraEntries[this.extraIndex++];
+                this.next = new SimpleImmutableEntry(entry.getKey(), entry.getValue());
+            }
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public Object next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry entry = this.next;
+            this.lastKey = entry.getKey();
+            advance();
+            return entry;
+        }
+
+        public void remove() {
+            if (this.lastKey == null) {
+                throw new IllegalStateException();
+            }
+            PropertyMap.this.remove(this.lastKey);
+            this.lastKey = null;
+        }
+    }
+}
@@ -26,9 +26,13 @@ import helma.objectmodel.PropertyInterface;
 import helma.util.StringUtils;
 
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.StringTokenizer;
 import java.util.Enumeration;
 import java.util.Vector;
 
@@ -107,6 +111,13 @@ public final class Relation {
     Vector filterPropertyRefs;
     int maxSize = 0;
     int offset = 0;
+    int batchSize = 0; // number of sibling references to load together
+    String lazyGroup; // group of columns loaded together on first access
+
+    // cached select clauses, valid as long as selectStamp matches the
+    // last type change of the other type
+    private volatile String idSelect, countSelect, namesSelect;
+    private volatile long selectStamp = -1;
 
     /**
      * This constructor makes a copy of an existing relation. Not all fields are copied, just those
@@ -130,6 +141,7 @@ public final class Relation {
         this.queryHints =               rel.queryHints;
         this.maxSize =                  rel.maxSize;
         this.offset =                   rel.offset;
+        this.batchSize =                rel.batchSize;
         this.constraints =              rel.constraints;
         this.accessName =               rel.accessName;
         this.logicalOperator =          rel.logicalOperator;
@@ -159,6 +171,7 @@ public final class Relation {
      */
     public void update(Object desc, Properties props) {
         Application app = this.ownType.getApplication();
+        this.idSelect = this.countSelect = this.namesSelect = null;
 
         if (desc instanceof Properties || parseDescriptor(desc, props)) {
             // converted to internal foo.collection = Bar representation
@@ -246,6 +259,20 @@ public final class Relation {
             }
         } else {
             this.referencesPrimaryKey = false;
+            // large object columns are loaded lazily unless loadmode is aggressive
+            String loading = props.getProperty("loadmode"); //$NON-NLS-1$
+            this.aggressiveLoading = loading != null && "aggressive".equalsIgnoreCase(loading.trim()); //$NON-NLS-1$
+            // other columns are loaded lazily if they are assigned to a lazy group,
+            // with "true" putting the property in a group of its own
+            String lazy = props.getProperty("lazy"); //$NON-NLS-1$
+            lazy = lazy == null ? null : lazy.trim();
+            if (lazy == null || lazy.length() == 0 || "false".equalsIgnoreCase(lazy)) { //$NON-NLS-1$
+                this.lazyGroup = null;
+            } else if ("true".equalsIgnoreCase(lazy)) { //$NON-NLS-1$
+                this.lazyGroup = this.propName;
+            } else {
+                this.lazyGroup = lazy;
+            }
         }
     }
 
@@ -400,6 +427,9 @@ public final class Relation {
         }
         this.offset = getIntegerProperty("offset", props, 0); //$NON-NLS-1$
 
+        // get the number of references of sibling objects to load in one query
+        this.batchSize = getIntegerProperty("batchsize", props, 0); //$NON-NLS-1$
+
         // get group by property
         this.groupby = props.getProperty("group"); //$NON-NLS-1$
 
@@ -564,6 +594,43 @@ public final class Relation {
         return this.aggressiveLoading;
     }
 
+    /**
+     *  Get the lazy group of a primitive relation, or null if its column is
+     *  selected with the row. Columns of a lazy group are loaded together when
+     *  one of their properties is first accessed. Large object columns that are
+     *  not assigned to a group are loaded on their own.
+     */
+    public String getLazyGroup() {
+        if (this.reftype != PRIMITIVE) {
+            return null;
+        }
+        if (this.lazyGroup != null) {
+            return this.lazyGroup;
+        }
+        return isLazyLob() ? this.propName : null;
+    }
+
+    /**
+     *  Check whether this is a primitive relation to a large object column whose
+     *  value is only loaded from the database when it is accessed.
+     */
+    public boolean isLazyLob() {
+        if (this.reftype != PRIMITIVE || this.aggressiveLoading) {
+            return false;
+        }
+        switch (this.columnType) {
+            case Types.BLOB:
+            case Types.CLOB:
+            case Types.NCLOB:
+            case Types.LONGVARBINARY:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /**
      *  Returns the number of constraints for this relation.
      */
@@ -899,6 +966,12 @@ public final class Relation {
     }
 
     public StringBuffer getIdSelect() {
+        checkSelectTemplates();
+        String sel = this.idSelect;
+        if (sel != null) {
+            return new StringBuffer(sel);
+        }
+
         StringBuffer buf = new StringBuffer("SELECT "); //$NON-NLS-1$
 
         if (this.queryHints != null) {
@@ -920,10 +993,17 @@ public final class Relation {
         buf.append(idfield).append(" FROM ").append(table); //$NON-NLS-1$
         appendAdditionalTables(buf);
 
+        this.idSelect = buf.toString();
         return buf;
     }
 
     public StringBuffer getCountSelect() {
+        checkSelectTemplates();
+        String sel = this.countSelect;
+        if (sel != null) {
+            return new StringBuffer(sel);
+        }
+
         StringBuffer buf = new StringBuffer("SELECT "); //$NON-NLS-1$
         if (this.otherType.isOracle() && this.maxSize > 0) {
             buf.append("* FROM "); //$NON-NLS-1$
@@ -938,10 +1018,17 @@ public final class Relation {
         buf.append(this.otherType.getTableName());
         appendAdditionalTables(buf);
 
+        this.countSelect = buf.toString();
         return buf;
     }
 
     public StringBuffer getNamesSelect() {
+        checkSelectTemplates();
+        String sel = this.namesSelect;
+        if (sel != null) {
+            return new StringBuffer(sel);
+        }
+
         // if we do a groupby query (creating an intermediate layer of groupby nodes),
         // retrieve the value of that field instead of the primary key
         String namefield = (this.groupby == null) ? this.accessName : this.groupby;
@@ -950,16 +1037,39 @@ public final class Relation {
         buf.append(namefield).append(" FROM ").append(table); //$NON-NLS-1$
         appendAdditionalTables(buf);
 
+        this.namesSelect = buf.toString();
         return buf;
     }
 
+    /**
+     * Discard the cached select clauses if this relation or its other type
+     * have been updated since they were rendered.
+     */
+    private void checkSelectTemplates() {
+        long stamp = this.otherType.getLastTypeChange();
+        if (stamp != this.selectStamp) {
+            this.idSelect = this.countSelect = this.namesSelect = null;
+            this.selectStamp = stamp;
+        }
+    }
+
     /**
      *  Build the second half of an SQL select statement according to this relation
      *  and a local object.
      */
     public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
-        buildQuery(q, home, this.otherType, null, useOrder, isCount);
+        buildQuery(q, home, this.otherType, null, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, adding the values of key conditions to the parameter list.
+     */
+    public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount,
+                           List params)
+            throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, this.otherType, null, useOrder, isCount, params);
     }
 
     /**
@@ -969,6 +1079,17 @@ public final class Relation {
     public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
                            boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, otherDbm, kstr, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object. If a parameter list is passed, the values of key conditions
+     *  are added to it and rendered as ? placeholders.
+     */
+    public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
+                           boolean useOrder, boolean isCount, List params)
+            throws SQLException, ClassNotFoundException {
         String prefix = " WHERE "; //$NON-NLS-1$
         Node nonvirtual = home.getNonVirtualParent();
 
@@ -977,13 +1098,13 @@ public final class Relation {
 
             String accessColumn = (this.accessName == null) ?
                     otherDbm.getIDField() : this.accessName;
-            otherDbm.appendCondition(q, accessColumn, kstr);
+            otherDbm.appendCondition(q, accessColumn, kstr, params);
 
             prefix = " AND "; //$NON-NLS-1$
         }
 
         // render the constraints and filter
-        renderConstraints(q, home, nonvirtual, otherDbm, prefix);
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, params);
 
         // add joined fetch constraints
         this.ownType.addJoinConstraints(q, prefix);
@@ -1088,7 +1209,24 @@ public final class Relation {
      */
     public void renderConstraints(StringBuffer q, Node home, String prefix)
                              throws SQLException, ClassNotFoundException {
-        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix);
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer,
+     * adding the values of key conditions to the parameter list.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param prefix the prefix to use to append to the existing query (e.g. " AND ")
+     * @param params the list to add parameter values to, or null to render literals
+     *
+     * @throws SQLException sql related exception
+     * @throws ClassNotFoundException driver class not found
+     */
+    public void renderConstraints(StringBuffer q, Node home, String prefix, List params)
+                             throws SQLException, ClassNotFoundException {
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix, params);
     }
 
     /**
@@ -1106,6 +1244,27 @@ public final class Relation {
     public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
                                   DbMapping otherDbm, String prefix)
                              throws SQLException, ClassNotFoundException {
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer. If a
+     * parameter list is passed, the values of key conditions are added to it and
+     * rendered as ? placeholders. Filter expressions are always rendered literally.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param nonvirtual our non-virtual home nod
+     * @param otherDbm the DbMapping of the remote Node
+     * @param prefix the prefix to use to append to the existing query (e.g. " AND ")
+     * @param params the list to add parameter values to, or null to render literals
+     *
+     * @throws SQLException sql related exception
+     * @throws ClassNotFoundException driver class not found
+     */
+    public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
+                                  DbMapping otherDbm, String prefix, List params)
+                             throws SQLException, ClassNotFoundException {
 
         if (this.constraints.length > 1 && this.logicalOperator != AND) {
             q.append(prefix);
@@ -1120,7 +1279,7 @@ public final class Relation {
                 continue;
             }
             q.append(prefix);
-            this.constraints[i].addToQuery(q, home, nonvirtual, otherDbm);
+            this.constraints[i].addToQuery(q, home, nonvirtual, otherDbm, params);
             prefix = this.logicalOperator;
         }
 
@@ -1141,7 +1300,7 @@ public final class Relation {
             // extended prototypes. nevertheless we check it here
             if (extensions != null && protoField != null) {
                 q.append(prefix);
-                otherDbm.appendCondition(q, protoField, extensions);
+                otherDbm.appendCondition(q, protoField, extensions, params);
                 prefix = " AND "; //$NON-NLS-1$
             }
         }
@@ -1281,6 +1440,117 @@ public final class Relation {
         }
     }
 
+    /**
+     * Check if a cached collection defined by this relation can be updated in memory
+     * with nodes inserted, modified or deleted in the database. This requires that
+     * membership can be decided by checkConstraints() and that the collection is
+     * neither grouped nor limited.
+     *
+     * @return true if the collection can be updated in place
+     */
+    boolean canUpdateIncrementally() {
+        if (this.filter != null || this.additionalTables != null || this.groupby != null ||
+                this.maxSize > 0 || this.offset > 0 || this.constraints == null ||
+                this.otherType == null || !this.otherType.isRelational() ||
+                this.otherType.inheritsStorage()) {
+            return false;
+        }
+
+        for (int i = 0; i < this.constraints.length; i++) {
+            Constraint cnst = this.constraints[i];
+            if (cnst.foreignKeyIsPrototype()) {
+                continue;
+            }
+            // checkConstraints() skips keys that aren't mapped to properties
+            if (cnst.foreignProperty(this.otherType) == null) {
+                return false;
+            }
+            if (!cnst.localKeyIsPrimary(this.ownType) && !cnst.localKeyIsPrototype() &&
+                    cnst.localProperty() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare two nodes of the other type according to the order of this relation.
+     * Only orders by mapped numeric or date columns can be evaluated in memory, since
+     * the database may collate strings and sort null values differently.
+     *
+     * @param a the first node
+     * @param b the second node
+     * @return a negative number, zero or a positive number as the first node is
+     *         sorted before, together with or after the second one, or null if
+     *         the nodes can't be compared
+     */
+    Integer compareOrder(Node a, Node b) {
+        String order = getOrder();
+        if (order == null) {
+            return null;
+        }
+
+        StringTokenizer st = new StringTokenizer(order, ","); //$NON-NLS-1$
+        while (st.hasMoreTokens()) {
+            String column = st.nextToken().trim();
+            boolean descending = false;
+            int space = column.indexOf(' ');
+            if (space > -1) {
+                String direction = column.substring(space + 1).trim();
+                column = column.substring(0, space);
+                if ("desc".equalsIgnoreCase(direction)) { //$NON-NLS-1$
+                    descending = true;
+                } else if (!"asc".equalsIgnoreCase(direction)) { //$NON-NLS-1$
+                    return null;
+                }
+            }
+
+            Number va = getOrderValue(a, column);
+            Number vb = getOrderValue(b, column);
+            if (va == null || vb == null) {
+                return null;
+            }
+
+            int c;
+            if (va instanceof Long && vb instanceof Long) {
+                long la = va.longValue();
+                long lb = vb.longValue();
+                c = la < lb ? -1 : (la == lb ? 0 : 1);
+            } else {
+                c = Double.compare(va.doubleValue(), vb.doubleValue());
+            }
+            if (c != 0) {
+                return new Integer(descending ? -c : c);
+            }
+        }
+        return new Integer(0);
+    }
+
+    /**
+     * Get the value of a node for an order column as number, or null if the
+     * column is not mapped or its value is not a number or date.
+     */
+    private Number getOrderValue(Node node, String column) {
+        if (column.equalsIgnoreCase(this.otherType.getIDField())) {
+            try {
+                return new Long(node.getID());
+            } catch (NumberFormatException x) {
+                return null;
+            }
+        }
+
+        String propName = this.otherType.columnNameToProperty(column);
+        Property prop = propName == null ? null : node.getProperty(propName);
+        Object value = prop == null ? null : prop.getValue();
+
+        if (value instanceof Long || value instanceof Double) {
+            return (Number) value;
+        } else if (value instanceof Date) {
+            return new Long(((Date) value).getTime());
+        }
+        return null;
+    }
+
     /**
      * Make sure that the child node fullfills the constraints defined by this relation by setting the
      * appropriate properties
@@ -1487,7 +1757,8 @@ public final class Relation {
             this.isGroupby = groupby;
         }
 
-        public void addToQuery(StringBuffer q, NodeInterface home, NodeInterface nonvirtual, DbMapping otherDbm)
+        public void addToQuery(StringBuffer q, NodeInterface home, NodeInterface nonvirtual, DbMapping otherDbm,
+                               List params)
                         throws SQLException, ClassNotFoundException {
             String local;
             NodeInterface ref = this.isGroupby ? home : nonvirtual;
@@ -1511,7 +1782,7 @@ public final class Relation {
             } else {
                 columnName = this.foreignKey;
             }
-            otherDbm.appendCondition(q, columnName, local);
+            otherDbm.appendCondition(q, columnName, local, params);
         }
 
         public boolean foreignKeyIsPrimary() {
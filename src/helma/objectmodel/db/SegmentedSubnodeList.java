@@ -222,8 +222,13 @@ public class SegmentedSubnodeList extends SubnodeList {
             return;
         }
         // also reload if the type mapping has changed.
-        long lastChange = getLastSubnodeChange();
+        long dataChange = getLastDataChange();
+        long lastChange = getLastSubnodeChange(dataChange);
         if (lastChange != this.lastSubnodeFetch) {
+            if (this.segments == null && updateIncrementally(lastChange, dataChange)) {
+                return;
+            }
+            long lag = getReplicaLag();
             // count nodes in db without fetching anything
             this.subnodeCount = this.node.nmgr.countNodes(this.node, getSubnodeRelation());
             if (this.subnodeCount > SEGLENGTH) {
@@ -244,7 +249,7 @@ public class SegmentedSubnodeList extends SubnodeList {
                 this.segments = null;
                 super.update();
             }
-            this.lastSubnodeFetch = lastChange;
+            markAsFetched(lastChange, dataChange, lag);
         }
     }
 
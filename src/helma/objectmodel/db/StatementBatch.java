@@ -0,0 +1,142 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Collects consecutive inserts, updates or deletes with the same SQL on the same
+ * connection into a JDBC batch, so that runs of writes of the same shape are sent
+ * in one round trip. The batch is executed as soon as a statement with different
+ * SQL is requested, which keeps the order of writes as it was. Instances are used
+ * by a single transactor thread during Transactor.execute().
+ */
+final class StatementBatch {
+
+    private final NodeManager nmgr;
+    private final int maxSize;
+
+    private Connection connection;
+    private String sql;
+    private PreparedStatement stmt;
+    private int count;
+
+    // log info of the current batch
+    private String type, table;
+    private long logTimeStart;
+
+    /**
+     * Create a statement batch.
+     *
+     * @param nmgr the node manager used to log SQL statements
+     * @param maxSize the number of statements after which the batch is executed
+     */
+    StatementBatch(NodeManager nmgr, int maxSize) {
+        this.nmgr = nmgr;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the statement to add the next write to, executing the current batch
+     * if it has different SQL. The parameters of the returned statement must be
+     * set and the write added via add().
+     *
+     * @param con the connection
+     * @param sql the SQL text
+     * @param type the statement type for the SQL log
+     * @param table the table name for the SQL log
+     * @return the prepared statement
+     * @throws SQLException if the current batch fails or the statement can't be prepared
+     */
+    PreparedStatement prepare(Connection con, String sql, String type, String table)
+            throws SQLException {
+        if (this.stmt != null && this.connection == con && this.sql.equals(sql)) {
+            return this.stmt;
+        }
+        flush();
+        this.stmt = con.prepareStatement(sql);
+        this.connection = con;
+        this.sql = sql;
+        this.type = type;
+        this.table = table;
+        return this.stmt;
+    }
+
+    /**
+     * Add the parameters set on the current statement to the batch.
+     *
+     * @throws SQLException if the batch is full and fails to execute
+     */
+    void add() throws SQLException {
+        if (this.count == 0) {
+            this.logTimeStart = System.currentTimeMillis();
+        }
+        this.stmt.addBatch();
+        this.count++;
+        if (this.count >= this.maxSize) {
+            execute();
+        }
+    }
+
+    /**
+     * Execute the pending writes and close the current statement.
+     *
+     * @throws SQLException if the batch fails
+     */
+    void flush() throws SQLException {
+        if (this.stmt == null) {
+            return;
+        }
+        try {
+            execute();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the current statement, discarding pending writes.
+     */
+    void close() {
+        if (this.stmt != null) {
+            try {
+                this.stmt.close();
+            } catch (Exception ignore) {
+                // nothing to do
+            }
+        }
+        this.stmt = null;
+        this.connection = null;
+        this.sql = null;
+        this.count = 0;
+    }
+
+    private void execute() throws SQLException {
+        if (this.count == 0) {
+            return;
+        }
+        int size = this.count;
+        this.count = 0;
+        try {
+            this.stmt.executeBatch();
+        } finally {
+            this.nmgr.logSqlBatch(this.type, this.table, this.logTimeStart, this.sql, size);
+        }
+    }
+}
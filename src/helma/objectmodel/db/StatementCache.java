@@ -0,0 +1,148 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A LRU cache of prepared statements for one JDBC connection, keyed by their
+ * SQL text. Statements are lent to one caller at a time: if a statement is
+ * still in use when the same SQL is requested again, e.g. while iterating a
+ * result set, an uncached statement is prepared instead. Instances are used by
+ * a single transactor thread and are not thread safe.
+ */
+final class StatementCache {
+
+    final DbSource source;
+    final Connection connection;
+    private final int maxSize;
+
+    // access ordered map of SQL text to prepared statements
+    private final LinkedHashMap statements = new LinkedHashMap(16, 0.75f, true);
+
+    // cached statements currently lent out
+    private final HashSet busy = new HashSet();
+
+    /**
+     * Create a statement cache for a connection.
+     *
+     * @param source the db source the connection belongs to
+     * @param connection the connection
+     * @param maxSize the maximum number of statements to cache
+     */
+    StatementCache(DbSource source, Connection connection, int maxSize) {
+        this.source = source;
+        this.connection = connection;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a prepared statement for the given SQL, reusing a cached one if possible.
+     * The statement must be handed back via release().
+     *
+     * @param sql the SQL text
+     * @return the prepared statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = (PreparedStatement) this.statements.get(sql);
+        if (stmt != null) {
+            if (this.busy.contains(stmt)) {
+                // nested use of the same query, don't share the statement
+                return this.connection.prepareStatement(sql);
+            }
+            this.source.countStatementLookup(true);
+        } else {
+            this.source.countStatementLookup(false);
+            stmt = this.connection.prepareStatement(sql);
+            this.statements.put(sql, stmt);
+            trim();
+        }
+        this.busy.add(stmt);
+        return stmt;
+    }
+
+    /**
+     * Hand back a statement obtained from prepare(). The statement's result set
+     * is closed and its parameters are cleared if it is cached.
+     *
+     * @param stmt the statement
+     * @return true if the statement is cached, false if the caller has to close it
+     */
+    boolean release(PreparedStatement stmt) {
+        if (!this.busy.remove(stmt)) {
+            return false;
+        }
+        if (!this.statements.containsValue(stmt)) {
+            // evicted while in use
+            return false;
+        }
+        try {
+            ResultSet rs = stmt.getResultSet();
+            if (rs != null) {
+                rs.close();
+            }
+            stmt.clearParameters();
+            return true;
+        } catch (SQLException x) {
+            // don't reuse a statement that misbehaves
+            this.statements.values().remove(stmt);
+            return false;
+        }
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    void close() {
+        for (Iterator it = this.statements.values().iterator(); it.hasNext(); ) {
+            try {
+                ((PreparedStatement) it.next()).close();
+            } catch (SQLException ignore) {
+                // connection is probably gone
+            }
+        }
+        this.statements.clear();
+        this.busy.clear();
+    }
+
+    /**
+     * Close the least recently used statements that are not in use until the
+     * cache holds at most maxSize statements.
+     */
+    private void trim() {
+        Iterator it = this.statements.values().iterator();
+        int size = this.statements.size();
+        while (size > this.maxSize && it.hasNext()) {
+            PreparedStatement stmt = (PreparedStatement) it.next();
+            if (this.busy.contains(stmt)) {
+                continue;
+            }
+            it.remove();
+            size--;
+            try {
+                stmt.close();
+            } catch (SQLException ignore) {
+                // nothing to do
+            }
+        }
+    }
+}
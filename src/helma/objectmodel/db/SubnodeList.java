@@ -22,6 +22,7 @@ package helma.objectmodel.db;
 
 import helma.objectmodel.NodeInterface;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.io.Serializable;
 
@@ -37,6 +38,8 @@ public class SubnodeList implements Serializable {
 
     transient protected long lastSubnodeFetch = 0;
     transient protected long lastSubnodeChange = 0;
+    // the data change number of the child type the list was last brought up to date with
+    transient protected long lastDataFetch = 0;
     
 
     /**
@@ -134,18 +137,190 @@ public class SubnodeList implements Serializable {
 
     protected void update() {
         // also reload if the type mapping has changed.
-        long lastChange = getLastSubnodeChange();
-        if (lastChange != this.lastSubnodeFetch) {
+        long dataChange = getLastDataChange();
+        long lastChange = getLastSubnodeChange(dataChange);
+        if (lastChange != this.lastSubnodeFetch && !updateIncrementally(lastChange, dataChange)) {
+            long lag = getReplicaLag();
             Relation rel = getSubnodeRelation();
             if (rel != null && rel.aggressiveLoading && rel.groupby == null) {
                 this.list = this.node.nmgr.getNodes(this.node, rel);
             } else {
                 this.list = this.node.nmgr.getNodeIDs(this.node, rel);
             }
-            this.lastSubnodeFetch = lastChange;
+            markAsFetched(lastChange, dataChange, lag);
         }
     }
 
+    /**
+     * Mark the list as loaded at the given change numbers. If it was read
+     * from a replica lagging behind the most recent writes, the numbers are
+     * moved back so the writes are applied or the list is reloaded later.
+     */
+    protected void markAsFetched(long lastChange, long dataChange, long lag) {
+        this.lastSubnodeFetch = lastChange - lag;
+        this.lastDataFetch = Math.max(dataChange - lag, 0);
+    }
+
+    /**
+     * Get the number of data changes of the child type that queries
+     * for this list may not reflect because they are read from a replica.
+     */
+    protected long getReplicaLag() {
+        Relation rel = getSubnodeRelation();
+        if (rel == null || rel.otherType == null) {
+            return 0;
+        }
+        return Math.max(rel.otherType.getLastDataChange() - rel.otherType.getReadDataChange(), 0);
+    }
+
+    /**
+     * Try to bring the list up to date by applying the nodes inserted, modified and
+     * deleted since it was last updated instead of reloading it. This is only done if
+     * nothing but the data of the child type has changed and all changes are known.
+     *
+     * @param lastChange the current subnode change number
+     * @param dataChange the current data change number of the child type
+     * @return true if the list was updated, false if it has to be reloaded
+     */
+    protected boolean updateIncrementally(long lastChange, long dataChange) {
+        if (dataChange <= this.lastDataFetch ||
+                lastChange - dataChange != this.lastSubnodeFetch - this.lastDataFetch) {
+            return false;
+        }
+
+        Relation rel = getSubnodeRelation();
+        if (rel == null || !rel.canUpdateIncrementally()) {
+            return false;
+        }
+
+        List changes = rel.otherType.getDataChanges(this.lastDataFetch, dataChange);
+        if (changes == null) {
+            return false;
+        }
+
+        // work on a copy so readers never see a partially updated list
+        List list = new ArrayList(this.list);
+        for (Iterator it = changes.iterator(); it.hasNext(); ) {
+            if (!applyDataChange(list, (DataChange) it.next(), rel)) {
+                return false;
+            }
+        }
+
+        this.list = list;
+        this.lastSubnodeFetch = lastChange;
+        this.lastDataFetch = dataChange;
+        return true;
+    }
+
+    /**
+     * Apply the nodes of a data change to a list of subnode handles.
+     *
+     * @return false if the change can't be applied
+     */
+    private boolean applyDataChange(List list, DataChange change, Relation rel) {
+        for (Iterator it = change.deleted.iterator(); it.hasNext(); ) {
+            list.remove(it.next());
+        }
+
+        List changed = new ArrayList(change.inserted);
+        changed.addAll(change.modified);
+
+        for (Iterator it = changed.iterator(); it.hasNext(); ) {
+            NodeHandle handle = (NodeHandle) it.next();
+            Node child = getCachedNode(handle);
+            if (child == null) {
+                // loading the node could cost more than reloading the list
+                return false;
+            }
+            int index = list.indexOf(handle);
+            int state = child.getState();
+            boolean member = state != NodeInterface.DELETED && state != NodeInterface.INVALID &&
+                    rel.checkConstraints(this.node, child);
+
+            if (!member) {
+                if (index > -1) {
+                    list.remove(index);
+                }
+                continue;
+            }
+
+            if (index > -1) {
+                if (rel.getOrder() == null || isInOrder(list, index, child, rel)) {
+                    continue;
+                }
+                // an order column has changed
+                list.remove(index);
+            }
+
+            if (rel.getOrder() == null) {
+                list.add(handle);
+            } else if (!insertOrdered(list, handle, child, rel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the node of a handle if it is in the node cache. Nodes are not loaded
+     * from the database since each load is a query of its own.
+     */
+    private Node getCachedNode(NodeHandle handle) {
+        if (handle.hasNode()) {
+            return handle.getNode(this.node.nmgr);
+        }
+        return this.node.nmgr.getCachedNode(handle.getKey());
+    }
+
+    /**
+     * Check if a node is sorted correctly relative to its neighbours in the list.
+     * Returns false if a neighbour isn't cached.
+     */
+    private boolean isInOrder(List list, int index, Node child, Relation rel) {
+        if (index > 0) {
+            Node prev = getCachedNode((NodeHandle) list.get(index - 1));
+            Integer c = prev == null ? null : rel.compareOrder(prev, child);
+            if (c == null || c.intValue() > 0) {
+                return false;
+            }
+        }
+        if (index < list.size() - 1) {
+            Node next = getCachedNode((NodeHandle) list.get(index + 1));
+            Integer c = next == null ? null : rel.compareOrder(child, next);
+            if (c == null || c.intValue() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Insert a node handle into a sorted list after the nodes sorted before or
+     * together with it.
+     *
+     * @return false if the position can't be determined, e.g. because a node
+     *         probed by the binary search isn't cached
+     */
+    private boolean insertOrdered(List list, NodeHandle handle, Node child, Relation rel) {
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Node other = getCachedNode((NodeHandle) list.get(mid));
+            Integer c = other == null ? null : rel.compareOrder(other, child);
+            if (c == null) {
+                return false;
+            }
+            if (c.intValue() <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        list.add(low, handle);
+        return true;
+    }
+
     protected void prefetch(int start, int length) {
         if (start < 0 || start >= size()) {
             return;
@@ -169,11 +344,34 @@ public class SubnodeList implements Serializable {
      * @return a serial number that increases with each subnode change
      */
     protected long getLastSubnodeChange() {
+        return getLastSubnodeChange(getLastDataChange());
+    }
+
+    /**
+     * Compute a serial number indicating the last change in subnode collection
+     * @param dataChange the data change number of the child type
+     * @return a serial number that increases with each subnode change
+     */
+    protected long getLastSubnodeChange(long dataChange) {
         // include dbmap.getLastTypeChange to also reload if the type mapping has changed.
-        long checkSum = this.lastSubnodeChange + this.node.dbmap.getLastTypeChange();
+        return this.lastSubnodeChange + this.node.dbmap.getLastTypeChange() + dataChange;
+    }
+
+    /**
+     * Get the data change number of the child type, or 0 if the list is
+     * cached aggressively and doesn't depend on it.
+     */
+    protected long getLastDataChange() {
         Relation rel = getSubnodeRelation();
-        return rel == null || rel.aggressiveCaching ?
-                checkSum : checkSum + rel.otherType.getLastDataChange();
+        return rel == null || rel.aggressiveCaching ? 0 : rel.otherType.getLastDataChange();
+    }
+
+    /**
+     * Mark the list as up to date with the database.
+     */
+    protected void markAsFetched() {
+        this.lastDataFetch = getLastDataChange();
+        this.lastSubnodeFetch = getLastSubnodeChange(this.lastDataFetch);
     }
 
     protected synchronized void markAsChanged() {
@@ -1,6 +1,7 @@
 package helma.objectmodel.db;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class Transaction {
 
@@ -9,6 +10,7 @@ public class Transaction {
 	ArrayList<Node> deletedNodes = new ArrayList<Node>();
 	ArrayList<Node> updatedParentNodes = new ArrayList<Node>();
 	ArrayList<Node> dirtyNodes = new ArrayList<Node>();
+	HashMap<DbMapping, DataChange> dataChanges = new HashMap<DbMapping, DataChange>();
 	
 	public Transaction() {	
 	}
@@ -32,6 +34,14 @@ public class Transaction {
 		this.updatedParentNodes.add(updatedParentNode);
 	}
 	
+	void addDataChange(DbMapping dbMapping, DataChange dataChange) {
+		this.dataChanges.put(dbMapping, dataChange);
+	}
+	
+	HashMap<DbMapping, DataChange> getDataChanges() {
+		return this.dataChanges;
+	}
+	
 	@SuppressWarnings("unchecked")
 	public ArrayList<Node> getInsertedNodes() {
 		return (ArrayList<Node>) this.insertedNodes.clone();
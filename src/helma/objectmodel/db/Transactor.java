@@ -20,12 +20,14 @@
 
 package helma.objectmodel.db;
 
+import helma.framework.core.RequestEvaluator;
+import helma.framework.core.Session;
 import helma.objectmodel.DatabaseException;
 import helma.objectmodel.NodeInterface;
 import helma.objectmodel.TransactionInterface;
 
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
 
@@ -59,8 +61,14 @@ public class Transactor {
     // Transactions for SQL data sources
     private Map sqlConnections;
 
-    // Set of SQL connections that already have been verified
-    private Map testedConnections;
+    // Connections to read replicas, keyed by DbSource
+    private Map readConnections = new HashMap();
+
+    // Prepared statement caches of the connections, keyed by connection
+    private Map statementCaches = new HashMap();
+
+    // DbMappings written to in the current transaction
+    private Set writtenMappings = new HashSet();
 
     // when did the current transaction start?
     private long tstart;
@@ -69,10 +77,20 @@ public class Transactor {
     private String tname;
 
     // the thread we're associated with
-    private Thread thread;
+    private volatile Thread thread;
+
+    // true if we're not tied to a thread of our own but are bound to
+    // the thread running the current request
+    private boolean detached = false;
     
     private ArrayList<Transaction> transactions = new ArrayList<Transaction>();
 
+    // recently visited child collections, used to batch reference lookups
+    private LinkedHashMap visitedCollections = new LinkedHashMap(16, 0.75f, true);
+
+    // maximum number of visited child collections to remember
+    private static final int MAX_VISITED_COLLECTIONS = 8;
+
     private static final ThreadLocal txtor = new ThreadLocal();
 
     /**
@@ -89,7 +107,6 @@ public class Transactor {
         this.parentNodes = new HashSet();
 
         this.sqlConnections = new HashMap();
-        this.testedConnections = new HashMap();
         this.active = false;
         this.killed = false;
     }
@@ -129,6 +146,49 @@ public class Transactor {
         return t;
     }
 
+    /**
+     * Create a new transactor that is not associated with any thread. This
+     * is used by callers that want to keep the transactor state independent
+     * of thread identity and bind it to whatever thread is currently running
+     * a request using {@link #bind()}.
+     * @param nmgr the NodeManager used to create the transactor
+     * @return a new unbound transactor
+     */
+    public static Transactor createInstance(NodeManager nmgr) {
+        Transactor t = new Transactor(nmgr);
+        t.thread = null;
+        t.detached = true;
+        return t;
+    }
+
+    /**
+     * Associate this transactor with the current thread, so it is returned
+     * by {@link #getInstance()} until {@link #unbind()} is called.
+     */
+    public void bind() {
+        this.thread = Thread.currentThread();
+        txtor.set(this);
+    }
+
+    /**
+     * Dissociate this transactor from the current thread.
+     */
+    public void unbind() {
+        if (txtor.get() == this) {
+            txtor.set(null);
+        }
+        this.thread = null;
+    }
+
+    /**
+     * Returns true if this transactor has been killed and can't be used
+     * for any further transactions.
+     * @return true if the transactor has been killed
+     */
+    public boolean isKilled() {
+        return this.killed;
+    }
+
     /**
      * Mark a Node as modified/created/deleted during this transaction
      *
@@ -221,6 +281,43 @@ public class Transactor {
         return (key == null) ? null : (Node) this.cleanNodes.get(key);
     }
 
+    /**
+     * Remember a child collection that is being accessed in this transaction, so
+     * references of its nodes can be loaded together.
+     *
+     * @param list the child collection
+     */
+    public void visitCollection(SubnodeList list) {
+        // segmented lists would have to load all segments to be indexed
+        if (list == null || list instanceof SegmentedSubnodeList ||
+                this.visitedCollections.get(list) != null) {
+            return;
+        }
+        this.visitedCollections.put(list, new CollectionIndex(list));
+        if (this.visitedCollections.size() > MAX_VISITED_COLLECTIONS) {
+            Iterator it = this.visitedCollections.values().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Find a recently visited child collection containing the node with the given key.
+     *
+     * @param key the node's key
+     * @return the collection index, or null if the node isn't contained in a
+     *         collection visited in this transaction
+     */
+    CollectionIndex getVisitedCollection(KeyInterface key) {
+        for (Iterator it = this.visitedCollections.values().iterator(); it.hasNext(); ) {
+            CollectionIndex index = (CollectionIndex) it.next();
+            if (index.indexOf(key) > -1) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      *
      *
@@ -249,40 +346,111 @@ public class Transactor {
     }
 
     /**
-     * Register a db connection with this transactor thread.
+     * Register a db connection borrowed from the db source's pool with this
+     * transactor thread. The connection is handed back at commit or abort.
      * @param src the db source
      * @param con the connection
      */
     public void registerConnection(DbSource src, Connection con) {
-        this.sqlConnections.put(src, con);
-        // we assume a freshly created connection is ok.
-        this.testedConnections.put(src, new Long(System.currentTimeMillis()));
+        Connection old = (Connection) this.sqlConnections.put(src, con);
+        if (old != null && old != con) {
+            // the old connection has been closed
+            this.statementCaches.remove(old);
+            src.releaseConnection(old, true);
+        }
+    }
+
+    /**
+     * Register a db connection borrowed from a read replica of the db source
+     * with this transactor thread. The connection is handed back at commit or abort.
+     * @param src the db source
+     * @param con the replica connection
+     */
+    public void registerReadConnection(DbSource src, Connection con) {
+        Connection old = (Connection) this.readConnections.put(src, con);
+        if (old != null && old != con) {
+            this.statementCaches.remove(old);
+            src.releaseConnection(old, true);
+        }
+    }
+
+    /**
+     * Get a replica connection that was previously registered with this transactor thread.
+     * @param src the db source
+     * @return the replica connection, or null
+     */
+    public Connection getReadConnection(DbSource src) {
+        return (Connection) this.readConnections.get(src);
+    }
+
+    /**
+     * Check if the current transaction has modified nodes, either still pending
+     * or already written to the database. Reads of a dirty transaction must go
+     * to the primary database to see its own writes.
+     * @return true if the transaction is dirty
+     */
+    public boolean isDirty() {
+        return !this.dirtyNodes.isEmpty() || !this.writtenMappings.isEmpty();
+    }
+
+    /**
+     * Get the id of the session of the request this transactor is running, if any.
+     * @return the session id, or null
+     */
+    String getSessionId() {
+        RequestEvaluator reval = this.nmgr.app.getCurrentRequestEvaluator();
+        Session session = reval == null ? null : reval.getSession();
+        return session == null ? null : session.getSessionId();
     }
 
     /**
      * Get a db connection that was previously registered with this transactor thread.
+     * Connections are validated by the db source's pool when they are borrowed.
      * @param src the db source
      * @return the connection
      */
     public Connection getConnection(DbSource src) {
-        Connection con = (Connection) this.sqlConnections.get(src);
-        Long tested = (Long) this.testedConnections.get(src);
-        long now = System.currentTimeMillis();
-        if (con != null && (tested == null || now - tested.longValue() > 60000)) {
-            // Check if the connection is still alive by executing a simple statement.
-            try {
-                Statement stmt = con.createStatement();
-                stmt.execute("SELECT 1"); //$NON-NLS-1$
-                stmt.close();
-                this.testedConnections.put(src, new Long(now));
-            } catch (SQLException sx) {
-                try {
-                    con.close();
-                } catch (SQLException ignore) {/* nothing to do */}
-                return null;
+        return (Connection) this.sqlConnections.get(src);
+    }
+
+    /**
+     * Get a prepared statement for a db connection of this transactor thread,
+     * reusing a cached statement with the same SQL if possible. The statement
+     * must be handed back via releaseStatement() instead of being closed.
+     *
+     * @param src the db source
+     * @param con the connection of the db source
+     * @param sql the SQL text
+     * @return the prepared statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    public PreparedStatement prepareStatement(DbSource src, Connection con, String sql)
+            throws SQLException {
+        StatementCache cache = (StatementCache) this.statementCaches.get(con);
+        if (cache == null) {
+            // the cache belongs to the pooled connection and survives the transaction
+            cache = src.getStatementCache(con);
+            if (cache == null) {
+                return con.prepareStatement(sql);
             }
+            this.statementCaches.put(con, cache);
         }
-        return con;
+        return cache.prepare(sql);
+    }
+
+    /**
+     * Hand back a statement obtained from prepareStatement().
+     *
+     * @param stmt the statement
+     * @return true if the statement is cached, false if the caller has to close it
+     */
+    public boolean releaseStatement(PreparedStatement stmt) {
+        for (Iterator it = this.statementCaches.values().iterator(); it.hasNext(); ) {
+            if (((StatementCache) it.next()).release(stmt)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -303,6 +471,7 @@ public class Transactor {
         this.dirtyNodes.clear();
         this.cleanNodes.clear();
         this.parentNodes.clear();
+        this.visitedCollections.clear();
         this.txn = this.nmgr.db.beginTransaction();
         this.active = true;
         this.tstart = System.currentTimeMillis();
@@ -324,6 +493,28 @@ public class Transactor {
         		connection.commit();
         	}
         }
+
+        // pin the session to the primary database for the tables it wrote to
+        if (!this.writtenMappings.isEmpty()) {
+            String sessionId = getSessionId();
+            for (Iterator i = this.writtenMappings.iterator(); i.hasNext(); ) {
+                DbMapping dbm = (DbMapping) i.next();
+                DbSource src = dbm.getDbSource();
+                if (src != null && dbm.getTableName() != null) {
+                    src.pinToPrimary(sessionId, dbm.getTableName());
+                }
+            }
+        }
+
+        // only now that the changes are visible to other connections may
+        // subnode lists be updated and reloaded
+        for (Iterator i = this.transactions.iterator(); i.hasNext(); ) {
+            Transaction transaction = (Transaction) i.next();
+            for (Iterator j = transaction.getDataChanges().entrySet().iterator(); j.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) j.next();
+                ((DbMapping) entry.getKey()).setLastDataChange((DataChange) entry.getValue());
+            }
+        }
         
         int numberOfInsertedNodes = 0;
         int numberOfModifiedNodes = 0;
@@ -335,6 +526,8 @@ public class Transactor {
         while (iterator.hasNext()) {
         	Transaction transaction = iterator.next();
         	
+        	this.nmgr.updateL2Cache(transaction);
+        	
         	if (hasListeners) {
                 this.nmgr.fireNodeChangeEvent(transaction.getInsertedNodes(), 
                 	transaction.getModifiedNodes(),
@@ -388,6 +581,9 @@ public class Transactor {
 	        this.nmgr.db.commitTransaction(this.txn);
 	        this.txn = null;
 	    }
+
+        // hand back the JDBC connections to their pools
+        releaseConnections(false);
 	
 	    // unset transaction name
 	    this.tname = null;
@@ -407,57 +603,77 @@ public class Transactor {
         }
         
         Transaction transaction = new Transaction();
+        // record the transaction right away, so abort() evicts the nodes
+        // registered as clean even if a later statement of the batch fails
+        this.transactions.add(transaction);
 
         if (!this.dirtyNodes.isEmpty()) {
             Object[] dirty = this.dirtyNodes.values().toArray();
 
-            // the set to collect DbMappings to be marked as changed
-            HashSet dirtyDbMappings = new HashSet();
+            // the DbMappings to be marked as changed, with the nodes changed in each
+            HashMap dirtyDbMappings = new HashMap();
 
-            for (int i = 0; i < dirty.length; i++) {
-                Node node = (Node) dirty[i];
+            // consecutive relational writes of the same shape are sent as JDBC batch
+            StatementBatch batch = this.nmgr.createStatementBatch();
 
-                // update nodes in db
-                int nstate = node.getState();
+            try {
+                for (int i = 0; i < dirty.length; i++) {
+                    Node node = (Node) dirty[i];
 
-                if (nstate == NodeInterface.NEW) {
-                    this.nmgr.insertNode(this.nmgr.db, this.txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-                    node.setState(NodeInterface.CLEAN);
+                    // update nodes in db
+                    int nstate = node.getState();
 
-                    // register node with nodemanager cache
-                    this.nmgr.registerNode(node);
+                    if (nstate == NodeInterface.NEW) {
+                        this.nmgr.insertNode(this.nmgr.db, this.txn, node, batch);
+                        getDataChange(dirtyDbMappings, node).inserted.add(node.getHandle());
+                        node.setState(NodeInterface.CLEAN);
 
-                    transaction.addInsertedNode(node);
-                } else if (nstate == NodeInterface.MODIFIED) {
-                    // only mark DbMapping as dirty if updateNode returns true
-                    if (this.nmgr.updateNode(this.nmgr.db, this.txn, node)) {
-                        dirtyDbMappings.add(node.getDbMapping());
-                    }
-                    node.setState(NodeInterface.CLEAN);
+                        // register node with nodemanager cache
+                        this.nmgr.registerNode(node);
 
-                    // update node with nodemanager cache
-                    this.nmgr.registerNode(node);
+                        transaction.addInsertedNode(node);
+                    } else if (nstate == NodeInterface.MODIFIED) {
+                        // only mark DbMapping as dirty if updateNode returns true
+                        if (this.nmgr.updateNode(this.nmgr.db, this.txn, node, batch)) {
+                            getDataChange(dirtyDbMappings, node).modified.add(node.getHandle());
+                        }
+                        node.setState(NodeInterface.CLEAN);
 
-                    transaction.addModifiedNode(node);
-                } else if (nstate == NodeInterface.DELETED) {
-                    this.nmgr.deleteNode(this.nmgr.db, this.txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
+                        // update node with nodemanager cache
+                        this.nmgr.registerNode(node);
 
-                    // remove node from nodemanager cache
-                    this.nmgr.evictNode(node);
+                        transaction.addModifiedNode(node);
+                    } else if (nstate == NodeInterface.DELETED) {
+                        this.nmgr.deleteNode(this.nmgr.db, this.txn, node, batch);
+                        getDataChange(dirtyDbMappings, node).deleted.add(node.getHandle());
 
-                    transaction.addDeletedNode(node);
+                        // remove node from nodemanager cache
+                        this.nmgr.evictNode(node);
+
+                        transaction.addDeletedNode(node);
+                    }
+
+                    node.clearWriteLock();
                 }
 
-                node.clearWriteLock();
+                if (batch != null) {
+                    batch.flush();
+                }
+            } finally {
+                if (batch != null) {
+                    batch.close();
+                }
             }
 
-            // set last data change times in db-mappings
-            for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
-                DbMapping dbm = (DbMapping) i.next();
+            // last data change times are set in db-mappings at commit
+            for (Iterator i = dirtyDbMappings.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) i.next();
+                DbMapping dbm = (DbMapping) entry.getKey();
                 if (dbm != null) {
-                    dbm.setLastDataChange();
+                    transaction.addDataChange(dbm, (DataChange) entry.getValue());
+                    if (dbm.isRelational()) {
+                        this.writtenMappings.add(dbm);
+                    }
                 }
             }
         }
@@ -475,14 +691,29 @@ public class Transactor {
         // clear the node collections
         recycle();
         
-        this.transactions.add(transaction);
         return transaction;
     }
 
+    /**
+     * Get the data change collecting the changed nodes of a node's DbMapping.
+     */
+    private DataChange getDataChange(Map dirtyDbMappings, Node node) {
+        DbMapping dbm = node.getDbMapping();
+        DataChange change = (DataChange) dirtyDbMappings.get(dbm);
+        if (change == null) {
+            change = new DataChange();
+            dirtyDbMappings.put(dbm, change);
+        }
+        return change;
+    }
+
     /**
      * Abort the current transaction, rolling back all changes made.
      */
     public synchronized void abort() {
+        // mappings whose executed changes are rolled back
+        HashSet abortedMappings = new HashSet();
+
     	Iterator<Transaction> iterator = this.transactions.iterator();
     	while (iterator.hasNext()) {
     		Transaction transaction = iterator.next();
@@ -496,6 +727,10 @@ public class Transactor {
                 // that want to write on it and remove it from cache
     			this.nmgr.evictNode(node);
                 node.clearWriteLock();
+
+                if (node.getDbMapping() != null) {
+                    abortedMappings.add(node.getDbMapping());
+                }
     		}
     		
             // set last subnode change times in parent nodes
@@ -506,6 +741,11 @@ public class Transactor {
             }
     	}
     	
+        // subnode lists may have applied the changes, make them reload
+        for (Iterator i = abortedMappings.iterator(); i.hasNext(); ) {
+            ((DbMapping) i.next()).setLastDataChange();
+        }
+
     	// clear the node collections
         recycle();
         this.transactions.clear();
@@ -522,8 +762,8 @@ public class Transactor {
 			}
         }
         
-        // close any JDBC connections associated with this transactor thread
-        closeConnections();
+        // hand back the JDBC connections to their pools
+        releaseConnections(false);
 
         if (this.active) {
             this.active = false;
@@ -548,6 +788,17 @@ public class Transactor {
     public synchronized void kill() {
 
         this.killed = true;
+
+        if (this.detached) {
+            // we don't own the thread we're bound to, so all we do is
+            // interrupt it. Don't wait for it to terminate, much less stop it.
+            Thread t = this.thread;
+            if (t != null) {
+                t.interrupt();
+            }
+            return;
+        }
+
         this.thread.interrupt();
 
         // Interrupt the thread if it has not noticed the flag (e.g. because it is busy
@@ -577,23 +828,62 @@ public class Transactor {
     }
 
     /**
-     * Closes all open JDBC connections
+     * Hands back all JDBC connections held by this transactor to the pools of
+     * their db sources, rolling back uncommitted work. If the transactor has been
+     * killed the connections may still be in use by its thread, so they are closed.
      */
     public void closeConnections() {
-        if (this.sqlConnections != null) {
-            for (Iterator i = this.sqlConnections.values().iterator(); i.hasNext();) {
+        releaseConnections(true);
+    }
+
+    /**
+     * Hands back all JDBC connections held by this transactor.
+     *
+     * @param rollback true if uncommitted work needs to be rolled back
+     */
+    private void releaseConnections(boolean rollback) {
+        this.statementCaches.clear();
+        this.writtenMappings.clear();
+
+        // replica connections are only read from, end their transaction
+        for (Iterator i = this.readConnections.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            DbSource src = (DbSource) entry.getKey();
+            Connection con = (Connection) entry.getValue();
+            boolean discard = this.killed;
+            if (!discard) {
                 try {
-                    Connection con = (Connection) i.next();
+                    if (!con.getAutoCommit()) {
+                        con.rollback();
+                    }
+                } catch (Exception x) {
+                    discard = true;
+                }
+            }
+            src.releaseConnection(con, discard);
+        }
+        this.readConnections.clear();
 
-                    con.close();
-                    this.nmgr.app.logEvent(Messages.getString("Transactor.16") + con); //$NON-NLS-1$
-                } catch (Exception ignore) {
-                    // exception closing db connection, ignore
+        if (this.sqlConnections != null) {
+            for (Iterator i = this.sqlConnections.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                DbSource src = (DbSource) entry.getKey();
+                Connection con = (Connection) entry.getValue();
+                boolean discard = this.killed;
+                if (rollback && !discard) {
+                    try {
+                        if (!con.getAutoCommit()) {
+                            con.rollback();
+                        }
+                    } catch (Exception x) {
+                        // don't reuse a connection we can't reset
+                        discard = true;
+                    }
                 }
+                src.releaseConnection(con, discard);
             }
 
             this.sqlConnections.clear();
-            this.testedConnections.clear();
         }
     }
 
@@ -607,6 +897,7 @@ public class Transactor {
         this.dirtyNodes.clear();
         this.cleanNodes.clear();
         this.parentNodes.clear();
+        this.visitedCollections.clear();
     }
 
     /**
@@ -626,4 +917,42 @@ public class Transactor {
     public String toString() {
         return "Transactor[" + this.tname + "]"; //$NON-NLS-1$ //$NON-NLS-2$
     }
+
+    /**
+     * Maps the keys of the nodes in a child collection to their position. The
+     * index is rebuilt when the collection's content has been reloaded or its
+     * size has changed.
+     */
+    static class CollectionIndex {
+        final SubnodeList list;
+        private List indexed;
+        private int indexedSize = -1;
+        private HashMap positions;
+
+        CollectionIndex(SubnodeList list) {
+            this.list = list;
+        }
+
+        /**
+         * Get the position of a node in the collection.
+         *
+         * @param key the node's key
+         * @return the position, or -1 if the node isn't contained in the collection
+         */
+        int indexOf(KeyInterface key) {
+            if (this.indexed != this.list.list || this.indexedSize != this.list.size()) {
+                this.indexed = this.list.list;
+                this.indexedSize = this.list.size();
+                this.positions = new HashMap(this.indexedSize * 2);
+                for (int i = 0; i < this.indexedSize; i++) {
+                    NodeHandle handle = this.list.get(i);
+                    if (handle != null && handle.getKey() != null) {
+                        this.positions.put(handle.getKey(), new Integer(i));
+                    }
+                }
+            }
+            Integer position = (Integer) this.positions.get(key);
+            return position == null ? -1 : position.intValue();
+        }
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.util.ConcurrentCacheMap;
+
+import java.util.*;
+
+/**
+ * A node cache that limits the estimated memory used by cached nodes instead of
+ * their number. To use it, set cacheimpl = helma.objectmodel.db.WeightedNodeCache
+ * and the cachesize property to a memory size such as 512MB, 64m or 1G. Plain
+ * numbers are interpreted as bytes, the default is 64MB.
+ *
+ * The size of a node is estimated from its property values and subnode list
+ * when the node is put into the cache. Nodes registered under secondary keys
+ * are only counted once, the secondary entries count as a small reference.
+ */
+public class WeightedNodeCache extends ConcurrentCacheMap {
+
+    // rough estimates of the retained size of objects in bytes
+    static final int NODE_SIZE = 240;
+    static final int NULL_NODE_SIZE = 96;
+    static final int PROPERTY_SIZE = 112;
+    static final int REFERENCE_SIZE = 64;
+    static final int STRING_SIZE = 48;
+    static final int ARRAY_SIZE = 24;
+    static final int OBJECT_SIZE = 32;
+    static final int SUBNODE_SIZE = 48;
+
+    /**
+     * Create a weighted node cache with a capacity of 64MB.
+     */
+    public WeightedNodeCache() {
+        super(64L * 1024 * 1024);
+    }
+
+    @Override
+    protected String getDefaultCacheSize() {
+        return "64MB"; //$NON-NLS-1$
+    }
+
+    /**
+     * Parse a memory size with an optional K, M or G unit suffix,
+     * optionally followed by B.
+     */
+    @Override
+    protected long parseCapacity(String cacheSize) {
+        return parseMemorySize(cacheSize);
+    }
+
+    /**
+     * Parse a memory size such as 512MB, 64m or 1G into a number of bytes.
+     *
+     * @param size the memory size
+     * @return the number of bytes
+     * @throws NumberFormatException if the size can't be parsed
+     */
+    static long parseMemorySize(String size) {
+        String str = size.trim().toUpperCase();
+        if (str.endsWith("B")) { //$NON-NLS-1$
+            str = str.substring(0, str.length() - 1).trim();
+        }
+        long factor = 1;
+        if (str.endsWith("K")) { //$NON-NLS-1$
+            factor = 1024L;
+        } else if (str.endsWith("M")) { //$NON-NLS-1$
+            factor = 1024L * 1024;
+        } else if (str.endsWith("G")) { //$NON-NLS-1$
+            factor = 1024L * 1024 * 1024;
+        }
+        if (factor > 1) {
+            str = str.substring(0, str.length() - 1).trim();
+        }
+        return Long.parseLong(str) * factor;
+    }
+
+    /**
+     * Estimate the retained size of a cache entry.
+     */
+    @Override
+    protected long weigh(Object key, Object value) {
+        if (!(value instanceof Node)) {
+            return REFERENCE_SIZE;
+        }
+        Node node = (Node) value;
+        if (node.isNullNode()) {
+            return NULL_NODE_SIZE;
+        }
+        if (node.getState() == Node.TRANSIENT || !key.equals(node.getKey())) {
+            // the node itself is counted with its primary key
+            return REFERENCE_SIZE;
+        }
+        return estimateSize(node);
+    }
+
+    /**
+     * Estimate the retained size of a node.
+     *
+     * @param node the node
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(Node node) {
+        long size = NODE_SIZE + sizeOf(node.getName());
+
+        Map propMap = node.getPropMap();
+        if (propMap != null) {
+            for (Iterator it = propMap.values().iterator(); it.hasNext(); ) {
+                Property prop = (Property) it.next();
+                // don't fetch lazily loaded large objects just to weigh them
+                Object value = prop.getLob() == null ? prop.getValue() : null;
+                size += PROPERTY_SIZE + sizeOf(prop.getName()) + sizeOf(value);
+            }
+        }
+
+        SubnodeList subnodes = node.getSubnodeList();
+        if (subnodes != null) {
+            size += OBJECT_SIZE + (long) subnodes.size() * SUBNODE_SIZE;
+        }
+
+        return size;
+    }
+
+    private static long sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return STRING_SIZE + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return ARRAY_SIZE + ((byte[]) value).length;
+        } else if (value instanceof char[]) {
+            return ARRAY_SIZE + 2L * ((char[]) value).length;
+        } else if (value instanceof NodeHandle) {
+            return REFERENCE_SIZE;
+        }
+        return OBJECT_SIZE;
+    }
+
+    /**
+     * Get the estimated memory used by cached nodes for each prototype. The
+     * returned map contains a map for each prototype, holding the number of
+     * cached entries as count and their estimated size in bytes as bytes.
+     *
+     * @return a map of prototype names to memory usage maps
+     */
+    public Map getMemoryUsage() {
+        ArrayList entries = new ArrayList();
+        getEntries(entries);
+
+        HashMap usage = new HashMap();
+        for (int i = 0; i < entries.size(); i++) {
+            Object[] entry = (Object[]) entries.get(i);
+            String prototype = getPrototypeName(entry[1]);
+            long[] counters = (long[]) usage.get(prototype);
+            if (counters == null) {
+                counters = new long[2];
+                usage.put(prototype, counters);
+            }
+            counters[0] += 1;
+            counters[1] += ((Long) entry[2]).longValue();
+        }
+
+        HashMap result = new HashMap();
+        for (Iterator it = usage.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long[] counters = (long[]) entry.getValue();
+            HashMap map = new HashMap();
+            map.put("count", new Long(counters[0])); //$NON-NLS-1$
+            map.put("bytes", new Long(counters[1])); //$NON-NLS-1$
+            result.put(entry.getKey(), map);
+        }
+        return result;
+    }
+
+    private static String getPrototypeName(Object value) {
+        if (!(value instanceof Node)) {
+            return "unknown"; //$NON-NLS-1$
+        }
+        Node node = (Node) value;
+        if (node.isNullNode()) {
+            return "null"; //$NON-NLS-1$
+        }
+        String prototype = node.getPrototype();
+        return prototype == null ? "unknown" : prototype; //$NON-NLS-1$
+    }
+}
@@ -18,6 +18,7 @@ package helma.objectmodel.db;
 
 import helma.objectmodel.ObjectNotFoundException;
 
+import java.io.OutputStream;
 import java.util.Vector;
 import java.util.List;
 
@@ -72,6 +73,16 @@ public final class WrappedNodeManager {
         }
     }
 
+    /**
+     * Get a node from the node cache without fetching it from the database.
+     *
+     * @param key the node's key
+     * @return the cached node, or null if it isn't cached
+     */
+    public Node getCachedNode(KeyInterface key) {
+        return this.nmgr.getCachedNode(key);
+    }
+
     /**
      * Get the node specified by the given id and Relation.
      *
@@ -170,6 +181,73 @@ public final class WrappedNodeManager {
         }
     }
 
+    /**
+     * Load the node referenced by a property together with the nodes referenced
+     * by the same property of the node's siblings. Errors are only logged, as
+     * the referenced node can still be loaded on its own.
+     *
+     * @param owner the node holding the reference
+     * @param propname the name of the reference property
+     * @param handle the handle to the referenced node
+     */
+    public void prefetchReferences(Node owner, String propname, NodeHandle handle) {
+        try {
+            this.nmgr.prefetchReferences(owner, propname, handle);
+        } catch (Exception x) {
+            this.nmgr.app.logError(Messages.getString("WrappedNodeManager.15") + propname, x); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Fetch the value of a lazily loaded column along with the other
+     * columns of its group.
+     *
+     * @param lob the lazy column handle
+     * @param node the node holding the property
+     * @return the value
+     */
+    public Object loadLob(LazyLob lob, Node node) {
+        Transactor tx = checkLocalTransactor();
+        try {
+            beginLocalTransaction(tx, "loadLob"); //$NON-NLS-1$
+            Object value = this.nmgr.loadLob(lob, node);
+            commitLocalTransaction(tx);
+            return value;
+        } catch (Exception x) {
+            abortLocalTransaction(tx);
+            throw new RuntimeException(Messages.getString("WrappedNodeManager.14") + lob, x); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Stream the value of a lazily loaded large object column to an output stream.
+     *
+     * @param lob the large object handle
+     * @param out the output stream
+     * @param charset the charset used to encode character values
+     */
+    public void streamLob(LazyLob lob, OutputStream out, String charset) {
+        Transactor tx = checkLocalTransactor();
+        try {
+            beginLocalTransaction(tx, "streamLob"); //$NON-NLS-1$
+            this.nmgr.streamLob(lob, out, charset);
+            commitLocalTransaction(tx);
+        } catch (Exception x) {
+            abortLocalTransaction(tx);
+            throw new RuntimeException(Messages.getString("WrappedNodeManager.14") + lob, x); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Check if a large object value is small enough to be kept in the node cache.
+     *
+     * @param value the value
+     * @return true if the value may be kept
+     */
+    public boolean isLobCacheable(Object value) {
+        return this.nmgr.isLobCacheable(value);
+    }
+
     /**
      * Delete a node from the database
      *
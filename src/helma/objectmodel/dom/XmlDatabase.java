@@ -220,6 +220,22 @@ public final class XmlDatabase implements DatabaseInterface {
         return this.idgen.newID();
     }
 
+    /**
+     * Reserve a block of ids for new objects to be stored. The id generator
+     * is only written once per block.
+     *
+     * @param size the number of ids to reserve
+     * @return the first id of the block
+     * @throws ObjectNotFoundException
+     */
+    public long nextIDBlock(int size) throws ObjectNotFoundException {
+        if (this.idgen == null) {
+            getIDGenerator();
+        }
+
+        return this.idgen.newIDBlock(size);
+    }
+
     /**
      * Get the id-generator for this database.
      *
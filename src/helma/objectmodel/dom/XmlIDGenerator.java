@@ -57,6 +57,17 @@ public class XmlIDGenerator {
         return Long.toString(this.counter);
     }
 
+    /**
+     * Delivers the first id of a block of ids and increases counter by size.
+     */
+    public synchronized long newIDBlock(int size) {
+        long first = this.counter + 1L;
+        this.counter += size;
+        this.dirty = true;
+
+        return first;
+    }
+
     /**
      * Set the counter to a new value
      */
@@ -29,8 +29,10 @@ import helma.util.HtmlEncoder;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
 
 /**
@@ -273,13 +275,13 @@ public class XmlWriter extends OutputStreamWriter implements XmlConstantsInterfa
         if (this.dbmode && node instanceof Node) {
             // a newly constructed db.Node doesn't have a propMap,
             // but returns an enumeration of all it's db-mapped properties
-            Hashtable props = ((Node) node).getPropMap();
+            Map props = ((Node) node).getPropMap();
 
             if (props == null) {
                 return;
             }
 
-            e = props.keys();
+            e = Collections.enumeration(new ArrayList(props.keySet()));
         } else {
             e = node.properties();
         }
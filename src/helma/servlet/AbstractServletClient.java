@@ -25,6 +25,10 @@ package helma.servlet;
 
 import helma.framework.*;
 import helma.framework.core.Application;
+import helma.framework.core.ContinuationManager;
+import helma.framework.core.ResponseCache;
+import helma.framework.core.ResponseCompressor;
+import helma.objectmodel.db.LazyLob;
 import helma.util.*;
 import java.io.*;
 import java.util.*;
@@ -37,6 +41,8 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.*;
 import org.apache.commons.fileupload.servlet.ServletRequestContext;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
 
 /**
  * This is an abstract Hop servlet adapter. This class communicates with hop applications
@@ -46,6 +52,12 @@ public abstract class AbstractServletClient extends HttpServlet {
 
     private static final long serialVersionUID = -6096445259839663680L;
 
+    // request attributes used to keep track of suspended requests
+    static final String CONTINUATION = "helma.servlet.continuation"; //$NON-NLS-1$
+    static final String SUSPEND_KEY = "helma.servlet.suspendKey"; //$NON-NLS-1$
+    static final String RESUMED = "helma.servlet.resumed"; //$NON-NLS-1$
+    static final String DETACHED = "helma.servlet.detached"; //$NON-NLS-1$
+
     // limit to HTTP uploads per file in kB
     int uploadLimit = 1024;
 
@@ -163,10 +175,50 @@ public abstract class AbstractServletClient extends HttpServlet {
     @Override
     protected void service (HttpServletRequest request, HttpServletResponse response)
                 throws IOException {
+        ResponseTrans suspended;
+
+        // check if this is a request that has been run on a request thread of its own
+        DetachedRequest detached = (DetachedRequest) request.getAttribute(DETACHED);
+        if (detached != null) {
+            request.removeAttribute(DETACHED);
+            detached.continuation.reset();
+            suspended = completeDetached(request, response, detached);
+        } else {
+            suspended = executeRequest(request, response);
+        }
 
+        // with blocking connectors we get here again once the suspended request
+        // is resumed or expired, and run it again ourselves
+        while (suspended != null) {
+            suspend(request, response, suspended);
+            suspended = executeRequest(request, response);
+        }
+    }
+
+    /**
+     * Execute a request and write its response.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @return the response if the request was suspended, null otherwise
+     * @throws IOException if writing the response fails
+     */
+    ResponseTrans executeRequest(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+        DetachedRequest detached = null;
         RequestTrans reqtrans = new RequestTrans(request, response, getPathInfo(request));
+        ResponseTrans suspended = null;
+
+        // check if this is a previously suspended request being run again
+        checkResumed(request, reqtrans);
 
         try {
+            // serve anonymous requests from the response cache if possible
+            if (!reqtrans.isResumed() && !reqtrans.isExpired() &&
+                    writeCachedResponse(request, response, reqtrans.getPath())) {
+                return null;
+            }
+
             // get the character encoding
             String encoding = request.getCharacterEncoding();
 
@@ -253,57 +305,233 @@ public abstract class AbstractServletClient extends HttpServlet {
                                 HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE:
                                 HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                         sendError(response, errorCode, Messages.getString("AbstractServletClient.6") + message); //$NON-NLS-1$
-                        return;
+                        return null;
                     }
                 }
             }
 
-            ResponseTrans restrans = getApplication().execute(reqtrans);
+            if (getApplication().isVirtualExecution()) {
+                // run the request on a thread of its own after leaving this try block.
+                // The response is written by the container thread once the request is
+                // done, so streaming the response isn't available to these requests.
+                detached = new DetachedRequest(reqtrans, uploads, resCookieDomain);
+            } else {
+                // let streaming responses commit their headers
+                reqtrans.setHeaderWriter(new HeaderWriter(request, response, resCookieDomain));
+
+                ResponseTrans restrans = getApplication().execute(reqtrans);
 
-            // delete uploads if any
-            if (uploads != null) {
-                for (int i = 0; i < uploads.size(); i++) {
-                    ((FileItem) uploads.get(i)).delete();
-                }
+                suspended = completeRequest(request, response, reqtrans, restrans,
+                                            uploads, resCookieDomain);
             }
+        } catch (Exception x) {
+            handleError(response, x);
+        }
 
-            // if the response was already written and committed by the application
-            // we can skip this part and return
-            if (response.isCommitted()) {
-                return;
+        // suspending may throw an exception that must reach the container,
+        // so we do this after leaving the try block
+        if (detached != null) {
+            return runDetached(request, response, detached);
+        }
+        return suspended;
+    }
+
+    /**
+     * Complete a request after the application has executed it by writing its
+     * response, unless it has been suspended.
+     *
+     * @return the response if the request was suspended, null otherwise
+     */
+    ResponseTrans completeRequest(HttpServletRequest request, HttpServletResponse response,
+                                  RequestTrans reqtrans, ResponseTrans restrans,
+                                  List uploads, String resCookieDomain)
+            throws Exception {
+        // delete uploads if any
+        if (uploads != null) {
+            for (int i = 0; i < uploads.size(); i++) {
+                ((FileItem) uploads.get(i)).delete();
             }
+        }
 
-            // set cookies
-            if (restrans.countCookies() > 0) {
-                CookieTrans[] resCookies = restrans.getCookies();
+        // if the request was suspended we let the caller do so
+        if (restrans.isSuspended()) {
+            return restrans;
+        }
 
-                for (int i = 0; i < resCookies.length; i++)
-                    try {
-                        Cookie c = resCookies[i].getCookie("/", resCookieDomain); //$NON-NLS-1$
+        // if the response was already written and committed by the application
+        // we can skip this part and return
+        if (response.isCommitted()) {
+            return null;
+        }
 
-                        response.addCookie(c);
-                    } catch (Exception x) {
-                        getApplication().logEvent(Messages.getString("AbstractServletClient.7") + x); //$NON-NLS-1$
-                    }
-            }
+        // set cookies
+        addCookies(response, restrans, resCookieDomain);
 
-            // write response
-            writeResponse(request, response, restrans);
-        } catch (Exception x) {
-            log(Messages.getString("AbstractServletClient.8"), x); //$NON-NLS-1$
+        // store the response in the response cache if it asked for it
+        getApplication().getResponseCache().put(request, reqtrans, restrans);
+
+        // write response
+        writeResponse(request, response, restrans);
+        return null;
+    }
+
+    /**
+     * Send an error response for an exception thrown while serving a request.
+     *
+     * @param response the servlet response
+     * @param x the exception
+     */
+    void handleError(HttpServletResponse response, Exception x) {
+        if (x instanceof ServiceUnavailableException) {
+            // the application is too busy to serve this request
             try {
-                if (this.debug) {
-                    sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                              Messages.getString("AbstractServletClient.9") + x); //$NON-NLS-1$
-                } else {
-                    sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                              Messages.getString("AbstractServletClient.10") + //$NON-NLS-1$
-                              Messages.getString("AbstractServletClient.11")); //$NON-NLS-1$
-                }
+                sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                          Messages.getString("AbstractServletClient.20")); //$NON-NLS-1$
             } catch (IOException iox) {
                 log(Messages.getString("AbstractServletClient.12"), iox); //$NON-NLS-1$
             }
+            return;
+        }
+
+        log(Messages.getString("AbstractServletClient.8"), x); //$NON-NLS-1$
+        try {
+            if (this.debug) {
+                sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                          Messages.getString("AbstractServletClient.9") + x); //$NON-NLS-1$
+            } else {
+                sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                          Messages.getString("AbstractServletClient.10") + //$NON-NLS-1$
+                          Messages.getString("AbstractServletClient.11")); //$NON-NLS-1$
+            }
+        } catch (IOException iox) {
+            log(Messages.getString("AbstractServletClient.12"), iox); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Run a request on a request thread of its own, releasing the container thread
+     * while the request is executed. With Jetty's non-blocking connectors this throws
+     * a RetryRequest exception, and the container calls service() again once the
+     * request is done. Otherwise the calling thread waits for the request and
+     * completes it right away.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param detached the request to run
+     * @return the response if the request was suspended, null otherwise
+     */
+    ResponseTrans runDetached(HttpServletRequest request, HttpServletResponse response,
+                              DetachedRequest detached) {
+        Continuation continuation = ContinuationSupport.getContinuation(request, null);
+
+        if (!continuation.isNew()) {
+            continuation.reset();
+        }
+        detached.continuation = continuation;
+        request.setAttribute(DETACHED, detached);
+        getApplication().createRequestThread(detached,
+                getApplication().getName() + "-request").start(); //$NON-NLS-1$
+
+        // the request thread sets done and resumes the continuation while holding
+        // its lock, so the request can't complete unnoticed before we're suspended
+        synchronized (continuation) {
+            while (!detached.done) {
+                continuation.suspend(0);
+            }
+        }
+
+        // we're still here, so the thread was blocked until the request was done
+        request.removeAttribute(DETACHED);
+        return completeDetached(request, response, detached);
+    }
+
+    /**
+     * Complete a request that has been run on a request thread of its own.
+     *
+     * @return the response if the request was suspended, null otherwise
+     */
+    ResponseTrans completeDetached(HttpServletRequest request, HttpServletResponse response,
+                                   DetachedRequest detached) {
+        try {
+            if (detached.error != null) {
+                throw detached.error;
+            }
+            return completeRequest(request, response, detached.reqtrans,
+                    detached.restrans, detached.uploads, detached.cookieDomain);
+        } catch (Exception x) {
+            handleError(response, x);
+            return null;
+        }
+    }
+
+    /**
+     * Suspend a request until it is resumed or expires. With Jetty's non-blocking
+     * connectors this throws a RetryRequest exception, releasing the container
+     * thread, and the container calls service() again once the request is resumed.
+     * Otherwise the calling thread waits for the request to be resumed, and the
+     * caller runs the request again. Either way, no request evaluator is held
+     * while the request is suspended.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param restrans the response of the suspended request
+     */
+    void suspend(HttpServletRequest request, HttpServletResponse response,
+                 ResponseTrans restrans) {
+        Continuation continuation = ContinuationSupport.getContinuation(request, null);
+        ContinuationManager.Reservation reservation = restrans.getSuspension();
+
+        if (!continuation.isNew()) {
+            // the request is suspended again after being resumed
+            continuation.reset();
+        }
+        continuation.setObject(null);
+        request.setAttribute(CONTINUATION, continuation);
+        request.setAttribute(SUSPEND_KEY, restrans.getSuspendKey());
+
+        boolean resumed;
+        // resume() takes the continuation's lock, so it can't get in
+        // between registering and suspending the continuation
+        synchronized (continuation) {
+            if (getApplication().getContinuationManager().register(reservation, continuation)) {
+                resumed = continuation.suspend(restrans.getSuspendTimeout());
+            } else {
+                // resumed before we got here, run the request again right away
+                continuation.setObject(reservation.getValue());
+                resumed = true;
+            }
         }
+
+        // we're still here, so the thread was blocked until the request was
+        // resumed or expired, or the request had been resumed already.
+        request.setAttribute(RESUMED, Boolean.valueOf(resumed));
+    }
+
+    /**
+     * Check if a request is a previously suspended request being run again, and
+     * if so, let the application know whether it was resumed or expired.
+     *
+     * @param request the servlet request
+     * @param reqtrans the request
+     */
+    void checkResumed(HttpServletRequest request, RequestTrans reqtrans) {
+        Continuation continuation = (Continuation) request.getAttribute(CONTINUATION);
+        if (continuation == null) {
+            return;
+        }
+
+        Object key = request.getAttribute(SUSPEND_KEY);
+        Boolean resumed = (Boolean) request.getAttribute(RESUMED);
+        request.removeAttribute(CONTINUATION);
+        request.removeAttribute(SUSPEND_KEY);
+        request.removeAttribute(RESUMED);
+
+        // an expired request is still registered with the application
+        getApplication().getContinuationManager().unregister(key, continuation);
+
+        reqtrans.setResumed(resumed != null ?
+                resumed.booleanValue() : continuation.isResumed(),
+                continuation.getObject());
     }
 
     protected void writeResponse(HttpServletRequest req, HttpServletResponse res,
@@ -321,40 +549,52 @@ public abstract class AbstractServletClient extends HttpServlet {
         if (hopres.getRedirect() != null) {
             sendRedirect(req, res, hopres.getRedirect(), hopres.getStatus());
         } else if (hopres.getNotModified()) {
+            // confirm the variant the client has
+            String etag = getMatchingETag(req, hopres.getETag());
+            if (etag != null) {
+                res.setHeader("ETag", etag); //$NON-NLS-1$
+            }
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         } else {
-            if (!hopres.isCacheable() || !this.caching) {
-                // Disable caching of response.
-                if (isOneDotOne(req.getProtocol())) {
-                    // for HTTP 1.1
-                    res.setHeader("Cache-Control", //$NON-NLS-1$
-                                  "no-cache, no-store, must-revalidate, max-age=0"); //$NON-NLS-1$
-                } else {
-                    // for HTTP 1.0
-                    res.setDateHeader("Expires", System.currentTimeMillis() - 10000); //$NON-NLS-1$
-                    res.setHeader("Pragma", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
-                }
-            }
+            writeHeaders(req, res, hopres);
 
-            if (hopres.getRealm() != null) {
-                res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            // stream a large object straight from the database
+            LazyLob lob = hopres.getLob();
+            if (lob != null) {
+                if (!"HEAD".equalsIgnoreCase(req.getMethod())) { //$NON-NLS-1$
+                    try {
+                        OutputStream out = res.getOutputStream();
+                        lob.writeTo(out, hopres.getCharset());
+                        out.flush();
+                    } catch (Exception iox) {
+                        log(Messages.getString("AbstractServletClient.13") + iox); //$NON-NLS-1$
+                    }
+                }
+                return;
             }
 
-            if (hopres.getStatus() > 0) {
-                res.setStatus(hopres.getStatus());
+            // compress the response body if the client accepts it
+            byte[] content = hopres.getContent();
+            ResponseCompressor compressor = getApplication().getResponseCompressor();
+            String encoding = null;
+            if (compressor.isCompressible(hopres.getContentType())) {
+                res.addHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+                if (content != null) {
+                    encoding = compressor.getEncoding(req, hopres.getContentType(), content.length);
+                }
             }
-
-            // set last-modified header to now
-            long modified = hopres.getLastModified();
-            if (modified > -1) {
-                res.setDateHeader("Last-Modified", modified); //$NON-NLS-1$
+            if (encoding != null) {
+                content = compressor.compress(content, encoding);
+                res.setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+                res.setContentLength(content.length);
+                if (hopres.getETag() != null) {
+                    res.setHeader("ETag", ResponseCompressor.getETag(hopres.getETag(), encoding)); //$NON-NLS-1$
+                }
+            } else {
+                res.setContentLength(hopres.getContentLength());
             }
 
-            res.setContentLength(hopres.getContentLength());
-            res.setContentType(hopres.getContentType());
-
             if (!"HEAD".equalsIgnoreCase(req.getMethod())) { //$NON-NLS-1$
-                byte[] content = hopres.getContent();
                 if (content != null) {
                     try {
                         OutputStream out = res.getOutputStream();
@@ -368,6 +608,146 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
     }
 
+    /**
+     * Write the status and headers of a response, except for the ETag and
+     * content length headers.
+     *
+     * @param req the servlet request
+     * @param res the servlet response
+     * @param hopres the Helma response
+     */
+    void writeHeaders(HttpServletRequest req, HttpServletResponse res, ResponseTrans hopres) {
+        if (!hopres.isCacheable() || !this.caching) {
+            // Disable caching of response.
+            setNoCacheHeaders(req, res);
+        }
+
+        if (hopres.getRealm() != null) {
+            res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        if (hopres.getStatus() > 0) {
+            res.setStatus(hopres.getStatus());
+        }
+
+        // set last-modified header to now
+        long modified = hopres.getLastModified();
+        if (modified > -1) {
+            res.setDateHeader("Last-Modified", modified); //$NON-NLS-1$
+        }
+
+        res.setContentType(hopres.getContentType());
+    }
+
+    /**
+     * Add the cookies set by the application to the servlet response.
+     *
+     * @param response the servlet response
+     * @param restrans the Helma response
+     * @param cookieDomain the cookie domain to use for the response, or null
+     */
+    void addCookies(HttpServletResponse response, ResponseTrans restrans, String cookieDomain) {
+        if (restrans.countCookies() > 0) {
+            CookieTrans[] resCookies = restrans.getCookies();
+
+            for (int i = 0; i < resCookies.length; i++)
+                try {
+                    Cookie c = resCookies[i].getCookie("/", cookieDomain); //$NON-NLS-1$
+
+                    response.addCookie(c);
+                } catch (Exception x) {
+                    getApplication().logEvent(Messages.getString("AbstractServletClient.7") + x); //$NON-NLS-1$
+                }
+        }
+    }
+
+    /**
+     * Write a response from the application's response cache, if there is one
+     * for the request.
+     *
+     * @param req the servlet request
+     * @param res the servlet response
+     * @param path the request path
+     * @return true if the response was written from the cache
+     * @throws IOException if writing the response fails
+     */
+    boolean writeCachedResponse(HttpServletRequest req, HttpServletResponse res, String path)
+            throws IOException {
+        ResponseCache cache = getApplication().getResponseCache();
+        ResponseCache.Entry entry = cache.get(req, path);
+        if (entry == null || !cache.isAnonymous(req, this.sessionCookieName)) {
+            return false;
+        }
+
+        String[] vary = entry.getVaryHeaders();
+        for (int i = 0; i < vary.length; i++) {
+            res.addHeader("Vary", vary[i]); //$NON-NLS-1$
+        }
+
+        if (!entry.isCacheable() || !this.caching) {
+            setNoCacheHeaders(req, res);
+        }
+
+        byte[] content = entry.getContent();
+        ResponseCompressor compressor = getApplication().getResponseCompressor();
+        String encoding = null;
+        if (compressor.isCompressible(entry.getContentType())) {
+            res.addHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+            encoding = compressor.getEncoding(req, entry.getContentType(), content.length);
+        }
+
+        String etag = ResponseCompressor.getETag(entry.getETag(), encoding);
+        if (etag != null) {
+            res.setHeader("ETag", etag); //$NON-NLS-1$
+            if (getMatchingETag(req, entry.getETag()) != null) {
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+
+        if (entry.getLastModified() > -1) {
+            res.setDateHeader("Last-Modified", entry.getLastModified()); //$NON-NLS-1$
+        }
+
+        if (encoding != null) {
+            // compressed variants are kept with the cached response
+            content = entry.getContent(encoding, compressor);
+            res.setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+        }
+        res.setContentLength(content.length);
+        res.setContentType(entry.getContentType());
+
+        if (!"HEAD".equalsIgnoreCase(req.getMethod())) { //$NON-NLS-1$
+            try {
+                OutputStream out = res.getOutputStream();
+                out.write(content);
+                out.flush();
+            } catch (Exception iox) {
+                log(Messages.getString("AbstractServletClient.13") + iox); //$NON-NLS-1$
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Set headers that disable caching of the response by clients and proxies.
+     *
+     * @param req the servlet request
+     * @param res the servlet response
+     */
+    void setNoCacheHeaders(HttpServletRequest req, HttpServletResponse res) {
+        if (isOneDotOne(req.getProtocol())) {
+            // for HTTP 1.1
+            res.setHeader("Cache-Control", //$NON-NLS-1$
+                          "no-cache, no-store, must-revalidate, max-age=0"); //$NON-NLS-1$
+        } else {
+            // for HTTP 1.0
+            res.setDateHeader("Expires", System.currentTimeMillis() - 10000); //$NON-NLS-1$
+            res.setHeader("Pragma", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
     void sendError(HttpServletResponse response, int code, String message)
             throws IOException {
         if (response.isCommitted()) {
@@ -464,16 +844,38 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
 
         File file = new File(path);
+
+        // pick the encoding first, as the ETag depends on it
+        ResponseCompressor compressor = getApplication().getResponseCompressor();
+        String encoding = null;
+        if (compressor.isCompressible(hopres.getContentType())) {
+            res.addHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+            encoding = compressor.getFileEncoding(req, hopres.getContentType(), file);
+        }
+
         // check if the client has an up-to-date copy so we can
         // send a not-modified response
-        if (checkNotModified(file, req, res)) {
+        if (checkNotModified(file, req, res, encoding)) {
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
         int length = (int) file.length();
-        res.setContentLength(length);
         res.setContentType(hopres.getContentType());
 
+        // send a compressed copy of the file if the client accepts it
+        if (encoding != null) {
+            byte[] content = compressor.getCompressedFile(file, encoding);
+            if (content != null) {
+                res.setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+                res.setContentLength(content.length);
+                if (!"HEAD".equalsIgnoreCase(req.getMethod())) { //$NON-NLS-1$
+                    res.getOutputStream().write(content);
+                }
+                return;
+            }
+        }
+        res.setContentLength(length);
+
         InputStream in = cx.getResourceAsStream(forward);
         if (in == null) {
             throw new IOException(Messages.getString("AbstractServletClient.17") + path); //$NON-NLS-1$
@@ -503,7 +905,31 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
     }
 
-    private boolean checkNotModified(File file, HttpServletRequest req, HttpServletResponse res) {
+    /**
+     * Find the ETag in the If-None-Match request header that matches the given
+     * ETag of an uncompressed response, or any of its compressed variants.
+     *
+     * @param req the servlet request
+     * @param etag the ETag of the uncompressed response
+     * @return the matching ETag sent by the client, or null
+     */
+    String getMatchingETag(HttpServletRequest req, String etag) {
+        String etagHeader = req.getHeader("If-None-Match"); //$NON-NLS-1$
+        if (etagHeader == null || etag == null) {
+            return null;
+        }
+        StringTokenizer st = new StringTokenizer(etagHeader, ", \r\n"); //$NON-NLS-1$
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken();
+            if (etag.equals(ResponseCompressor.stripETag(token))) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private boolean checkNotModified(File file, HttpServletRequest req, HttpServletResponse res,
+                                     String encoding) {
         // we do two rounds of conditional requests:
         // first ETag based, then based on last modified date.
         // calculate ETag checksum on last modified date and content length.
@@ -519,15 +945,9 @@ public abstract class AbstractServletClient extends HttpServlet {
             n >>>= 8;
         }
         String etag = "\"" + new String(Base64.encodeBase64(checksum)) + "\"";  //$NON-NLS-1$//$NON-NLS-2$
-        res.setHeader("ETag", etag); //$NON-NLS-1$
-        String etagHeader = req.getHeader("If-None-Match"); //$NON-NLS-1$
-        if (etagHeader != null) {
-            StringTokenizer st = new StringTokenizer(etagHeader, ", \r\n"); //$NON-NLS-1$
-            while (st.hasMoreTokens()) {
-                if (etag.equals(st.nextToken())) {
-                    return true;
-                }
-            }
+        res.setHeader("ETag", ResponseCompressor.getETag(etag, encoding)); //$NON-NLS-1$
+        if (getMatchingETag(req, etag) != null) {
+            return true;
         }
         // as a fallback, since some browsers don't support ETag based
         // conditional GET for embedded images and stuff, check last modified date.
@@ -899,4 +1319,63 @@ public abstract class AbstractServletClient extends HttpServlet {
     public String getServletInfo() {
         return Messages.getString("AbstractServletClient.19"); //$NON-NLS-1$
     }
+
+    /**
+     * A request run on a request thread of its own while the container
+     * thread is released.
+     */
+    class DetachedRequest implements Runnable {
+        final RequestTrans reqtrans;
+        final List uploads;
+        final String cookieDomain;
+        Continuation continuation;
+        volatile ResponseTrans restrans;
+        volatile Exception error;
+        volatile boolean done;
+
+        DetachedRequest(RequestTrans reqtrans, List uploads, String cookieDomain) {
+            this.reqtrans = reqtrans;
+            this.uploads = uploads;
+            this.cookieDomain = cookieDomain;
+        }
+
+        public void run() {
+            try {
+                this.restrans = getApplication().execute(this.reqtrans);
+            } catch (Exception x) {
+                this.error = x;
+            } catch (Throwable t) {
+                this.error = new RuntimeException(t);
+            } finally {
+                synchronized (this.continuation) {
+                    this.done = true;
+                    this.continuation.resume();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits the status, headers and cookies of a streaming response
+     * when it is flushed for the first time.
+     */
+    class HeaderWriter implements HeaderWriterInterface {
+        final HttpServletRequest request;
+        final HttpServletResponse response;
+        final String cookieDomain;
+
+        HeaderWriter(HttpServletRequest request, HttpServletResponse response, String cookieDomain) {
+            this.request = request;
+            this.response = response;
+            this.cookieDomain = cookieDomain;
+        }
+
+        public void writeHeaders(ResponseTrans res) throws IOException {
+            addCookies(this.response, res, this.cookieDomain);
+            if (res.getETag() != null) {
+                this.response.setHeader("ETag", res.getETag()); //$NON-NLS-1$
+            }
+            AbstractServletClient.this.writeHeaders(this.request, this.response, res);
+        }
+    }
 }
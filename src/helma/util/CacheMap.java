@@ -29,11 +29,13 @@
 // Moved to helma.util to use java.util.HashMap instead of java.util.Hashtable
 package helma.util;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Properties;
 
 import helma.framework.core.Application;
+import helma.objectmodel.CacheEvictionListenerInterface;
 import helma.objectmodel.ObjectCacheInterface;
 
 
@@ -66,6 +68,9 @@ public class CacheMap implements ObjectCacheInterface {
     // the application to output messages to
     private Application app = null;
 
+    // the listener to notify about entries dropped on table rotation
+    private CacheEvictionListenerInterface evictionListener = null;
+
     /**
      * Zero argument constructor. Creates a CacheMap with capacity of 1000
      * and load factor 0.75
@@ -253,6 +258,12 @@ public class CacheMap implements ObjectCacheInterface {
             if (this.app != null)
                 this.app.logEvent(Messages.getString("CacheMap.1") + this.newTable.size() + //$NON-NLS-1$
                         "/" + this.oldTable.size() + Messages.getString("CacheMap.2")); //$NON-NLS-1$ //$NON-NLS-2$
+            if (this.evictionListener != null) {
+                for (Iterator it = this.oldTable.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    this.evictionListener.entryEvicted(entry.getKey(), entry.getValue());
+                }
+            }
             this.oldTable = this.newTable;
             this.newTable = createTable(this.eachCapacity, this.loadFactor);
         }
@@ -283,6 +294,12 @@ public class CacheMap implements ObjectCacheInterface {
         clear();
     }
 
+    /// Set the listener to notify about entries that are dropped from
+    //  the cache when the tables are rotated.
+    public synchronized void setEvictionListener(CacheEvictionListenerInterface listener) {
+        this.evictionListener = listener;
+    }
+
     /// Set the application to use for debug and profiling output
     public void init(Application app) {
         this.app = app;
@@ -0,0 +1,641 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import helma.framework.core.Application;
+import helma.objectmodel.CacheEvictionListenerInterface;
+import helma.objectmodel.ConcurrentObjectCacheInterface;
+
+import java.util.*;
+
+/**
+ * A thread safe object cache for use as cacheimpl in app.properties. The cache is
+ * split into a number of segments with their own locks, so threads accessing
+ * different keys rarely contend. Each segment follows the W-TinyLFU design: new
+ * entries go to a small LRU admission window, and entries leaving the window are
+ * only admitted to the main LRU space if they have been used more frequently than
+ * the entry they would replace, as estimated by a count-min sketch. This keeps
+ * one-off scans from flushing frequently used objects out of the cache. The main
+ * space is split into a probation and a protected part, entries are moved to
+ * the protected part when they are accessed a second time.
+ */
+public class ConcurrentCacheMap implements ConcurrentObjectCacheInterface {
+
+    // entry regions within a segment
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    // the segments
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    // the total capacity of the cache
+    private volatile long capacity = -1;
+
+    // the application to output messages to
+    Application app = null;
+
+    // the listener to notify about evicted entries
+    private volatile CacheEvictionListenerInterface evictionListener = null;
+
+    /**
+     * Zero argument constructor. Creates a ConcurrentCacheMap with capacity of 1000.
+     */
+    public ConcurrentCacheMap() {
+        this(1000);
+    }
+
+    /**
+     * Create a ConcurrentCacheMap with the given capacity.
+     *
+     * @param capacity the capacity of the cache
+     */
+    public ConcurrentCacheMap(long capacity) {
+        // use about four segments per processor, up to 64 segments
+        int count = 1;
+        int shift = 32;
+        int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 4);
+        while (count < target) {
+            count <<= 1;
+            shift -= 1;
+        }
+        this.segmentShift = shift;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment();
+        }
+        setCapacity(capacity);
+    }
+
+    /**
+     * Set the capacity of the cache.
+     *
+     * @param newCapacity the new capacity
+     */
+    public void setCapacity(long newCapacity) {
+        if (newCapacity == this.capacity) {
+            return;
+        }
+        if (this.app != null) {
+            this.app.logEvent(Messages.getString("ConcurrentCacheMap.0") + newCapacity); //$NON-NLS-1$
+        }
+        this.capacity = newCapacity;
+        long perSegment = (newCapacity + this.segments.length - 1) / this.segments.length;
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i].setCapacity(Math.max(1, perSegment));
+        }
+    }
+
+    /**
+     * Set the listener to notify when entries are evicted from the cache.
+     *
+     * @param listener the listener, or null
+     */
+    public void setEvictionListener(CacheEvictionListenerInterface listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @return the capacity of the cache
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Get the weight of a cache entry. The sum of the weights of all entries
+     * is kept below the cache capacity. The default implementation gives every
+     * entry a weight of 1, so the capacity is the maximum number of entries.
+     * This is called without holding a segment lock.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the weight of the entry
+     */
+    protected long weigh(Object key, Object value) {
+        return 1;
+    }
+
+    /**
+     * Parse the cachesize property into a capacity. The default implementation
+     * expects the maximum number of entries.
+     *
+     * @param cacheSize the cachesize property value
+     * @return the capacity
+     * @throws NumberFormatException if the value can't be parsed
+     */
+    protected long parseCapacity(String cacheSize) {
+        return Long.parseLong(cacheSize.trim());
+    }
+
+    /**
+     * @return the cache size to use if the cachesize property isn't set
+     */
+    protected String getDefaultCacheSize() {
+        return "1000"; //$NON-NLS-1$
+    }
+
+    /**
+     * Spread the hash code of a key so that both the segment and the
+     * sketch counters are chosen from well distributed bits.
+     */
+    static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segmentShift == 32 ? this.segments[0] : this.segments[hash >>> this.segmentShift];
+    }
+
+    public boolean containsKey(Object key) {
+        int h = hash(key);
+        return segmentFor(h).containsKey(key);
+    }
+
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && containsKey(keys[i])) {
+                keys[i] = null;
+            } else {
+                notfound++;
+            }
+        }
+        return notfound;
+    }
+
+    public Object get(Object key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    public Object put(Object key, Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        // weigh outside the segment lock, weighing may be expensive
+        return segmentFor(h).put(key, h, value, weigh(key, value), false);
+    }
+
+    public Object putIfAbsent(Object key, Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return segmentFor(h).put(key, h, value, weigh(key, value), true);
+    }
+
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        if (newValue == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return segmentFor(h).replace(key, oldValue, newValue, weigh(key, newValue));
+    }
+
+    public Object remove(Object key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key);
+    }
+
+    public boolean clear() {
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i].clear();
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            size += this.segments[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the sum of the weights of all cache entries
+     */
+    public long weight() {
+        long weight = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            weight += this.segments[i].weight();
+        }
+        return weight;
+    }
+
+    /**
+     * Return an array with the keys of all objects currently contained in the cache.
+     */
+    public Object[] getCachedObjects() {
+        ArrayList keys = new ArrayList();
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i].addKeys(keys);
+        }
+        return keys.toArray();
+    }
+
+    /**
+     * Return an array with all values currently contained in the cache.
+     */
+    public Object[] getCachedValues() {
+        ArrayList values = new ArrayList();
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i].addValues(values);
+        }
+        return values.toArray();
+    }
+
+    /**
+     * Add a snapshot of all cache entries to the given list. Each entry is
+     * added as an array containing the key, the value and the entry weight.
+     *
+     * @param list the list to add the entries to
+     */
+    protected void getEntries(List list) {
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i].addEntries(list);
+        }
+    }
+
+    /**
+     * Called when the application using this cache is stopped. We
+     * simply clear out our cache contents.
+     */
+    public void shutdown() {
+        clear();
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            updateProperties(app.getProperties());
+        }
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        String cacheSize = props.getProperty("cachesize", getDefaultCacheSize()); //$NON-NLS-1$
+        try {
+            setCapacity(parseCapacity(cacheSize));
+        } catch (Exception x) {
+            String message = Messages.getString("ConcurrentCacheMap.1") + cacheSize; //$NON-NLS-1$
+            if (this.app != null) {
+                this.app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+    }
+
+    /**
+     * A cache entry.
+     */
+    static class Entry {
+        Object value;
+        long weight;
+        int region;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+            this.region = WINDOW;
+        }
+    }
+
+    /**
+     * A segment of the cache, holding the entries for a part of the key space
+     * under its own lock.
+     */
+    final class Segment {
+        // the LRU maps for the window, probation and protected regions
+        final LinkedHashMap[] regions = new LinkedHashMap[] {
+                new LinkedHashMap(16, 0.75f, true),
+                new LinkedHashMap(16, 0.75f, true),
+                new LinkedHashMap(16, 0.75f, true)
+        };
+        // the sum of entry weights in each region
+        final long[] weights = new long[3];
+        long windowMax, mainMax, protectedMax;
+        final FrequencySketch sketch = new FrequencySketch();
+
+        synchronized void setCapacity(long max) {
+            this.windowMax = Math.max(1, max / 100);
+            this.mainMax = Math.max(1, max - this.windowMax);
+            this.protectedMax = this.mainMax * 4 / 5;
+            this.sketch.setCapacity(max);
+            evict();
+        }
+
+        synchronized boolean containsKey(Object key) {
+            return this.regions[WINDOW].containsKey(key) ||
+                   this.regions[PROBATION].containsKey(key) ||
+                   this.regions[PROTECTED].containsKey(key);
+        }
+
+        synchronized Object get(Object key, int hash) {
+            this.sketch.increment(hash);
+            Entry entry = find(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.region == PROBATION) {
+                // second access, promote to the protected region
+                move(key, entry, PROTECTED);
+                trimProtected();
+            }
+            return entry.value;
+        }
+
+        synchronized Object put(Object key, int hash, Object value, long weight,
+                                boolean onlyIfAbsent) {
+            this.sketch.increment(hash);
+            Entry entry = find(key);
+            if (entry != null) {
+                Object old = entry.value;
+                // the value may have grown or shrunk since it was weighed,
+                // even if the same object is put again
+                if (!onlyIfAbsent || old == value) {
+                    update(entry, value, weight);
+                }
+                return old;
+            }
+
+            entry = new Entry(value, weight);
+            this.regions[WINDOW].put(key, entry);
+            this.weights[WINDOW] += entry.weight;
+            evict();
+            return null;
+        }
+
+        synchronized boolean replace(Object key, Object oldValue, Object newValue, long weight) {
+            Entry entry = find(key);
+            if (entry == null || entry.value != oldValue) {
+                return false;
+            }
+            update(entry, newValue, weight);
+            return true;
+        }
+
+        /**
+         * Set the value and weight of an existing entry, evicting entries
+         * if the region it is in has become too heavy.
+         */
+        private void update(Entry entry, Object value, long weight) {
+            this.weights[entry.region] += weight - entry.weight;
+            entry.value = value;
+            entry.weight = weight;
+            if (entry.region == PROTECTED) {
+                trimProtected();
+            }
+            evict();
+        }
+
+        /**
+         * Move the least recently used protected entries back to probation
+         * until the protected region fits its maximum size.
+         */
+        private void trimProtected() {
+            while (this.weights[PROTECTED] > this.protectedMax) {
+                Map.Entry eldest = eldest(PROTECTED);
+                move(eldest.getKey(), (Entry) eldest.getValue(), PROBATION);
+            }
+        }
+
+        synchronized Object remove(Object key) {
+            for (int i = 0; i < 3; i++) {
+                Entry entry = (Entry) this.regions[i].remove(key);
+                if (entry != null) {
+                    this.weights[i] -= entry.weight;
+                    return entry.value;
+                }
+            }
+            return null;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < 3; i++) {
+                this.regions[i].clear();
+                this.weights[i] = 0;
+            }
+        }
+
+        synchronized int size() {
+            return this.regions[WINDOW].size() + this.regions[PROBATION].size() +
+                   this.regions[PROTECTED].size();
+        }
+
+        synchronized long weight() {
+            return this.weights[WINDOW] + this.weights[PROBATION] + this.weights[PROTECTED];
+        }
+
+        synchronized void addKeys(List list) {
+            for (int i = 0; i < 3; i++) {
+                list.addAll(this.regions[i].keySet());
+            }
+        }
+
+        synchronized void addValues(List list) {
+            for (int i = 0; i < 3; i++) {
+                for (Iterator it = this.regions[i].values().iterator(); it.hasNext(); ) {
+                    list.add(((Entry) it.next()).value);
+                }
+            }
+        }
+
+        synchronized void addEntries(List list) {
+            for (int i = 0; i < 3; i++) {
+                for (Iterator it = this.regions[i].entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry mapEntry = (Map.Entry) it.next();
+                    Entry entry = (Entry) mapEntry.getValue();
+                    list.add(new Object[] {mapEntry.getKey(), entry.value, new Long(entry.weight)});
+                }
+            }
+        }
+
+        /**
+         * Find an entry, updating its position in the LRU order of its region.
+         */
+        private Entry find(Object key) {
+            for (int i = 0; i < 3; i++) {
+                Entry entry = (Entry) this.regions[i].get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private void move(Object key, Entry entry, int region) {
+            this.regions[entry.region].remove(key);
+            this.weights[entry.region] -= entry.weight;
+            entry.region = region;
+            this.regions[region].put(key, entry);
+            this.weights[region] += entry.weight;
+        }
+
+        private Map.Entry eldest(int region) {
+            Iterator it = this.regions[region].entrySet().iterator();
+            return it.hasNext() ? (Map.Entry) it.next() : null;
+        }
+
+        /**
+         * Move entries from the window to the main space while the window is
+         * too large, and evict entries while the main space is too large.
+         */
+        private void evict() {
+            while (this.weights[WINDOW] > this.windowMax) {
+                Map.Entry eldest = eldest(WINDOW);
+                Object key = eldest.getKey();
+                Entry candidate = (Entry) eldest.getValue();
+                this.regions[WINDOW].remove(key);
+                this.weights[WINDOW] -= candidate.weight;
+                admit(key, candidate);
+            }
+
+            // the main space may also be too large after the capacity was lowered
+            // or an entry in the main space was replaced with a heavier value
+            while (this.weights[PROBATION] + this.weights[PROTECTED] > this.mainMax) {
+                int region = this.regions[PROBATION].isEmpty() ? PROTECTED : PROBATION;
+                Map.Entry victim = eldest(region);
+                this.regions[region].remove(victim.getKey());
+                this.weights[region] -= ((Entry) victim.getValue()).weight;
+                evicted(victim.getKey(), (Entry) victim.getValue());
+            }
+        }
+
+        /**
+         * Admit an entry leaving the window to the main space if it is used more
+         * frequently than the least recently used entries it would replace.
+         */
+        private void admit(Object key, Entry candidate) {
+            int candidateFrequency = this.sketch.frequency(hash(key));
+            while (this.weights[PROBATION] + this.weights[PROTECTED] + candidate.weight > this.mainMax) {
+                int region = this.regions[PROBATION].isEmpty() ? PROTECTED : PROBATION;
+                Map.Entry victim = eldest(region);
+                if (victim == null ||
+                        this.sketch.frequency(hash(victim.getKey())) >= candidateFrequency) {
+                    // the candidate loses and is dropped
+                    evicted(key, candidate);
+                    return;
+                }
+                this.regions[region].remove(victim.getKey());
+                this.weights[region] -= ((Entry) victim.getValue()).weight;
+                evicted(victim.getKey(), (Entry) victim.getValue());
+            }
+            candidate.region = PROBATION;
+            this.regions[PROBATION].put(key, candidate);
+            this.weights[PROBATION] += candidate.weight;
+        }
+
+        private void evicted(Object key, Entry entry) {
+            CacheEvictionListenerInterface listener = ConcurrentCacheMap.this.evictionListener;
+            if (listener != null) {
+                listener.entryEvicted(key, entry.value);
+            }
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of 4 bit counters, estimating how often
+     * keys have been accessed recently. All counters are halved after a number of
+     * increments proportional to the capacity, so old accesses fade out.
+     */
+    static final class FrequencySketch {
+        static final int[] SEEDS = new int[] {
+                0x97cb3127, 0xb5297a4d, 0x68e31da4, 0x1b873593
+        };
+
+        long[] table = new long[1];
+        int mask = 0;
+        int additions = 0;
+        int sampleSize = 10;
+
+        void setCapacity(long capacity) {
+            int max = (int) Math.min(capacity, 1 << 24);
+            int size = 1;
+            // each long holds 16 counters, use about one counter per entry and row
+            while (size * 4 < max) {
+                size <<= 1;
+            }
+            this.table = new long[size];
+            this.mask = size - 1;
+            this.additions = 0;
+            this.sampleSize = Math.max(10, 10 * max);
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, count(hash, i));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+                long bits = 0xfL << offset;
+                if ((this.table[index] & bits) != bits) {
+                    this.table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) {
+                reset();
+            }
+        }
+
+        private int count(int hash, int row) {
+            return (int) ((this.table[indexOf(hash, row)] >>> offsetOf(hash, row)) & 0xfL);
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 17;
+            return h & this.mask;
+        }
+
+        private int offsetOf(int hash, int row) {
+            // each row uses its own group of four counters within a long
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                // halve all 16 counters in the long at once
+                this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+            }
+            this.additions /= 2;
+        }
+    }
+}
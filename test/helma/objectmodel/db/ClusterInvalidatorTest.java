@@ -0,0 +1,174 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.framework.repository.FileRepository;
+import helma.framework.repository.RepositoryInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.*;
+
+/**
+ * Starts cluster invalidators on the loopback interface and checks that
+ * evictions, subnode changes and data changes are propagated, that an instance
+ * ignores its own messages and that messages with a wrong signature are dropped.
+ * Run with "ant test".
+ */
+public class ClusterInvalidatorTest {
+
+    static final long TIMEOUT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        testPropagation();
+        testSignature();
+        System.out.println("ClusterInvalidatorTest passed"); //$NON-NLS-1$
+    }
+
+    /**
+     * Send changes from one instance to another one and to itself.
+     */
+    static void testPropagation() throws Exception {
+        int portA = getFreePort();
+        int portB = getFreePort();
+        // A lists itself as a peer, so it receives its own messages
+        RecordingInvalidator a = RecordingInvalidator.start(portA,
+                "127.0.0.1:" + portA + ",127.0.0.1:" + portB, "secret"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        RecordingInvalidator b = RecordingInvalidator.start(portB,
+                "127.0.0.1:" + portA, "secret"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            DbKey modified = new DbKey(null, "1"); //$NON-NLS-1$
+            DbKey parent = new DbKey(null, "2"); //$NON-NLS-1$
+            SyntheticKey collection = new SyntheticKey(parent, "items"); //$NON-NLS-1$
+            long dataChange = b.story.getLastDataChange();
+
+            a.invalidate(Arrays.asList(new Object[] {modified, collection}),
+                    Collections.singletonList(parent), Collections.singletonList("Story")); //$NON-NLS-1$
+
+            // data changes are applied last
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (b.story.getLastDataChange() == dataChange
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            check(b.story.getLastDataChange() > dataChange, "data change not propagated"); //$NON-NLS-1$
+            check(b.evicted.contains(modified), "node not evicted"); //$NON-NLS-1$
+            check(b.evicted.contains(collection), "virtual node not evicted"); //$NON-NLS-1$
+            check(b.subnodes.contains(parent), "subnode change not propagated"); //$NON-NLS-1$
+
+            // A's own message has arrived by now if it wasn't dropped
+            Thread.sleep(200);
+            check(a.evicted.isEmpty() && a.subnodes.isEmpty(), "own message applied"); //$NON-NLS-1$
+            check(a.story.getLastDataChange() == dataChange, "own data change applied"); //$NON-NLS-1$
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    /**
+     * Send changes signed with a different secret.
+     */
+    static void testSignature() throws Exception {
+        int portA = getFreePort();
+        int portB = getFreePort();
+        RecordingInvalidator a = RecordingInvalidator.start(portA,
+                "127.0.0.1:" + portB, "secret"); //$NON-NLS-1$ //$NON-NLS-2$
+        RecordingInvalidator b = RecordingInvalidator.start(portB,
+                "127.0.0.1:" + portA, "other"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            a.invalidate(Collections.singletonList(new DbKey(null, "1")), //$NON-NLS-1$
+                    Collections.EMPTY_LIST, Collections.EMPTY_LIST);
+            Thread.sleep(500);
+            check(b.evicted.isEmpty(), "message with wrong signature applied"); //$NON-NLS-1$
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    /**
+     * Create an application with an empty code repository in a temporary directory.
+     */
+    static Application createApplication() throws IOException {
+        File dir = File.createTempFile("cluster", ""); //$NON-NLS-1$ //$NON-NLS-2$
+        dir.delete();
+        File appDir = new File(dir, "app"); //$NON-NLS-1$
+        appDir.mkdirs();
+        RepositoryInterface[] repositories = new RepositoryInterface[] {
+                new FileRepository(appDir)
+        };
+        return new Application("test", repositories, new File(dir, "db")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static int getFreePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * A cluster invalidator that records the changes it receives instead of
+     * applying them to a node manager.
+     */
+    static class RecordingInvalidator extends ClusterInvalidator {
+        final List evicted = Collections.synchronizedList(new ArrayList());
+        final List subnodes = Collections.synchronizedList(new ArrayList());
+        final DbMapping story;
+
+        RecordingInvalidator(NodeManager nmgr, Properties props) throws IOException {
+            super(nmgr, props);
+            this.story = new DbMapping(nmgr.app, "Story", null); //$NON-NLS-1$
+        }
+
+        static RecordingInvalidator start(int port, String peers, String secret)
+                throws IOException {
+            Properties props = new Properties();
+            props.setProperty("clusterPort", Integer.toString(port)); //$NON-NLS-1$
+            props.setProperty("clusterPeers", peers); //$NON-NLS-1$
+            props.setProperty("clusterSecret", secret); //$NON-NLS-1$
+            props.setProperty("clusterBatchDelay", "0"); //$NON-NLS-1$ //$NON-NLS-2$
+            return new RecordingInvalidator(new NodeManager(createApplication()), props);
+        }
+
+        @Override
+        void evict(KeyInterface key) {
+            this.evicted.add(key);
+        }
+
+        @Override
+        void markSubnodesChanged(KeyInterface key) {
+            this.subnodes.add(key);
+        }
+
+        @Override
+        DbMapping getDbMapping(String typeName) {
+            return "Story".equals(typeName) ? this.story : null; //$NON-NLS-1$
+        }
+    }
+}